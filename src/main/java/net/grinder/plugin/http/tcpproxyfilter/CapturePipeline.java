@@ -0,0 +1,523 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import net.grinder.tools.tcpproxy.ConnectionDetails;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link HTTPFilterEventListener} which records on its own threads, so the proxy forwards each
+ * chunk as soon as it is copied.
+ *
+ * The events of a connection are copied into the bounded lock-free ring of one worker thread,
+ * chosen by the connection, which hands them to the delegate in order. The time of each event is
+ * kept, so the request times and sleep times of the recording do not include the lag of the
+ * workers; see {@link #currentTimeMillis()}.
+ *
+ * When the rings or the byte budget are full, the {@link OverflowPolicy} either makes the proxy
+ * wait or drops the rest of the connection from the recording.
+ *
+ * @since 3.3
+ */
+public final class CapturePipeline implements HTTPFilterEventListener {
+
+	/**
+	 * What happens to a chunk which does not fit in the pipeline.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The forwarding thread waits until the workers catch up. Nothing is lost from the
+		 * recording.
+		 */
+		BLOCK,
+
+		/**
+		 * The chunk and the rest of its connection are left out of the recording. The browser
+		 * never waits for the recording.
+		 */
+		DROP
+	}
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CapturePipeline.class);
+
+	// An idle worker checks its ring at least this often, in case a wake up is missed.
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// A blocked forwarding thread retries after this time.
+	private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	private static final int OPEN = 0;
+	private static final int REQUEST = 1;
+	private static final int RESPONSE = 2;
+	private static final int CLOSE = 3;
+
+	private final HTTPFilterEventListener m_delegate;
+	private final OverflowPolicy m_overflowPolicy;
+	private final long m_maxQueuedBytes;
+	private final Worker[] m_workers;
+	private final Set<ConnectionDetails> m_droppedConnections = Collections
+					.newSetFromMap(new ConcurrentHashMap<ConnectionDetails, Boolean>());
+	private volatile boolean m_stopping;
+
+	// Held to take the events of a worker which has exited, so they are recorded before the events
+	// which follow them on the forwarding threads.
+	private final Object m_exitLock = new Object();
+
+	private final AtomicLong m_queuedBytes = new AtomicLong();
+	private final AtomicLong m_enqueued = new AtomicLong();
+	private final AtomicLong m_processed = new AtomicLong();
+	private final AtomicLong m_dropped = new AtomicLong();
+	private final AtomicLong m_blocked = new AtomicLong();
+	private final AtomicLong m_blockedNanos = new AtomicLong();
+	private final AtomicLong m_lagNanos = new AtomicLong();
+	private final AtomicLong m_maxLagNanos = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param delegate
+	 *            listener called on the worker threads
+	 * @param threads
+	 *            number of worker threads. With more than one, the requests of different
+	 *            connections may be recorded in another order than they were sent.
+	 * @param capacity
+	 *            number of chunks queued, shared by the workers
+	 * @param maxQueuedBytes
+	 *            number of bytes queued. A single chunk is always accepted into an empty pipeline.
+	 * @param overflowPolicy
+	 *            what to do when the pipeline is full
+	 */
+	public CapturePipeline(HTTPFilterEventListener delegate, int threads, int capacity, long maxQueuedBytes,
+					OverflowPolicy overflowPolicy) {
+		m_delegate = delegate;
+		m_overflowPolicy = overflowPolicy;
+		m_maxQueuedBytes = maxQueuedBytes;
+		m_workers = new Worker[Math.max(1, threads)];
+		final int ringCapacity = Math.max(2, (capacity + m_workers.length - 1) / m_workers.length);
+		for (int i = 0; i < m_workers.length; i++) {
+			m_workers[i] = new Worker(ringCapacity, i);
+		}
+	}
+
+	/**
+	 * Start the worker threads.
+	 */
+	public void start() {
+		for (Worker worker : m_workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * Record the queued events and stop the worker threads. Each worker exits once its ring is
+	 * empty; the events of its connections which arrive afterwards are recorded on the calling
+	 * thread. A worker which is still behind after the timeout keeps recording its events.
+	 *
+	 * @param timeout
+	 *            time to wait for the queued events, in milliseconds
+	 */
+	public void stop(long timeout) {
+		flush(timeout);
+		m_stopping = true;
+		for (Worker worker : m_workers) {
+			LockSupport.unpark(worker);
+			try {
+				worker.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (!worker.isAlive()) {
+				// Also a worker which was never started.
+				worker.exit();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the events queued before this call are recorded, so the recording can be
+	 * generated or reset.
+	 *
+	 * @param timeout
+	 *            maximum time to wait, in milliseconds
+	 * @return false if the timeout elapsed first
+	 */
+	public boolean flush(long timeout) {
+		final long target = m_enqueued.get();
+		final long deadline = System.currentTimeMillis() + timeout;
+		while (m_processed.get() < target) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(5);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the time of the event being recorded. The recording calls this instead of
+	 * {@link System#currentTimeMillis()}, so the times are those of the forwarding threads.
+	 *
+	 * @return time of the event on a worker thread, the current time on any other thread
+	 */
+	static long currentTimeMillis() {
+		final Thread thread = Thread.currentThread();
+		return thread instanceof Worker ? ((Worker) thread).m_eventTime : System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the time of the event being recorded, as {@link #currentTimeMillis()}.
+	 *
+	 * @return calendar in the default time zone
+	 */
+	static Calendar currentCalendar() {
+		final Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(currentTimeMillis());
+		return calendar;
+	}
+
+	@Override
+	public void open(ConnectionDetails connectionDetails) {
+		m_droppedConnections.remove(connectionDetails);
+		submit(new Event(OPEN, connectionDetails, null, 0), true);
+	}
+
+	@Override
+	public void request(ConnectionDetails connectionDetails, byte[] buffer, int length) {
+		submitChunk(REQUEST, connectionDetails, buffer, length);
+	}
+
+	@Override
+	public void response(ConnectionDetails connectionDetails, byte[] buffer, int length) {
+		submitChunk(RESPONSE, connectionDetails, buffer, length);
+	}
+
+	@Override
+	public void close(ConnectionDetails connectionDetails) {
+		// Also for a dropped connection, so its partial request is finished.
+		m_droppedConnections.remove(connectionDetails);
+		submit(new Event(CLOSE, connectionDetails, null, 0), true);
+	}
+
+	private void submitChunk(int type, ConnectionDetails connectionDetails, byte[] buffer, int length) {
+		if (!m_droppedConnections.isEmpty() && m_droppedConnections.contains(connectionDetails)) {
+			m_dropped.incrementAndGet();
+			return;
+		}
+		final byte[] copy = new byte[length];
+		System.arraycopy(buffer, 0, copy, 0, length);
+		if (!submit(new Event(type, connectionDetails, copy, length), false)) {
+			// The handler can not parse the connection past a missing chunk.
+			m_droppedConnections.add(connectionDetails);
+			m_dropped.incrementAndGet();
+		}
+	}
+
+	private boolean submit(Event event, boolean force) {
+		final Worker worker = m_workers[(event.m_connectionDetails.hashCode() & Integer.MAX_VALUE) % m_workers.length];
+		if (worker.m_exited) {
+			dispatchAfterExit(worker, event);
+			return true;
+		}
+		if (!offer(worker, event)) {
+			if (!force && m_overflowPolicy == OverflowPolicy.DROP) {
+				return false;
+			}
+			m_blocked.incrementAndGet();
+			final long start = System.nanoTime();
+			do {
+				worker.wake();
+				LockSupport.parkNanos(BACKOFF_NANOS);
+				if (worker.m_exited) {
+					m_blockedNanos.addAndGet(System.nanoTime() - start);
+					dispatchAfterExit(worker, event);
+					return true;
+				}
+			} while (!offer(worker, event));
+			m_blockedNanos.addAndGet(System.nanoTime() - start);
+		}
+		m_enqueued.incrementAndGet();
+		worker.wake();
+		if (worker.m_exited) {
+			// The worker exited before it could see the event.
+			synchronized (m_exitLock) {
+				worker.drain();
+			}
+		}
+		return true;
+	}
+
+	private void dispatchAfterExit(Worker worker, Event event) {
+		synchronized (m_exitLock) {
+			worker.drain();
+			dispatch(event);
+		}
+	}
+
+	private void record(Event event) {
+		m_queuedBytes.addAndGet(-event.m_length);
+		final long lag = System.nanoTime() - event.m_nanoTime;
+		m_lagNanos.addAndGet(lag);
+		long max = m_maxLagNanos.get();
+		while (lag > max && !m_maxLagNanos.compareAndSet(max, lag)) {
+			max = m_maxLagNanos.get();
+		}
+		dispatch(event);
+		m_processed.incrementAndGet();
+	}
+
+	private boolean offer(Worker worker, Event event) {
+		final long queued = m_queuedBytes.addAndGet(event.m_length);
+		if ((queued > m_maxQueuedBytes && queued != event.m_length) || !worker.m_ring.offer(event)) {
+			m_queuedBytes.addAndGet(-event.m_length);
+			return false;
+		}
+		return true;
+	}
+
+	private void dispatch(Event event) {
+		try {
+			switch (event.m_type) {
+				case OPEN:
+					m_delegate.open(event.m_connectionDetails);
+					break;
+				case REQUEST:
+					m_delegate.request(event.m_connectionDetails, event.m_bytes, event.m_length);
+					break;
+				case RESPONSE:
+					m_delegate.response(event.m_connectionDetails, event.m_bytes, event.m_length);
+					break;
+				default:
+					m_delegate.close(event.m_connectionDetails);
+					break;
+			}
+		} catch (IllegalArgumentException e) {
+			// Unknown connection, as on the forwarding thread.
+			LOGGER.debug("Event of an unknown connection {}", event.m_connectionDetails);
+		} catch (RuntimeException e) {
+			LOGGER.error("Failed to record {}", event.m_connectionDetails, e);
+		}
+	}
+
+	/**
+	 * Get the number of chunks waiting for a worker.
+	 *
+	 * @return queue length
+	 */
+	public long getQueued() {
+		return Math.max(0, m_enqueued.get() - m_processed.get());
+	}
+
+	public long getQueuedBytes() {
+		return m_queuedBytes.get();
+	}
+
+	public long getProcessed() {
+		return m_processed.get();
+	}
+
+	/**
+	 * Get the number of chunks left out of the recording by {@link OverflowPolicy#DROP}.
+	 *
+	 * @return dropped chunk count
+	 */
+	public long getDropped() {
+		return m_dropped.get();
+	}
+
+	/**
+	 * Get the number of times a forwarding thread waited for the workers.
+	 *
+	 * @return wait count
+	 */
+	public long getBlocked() {
+		return m_blocked.get();
+	}
+
+	public long getBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(m_blockedNanos.get());
+	}
+
+	/**
+	 * Get the average time between forwarding a chunk and recording it.
+	 *
+	 * @return lag in milliseconds
+	 */
+	public double getAverageLag() {
+		final long processed = m_processed.get();
+		return processed == 0 ? 0 : m_lagNanos.get() / 1e6 / processed;
+	}
+
+	public double getMaxLag() {
+		return m_maxLagNanos.get() / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("threads=%d queued=%d (%dKB) processed=%d dropped=%d blocked=%d (%dms) "
+						+ "lag avg=%.1fms max=%.1fms", m_workers.length, getQueued(), getQueuedBytes() / 1024,
+						getProcessed(), getDropped(), getBlocked(), getBlockedMillis(), getAverageLag(), getMaxLag());
+	}
+
+	private static final class Event {
+		private final int m_type;
+		private final ConnectionDetails m_connectionDetails;
+		private final byte[] m_bytes;
+		private final int m_length;
+		private final long m_time = System.currentTimeMillis();
+		private final long m_nanoTime = System.nanoTime();
+
+		Event(int type, ConnectionDetails connectionDetails, byte[] bytes, int length) {
+			m_type = type;
+			m_connectionDetails = connectionDetails;
+			m_bytes = bytes;
+			m_length = length;
+		}
+	}
+
+	/**
+	 * Bounded ring of many producers and one consumer. Each slot has a sequence number, which
+	 * tells whether the slot is free for the producer of a position or filled for the consumer, so
+	 * neither side takes a lock.
+	 */
+	private static final class Ring {
+		private final AtomicReferenceArray<Event> m_slots;
+		private final AtomicLongArray m_sequences;
+		private final int m_mask;
+		private final AtomicLong m_tail = new AtomicLong();
+		private long m_head;
+
+		Ring(int capacity) {
+			final int size = Integer.highestOneBit(capacity - 1) << 1;
+			m_slots = new AtomicReferenceArray<Event>(size);
+			m_sequences = new AtomicLongArray(size);
+			m_mask = size - 1;
+			for (int i = 0; i < size; i++) {
+				m_sequences.set(i, i);
+			}
+		}
+
+		boolean offer(Event event) {
+			long tail = m_tail.get();
+			while (true) {
+				final int index = (int) (tail & m_mask);
+				final long difference = m_sequences.get(index) - tail;
+				if (difference == 0) {
+					if (m_tail.compareAndSet(tail, tail + 1)) {
+						m_slots.lazySet(index, event);
+						m_sequences.set(index, tail + 1);
+						return true;
+					}
+				} else if (difference < 0) {
+					// The slot still holds the event of the previous lap.
+					return false;
+				}
+				tail = m_tail.get();
+			}
+		}
+
+		// Only called by the worker thread.
+		Event poll() {
+			final int index = (int) (m_head & m_mask);
+			if (m_sequences.get(index) != m_head + 1) {
+				return null;
+			}
+			final Event event = m_slots.get(index);
+			m_slots.lazySet(index, null);
+			m_sequences.set(index, m_head + m_mask + 1);
+			m_head++;
+			return event;
+		}
+	}
+
+	private final class Worker extends Thread {
+		private final Ring m_ring;
+		private volatile boolean m_waiting;
+		// Once set, the ring is only read with m_exitLock held.
+		private volatile boolean m_exited;
+		private long m_eventTime;
+
+		Worker(int capacity, int number) {
+			super("Capture pipeline " + number);
+			setDaemon(true);
+			m_ring = new Ring(capacity);
+		}
+
+		void wake() {
+			if (m_waiting) {
+				LockSupport.unpark(this);
+			}
+		}
+
+		/**
+		 * Hand the ring over to the other threads, and record what is left in it. A producer which
+		 * queues an event after this either sees the flag or has its event taken here.
+		 */
+		void exit() {
+			synchronized (m_exitLock) {
+				m_exited = true;
+				drain();
+			}
+		}
+
+		// Called with m_exitLock held, once the worker has exited.
+		void drain() {
+			Event event;
+			while ((event = m_ring.poll()) != null) {
+				record(event);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Event event = m_ring.poll();
+				if (event == null) {
+					if (m_stopping) {
+						exit();
+						return;
+					}
+					m_waiting = true;
+					// A producer which missed the flag has published its event by now.
+					event = m_ring.poll();
+					if (event == null) {
+						LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+						m_waiting = false;
+						continue;
+					}
+					m_waiting = false;
+				}
+				m_eventTime = event.m_time;
+				record(event);
+			}
+		}
+	}
+}
@@ -25,8 +25,12 @@ import org.picocontainer.Disposable;
  * @since 1.0
  */
 public class ConnectedHostHTTPFilterEventListener implements HTTPFilterEventListener, Disposable {
+	// Time to wait for the capture pipeline before the connections are disposed, in milliseconds.
+	private static final long FLUSH_TIMEOUT = 10000;
+
 	private final ConnectionFilter connectionFilter;
 	private final HTTPFilterEventListener connectionCache;
+	private volatile CapturePipeline capturePipeline;
 
 	/**
 	 * Constructor.
@@ -41,8 +45,28 @@ public class ConnectedHostHTTPFilterEventListener implements HTTPFilterEventList
 		this.connectionCache = connectionCache;
 	}
 
+	/**
+	 * Record on the worker threads of the given pipeline instead of the forwarding threads.
+	 * 
+	 * @param capturePipeline
+	 *            pipeline which delegates to the connection cache, or {@code null} to record
+	 *            inline
+	 */
+	public void setCapturePipeline(CapturePipeline capturePipeline) {
+		this.capturePipeline = capturePipeline;
+	}
+
+	private HTTPFilterEventListener getListener() {
+		final CapturePipeline pipeline = capturePipeline;
+		return pipeline != null ? pipeline : connectionCache;
+	}
+
 	@Override
 	public void dispose() {
+		final CapturePipeline pipeline = capturePipeline;
+		if (pipeline != null) {
+			pipeline.flush(FLUSH_TIMEOUT);
+		}
 		if (this.connectionCache instanceof Disposable) {
 			((Disposable) connectionCache).dispose();
 		}
@@ -54,7 +78,7 @@ public class ConnectedHostHTTPFilterEventListener implements HTTPFilterEventList
 			return;
 		}
 		try {
-			connectionCache.open(connectionDetails);
+			getListener().open(connectionDetails);
 		} catch (IllegalArgumentException e) {
 			NoOp.noOp();
 		}
@@ -66,7 +90,7 @@ public class ConnectedHostHTTPFilterEventListener implements HTTPFilterEventList
 			return;
 		}
 		try {
-			connectionCache.request(connectionDetails, buffer, bytesRead);
+			getListener().request(connectionDetails, buffer, bytesRead);
 		} catch (IllegalArgumentException e) {
 			NoOp.noOp();
 		}
@@ -78,7 +102,7 @@ public class ConnectedHostHTTPFilterEventListener implements HTTPFilterEventList
 			return;
 		}
 		try {
-			connectionCache.response(connectionDetails, buffer, bytesRead);
+			getListener().response(connectionDetails, buffer, bytesRead);
 		} catch (IllegalArgumentException e) {
 			NoOp.noOp();
 		}
@@ -90,7 +114,7 @@ public class ConnectedHostHTTPFilterEventListener implements HTTPFilterEventList
 			return;
 		}
 		try {
-			connectionCache.close(connectionDetails);
+			getListener().close(connectionDetails);
 		} catch (IllegalArgumentException e) {
 			NoOp.noOp();
 		}
@@ -13,6 +13,7 @@
  */
 package net.grinder.plugin.http.tcpproxyfilter;
 
+import net.grinder.tools.tcpproxy.BufferPool;
 import net.grinder.tools.tcpproxy.ConnectionDetails;
 import net.grinder.util.AttributeStringParser;
 import net.grinder.util.StringEscaper;
@@ -33,6 +34,7 @@ public final class ConnectionHandlerFactoryImplEx implements ConnectionHandlerFa
 	private final AttributeStringParser m_attributeStringParser;
 	private final StringEscaper m_postBodyStringEscaper;
 	private final FileTypeFilter m_fileTypeFilter;
+	private final BufferPool m_bufferPool;
 
 	/**
 	 * Constructor.
@@ -49,16 +51,19 @@ public final class ConnectionHandlerFactoryImplEx implements ConnectionHandlerFa
 	 *            A StringCodec used to escape post body strings.
 	 * @param fileTypeFilter
 	 *            fileTypeFilter
+	 * @param bufferPool
+	 *            Buffer pool shared with the proxy engine.
 	 */
 	public ConnectionHandlerFactoryImplEx(HTTPRecordingEx httpRecording, RegularExpressions regularExpressions,
 					URIParser uriParser, AttributeStringParser attributeStringParser,
-					StringEscaper postBodyStringEscaper, FileTypeFilter fileTypeFilter) {
+					StringEscaper postBodyStringEscaper, FileTypeFilter fileTypeFilter, BufferPool bufferPool) {
 		m_httpRecording = httpRecording;
 		m_regularExpressions = regularExpressions;
 		m_uriParser = uriParser;
 		m_attributeStringParser = attributeStringParser;
 		m_postBodyStringEscaper = postBodyStringEscaper;
 		m_fileTypeFilter = fileTypeFilter;
+		m_bufferPool = bufferPool;
 	}
 
 	/**
@@ -70,6 +75,6 @@ public final class ConnectionHandlerFactoryImplEx implements ConnectionHandlerFa
 	 */
 	public ConnectionHandler create(ConnectionDetails connectionDetails) {
 		return new ConnectionHandlerImplEx(m_httpRecording, m_regularExpressions, m_uriParser, m_attributeStringParser,
-						m_postBodyStringEscaper, connectionDetails, m_fileTypeFilter);
+						m_postBodyStringEscaper, connectionDetails, m_fileTypeFilter, m_bufferPool);
 	}
 }
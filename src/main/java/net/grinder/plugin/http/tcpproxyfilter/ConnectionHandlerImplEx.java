@@ -51,6 +51,7 @@ import net.grinder.plugin.http.xml.ResponseTokenReferenceType;
 import net.grinder.plugin.http.xml.ResponseType;
 import net.grinder.plugin.http.xml.TokenReferenceType;
 import net.grinder.plugin.http.xml.TokenResponseLocationType;
+import net.grinder.tools.tcpproxy.BufferPool;
 import net.grinder.tools.tcpproxy.CommentSource;
 import net.grinder.tools.tcpproxy.ConnectionDetails;
 import net.grinder.util.AttributeStringParser;
@@ -81,6 +82,8 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 					Arrays.asList(new RequestType.Method.Enum[] { RequestType.Method.OPTIONS, RequestType.Method.POST,
 							RequestType.Method.PUT, }));
 
+	private static final int HTTP_SWITCHING_PROTOCOLS = 101;
+
 	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionHandlerFactoryImplEx.class);
 	private final HTTPRecordingEx m_httpRecording;
 
@@ -97,7 +100,10 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 	// We've introduced buffers at this level to solve a specific issue
 	// (bug 3484390). Later, we may push this up the API, and perhaps copy
 	// directly from a socket channel into the buffer.
-	private final ByteBuffer m_requestBuffer = ByteBuffer.allocate(40960);
+	// The buffer is leased from the pool only while it holds a partial
+	// request line, or for the duration of handleRequest().
+	private final BufferPool m_bufferPool;
+	private ByteBuffer m_requestBuffer;
 
 	private Request m_request;
 
@@ -120,11 +126,13 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 	 *            connectionDetails
 	 * @param fileTypeFilter
 	 *            fileTypeFilter
+	 * @param bufferPool
+	 *            pool which the request buffer is leased from
 	 */
 	public ConnectionHandlerImplEx(HTTPRecordingEx httpRecording, RegularExpressions regularExpressions,
 					URIParser uriParser, AttributeStringParser attributeStringParser,
 					StringEscaper postBodyStringEscaper, ConnectionDetails connectionDetails,
-					FileTypeFilter fileTypeFilter) {
+					FileTypeFilter fileTypeFilter, BufferPool bufferPool) {
 
 		m_httpRecording = httpRecording;
 		m_regularExpressions = regularExpressions;
@@ -139,6 +147,7 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 		};
 		m_connectionDetails = connectionDetails;
 		m_fileTypeFilter = fileTypeFilter;
+		m_bufferPool = bufferPool;
 	}
 
 	/**
@@ -147,11 +156,21 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 	@Override
 	public synchronized void handleRequest(byte[] buffer, int length) {
 
+		if (m_request != null && m_request.getWebSocket() != null) {
+			// The connection has switched to WebSocket, so there are no more requests.
+			m_request.getWebSocket().sent(buffer, 0, length);
+			return;
+		}
+
+		if (m_requestBuffer == null) {
+			m_requestBuffer = ByteBuffer.wrap(m_bufferPool.lease());
+		}
+
 		try {
 			m_requestBuffer.put(buffer, 0, length);
 		} catch (BufferOverflowException e) {
 			LOGGER.error("Filled buffer without matching request line", e);
-			m_requestBuffer.clear();
+			releaseRequestBuffer();
 			return;
 		}
 
@@ -169,7 +188,7 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 		}
 
 		if (m_request != null && m_request.isComplete()) {
-			requestFinished();
+			endRequest();
 		}
 
 		final Matcher matcher = m_regularExpressions.getRequestLinePattern().matcher(asciiString);
@@ -181,7 +200,7 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			final String relativeURI = matcher.group(2);
 
 			if (RequestType.Method.Enum.forString(method) != null) {
-				requestFinished();
+				endRequest();
 
 				if (!m_fileTypeFilter.isFiltered(relativeURI)) {
 					m_request = new Request(method, relativeURI, m_commentSource.getComments());
@@ -198,7 +217,7 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			return;
 		} else if (m_request.getBody() != null) {
 			m_request.getBody().write(m_requestBuffer.array(), 0, m_requestBuffer.remaining());
-			m_requestBuffer.clear();
+			releaseRequestBuffer();
 
 			return;
 		}
@@ -234,6 +253,10 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			if ("Content-Length".equalsIgnoreCase(name)) {
 				m_request.setContentLength(Integer.parseInt(value));
 			}
+
+			if ("Upgrade".equalsIgnoreCase(name) && value.toLowerCase().contains("websocket")) {
+				m_request.setWebSocketUpgrade();
+			}
 		}
 
 		final Matcher authorizationMatcher = m_regularExpressions.getBasicAuthorizationHeaderPattern().matcher(headers);
@@ -259,7 +282,14 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			}
 		}
 
-		m_requestBuffer.clear();
+		releaseRequestBuffer();
+	}
+
+	private void releaseRequestBuffer() {
+		if (m_requestBuffer != null) {
+			m_bufferPool.release(m_requestBuffer.array());
+			m_requestBuffer = null;
+		}
 	}
 
 	public synchronized void handleResponse(byte[] buffer, int length) {
@@ -270,6 +300,11 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			return;
 		}
 
+		if (m_request.getWebSocket() != null) {
+			m_request.getWebSocket().received(buffer, 0, length);
+			return;
+		}
+
 		// See notes in handleRequest about why we use this code page.
 		final String asciiString;
 		try {
@@ -300,7 +335,7 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			String headers = asciiString;
 			int bodyStart = -1;
 
-			if (m_request.expectingResponseBody()) {
+			if (m_request.expectingResponseBody() || m_request.isSwitchingToWebSocket()) {
 				final Matcher messageBodyMatcher = m_regularExpressions.getMessageBodyPattern().matcher(asciiString);
 
 				if (messageBodyMatcher.find()) {
@@ -338,7 +373,12 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			// Write out the body after parsing the headers for consistency with
 			// handleRequest.
 			if (bodyStart > -1) {
-				response.new ResponseBody().write(buffer, bodyStart, length - bodyStart);
+				if (m_request.isSwitchingToWebSocket()) {
+					// Frames are parsed as they arrive, rather than kept as a body.
+					m_request.startWebSocket().received(buffer, bodyStart, length - bodyStart);
+				} else {
+					response.new ResponseBody().write(buffer, bodyStart, length - bodyStart);
+				}
 			}
 		}
 	}
@@ -351,12 +391,19 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 			m_request.cancel();
 			m_request = null;
 		}
+		releaseRequestBuffer();
 	}
 
 	/**
-	 * Called when a new request message is expected.
+	 * Called when the connection is closed. A partial request line which is still buffered is
+	 * dropped.
 	 */
 	public synchronized void requestFinished() {
+		endRequest();
+		releaseRequestBuffer();
+	}
+
+	private void endRequest() {
 		if (m_request != null) {
 			m_request.end();
 			m_request = null;
@@ -370,6 +417,8 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 		private String m_contentType = null;
 		private RequestBody m_body;
 		private boolean m_complete;
+		private boolean m_webSocketUpgrade;
+		private WebSocketCapture m_webSocket;
 
 		private Response m_response = null;
 
@@ -436,6 +485,24 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 							&& status != HttpURLConnection.HTTP_NOT_MODIFIED;
 		}
 
+		public void setWebSocketUpgrade() {
+			m_webSocketUpgrade = true;
+		}
+
+		public boolean isSwitchingToWebSocket() {
+			return m_webSocketUpgrade && m_webSocket == null
+							&& m_requestXML.getResponse().getStatusCode() == HTTP_SWITCHING_PROTOCOLS;
+		}
+
+		public WebSocketCapture startWebSocket() {
+			m_webSocket = new WebSocketCapture();
+			return m_webSocket;
+		}
+
+		public WebSocketCapture getWebSocket() {
+			return m_webSocket;
+		}
+
 		public void setContentType(String contentType) {
 			m_contentType = contentType;
 		}
@@ -459,6 +526,12 @@ final class ConnectionHandlerImplEx implements ConnectionHandler {
 				getResponse().end();
 			}
 
+			if (m_webSocket != null) {
+				for (String comment : m_webSocket.getComments()) {
+					m_requestXML.addComment(comment);
+				}
+			}
+
 			LOGGER.debug("Request finished {}", m_requestXML);
 		}
 
@@ -167,13 +167,13 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 	@Override
 	public RequestType addRequest(ConnectionDetails connectionDetails, String method, String relativeURI) {
 		final RequestType request = m_requestList.add();
-		request.setTime(Calendar.getInstance());
+		request.setTime(CapturePipeline.currentCalendar());
 
 		synchronized (this) {
 			if (m_lastResponseTime > 0) {
 				// We only want to record a sleep time for the first request after
 				// a response.
-				final long time = System.currentTimeMillis() - m_lastResponseTime;
+				final long time = CapturePipeline.currentTimeMillis() - m_lastResponseTime;
 
 				if (time > 10) {
 					request.setSleepTime(time);
@@ -272,7 +272,7 @@ public class HTTPRecordingImplEx implements HTTPRecordingEx, Disposable {
 	@Override
 	public void markLastResponseTime() {
 		synchronized (this) {
-			m_lastResponseTime = System.currentTimeMillis();
+			m_lastResponseTime = CapturePipeline.currentTimeMillis();
 		}
 	}
 
@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+/**
+ * Frames of a WebSocket connection, RFC 6455, captured as they are relayed.
+ *
+ * The bytes of each direction go through an incremental frame parser, so the messages are never
+ * buffered as an HTTP body. Only the first {@link #MAX_FRAMES} frames are described, each with at
+ * most {@link #MAX_PREVIEW} bytes of payload, and the rest are counted, so a connection which
+ * stays open for the whole recording holds a bounded amount of memory.
+ *
+ * @since 3.3
+ */
+final class WebSocketCapture {
+
+	/**
+	 * Number of frames described in the recording.
+	 */
+	static final int MAX_FRAMES = 100;
+
+	/**
+	 * Number of payload bytes shown for each frame.
+	 */
+	static final int MAX_PREVIEW = 120;
+
+	private final FrameParser m_sent = new FrameParser(">");
+	private final FrameParser m_received = new FrameParser("<");
+	private final List<String> m_frames = newArrayList();
+	private int m_framesNotListed = 0;
+
+	/**
+	 * Parse bytes sent by the browser.
+	 *
+	 * @param bytes
+	 *            buffer
+	 * @param start
+	 *            offset of the first byte
+	 * @param length
+	 *            number of bytes
+	 */
+	public void sent(byte[] bytes, int start, int length) {
+		m_sent.parse(bytes, start, length);
+	}
+
+	/**
+	 * Parse bytes received from the server.
+	 *
+	 * @param bytes
+	 *            buffer
+	 * @param start
+	 *            offset of the first byte
+	 * @param length
+	 *            number of bytes
+	 */
+	public void received(byte[] bytes, int start, int length) {
+		m_received.parse(bytes, start, length);
+	}
+
+	/**
+	 * Describe the connection, one line per comment.
+	 *
+	 * @return a summary, followed by the captured frames
+	 */
+	public List<String> getComments() {
+		final List<String> result = newArrayList();
+		result.add("WebSocket: sent " + m_sent.getFrames() + " frames (" + m_sent.getPayloadBytes()
+						+ " bytes), received " + m_received.getFrames() + " frames (" + m_received.getPayloadBytes()
+						+ " bytes)");
+		result.addAll(m_frames);
+		if (m_framesNotListed > 0) {
+			result.add("... " + m_framesNotListed + " more frames");
+		}
+		return result;
+	}
+
+	private void frame(String direction, int opcode, boolean text, boolean compressed, long length,
+					byte[] preview, int previewLength) {
+		if (m_frames.size() >= MAX_FRAMES) {
+			m_framesNotListed++;
+			return;
+		}
+
+		final StringBuilder description = new StringBuilder();
+		description.append(direction).append(' ').append(opcodeName(opcode)).append(' ').append(length);
+		if (compressed) {
+			description.append(" compressed");
+		} else if (text) {
+			description.append(": ").append(printable(preview, previewLength));
+			if (length > previewLength) {
+				description.append("...");
+			}
+		} else if (opcode == 0x8 && previewLength >= 2) {
+			description.append(": ").append((preview[0] & 0xff) << 8 | preview[1] & 0xff);
+		}
+		m_frames.add(description.toString());
+	}
+
+	private static String opcodeName(int opcode) {
+		switch (opcode) {
+		case 0x0:
+			return "continuation";
+		case 0x1:
+			return "text";
+		case 0x2:
+			return "binary";
+		case 0x8:
+			return "close";
+		case 0x9:
+			return "ping";
+		case 0xa:
+			return "pong";
+		default:
+			return "opcode " + opcode;
+		}
+	}
+
+	private static String printable(byte[] bytes, int length) {
+		final String text;
+		try {
+			text = new String(bytes, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		// Each frame is a single comment line in the script.
+		final StringBuilder result = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			result.append(Character.isISOControl(c) ? '.' : c);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Frame parser for one direction. Holds the header of the current frame and the start of its
+	 * payload, and skips the rest.
+	 */
+	private final class FrameParser {
+		private final String m_direction;
+
+		private final byte[] m_header = new byte[14];
+		private int m_headerLength = 0;
+
+		private final byte[] m_preview = new byte[MAX_PREVIEW];
+		private int m_previewLength = 0;
+
+		private long m_remaining = 0;
+		private long m_payloadLength = 0;
+		private int m_maskOffset = 0;
+		private boolean m_inPayload = false;
+
+		// Continuation frames carry on the message of the last text or binary frame.
+		private boolean m_textMessage = false;
+		private boolean m_compressedMessage = false;
+
+		private int m_frames = 0;
+		private long m_payloadBytes = 0;
+
+		FrameParser(String direction) {
+			m_direction = direction;
+		}
+
+		int getFrames() {
+			return m_frames;
+		}
+
+		long getPayloadBytes() {
+			return m_payloadBytes;
+		}
+
+		void parse(byte[] bytes, int start, int length) {
+			int position = start;
+			final int end = start + length;
+
+			while (position < end) {
+				if (!m_inPayload) {
+					m_header[m_headerLength++] = bytes[position++];
+					if (m_headerLength >= headerLength()) {
+						startPayload();
+					}
+				} else {
+					final int n = (int) Math.min(end - position, m_remaining);
+					final int previewed = Math.min(n, MAX_PREVIEW - m_previewLength);
+					if (previewed > 0) {
+						System.arraycopy(bytes, position, m_preview, m_previewLength, previewed);
+						m_previewLength += previewed;
+					}
+					position += n;
+					m_remaining -= n;
+					if (m_remaining == 0) {
+						endFrame();
+					}
+				}
+			}
+		}
+
+		private int headerLength() {
+			if (m_headerLength < 2) {
+				return 2;
+			}
+			final int length7 = m_header[1] & 0x7f;
+			final int mask = (m_header[1] & 0x80) != 0 ? 4 : 0;
+			return 2 + (length7 == 126 ? 2 : length7 == 127 ? 8 : 0) + mask;
+		}
+
+		private void startPayload() {
+			final int length7 = m_header[1] & 0x7f;
+			if (length7 == 126) {
+				m_payloadLength = (m_header[2] & 0xff) << 8 | m_header[3] & 0xff;
+				m_maskOffset = 4;
+			} else if (length7 == 127) {
+				long payloadLength = 0;
+				for (int i = 2; i < 10; i++) {
+					payloadLength = payloadLength << 8 | m_header[i] & 0xff;
+				}
+				m_payloadLength = payloadLength & Long.MAX_VALUE;
+				m_maskOffset = 10;
+			} else {
+				m_payloadLength = length7;
+				m_maskOffset = 2;
+			}
+			m_remaining = m_payloadLength;
+			m_previewLength = 0;
+			m_inPayload = true;
+			if (m_remaining == 0) {
+				endFrame();
+			}
+		}
+
+		private void endFrame() {
+			if ((m_header[1] & 0x80) != 0) {
+				// Frames from the browser are masked.
+				for (int i = 0; i < m_previewLength; i++) {
+					m_preview[i] ^= m_header[m_maskOffset + (i & 3)];
+				}
+			}
+			final int opcode = m_header[0] & 0x0f;
+			if (opcode == 0x1 || opcode == 0x2) {
+				m_textMessage = opcode == 0x1;
+				m_compressedMessage = (m_header[0] & 0x40) != 0;
+			}
+			final boolean data = opcode <= 0x2;
+			m_frames++;
+			m_payloadBytes += m_payloadLength;
+			frame(m_direction, opcode, data && m_textMessage, data && m_compressedMessage, m_payloadLength,
+							m_preview, m_previewLength);
+			m_headerLength = 0;
+			m_inPayload = false;
+		}
+	}
+}
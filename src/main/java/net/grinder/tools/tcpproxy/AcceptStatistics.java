@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the browser connections accepted by each listening socket of the proxy.
+ *
+ * With more than one accept shard, the kernel deals the connections out to the sockets. A shard
+ * which accepts far more than the others tells the connections come from few browsers, as the
+ * kernel picks the shard by the address and port of the browser.
+ *
+ * @since 3.3
+ */
+public final class AcceptStatistics {
+
+	private volatile AtomicLongArray m_accepted = new AtomicLongArray(1);
+	private volatile long m_startTime = System.currentTimeMillis();
+
+	/**
+	 * Start counting for the given number of shards.
+	 *
+	 * @param shardCount
+	 *            number of listening sockets
+	 */
+	void start(int shardCount) {
+		m_accepted = new AtomicLongArray(shardCount);
+		m_startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Record an accepted connection.
+	 *
+	 * @param shard
+	 *            index of the listening socket
+	 */
+	void accepted(int shard) {
+		m_accepted.incrementAndGet(shard);
+	}
+
+	public int getShardCount() {
+		return m_accepted.length();
+	}
+
+	/**
+	 * Get the number of connections accepted by a shard.
+	 *
+	 * @param shard
+	 *            index of the listening socket
+	 * @return connection count
+	 */
+	public long getAcceptCount(int shard) {
+		return m_accepted.get(shard);
+	}
+
+	/**
+	 * Get the average number of connections accepted by a shard per second since the proxy
+	 * started.
+	 *
+	 * @param shard
+	 *            index of the listening socket
+	 * @return connections per second
+	 */
+	public double getAcceptRate(int shard) {
+		final long elapsed = Math.max(1, System.currentTimeMillis() - m_startTime);
+		return getAcceptCount(shard) * 1000d / elapsed;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder accepted = new StringBuilder();
+		final StringBuilder rates = new StringBuilder();
+		for (int i = 0; i < getShardCount(); i++) {
+			final String separator = i > 0 ? ", " : "";
+			accepted.append(separator).append(getAcceptCount(i));
+			rates.append(separator).append(String.format("%.2f/s", getAcceptRate(i)));
+		}
+		return "shards=" + getShardCount() + " accepted=[" + accepted + "] rates=[" + rates + "]";
+	}
+}
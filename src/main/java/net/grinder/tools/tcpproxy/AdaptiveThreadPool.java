@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread pool whose size follows the time the tasks wait in the queue.
+ *
+ * A worker is added whenever the oldest queued task has waited longer than the target wait, up
+ * to the maximum number of threads. Once the queue stays short, one worker is retired per
+ * second down to the minimum. When the maximum number of threads are busy and the queue is
+ * full, {@link #execute(Runnable)} fails at once with a {@link RejectedExecutionException}, so
+ * the caller can turn the connection away instead of letting it wait.
+ *
+ * @since 3.3
+ */
+final class AdaptiveThreadPool extends ThreadPoolExecutor {
+
+	private static final long KEEP_ALIVE_SECONDS = 10;
+	private static final long SHRINK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final int m_minThreads;
+	private final long m_targetWaitNanos;
+	private final ExecutorStatistics m_statistics;
+	private final Timer m_timer;
+	private long m_lastShrink = System.nanoTime();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name
+	 *            thread name prefix
+	 * @param minThreads
+	 *            number of threads kept when idle
+	 * @param maxThreads
+	 *            hard cap of the number of threads
+	 * @param maxQueued
+	 *            number of tasks which may wait for a thread
+	 * @param targetWait
+	 *            queue wait in milliseconds above which the pool grows
+	 * @param statistics
+	 *            statistics to record the waits and the rejections in
+	 */
+	AdaptiveThreadPool(String name, int minThreads, int maxThreads, int maxQueued, long targetWait,
+					ExecutorStatistics statistics) {
+		super(Math.max(1, minThreads), Math.max(Math.max(1, minThreads), maxThreads), KEEP_ALIVE_SECONDS,
+						TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Math.max(1, maxQueued)),
+						new DNSCache.DaemonThreadFactory(name));
+		m_minThreads = getCorePoolSize();
+		m_targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, targetWait));
+		m_statistics = statistics;
+		m_statistics.monitor(this);
+		// Also grow while every worker is stuck and no task is dequeued.
+		m_timer = new Timer(name + "-monitor", true);
+		final long period = Math.max(10, targetWait);
+		m_timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				final QueuedTask oldest = (QueuedTask) getQueue().peek();
+				resize(oldest != null ? System.nanoTime() - oldest.m_queuedTime : 0);
+			}
+		}, period, period);
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		try {
+			super.execute(new QueuedTask(command));
+		} catch (RejectedExecutionException e) {
+			m_statistics.taskRejected();
+			throw e;
+		}
+	}
+
+	@Override
+	protected void beforeExecute(Thread thread, Runnable runnable) {
+		final long wait = System.nanoTime() - ((QueuedTask) runnable).m_queuedTime;
+		m_statistics.taskStarted(wait);
+		resize(wait);
+	}
+
+	private synchronized void resize(long waitNanos) {
+		final int threads = getCorePoolSize();
+		if (waitNanos > m_targetWaitNanos) {
+			if (threads < getMaximumPoolSize()) {
+				// Starts a worker for the queued tasks.
+				setCorePoolSize(threads + 1);
+			}
+		} else if (threads > m_minThreads && waitNanos < m_targetWaitNanos / 4 && getQueue().isEmpty()) {
+			final long now = System.nanoTime();
+			if (now - m_lastShrink >= SHRINK_INTERVAL_NANOS) {
+				m_lastShrink = now;
+				// The extra worker ends when it is next idle.
+				setCorePoolSize(threads - 1);
+			}
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		m_timer.cancel();
+		super.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		m_timer.cancel();
+		return super.shutdownNow();
+	}
+
+	private static final class QueuedTask implements Runnable {
+		private final Runnable m_task;
+		private final long m_queuedTime = System.nanoTime();
+
+		QueuedTask(Runnable task) {
+			m_task = task;
+		}
+
+		@Override
+		public void run() {
+			m_task.run();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.lang.reflect.Method;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Access to the ALPN API of JDK 9 and 8u252 and later, while the code is still built for older
+ * JDKs.
+ *
+ * The JDK API is looked up by reflection once. When it is missing, no protocol is offered and the
+ * connections stay on HTTP/1.1.
+ *
+ * @since 3.3
+ */
+final class ApplicationProtocols {
+
+	/**
+	 * ALPN identifier of HTTP/2 over TLS.
+	 */
+	static final String HTTP_2 = "h2";
+
+	/**
+	 * ALPN identifier of HTTP/1.1.
+	 */
+	static final String HTTP_1_1 = "http/1.1";
+
+	private static final Method SET_APPLICATION_PROTOCOLS;
+	private static final Method GET_APPLICATION_PROTOCOL;
+	private static final Method GET_SOCKET_APPLICATION_PROTOCOL;
+
+	static {
+		Method setApplicationProtocols = null;
+		Method getApplicationProtocol = null;
+		Method getSocketApplicationProtocol = null;
+		try {
+			setApplicationProtocols = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+			getApplicationProtocol = SSLEngine.class.getMethod("getApplicationProtocol");
+			getSocketApplicationProtocol = SSLSocket.class.getMethod("getApplicationProtocol");
+		} catch (NoSuchMethodException e) {
+			setApplicationProtocols = null;
+		}
+		SET_APPLICATION_PROTOCOLS = setApplicationProtocols;
+		GET_APPLICATION_PROTOCOL = getApplicationProtocol;
+		GET_SOCKET_APPLICATION_PROTOCOL = getSocketApplicationProtocol;
+	}
+
+	private ApplicationProtocols() {
+	}
+
+	/**
+	 * Check if the running JDK supports ALPN.
+	 *
+	 * @return true if the protocols can be offered
+	 */
+	static boolean isAvailable() {
+		return SET_APPLICATION_PROTOCOLS != null;
+	}
+
+	/**
+	 * Offer the given protocols in the handshake of the engine, in order of preference. Does
+	 * nothing if the JDK does not support ALPN.
+	 *
+	 * @param engine
+	 *            engine whose handshake has not started
+	 * @param protocols
+	 *            ALPN identifiers
+	 */
+	static void offer(SSLEngine engine, String... protocols) {
+		if (!isAvailable()) {
+			return;
+		}
+		final SSLParameters parameters = engine.getSSLParameters();
+		setApplicationProtocols(parameters, protocols);
+		engine.setSSLParameters(parameters);
+	}
+
+	/**
+	 * Offer the given protocols in the handshake of the client socket, in order of preference.
+	 * Does nothing if the JDK does not support ALPN.
+	 *
+	 * @param socket
+	 *            socket whose handshake has not started
+	 * @param protocols
+	 *            ALPN identifiers
+	 */
+	static void offer(SSLSocket socket, String... protocols) {
+		if (!isAvailable()) {
+			return;
+		}
+		final SSLParameters parameters = socket.getSSLParameters();
+		setApplicationProtocols(parameters, protocols);
+		socket.setSSLParameters(parameters);
+	}
+
+	private static void setApplicationProtocols(SSLParameters parameters, String... protocols) {
+		try {
+			SET_APPLICATION_PROTOCOLS.invoke(parameters, (Object) protocols);
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Get the protocol negotiated in the completed handshake of the engine.
+	 *
+	 * @param engine
+	 *            engine
+	 * @return ALPN identifier, or {@code null} if none was negotiated
+	 */
+	static String getNegotiated(SSLEngine engine) {
+		return isAvailable() ? getApplicationProtocol(GET_APPLICATION_PROTOCOL, engine) : null;
+	}
+
+	/**
+	 * Get the protocol negotiated in the completed handshake of the client socket.
+	 *
+	 * @param socket
+	 *            socket
+	 * @return ALPN identifier, or {@code null} if none was negotiated
+	 */
+	static String getNegotiated(SSLSocket socket) {
+		return isAvailable() ? getApplicationProtocol(GET_SOCKET_APPLICATION_PROTOCOL, socket) : null;
+	}
+
+	private static String getApplicationProtocol(Method method, Object target) {
+		try {
+			final String protocol = (String) method.invoke(target);
+			return protocol == null || protocol.length() == 0 ? null : protocol;
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+	}
+}
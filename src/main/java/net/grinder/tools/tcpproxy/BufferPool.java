@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of the byte arrays which the proxy engines and the recording filters read into.
+ *
+ * A buffer is leased for as long as a connection or a call needs it and released afterwards. The
+ * pool never blocks: when it is empty, a new buffer is allocated, and when it is full, a released
+ * buffer is left to the garbage collector.
+ *
+ * @since 3.3
+ */
+public final class BufferPool {
+
+	/**
+	 * Size of the buffers, which holds the largest reasonable set of HTTP headers.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 40960;
+
+	private final int m_bufferSize;
+	private final int m_maxPooled;
+	private final BlockingQueue<byte[]> m_pooled;
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicInteger m_outstanding = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bufferSize
+	 *            size of each buffer
+	 * @param maxPooled
+	 *            maximum number of idle buffers kept. 0 disables the pool.
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		m_bufferSize = bufferSize;
+		m_maxPooled = Math.max(0, maxPooled);
+		m_pooled = new ArrayBlockingQueue<byte[]>(Math.max(1, m_maxPooled));
+	}
+
+	/**
+	 * Take a buffer. Its content is undefined.
+	 *
+	 * @return buffer of {@link #getBufferSize()} bytes
+	 */
+	public byte[] lease() {
+		m_outstanding.incrementAndGet();
+		final byte[] buffer = m_pooled.poll();
+		if (buffer != null) {
+			m_hits.incrementAndGet();
+			return buffer;
+		}
+		m_misses.incrementAndGet();
+		return new byte[m_bufferSize];
+	}
+
+	/**
+	 * Give back a buffer taken by {@link #lease()}. The caller must not use it afterwards.
+	 *
+	 * @param buffer
+	 *            buffer. {@code null} and buffers of another size, which were not leased from
+	 *            the pool, are ignored.
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != m_bufferSize) {
+			return;
+		}
+		m_outstanding.decrementAndGet();
+		if (m_maxPooled > 0) {
+			m_pooled.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return m_bufferSize;
+	}
+
+	/**
+	 * Get the number of idle buffers in the pool.
+	 *
+	 * @return idle buffer count
+	 */
+	public int getPooledCount() {
+		return m_maxPooled > 0 ? m_pooled.size() : 0;
+	}
+
+	public long getHits() {
+		return m_hits.get();
+	}
+
+	public long getMisses() {
+		return m_misses.get();
+	}
+
+	/**
+	 * Get the ratio of the leases served from the pool.
+	 *
+	 * @return hit rate between 0 and 1
+	 */
+	public double getHitRate() {
+		final long hits = getHits();
+		final long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Get the number of buffers leased and not released yet.
+	 *
+	 * @return outstanding lease count
+	 */
+	public int getOutstanding() {
+		return m_outstanding.get();
+	}
+
+	@Override
+	public String toString() {
+		return "pooled=" + getPooledCount() + " hits=" + getHits() + " misses=" + getMisses() + " outstanding="
+						+ getOutstanding();
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.NoOp.noOp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+
+/**
+ * Connection to a chained HTTPS proxy, on which the CONNECT requests of a browser are negotiated.
+ *
+ * Response heads are read a byte at a time, so that nothing after them is taken from the socket:
+ * after a 2xx response the socket carries the tunnel. The body of any other response, such as a
+ * 407 of a multistage authentication, is read by its framing, which leaves the connection ready
+ * for the next CONNECT unless the proxy closes it.
+ *
+ * @since 3.3
+ */
+final class ChainedProxyConnection implements UpstreamConnectionPool.PooledConnection {
+
+	private final Socket m_socket;
+	private final InputStream m_in;
+	private final OutputStream m_out;
+	private final EndPoint m_proxy;
+	private final int m_timeout;
+
+	private boolean m_idle = true;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param socket
+	 *            connected socket
+	 * @param proxy
+	 *            chained proxy, for the messages
+	 * @param timeout
+	 *            time in milliseconds to wait for each response
+	 * @throws IOException
+	 *             if the socket is closed
+	 */
+	ChainedProxyConnection(Socket socket, EndPoint proxy, int timeout) throws IOException {
+		m_socket = socket;
+		m_in = socket.getInputStream();
+		m_out = socket.getOutputStream();
+		m_proxy = proxy;
+		m_timeout = timeout;
+	}
+
+	/**
+	 * Read a message head, up to and including the empty line which ends it.
+	 *
+	 * @param in
+	 *            stream positioned at the start of a message
+	 * @return head, or {@code null} if the stream ends before the message starts
+	 * @throws IOException
+	 *             if the stream ends within the head, or the head is too large
+	 */
+	static byte[] readHead(InputStream in) throws IOException {
+		final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+		int newLines = 0;
+		while (newLines < 2) {
+			final int b = in.read();
+			if (b == -1) {
+				if (head.size() == 0) {
+					return null;
+				}
+				throw new EOFException("Connection closed within a message head");
+			}
+			if (head.size() == ProxyRequestSniffer.MAX_REQUEST_HEAD_SIZE) {
+				throw new IOException("Message head larger than " + head.size() + " bytes");
+			}
+			head.write(b);
+			if (b == '\n') {
+				newLines++;
+			} else if (b != '\r') {
+				newLines = 0;
+			}
+		}
+		return head.toByteArray();
+	}
+
+	/**
+	 * Get the socket. After a 2xx response, it carries the tunnel.
+	 *
+	 * @return socket
+	 */
+	Socket getSocket() {
+		return m_socket;
+	}
+
+	/**
+	 * Check if the connection is between responses, and the proxy keeps it open.
+	 *
+	 * @return true if the connection may carry another CONNECT
+	 */
+	boolean isIdle() {
+		return m_idle;
+	}
+
+	/**
+	 * Send a CONNECT request and read the head of the response.
+	 *
+	 * @param request
+	 *            request head
+	 * @return response
+	 * @throws IOException
+	 *             if the proxy closes the connection or does not respond in time
+	 */
+	Response exchange(byte[] request) throws IOException {
+		m_idle = false;
+		m_out.write(request);
+		m_out.flush();
+
+		final byte[] head;
+		m_socket.setSoTimeout(m_timeout);
+		try {
+			head = readHead(m_in);
+		} catch (SocketTimeoutException e) {
+			throw new IOException("HTTPS proxy " + m_proxy + " failed to respond after " + m_timeout + " ms");
+		}
+		if (head == null) {
+			throw new EOFException("HTTPS proxy " + m_proxy + " closed the connection");
+		}
+
+		final Response response = new Response(head);
+		if (response.isSuccessful()) {
+			// The socket now belongs to the tunnel.
+			m_socket.setSoTimeout(0);
+		}
+		return response;
+	}
+
+	/**
+	 * Copy the body of a response which did not establish the tunnel.
+	 *
+	 * @param response
+	 *            response returned by {@link #exchange}
+	 * @param out
+	 *            stream to the browser
+	 * @throws IOException
+	 *             if either connection fails
+	 */
+	void relayBody(Response response, OutputStream out) throws IOException {
+		try {
+			if (response.m_chunked) {
+				relayChunks(out);
+			} else if (response.m_contentLength >= 0) {
+				relay(response.m_contentLength, out);
+			} else if (!response.hasNoBody()) {
+				// Delimited by the end of the connection.
+				relay(Long.MAX_VALUE, out);
+				return;
+			}
+		} catch (SocketTimeoutException e) {
+			throw new IOException("HTTPS proxy " + m_proxy + " stalled after " + m_timeout + " ms");
+		}
+		m_idle = !response.m_close;
+	}
+
+	private void relay(long length, OutputStream out) throws IOException {
+		final byte[] buffer = new byte[4096];
+		for (long remaining = length; remaining > 0;) {
+			final int n = m_in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n == -1) {
+				if (length == Long.MAX_VALUE) {
+					return;
+				}
+				throw new EOFException("HTTPS proxy " + m_proxy + " closed the connection within a response");
+			}
+			out.write(buffer, 0, n);
+			remaining -= n;
+		}
+	}
+
+	private void relayChunks(OutputStream out) throws IOException {
+		while (true) {
+			final String line = readLine(out);
+			final int extension = line.indexOf(';');
+			final long size;
+			try {
+				size = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size from HTTPS proxy " + m_proxy + ": " + line);
+			}
+			if (size == 0) {
+				break;
+			}
+			relay(size, out);
+			readLine(out);
+		}
+		// Trailers, up to the empty line.
+		while (readLine(out).length() > 0) {
+			continue;
+		}
+	}
+
+	private String readLine(OutputStream out) throws IOException {
+		final StringBuilder line = new StringBuilder();
+		while (true) {
+			final int b = m_in.read();
+			if (b == -1) {
+				throw new EOFException("HTTPS proxy " + m_proxy + " closed the connection within a response");
+			}
+			out.write(b);
+			if (b == '\n') {
+				return line.toString().trim();
+			}
+			line.append((char) b);
+		}
+	}
+
+	@Override
+	public void discard() {
+		m_idle = false;
+		try {
+			m_socket.close();
+		} catch (IOException e) {
+			noOp();
+		}
+	}
+
+	/**
+	 * Head of a response to CONNECT.
+	 */
+	static final class Response {
+		private final byte[] m_head;
+		private final int m_status;
+		private long m_contentLength = -1;
+		private boolean m_chunked = false;
+		private boolean m_close = false;
+
+		Response(byte[] head) throws IOException {
+			m_head = head;
+			final String[] lines;
+			try {
+				lines = new String(head, "ISO-8859-1").split("\r?\n");
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+
+			final String[] statusLine = lines[0].split(" +", 3);
+			if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/") || !statusLine[1].matches("\\d{3}")) {
+				throw new IOException("Invalid response from HTTPS proxy: " + lines[0]);
+			}
+			m_status = Integer.parseInt(statusLine[1]);
+			boolean keepAlive = !"HTTP/1.0".equals(statusLine[0]);
+
+			for (int i = 1; i < lines.length; i++) {
+				final int colon = lines[i].indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				final String name = lines[i].substring(0, colon).trim();
+				final String value = lines[i].substring(colon + 1).trim().toLowerCase(Locale.ENGLISH);
+				if ("Content-Length".equalsIgnoreCase(name)) {
+					try {
+						m_contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						m_close = true;
+					}
+				} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+					m_chunked = value.endsWith("chunked");
+				} else if ("Connection".equalsIgnoreCase(name) || "Proxy-Connection".equalsIgnoreCase(name)) {
+					if (value.contains("close")) {
+						keepAlive = false;
+					} else if (value.contains("keep-alive")) {
+						keepAlive = true;
+					}
+				}
+			}
+			m_close |= !keepAlive || !m_chunked && m_contentLength < 0 && !hasNoBody();
+		}
+
+		int getStatus() {
+			return m_status;
+		}
+
+		byte[] getHead() {
+			return m_head;
+		}
+
+		boolean isSuccessful() {
+			return m_status >= 200 && m_status < 300;
+		}
+
+		private boolean hasNoBody() {
+			return m_status < 200 || m_status == 204 || m_status == 304;
+		}
+	}
+}
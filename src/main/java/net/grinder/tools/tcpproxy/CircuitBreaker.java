@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health of the servers, which turns away the connections to a server which does not answer
+ * rather than let each of them wait for the connect timeout.
+ *
+ * After the given number of consecutive connect failures or timeouts, the circuit of the server
+ * opens and its connections fail at once, which the engines answer with 502 Bad Gateway. While it
+ * is open, the server is probed in the background, each time twice as late up to a minute. The
+ * first probe which connects closes the circuit.
+ *
+ * @since 3.3
+ */
+public final class CircuitBreaker {
+
+	/**
+	 * State of the circuit of a server.
+	 */
+	public enum State {
+		/** Connections are attempted. */
+		CLOSED,
+		/** Connections fail at once. */
+		OPEN,
+		/** Connections fail at once while a probe is running. */
+		PROBING
+	}
+
+	/**
+	 * Connects to a server to tell if it is back.
+	 */
+	interface Prober {
+		/**
+		 * Connect to the server, and close the connection.
+		 *
+		 * @param remoteEndPoint
+		 *            server
+		 * @throws IOException
+		 *             if the server still does not answer
+		 */
+		void probe(EndPoint remoteEndPoint) throws IOException;
+	}
+
+	// Beyond this, the closed circuits are forgotten.
+	private static final int MAX_CIRCUITS = 4096;
+
+	private static final long MAX_PROBE_INTERVAL = 60 * 1000;
+
+	private final ConcurrentMap<EndPoint, Circuit> m_circuits = new ConcurrentHashMap<EndPoint, Circuit>();
+	private final AtomicLong m_trips = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private final AtomicLong m_changes = new AtomicLong();
+	private volatile int m_failureThreshold = 3;
+	private volatile long m_probeInterval = 5000;
+	private volatile Prober m_prober;
+
+	// Created with the first open circuit.
+	private Timer m_timer;
+	private ExecutorService m_probeExecutor;
+
+	/**
+	 * Set the number of consecutive failures which open the circuit of a server.
+	 *
+	 * @param failureThreshold
+	 *            number of failures. 0 never opens a circuit.
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		m_failureThreshold = failureThreshold;
+	}
+
+	public int getFailureThreshold() {
+		return m_failureThreshold;
+	}
+
+	/**
+	 * Set the time before the first probe of a server whose circuit has opened.
+	 *
+	 * @param probeInterval
+	 *            time in milliseconds
+	 */
+	public void setProbeInterval(long probeInterval) {
+		m_probeInterval = probeInterval;
+	}
+
+	public long getProbeInterval() {
+		return m_probeInterval;
+	}
+
+	/**
+	 * Set how the servers are probed. The {@link HTTPProxyEngineOptions} set it once for the
+	 * engines created with them.
+	 *
+	 * @param prober
+	 *            prober, or {@code null} to leave the circuits open
+	 */
+	void setProber(Prober prober) {
+		m_prober = prober;
+	}
+
+	/**
+	 * Check if a connection to the server may be attempted.
+	 *
+	 * @param remoteEndPoint
+	 *            server
+	 * @throws ConnectException
+	 *             if the circuit of the server is open
+	 */
+	void check(EndPoint remoteEndPoint) throws ConnectException {
+		final Circuit circuit = m_circuits.get(remoteEndPoint);
+		if (circuit != null && circuit.getState() != State.CLOSED) {
+			m_rejected.incrementAndGet();
+			throw new ConnectException("Circuit of " + remoteEndPoint + " is open after " + circuit.getFailures()
+							+ " connect failures. It closes once the server answers again.");
+		}
+	}
+
+	/**
+	 * Record a connection to the server.
+	 *
+	 * @param remoteEndPoint
+	 *            server
+	 */
+	void succeeded(EndPoint remoteEndPoint) {
+		final Circuit circuit = m_circuits.remove(remoteEndPoint);
+		if (circuit != null && circuit.getState() != State.CLOSED) {
+			m_changes.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record a failed or timed out connection to the server.
+	 *
+	 * @param remoteEndPoint
+	 *            server
+	 */
+	void failed(EndPoint remoteEndPoint) {
+		final int threshold = m_failureThreshold;
+		if (threshold <= 0) {
+			return;
+		}
+		Circuit circuit = m_circuits.get(remoteEndPoint);
+		if (circuit == null) {
+			if (m_circuits.size() >= MAX_CIRCUITS) {
+				forgetClosedCircuits();
+			}
+			final Circuit newCircuit = new Circuit(remoteEndPoint);
+			circuit = m_circuits.putIfAbsent(remoteEndPoint, newCircuit);
+			if (circuit == null) {
+				circuit = newCircuit;
+			}
+		}
+		if (circuit.failed(threshold)) {
+			m_trips.incrementAndGet();
+			m_changes.incrementAndGet();
+			scheduleProbe(circuit, m_probeInterval);
+		}
+	}
+
+	private void forgetClosedCircuits() {
+		for (Iterator<Circuit> i = m_circuits.values().iterator(); i.hasNext();) {
+			if (i.next().getState() == State.CLOSED) {
+				i.remove();
+			}
+		}
+	}
+
+	private synchronized void scheduleProbe(final Circuit circuit, long delay) {
+		if (m_timer == null) {
+			m_timer = new Timer("tcp_proxy_circuit_probe", true);
+			// The probes wait for the connect timeout, so they do not run in the timer thread.
+			m_probeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+							new SynchronousQueue<Runnable>(), new DNSCache.DaemonThreadFactory("tcp_proxy_circuit_probe"));
+		}
+		m_timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				m_probeExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						probe(circuit);
+					}
+				});
+			}
+		}, delay);
+	}
+
+	private void probe(Circuit circuit) {
+		final Prober prober = m_prober;
+		if (m_circuits.get(circuit.m_endPoint) != circuit || prober == null) {
+			// Closed by a connection meanwhile.
+			return;
+		}
+		circuit.setState(State.PROBING);
+		m_changes.incrementAndGet();
+		try {
+			prober.probe(circuit.m_endPoint);
+			m_circuits.remove(circuit.m_endPoint, circuit);
+			circuit.setState(State.CLOSED);
+		} catch (IOException e) {
+			circuit.setState(State.OPEN);
+			scheduleProbe(circuit, circuit.nextProbeInterval(m_probeInterval));
+		}
+		m_changes.incrementAndGet();
+	}
+
+	/**
+	 * Get the state of the circuit of a server.
+	 *
+	 * @param remoteEndPoint
+	 *            server
+	 * @return state
+	 */
+	public State getState(EndPoint remoteEndPoint) {
+		final Circuit circuit = m_circuits.get(remoteEndPoint);
+		return circuit != null ? circuit.getState() : State.CLOSED;
+	}
+
+	/**
+	 * Get a number which changes whenever a circuit opens or closes, so a view can tell when to
+	 * read the states again.
+	 *
+	 * @return change count
+	 */
+	public long getChangeCount() {
+		return m_changes.get();
+	}
+
+	public int getOpenCount() {
+		int count = 0;
+		for (Map.Entry<EndPoint, Circuit> each : m_circuits.entrySet()) {
+			if (each.getValue().getState() != State.CLOSED) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public long getTripCount() {
+		return m_trips.get();
+	}
+
+	public long getRejectedCount() {
+		return m_rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return "open=" + getOpenCount() + " trips=" + getTripCount() + " rejected=" + getRejectedCount();
+	}
+
+	/**
+	 * Consecutive failures and state of a server.
+	 */
+	private static final class Circuit {
+		private final EndPoint m_endPoint;
+
+		// Guarded by this.
+		private int m_failures = 0;
+		private State m_state = State.CLOSED;
+		private long m_probeInterval = 0;
+
+		Circuit(EndPoint endPoint) {
+			m_endPoint = endPoint;
+		}
+
+		/**
+		 * @return true if the failure opens the circuit
+		 */
+		synchronized boolean failed(int threshold) {
+			++m_failures;
+			if (m_state == State.CLOSED && m_failures >= threshold) {
+				m_state = State.OPEN;
+				return true;
+			}
+			return false;
+		}
+
+		synchronized long nextProbeInterval(long initial) {
+			m_probeInterval = Math.min(MAX_PROBE_INTERVAL, (m_probeInterval == 0 ? initial : m_probeInterval) * 2);
+			return m_probeInterval;
+		}
+
+		synchronized State getState() {
+			return m_state;
+		}
+
+		synchronized void setState(State state) {
+			m_state = state;
+		}
+
+		synchronized int getFailures() {
+			return m_failures;
+		}
+	}
+}
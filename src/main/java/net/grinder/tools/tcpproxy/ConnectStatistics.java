@@ -0,0 +1,200 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connect times of the server addresses, which order the addresses of a host for the next
+ * connection, and the counters of the upstream connections.
+ *
+ * The addresses are ordered as RFC 8305 section 4 allows: the addresses which failed recently
+ * last, the addresses with the shortest smoothed connect time first, and the address families
+ * interleaved.
+ *
+ * @since 3.3
+ */
+public final class ConnectStatistics {
+
+	// Beyond this, the history starts over.
+	private static final int MAX_ADDRESSES = 4096;
+
+	// A failed address is tried first again after this time, in milliseconds.
+	private static final long FAILURE_TIMEOUT = 10 * 60 * 1000;
+
+	private final ConcurrentMap<InetAddress, History> m_histories = new ConcurrentHashMap<InetAddress, History>();
+	private final AtomicLong m_connects = new AtomicLong();
+	private final AtomicLong m_fallbacks = new AtomicLong();
+	private final AtomicLong m_failures = new AtomicLong();
+
+	/**
+	 * Record a successful connection attempt.
+	 *
+	 * @param address
+	 *            server address
+	 * @param millis
+	 *            connect time in milliseconds
+	 */
+	void connected(InetAddress address, long millis) {
+		getHistory(address).connected(millis);
+	}
+
+	/**
+	 * Record a failed connection attempt.
+	 *
+	 * @param address
+	 *            server address
+	 */
+	void failed(InetAddress address) {
+		m_failures.incrementAndGet();
+		getHistory(address).m_failed = System.currentTimeMillis();
+	}
+
+	/**
+	 * Record an upstream connection.
+	 *
+	 * @param fallback
+	 *            true if the connection is not to the first address of the host
+	 */
+	void used(boolean fallback) {
+		m_connects.incrementAndGet();
+		if (fallback) {
+			m_fallbacks.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the smoothed connect time of an address.
+	 *
+	 * @param address
+	 *            server address
+	 * @return time in milliseconds, or -1 if no connection to the address has succeeded
+	 */
+	long getSmoothedConnectTime(InetAddress address) {
+		final History history = m_histories.get(address);
+		return history != null ? history.m_smoothed : -1;
+	}
+
+	/**
+	 * Order the addresses of a host for the next connection.
+	 *
+	 * @param addresses
+	 *            addresses, in the order of the resolver. Not modified.
+	 * @return addresses in the order they should be tried
+	 */
+	InetAddress[] order(InetAddress[] addresses) {
+		if (addresses.length < 2) {
+			return addresses;
+		}
+		final long now = System.currentTimeMillis();
+		final List<InetAddress> sorted = newArrayList();
+		Collections.addAll(sorted, addresses);
+		// Stable, so the addresses without history keep the order of the resolver.
+		Collections.sort(sorted, new Comparator<InetAddress>() {
+			@Override
+			public int compare(InetAddress o1, InetAddress o2) {
+				final long rank1 = rank(o1, now);
+				final long rank2 = rank(o2, now);
+				return rank1 < rank2 ? -1 : (rank1 == rank2 ? 0 : 1);
+			}
+		});
+
+		final boolean firstFamily = sorted.get(0) instanceof Inet6Address;
+		final List<InetAddress> first = newArrayList();
+		final List<InetAddress> second = newArrayList();
+		for (InetAddress address : sorted) {
+			(address instanceof Inet6Address == firstFamily ? first : second).add(address);
+		}
+		final InetAddress[] result = new InetAddress[addresses.length];
+		int i = 0;
+		for (int j = 0; j < Math.max(first.size(), second.size()); j++) {
+			if (j < first.size()) {
+				result[i++] = first.get(j);
+			}
+			if (j < second.size()) {
+				result[i++] = second.get(j);
+			}
+		}
+		return result;
+	}
+
+	// Known connect time, then unknown, then failed recently.
+	private long rank(InetAddress address, long now) {
+		final History history = m_histories.get(address);
+		if (history == null) {
+			return Long.MAX_VALUE - 1;
+		}
+		if (now - history.m_failed < FAILURE_TIMEOUT) {
+			return Long.MAX_VALUE;
+		}
+		return history.m_smoothed >= 0 ? history.m_smoothed : Long.MAX_VALUE - 1;
+	}
+
+	private History getHistory(InetAddress address) {
+		History history = m_histories.get(address);
+		if (history == null) {
+			if (m_histories.size() >= MAX_ADDRESSES) {
+				m_histories.clear();
+			}
+			final History newHistory = new History();
+			history = m_histories.putIfAbsent(address, newHistory);
+			if (history == null) {
+				history = newHistory;
+			}
+		}
+		return history;
+	}
+
+	public long getConnects() {
+		return m_connects.get();
+	}
+
+	public long getFallbacks() {
+		return m_fallbacks.get();
+	}
+
+	public long getFailures() {
+		return m_failures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "connects=" + getConnects() + " fallbacks=" + getFallbacks() + " failed attempts=" + getFailures()
+						+ " addresses=" + m_histories.size();
+	}
+
+	/**
+	 * Connect times of an address. Concurrent updates may be lost, which only blurs the average.
+	 */
+	private static final class History {
+		private volatile long m_smoothed = -1;
+		private volatile long m_failed = Long.MIN_VALUE / 2;
+
+		void connected(long millis) {
+			final long smoothed = m_smoothed;
+			// As the smoothed round trip time of TCP, RFC 6298.
+			m_smoothed = smoothed < 0 ? millis : (smoothed * 7 + millis) / 8;
+			m_failed = Long.MIN_VALUE / 2;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.grinder.common.Closer;
+
+/**
+ * Keeps track of the browser connections and the last time each of them carried a byte, so the
+ * connections which a browser left open without using them can be closed.
+ *
+ * A connection is closed by the reaper once it has been idle in both directions for the idle
+ * timeout. Closing the browser socket ends the stream threads of the connection, which give back
+ * their buffers and close the upstream side. The buffer of the browser stream is given back when
+ * the registry forgets the connection.
+ *
+ * @since 3.3
+ */
+public final class ConnectionRegistry {
+
+	private final Set<Connection> m_connections = Collections
+					.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+	private final AtomicLong m_totalCount = new AtomicLong();
+	private final AtomicLong m_reapedCount = new AtomicLong();
+
+	/**
+	 * Register an accepted browser connection.
+	 *
+	 * @param socket
+	 *            browser socket
+	 * @param bufferPool
+	 *            pool which the buffer of the browser stream is leased from
+	 * @return connection, whose streams must be used in place of the socket streams
+	 * @throws IOException
+	 *             if the socket streams can not be created
+	 */
+	Connection register(Socket socket, BufferPool bufferPool) throws IOException {
+		final Connection connection = new Connection(socket, bufferPool);
+		m_connections.add(connection);
+		m_totalCount.incrementAndGet();
+		return connection;
+	}
+
+	/**
+	 * Forget the closed connections, and close the connections which have been idle for longer
+	 * than the given time.
+	 *
+	 * @param idleTimeout
+	 *            time in milliseconds. 0 only forgets the closed connections.
+	 */
+	void reap(long idleTimeout) {
+		final long now = System.currentTimeMillis();
+		for (Connection each : m_connections) {
+			if (each.m_socket.isClosed()) {
+				if (m_connections.remove(each)) {
+					Closer.close(each.m_in);
+				}
+			} else if (idleTimeout > 0 && now - each.m_lastActivity > idleTimeout && m_connections.remove(each)) {
+				m_reapedCount.incrementAndGet();
+				Closer.close(each.m_socket);
+				Closer.close(each.m_in);
+			}
+		}
+	}
+
+	public int getOpenCount() {
+		int result = 0;
+		for (Connection each : m_connections) {
+			if (!each.m_socket.isClosed()) {
+				++result;
+			}
+		}
+		return result;
+	}
+
+	public long getReapedCount() {
+		return m_reapedCount.get();
+	}
+
+	public long getTotalCount() {
+		return m_totalCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "open=" + getOpenCount() + " reaped=" + getReapedCount() + " total=" + getTotalCount();
+	}
+
+	/**
+	 * A registered browser connection. Its streams note the time of each read and write.
+	 */
+	static final class Connection {
+		private final Socket m_socket;
+		private final SniffedInputStream m_in;
+		private final OutputStream m_out;
+		private volatile long m_lastActivity = System.currentTimeMillis();
+
+		private Connection(Socket socket, BufferPool bufferPool) throws IOException {
+			m_socket = socket;
+			m_in = new SniffedInputStream(new FilterInputStream(socket.getInputStream()) {
+				@Override
+				public int read() throws IOException {
+					final int result = in.read();
+					m_lastActivity = System.currentTimeMillis();
+					return result;
+				}
+
+				@Override
+				public int read(byte[] buffer, int offset, int length) throws IOException {
+					final int result = in.read(buffer, offset, length);
+					m_lastActivity = System.currentTimeMillis();
+					return result;
+				}
+			}, bufferPool);
+			m_out = new FilterOutputStream(socket.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					m_lastActivity = System.currentTimeMillis();
+					out.write(b);
+				}
+
+				@Override
+				public void write(byte[] buffer, int offset, int length) throws IOException {
+					m_lastActivity = System.currentTimeMillis();
+					out.write(buffer, offset, length);
+				}
+			};
+		}
+
+		SniffedInputStream getInputStream() {
+			return m_in;
+		}
+
+		OutputStream getOutputStream() {
+			return m_out;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.grinder.common.UncheckedInterruptedException;
+
+/**
+ * Cache of the addresses of the upstream hosts, in front of every connection the proxy engines
+ * make.
+ *
+ * An entry lives for the time to live. Once three quarters of it have passed, the next lookup
+ * still returns the cached addresses and starts a refresh in the background, so a host in use
+ * does not block a connection on the resolver again. Hosts which can not be resolved are
+ * remembered for the shorter negative time to live. Concurrent lookups of the same host share
+ * one query.
+ *
+ * The JDK does not tell the time to live of the DNS records, so the times are configured. They
+ * default to the <code>networkaddress.cache.ttl</code> and
+ * <code>networkaddress.cache.negative.ttl</code> security properties of the JVM.
+ *
+ * @since 3.3
+ */
+public final class DNSCache {
+
+	/**
+	 * Resolves host names. Only replaced in the tests.
+	 */
+	interface Resolver {
+		InetAddress[] resolve(String host) throws UnknownHostException;
+	}
+
+	private static final Resolver INET_ADDRESS_RESOLVER = new Resolver() {
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			return InetAddress.getAllByName(host);
+		}
+	};
+
+	private final Resolver m_resolver;
+	private final int m_maxEntries;
+	private final long m_ttl;
+	private final long m_negativeTtl;
+	private final ConcurrentMap<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentMap<String, FutureTask<Entry>> m_pending = new ConcurrentHashMap<String, FutureTask<Entry>>();
+	private final ExecutorService m_refresher;
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_refreshes = new AtomicLong();
+	private final AtomicLong m_failures = new AtomicLong();
+
+	/**
+	 * Constructor with the times to live of the JVM.
+	 *
+	 * @param maxEntries
+	 *            maximum number of cached hosts. 0 disables the cache.
+	 */
+	public DNSCache(int maxEntries) {
+		this(maxEntries, getDefaultTtl(), getDefaultNegativeTtl());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxEntries
+	 *            maximum number of cached hosts. 0 disables the cache.
+	 * @param ttl
+	 *            time to live of the resolved addresses in milliseconds
+	 * @param negativeTtl
+	 *            time to live of the hosts which could not be resolved in milliseconds
+	 */
+	public DNSCache(int maxEntries, long ttl, long negativeTtl) {
+		this(INET_ADDRESS_RESOLVER, maxEntries, ttl, negativeTtl);
+	}
+
+	DNSCache(Resolver resolver, int maxEntries, long ttl, long negativeTtl) {
+		m_resolver = resolver;
+		m_maxEntries = Math.max(0, maxEntries);
+		m_ttl = Math.max(0, ttl);
+		m_negativeTtl = Math.max(0, negativeTtl);
+		final ThreadPoolExecutor refresher = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+						new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("tcp_proxy_dns"));
+		refresher.allowCoreThreadTimeOut(true);
+		m_refresher = refresher;
+	}
+
+	/**
+	 * Get the time to live of the resolved addresses in the JVM.
+	 *
+	 * @return time to live in milliseconds
+	 */
+	public static long getDefaultTtl() {
+		return getSecurityPropertySeconds("networkaddress.cache.ttl", 30) * 1000;
+	}
+
+	/**
+	 * Get the time to live of the hosts which could not be resolved in the JVM.
+	 *
+	 * @return time to live in milliseconds
+	 */
+	public static long getDefaultNegativeTtl() {
+		return getSecurityPropertySeconds("networkaddress.cache.negative.ttl", 10) * 1000;
+	}
+
+	private static long getSecurityPropertySeconds(String name, long defaultValue) {
+		try {
+			final String value = Security.getProperty(name);
+			final long seconds = value != null ? Long.parseLong(value.trim()) : -1;
+			// Negative values mean forever to the JVM, which is not what a cache in front of it wants.
+			return seconds >= 0 ? seconds : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Get the first address of the given host.
+	 *
+	 * @param host
+	 *            host name or literal address
+	 * @return address
+	 * @throws UnknownHostException
+	 *             if the host can not be resolved
+	 */
+	public InetAddress resolve(String host) throws UnknownHostException {
+		return resolveAll(host)[0];
+	}
+
+	/**
+	 * Get all the addresses of the given host.
+	 *
+	 * @param host
+	 *            host name or literal address
+	 * @return addresses. The caller must not modify the array.
+	 * @throws UnknownHostException
+	 *             if the host can not be resolved
+	 */
+	public InetAddress[] resolveAll(String host) throws UnknownHostException {
+		if (m_maxEntries == 0) {
+			return m_resolver.resolve(host);
+		}
+		final long now = System.currentTimeMillis();
+		final Entry entry = m_entries.get(host);
+		if (entry != null && now < entry.m_expires) {
+			m_hits.incrementAndGet();
+			if (entry.m_addresses != null && now >= entry.m_refresh) {
+				refreshInBackground(host);
+			}
+			return entry.get(host);
+		}
+		m_misses.incrementAndGet();
+		return lookup(host).get(host);
+	}
+
+	private Entry lookup(String host) throws UnknownHostException {
+		final FutureTask<Entry> task = new PendingLookup(host, false);
+		final FutureTask<Entry> pending = m_pending.putIfAbsent(host, task);
+		if (pending == null) {
+			task.run();
+		}
+		try {
+			return (pending != null ? pending : task).get();
+		} catch (InterruptedException e) {
+			throw new UncheckedInterruptedException(e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new AssertionError(cause);
+		}
+	}
+
+	private void refreshInBackground(String host) {
+		final FutureTask<Entry> task = new PendingLookup(host, true);
+		if (m_pending.putIfAbsent(host, task) == null) {
+			m_refreshes.incrementAndGet();
+			m_refresher.execute(task);
+		}
+	}
+
+	/**
+	 * Query the resolver and cache the result. Failures are cached as well, unless a refresh
+	 * fails while the addresses are still live.
+	 */
+	private final class Lookup implements Callable<Entry> {
+		private final String m_host;
+		private final boolean m_refresh;
+
+		Lookup(String host, boolean refresh) {
+			m_host = host;
+			m_refresh = refresh;
+		}
+
+		@Override
+		public Entry call() {
+			final Entry entry;
+			try {
+				entry = new Entry(m_resolver.resolve(m_host), System.currentTimeMillis(), m_ttl);
+			} catch (UnknownHostException e) {
+				m_failures.incrementAndGet();
+				final Entry failed = new Entry(null, System.currentTimeMillis(), m_negativeTtl);
+				if (!m_refresh) {
+					put(m_host, failed);
+				}
+				return failed;
+			}
+			put(m_host, entry);
+			return entry;
+		}
+	}
+
+	/**
+	 * A {@link Lookup} which the other callers for the host wait for. It stays pending until its
+	 * result is published, so that no second lookup of the host starts in between.
+	 */
+	private final class PendingLookup extends FutureTask<Entry> {
+		private final String m_host;
+
+		PendingLookup(String host, boolean refresh) {
+			super(new Lookup(host, refresh));
+			m_host = host;
+		}
+
+		@Override
+		protected void done() {
+			m_pending.remove(m_host, this);
+		}
+	}
+
+	private void put(String host, Entry entry) {
+		if (m_entries.size() >= m_maxEntries && !m_entries.containsKey(host)) {
+			removeExpired();
+			// Still full of live entries. Drop any one of them.
+			final Iterator<String> i = m_entries.keySet().iterator();
+			while (m_entries.size() >= m_maxEntries && i.hasNext()) {
+				i.next();
+				i.remove();
+			}
+		}
+		m_entries.put(host, entry);
+	}
+
+	private void removeExpired() {
+		final long now = System.currentTimeMillis();
+		for (Iterator<Entry> i = m_entries.values().iterator(); i.hasNext();) {
+			if (i.next().m_expires <= now) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget all the cached hosts.
+	 */
+	public void clear() {
+		m_entries.clear();
+	}
+
+	public int getSize() {
+		return m_entries.size();
+	}
+
+	public long getHits() {
+		return m_hits.get();
+	}
+
+	public long getMisses() {
+		return m_misses.get();
+	}
+
+	public long getRefreshes() {
+		return m_refreshes.get();
+	}
+
+	public long getFailures() {
+		return m_failures.get();
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + getSize() + " hits=" + getHits() + " misses=" + getMisses() + " refreshes="
+						+ getRefreshes() + " failures=" + getFailures();
+	}
+
+	private static final class Entry {
+		// null for a host which could not be resolved.
+		private final InetAddress[] m_addresses;
+		private final long m_refresh;
+		private final long m_expires;
+
+		Entry(InetAddress[] addresses, long now, long ttl) {
+			m_addresses = addresses;
+			m_refresh = now + ttl * 3 / 4;
+			m_expires = now + ttl;
+		}
+
+		InetAddress[] get(String host) throws UnknownHostException {
+			if (m_addresses == null) {
+				throw new UnknownHostException(host);
+			}
+			return m_addresses;
+		}
+	}
+
+	/**
+	 * Names the threads, which do not keep the JVM running.
+	 */
+	static final class DaemonThreadFactory implements ThreadFactory {
+		private final String m_name;
+		private final AtomicInteger m_threadNumber = new AtomicInteger(1);
+
+		DaemonThreadFactory(String name) {
+			m_name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, m_name + "-" + m_threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.grinder.common.UncheckedInterruptedException;
+
+/**
+ * Transport to a server which is still being connected to, so the browser can be told that its
+ * tunnel is open before the server answers.
+ *
+ * The requests written before {@link #connected} are buffered, and sent as soon as the connection
+ * is made. Beyond {@link #MAX_BUFFERED} bytes, the writer waits. The reader waits for the
+ * connection. After {@link #failed}, both streams throw a {@link SocketException}, which the
+ * filter threads take as a closed connection.
+ *
+ * @since 3.3
+ */
+final class DeferredUpstreamTransport implements UpstreamTransport {
+
+	/**
+	 * Number of bytes buffered until the connection is made. More than the requests a browser
+	 * sends before it sees a response, so only bodies make the writer wait.
+	 */
+	static final int MAX_BUFFERED = 64 * 1024;
+
+	private final EndPoint m_remoteEndPoint;
+	private final Lock m_lock = new ReentrantLock();
+	private final Condition m_done = m_lock.newCondition();
+	// Guarded by m_lock.
+	private ByteArrayOutputStream m_buffer = new ByteArrayOutputStream();
+	private UpstreamTransport m_transport;
+	private IOException m_failure;
+
+	private final InputStream m_in = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			return awaitTransport().getInputStream().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return awaitTransport().getInputStream().read(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			DeferredUpstreamTransport.this.close();
+		}
+	};
+
+	private final OutputStream m_out = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			final UpstreamTransport transport;
+			m_lock.lock();
+			try {
+				while (m_transport == null && m_failure == null && m_buffer.size() > 0
+								&& m_buffer.size() + len > MAX_BUFFERED) {
+					await();
+				}
+				if (m_transport == null && m_failure == null) {
+					m_buffer.write(b, off, len);
+					return;
+				}
+				transport = getTransport();
+			} finally {
+				m_lock.unlock();
+			}
+			transport.getOutputStream().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			final UpstreamTransport transport;
+			m_lock.lock();
+			try {
+				if (m_transport == null && m_failure == null) {
+					// Flushed once connected.
+					return;
+				}
+				transport = getTransport();
+			} finally {
+				m_lock.unlock();
+			}
+			transport.getOutputStream().flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			DeferredUpstreamTransport.this.close();
+		}
+	};
+
+	/**
+	 * Constructor.
+	 *
+	 * @param remoteEndPoint
+	 *            server being connected to
+	 */
+	DeferredUpstreamTransport(EndPoint remoteEndPoint) {
+		m_remoteEndPoint = remoteEndPoint;
+	}
+
+	/**
+	 * Hand over the connection, and send the buffered requests on it. If this transport has been
+	 * closed meanwhile, the connection is closed.
+	 *
+	 * @param transport
+	 *            connected transport
+	 * @throws IOException
+	 *             if the buffered requests could not be sent. The transport is then closed.
+	 */
+	void connected(UpstreamTransport transport) throws IOException {
+		m_lock.lock();
+		try {
+			if (m_failure == null) {
+				try {
+					if (m_buffer.size() > 0) {
+						final OutputStream out = transport.getOutputStream();
+						m_buffer.writeTo(out);
+						out.flush();
+					}
+				} catch (IOException e) {
+					fail(e);
+					UpstreamTransportFactory.close(transport);
+					throw e;
+				}
+				m_buffer = null;
+				m_transport = transport;
+				m_done.signalAll();
+				return;
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		UpstreamTransportFactory.close(transport);
+	}
+
+	/**
+	 * Fail the streams because the connection could not be made.
+	 *
+	 * @param e
+	 *            cause
+	 */
+	void failed(IOException e) {
+		m_lock.lock();
+		try {
+			fail(e);
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	// Called with m_lock held.
+	private void fail(IOException e) {
+		if (m_failure == null) {
+			final SocketException failure = new SocketException("Failed to connect to " + m_remoteEndPoint + ": "
+							+ e.getMessage());
+			failure.initCause(e);
+			m_failure = failure;
+			m_buffer = null;
+			m_done.signalAll();
+		}
+	}
+
+	// Called with m_lock held.
+	private UpstreamTransport getTransport() throws IOException {
+		if (m_transport == null) {
+			throw m_failure;
+		}
+		return m_transport;
+	}
+
+	// Called with m_lock held.
+	private void await() {
+		try {
+			m_done.await();
+		} catch (InterruptedException e) {
+			throw new UncheckedInterruptedException(e);
+		}
+	}
+
+	private UpstreamTransport awaitTransport() throws IOException {
+		m_lock.lock();
+		try {
+			while (m_transport == null && m_failure == null) {
+				await();
+			}
+			return getTransport();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return m_in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return m_out;
+	}
+
+	@Override
+	public void close() throws IOException {
+		final UpstreamTransport transport;
+		m_lock.lock();
+		try {
+			transport = m_transport;
+			if (transport == null) {
+				fail(new SocketException("Socket closed"));
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		if (transport != null) {
+			transport.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "deferred " + m_remoteEndPoint;
+	}
+}
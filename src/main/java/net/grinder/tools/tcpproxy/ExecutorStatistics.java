@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the executor which processes the accepted browser sockets.
+ *
+ * The time each task waited in the queue is kept for the most recent tasks, so a slow first byte
+ * can be told apart from a slow server. The queue length and the worker counts are read from the
+ * executor when asked.
+ *
+ * @since 3.3
+ */
+public final class ExecutorStatistics {
+
+	private static final int SAMPLE_SIZE = 1024;
+
+	// Wait times in nanoseconds, in a ring.
+	private final long[] m_waits = new long[SAMPLE_SIZE];
+	private int m_nextWait = 0;
+	private int m_waitCount = 0;
+	private final AtomicLong m_started = new AtomicLong();
+	private final AtomicLong m_rejected = new AtomicLong();
+	private volatile ThreadPoolExecutor m_executor;
+
+	/**
+	 * Read the gauges from the given executor.
+	 *
+	 * @param executor
+	 *            executor, or {@code null}
+	 */
+	void monitor(ThreadPoolExecutor executor) {
+		m_executor = executor;
+	}
+
+	/**
+	 * Record a task which starts to run.
+	 *
+	 * @param waitNanos
+	 *            time the task waited in the queue, in nanoseconds
+	 */
+	void taskStarted(long waitNanos) {
+		m_started.incrementAndGet();
+		synchronized (m_waits) {
+			m_waits[m_nextWait] = waitNanos;
+			m_nextWait = (m_nextWait + 1) % SAMPLE_SIZE;
+			m_waitCount = Math.min(m_waitCount + 1, SAMPLE_SIZE);
+		}
+	}
+
+	/**
+	 * Record a task which was rejected because the executor was full.
+	 */
+	void taskRejected() {
+		m_rejected.incrementAndGet();
+	}
+
+	/**
+	 * Get a percentile of the time the recent tasks waited in the queue.
+	 *
+	 * @param percentile
+	 *            percentile between 0 and 100
+	 * @return wait time in milliseconds, or 0 if no task has run
+	 */
+	public double getWaitPercentile(double percentile) {
+		final long[] waits;
+		synchronized (m_waits) {
+			waits = Arrays.copyOf(m_waits, m_waitCount);
+		}
+		if (waits.length == 0) {
+			return 0;
+		}
+		Arrays.sort(waits);
+		final int rank = (int) Math.ceil(percentile / 100 * waits.length) - 1;
+		return (double) waits[Math.max(0, Math.min(waits.length - 1, rank))] / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	public long getStarted() {
+		return m_started.get();
+	}
+
+	public long getRejected() {
+		return m_rejected.get();
+	}
+
+	/**
+	 * Get the number of tasks waiting for a worker.
+	 *
+	 * @return queue length
+	 */
+	public int getQueueLength() {
+		final ThreadPoolExecutor executor = m_executor;
+		return executor != null ? executor.getQueue().size() : 0;
+	}
+
+	/**
+	 * Get the number of workers which are running a task.
+	 *
+	 * @return active worker count
+	 */
+	public int getActiveWorkers() {
+		final ThreadPoolExecutor executor = m_executor;
+		return executor != null ? executor.getActiveCount() : 0;
+	}
+
+	/**
+	 * Get the number of workers, busy or idle.
+	 *
+	 * @return worker count
+	 */
+	public int getWorkers() {
+		final ThreadPoolExecutor executor = m_executor;
+		return executor != null ? executor.getPoolSize() : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("queued=%d active=%d workers=%d started=%d rejected=%d wait p50=%.1fms p90=%.1fms"
+						+ " p99=%.1fms", getQueueLength(), getActiveWorkers(), getWorkers(), getStarted(), getRejected(),
+						getWaitPercentile(50), getWaitPercentile(90), getWaitPercentile(99));
+	}
+}
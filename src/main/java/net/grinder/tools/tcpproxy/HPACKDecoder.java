@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+import net.grinder.util.Pair;
+
+/**
+ * Decoder of the HTTP/2 header blocks sent by the browser, RFC 7541.
+ *
+ * The decoder keeps the dynamic table of one connection, so it must see every header block of
+ * the connection in order. Names and values are returned with one character per octet, which
+ * turns them back into the same octets when they are written as ISO-8859-1.
+ *
+ * @since 3.3
+ */
+final class HPACKDecoder {
+
+	private static final String[][] STATIC_TABLE = { { ":authority", "" }, { ":method", "GET" },
+		{ ":method", "POST" }, { ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" },
+		{ ":scheme", "https" }, { ":status", "200" }, { ":status", "204" }, { ":status", "206" },
+		{ ":status", "304" }, { ":status", "400" }, { ":status", "404" }, { ":status", "500" },
+		{ "accept-charset", "" }, { "accept-encoding", "gzip, deflate" }, { "accept-language", "" },
+		{ "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" },
+		{ "allow", "" }, { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+		{ "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+		{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+		{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" },
+		{ "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" },
+		{ "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" },
+		{ "max-forwards", "" }, { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" },
+		{ "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+		{ "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" },
+		{ "via", "" }, { "www-authenticate", "" } };
+
+	/**
+	 * Size of the dynamic table which the proxy allows, the default of HTTP/2.
+	 */
+	static final int MAX_TABLE_SIZE = 4096;
+
+	// Newest entry first.
+	private final LinkedList<String[]> m_dynamicTable = new LinkedList<String[]>();
+	private int m_tableSize = 0;
+	private int m_maxTableSize = MAX_TABLE_SIZE;
+
+	/**
+	 * Decode a complete header block.
+	 *
+	 * @param block
+	 *            buffer
+	 * @param offset
+	 *            offset of the block
+	 * @param length
+	 *            length of the block
+	 * @return header fields in order
+	 * @throws IOException
+	 *             if the block is not valid, which is a connection error
+	 */
+	List<Pair<String, String>> decode(byte[] block, int offset, int length) throws IOException {
+		final List<Pair<String, String>> result = newArrayList();
+		final int[] position = { offset };
+		final int end = offset + length;
+		while (position[0] < end) {
+			final int b = block[position[0]] & 0xff;
+			if ((b & 0x80) != 0) {
+				// Indexed field.
+				final String[] entry = getEntry(readInteger(block, position, end, 7));
+				result.add(Pair.of(entry[0], entry[1]));
+			} else if ((b & 0xe0) == 0x20) {
+				resize(readInteger(block, position, end, 5));
+			} else {
+				// Literal field, with incremental indexing (01), never indexed (0001) or without
+				// indexing (0000).
+				final boolean indexing = (b & 0x40) != 0;
+				final int index = readInteger(block, position, end, indexing ? 6 : 4);
+				final String name = index == 0 ? readString(block, position, end) : getEntry(index)[0];
+				final String value = readString(block, position, end);
+				if (indexing) {
+					add(name, value);
+				}
+				result.add(Pair.of(name, value));
+			}
+		}
+		return result;
+	}
+
+	private String[] getEntry(int index) throws IOException {
+		if (index <= 0) {
+			throw new IOException("Invalid HPACK index " + index);
+		}
+		if (index <= STATIC_TABLE.length) {
+			return STATIC_TABLE[index - 1];
+		}
+		final int dynamicIndex = index - STATIC_TABLE.length - 1;
+		if (dynamicIndex >= m_dynamicTable.size()) {
+			throw new IOException("Invalid HPACK index " + index);
+		}
+		return m_dynamicTable.get(dynamicIndex);
+	}
+
+	private void add(String name, String value) {
+		final int size = entrySize(name, value);
+		if (size > m_maxTableSize) {
+			m_dynamicTable.clear();
+			m_tableSize = 0;
+			return;
+		}
+		m_dynamicTable.addFirst(new String[] { name, value });
+		m_tableSize += size;
+		evict();
+	}
+
+	private void resize(int maxTableSize) throws IOException {
+		if (maxTableSize > MAX_TABLE_SIZE) {
+			throw new IOException("HPACK table size " + maxTableSize + " exceeds the limit");
+		}
+		m_maxTableSize = maxTableSize;
+		evict();
+	}
+
+	private void evict() {
+		while (m_tableSize > m_maxTableSize) {
+			final String[] evicted = m_dynamicTable.removeLast();
+			m_tableSize -= entrySize(evicted[0], evicted[1]);
+		}
+	}
+
+	private static int entrySize(String name, String value) {
+		return name.length() + value.length() + 32;
+	}
+
+	private static int readInteger(byte[] block, int[] position, int end, int prefixBits) throws IOException {
+		final int mask = (1 << prefixBits) - 1;
+		int value = block[position[0]++] & mask;
+		if (value < mask) {
+			return value;
+		}
+		for (int shift = 0; shift <= 21; shift += 7) {
+			if (position[0] >= end) {
+				throw new IOException("Truncated HPACK integer");
+			}
+			final int b = block[position[0]++] & 0xff;
+			value += (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("HPACK integer overflow");
+	}
+
+	private static String readString(byte[] block, int[] position, int end) throws IOException {
+		if (position[0] >= end) {
+			throw new IOException("Truncated HPACK string");
+		}
+		final boolean huffman = (block[position[0]] & 0x80) != 0;
+		final int length = readInteger(block, position, end, 7);
+		if (length > end - position[0]) {
+			throw new IOException("Truncated HPACK string");
+		}
+		final int start = position[0];
+		position[0] += length;
+		if (huffman) {
+			return HPACKHuffman.decode(block, start, length);
+		}
+		final char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (block[start + i] & 0xff);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Encode header fields as literals which are not indexed, so the browser needs no state of
+	 * the proxy to decode them.
+	 *
+	 * @param fields
+	 *            header fields. The names must be lower case.
+	 * @return header block
+	 */
+	static byte[] encode(List<Pair<String, String>> fields) {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		for (Pair<String, String> field : fields) {
+			result.write(0);
+			writeString(result, field.getFirst());
+			writeString(result, field.getSecond());
+		}
+		return result.toByteArray();
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		// Without Huffman coding.
+		writeInteger(out, value.length(), 7);
+		for (int i = 0; i < value.length(); i++) {
+			out.write(value.charAt(i));
+		}
+	}
+
+	private static void writeInteger(ByteArrayOutputStream out, int value, int prefixBits) {
+		final int mask = (1 << prefixBits) - 1;
+		if (value < mask) {
+			out.write(value);
+			return;
+		}
+		out.write(mask);
+		int remaining = value - mask;
+		while (remaining >= 0x80) {
+			out.write((remaining & 0x7f) | 0x80);
+			remaining >>>= 7;
+		}
+		out.write(remaining);
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Transport over a socket of its own, which carries the HTTP/1.1 bytes as they are.
+ *
+ * @since 3.3
+ */
+final class HTTP11UpstreamTransport implements UpstreamTransport {
+
+	private final Socket m_socket;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param socket
+	 *            connected socket
+	 */
+	HTTP11UpstreamTransport(Socket socket) {
+		m_socket = socket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return m_socket.getInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return m_socket.getOutputStream();
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_socket.close();
+	}
+
+	@Override
+	public String toString() {
+		return m_socket.toString();
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.util.Pair;
+
+/**
+ * Client side of an HTTP/2 connection with a server, RFC 7540, shared by the requests of any
+ * number of browser connections.
+ *
+ * {@link #connect()} writes the connection preface, after which {@link #newStream} may be called
+ * from any thread while {@link #run()} reads the responses in another. The responses are queued on
+ * their {@link Stream}, and the stream window is given back as the queue is read, so a browser
+ * which reads slowly holds back its own stream only.
+ *
+ * @since 3.3
+ */
+final class HTTP2ClientConnection extends HTTP2Connection {
+
+	/**
+	 * Flow control window of each stream, given back once half of it has been read.
+	 */
+	static final int STREAM_WINDOW = 1024 * 1024;
+
+	private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+	// Stream identifiers run out at 2^31. Leave room for the streams in flight.
+	private static final int LAST_STREAM_ID = Integer.MAX_VALUE - 1024;
+
+	private static final Object END_OF_STREAM = new Object();
+
+	// Guarded by the write lock, so the streams are opened in order.
+	private int m_nextStreamId = 1;
+
+	private volatile boolean m_goingAway = false;
+	private volatile long m_lastUsed = System.currentTimeMillis();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            decrypted input stream from the server
+	 * @param out
+	 *            decrypted output stream to the server
+	 */
+	HTTP2ClientConnection(InputStream in, OutputStream out) {
+		super(in, out);
+	}
+
+	/**
+	 * Write the connection preface. Must be called before the connection is shared.
+	 *
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	void connect() throws IOException {
+		final byte[] settings = settings(SETTINGS_ENABLE_PUSH, 0, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+		final Lock writeLock = getWriteLock();
+		writeLock.lock();
+		try {
+			writeRaw(PREFACE);
+			writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+			writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW_SIZE);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	void start() {
+		// The preface has been written by connect(). The SETTINGS of the server arrive as the
+		// first frame.
+	}
+
+	/**
+	 * Check if the connection takes new streams.
+	 *
+	 * @return false if the connection is closed, or the server is shutting it down
+	 */
+	boolean isAvailable() {
+		return !m_goingAway && !isClosed();
+	}
+
+	/**
+	 * Check if the connection has had no stream for a while.
+	 *
+	 * @param idleTimeout
+	 *            time in milliseconds
+	 * @return true if no stream is open, and none has been for the given time
+	 */
+	boolean isIdle(long idleTimeout) {
+		return getStreamCount() == 0 && System.currentTimeMillis() - m_lastUsed > idleTimeout;
+	}
+
+	/**
+	 * Send the header block of a request on a new stream. Waits while the server has as many
+	 * streams open as it allows.
+	 *
+	 * @param headers
+	 *            header fields with lower case names, pseudo-header fields first
+	 * @param endStream
+	 *            true if the request has no body
+	 * @return stream
+	 * @throws IOException
+	 *             if the connection is closed, or no longer takes new streams
+	 */
+	Stream newStream(List<Pair<String, String>> headers, boolean endStream) throws IOException {
+		awaitStreamSlot();
+		m_lastUsed = System.currentTimeMillis();
+
+		final Lock writeLock = getWriteLock();
+		writeLock.lock();
+		try {
+			if (m_goingAway || m_nextStreamId > LAST_STREAM_ID) {
+				m_goingAway = true;
+				throw new IOException("HTTP/2 connection is shutting down");
+			}
+			final Stream stream = new Stream(m_nextStreamId);
+			m_nextStreamId += 2;
+			addStream(stream);
+			stream.writeHeaderBlock(headers, endStream);
+			return stream;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	int getLastPeerStreamId() {
+		return 0;
+	}
+
+	@Override
+	void connectionClosed() {
+		m_goingAway = true;
+	}
+
+	@Override
+	void goAwayReceived(int lastStreamId) {
+		m_goingAway = true;
+		// Streams after the last one are never processed. Fail them rather than wait for the
+		// server to close the connection.
+		final Lock writeLock = getWriteLock();
+		final int nextStreamId;
+		writeLock.lock();
+		try {
+			nextStreamId = m_nextStreamId;
+		} finally {
+			writeLock.unlock();
+		}
+		for (int streamId = lastStreamId + 1 | 1; streamId < nextStreamId; streamId += 2) {
+			final AbstractStream stream = getStream(streamId);
+			if (stream != null) {
+				((Stream) stream).refused();
+			}
+		}
+	}
+
+	@Override
+	void headersReceived(int streamId, List<Pair<String, String>> fields, boolean endStream) throws IOException {
+		if ((streamId & 1) == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "stream " + streamId + " opened by the server");
+		}
+		final Stream stream = (Stream) getStream(streamId);
+		if (stream != null) {
+			stream.received(fields, endStream);
+		}
+	}
+
+	@Override
+	void dataReceived(int streamId, byte[] buffer, int offset, int length, int frameLength, boolean endStream)
+					throws IOException {
+		final Stream stream = (Stream) getStream(streamId);
+		if (stream == null) {
+			// A stream which has been reset.
+			return;
+		}
+		final byte[] data = new byte[length];
+		System.arraycopy(buffer, offset, data, 0, length);
+		if (frameLength > length && !endStream) {
+			// The padding is not queued, so its window is given back now.
+			writeWindowUpdate(streamId, frameLength - length);
+		}
+		stream.received(data, endStream);
+	}
+
+	/**
+	 * A request and its response. The response arrives as a sequence of header blocks and body
+	 * bytes, read with {@link #take()}.
+	 */
+	final class Stream extends AbstractStream {
+		private final Lock m_lock = new ReentrantLock();
+		private final Condition m_received = m_lock.newCondition();
+
+		// Guarded by m_lock.
+		private final LinkedList<Object> m_responseParts = new LinkedList<Object>();
+		private boolean m_refused = false;
+
+		// Only used by the thread which takes the response.
+		private int m_unacknowledged = 0;
+
+		private Stream(int id) {
+			super(id);
+		}
+
+		private void received(Object part, boolean endStream) {
+			m_lock.lock();
+			try {
+				m_responseParts.add(part);
+				if (endStream) {
+					m_responseParts.add(END_OF_STREAM);
+				}
+				m_received.signalAll();
+			} finally {
+				m_lock.unlock();
+			}
+			if (endStream) {
+				remoteEnded();
+			}
+		}
+
+		private void refused() {
+			m_lock.lock();
+			try {
+				m_refused = true;
+				m_received.signalAll();
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		@Override
+		void closed() {
+			m_lock.lock();
+			try {
+				m_received.signalAll();
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		/**
+		 * Take the next part of the response, waiting for it to arrive.
+		 *
+		 * @return a header block as a {@code List<Pair<String, String>>}, body bytes as a
+		 *         {@code byte[]}, or {@code null} at the end of the response
+		 * @throws IOException
+		 *             if the stream is reset before the end of the response
+		 */
+		Object take() throws IOException {
+			final Object part;
+			m_lock.lock();
+			try {
+				while (m_responseParts.isEmpty()) {
+					if (isReset() || m_refused) {
+						throw new StreamResetException(getId());
+					}
+					m_received.await();
+				}
+				part = m_responseParts.removeFirst();
+			} catch (InterruptedException e) {
+				throw new UncheckedInterruptedException(e);
+			} finally {
+				m_lock.unlock();
+			}
+
+			if (part == END_OF_STREAM) {
+				return null;
+			}
+			if (part instanceof byte[]) {
+				acknowledge(((byte[]) part).length);
+			}
+			return part;
+		}
+
+		/**
+		 * Check if the response ends with the parts taken so far.
+		 *
+		 * @return true if the next part is the end of the response
+		 */
+		boolean isEndNext() {
+			m_lock.lock();
+			try {
+				return !m_responseParts.isEmpty() && m_responseParts.getFirst() == END_OF_STREAM;
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		private void acknowledge(int length) throws IOException {
+			m_unacknowledged += length;
+			if (m_unacknowledged >= STREAM_WINDOW / 2 && !isReset() && !isEndNext()) {
+				final int increment = m_unacknowledged;
+				m_unacknowledged = 0;
+				writeWindowUpdate(getId(), increment);
+			}
+		}
+	}
+}
@@ -0,0 +1,763 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.util.Pair;
+
+/**
+ * Framing and flow control of an HTTP/2 connection, RFC 7540, shared by the server side
+ * ({@link HTTP2ServerConnection}) and the client side ({@link HTTP2ClientConnection}).
+ *
+ * {@link #run()} reads the frames in the calling thread. Frames are written whole under a lock
+ * from any thread, and DATA frames wait for the flow control windows of the peer. The subclass
+ * decides what the header blocks and the DATA frames of its streams mean.
+ *
+ * @since 3.3
+ */
+abstract class HTTP2Connection {
+
+	/**
+	 * Thrown when writing to a stream which the peer has reset, or whose connection is closed.
+	 */
+	static final class StreamResetException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		StreamResetException(int streamId) {
+			super("HTTP/2 stream " + streamId + " reset");
+		}
+	}
+
+	/**
+	 * Protocol error of the peer, which ends the connection.
+	 */
+	static final class ConnectionError extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int m_code;
+
+		ConnectionError(int code, String message) {
+			super("HTTP/2 connection error " + code + ": " + message);
+			m_code = code;
+		}
+	}
+
+	static final byte[] PREFACE = { 'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.', '0', '\r', '\n',
+		'\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n' };
+
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int PRIORITY = 0x2;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	static final int DEFAULT_WINDOW_SIZE = 65535;
+	static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+	static final int MAX_HEADER_BLOCK_SIZE = 256 * 1024;
+
+	private final InputStream m_in;
+	private final OutputStream m_out;
+	private final HPACKDecoder m_decoder = new HPACKDecoder();
+	private final ConcurrentMap<Integer, AbstractStream> m_streams = new ConcurrentHashMap<Integer, AbstractStream>();
+
+	// Not monitors, so a virtual thread which blocks in a write does not pin its carrier.
+	private final Lock m_writeLock = new ReentrantLock();
+	private final Lock m_stateLock = new ReentrantLock();
+	private final Condition m_stateChanged = m_stateLock.newCondition();
+
+	// Guarded by m_stateLock.
+	private long m_sendWindow = DEFAULT_WINDOW_SIZE;
+	private int m_initialSendWindow = DEFAULT_WINDOW_SIZE;
+	private int m_peerMaxConcurrentStreams = Integer.MAX_VALUE;
+	private boolean m_closed = false;
+
+	private volatile int m_maxSendFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+	// Only used by the reading thread.
+	private ByteArrayOutputStream m_headerBlock;
+	private int m_headerStreamId;
+	private boolean m_headerEndStream;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            decrypted input stream from the peer
+	 * @param out
+	 *            decrypted output stream to the peer
+	 */
+	HTTP2Connection(InputStream in, OutputStream out) {
+		m_in = in;
+		m_out = out;
+	}
+
+	/**
+	 * Exchange the connection preface and the first SETTINGS frame.
+	 *
+	 * @throws IOException
+	 *             if the connection fails, or the peer breaks the protocol
+	 */
+	abstract void start() throws IOException;
+
+	/**
+	 * Called in the reading thread for each complete header block.
+	 *
+	 * @param streamId
+	 *            stream identifier, not 0
+	 * @param fields
+	 *            decoded header fields
+	 * @param endStream
+	 *            true if the peer ends the stream with the block
+	 * @throws IOException
+	 *             if the connection fails, or the peer breaks the protocol
+	 */
+	abstract void headersReceived(int streamId, List<Pair<String, String>> fields, boolean endStream)
+					throws IOException;
+
+	/**
+	 * Called in the reading thread for each DATA frame. The connection window has been given back;
+	 * the stream window is left to the subclass.
+	 *
+	 * @param streamId
+	 *            stream identifier, not 0
+	 * @param buffer
+	 *            buffer
+	 * @param offset
+	 *            offset of the data, after the padding length
+	 * @param length
+	 *            length of the data, without the padding
+	 * @param frameLength
+	 *            length counted against the flow control window
+	 * @param endStream
+	 *            true if the peer ends the stream with the frame
+	 * @throws IOException
+	 *             if the connection fails, or the peer breaks the protocol
+	 */
+	abstract void dataReceived(int streamId, byte[] buffer, int offset, int length, int frameLength, boolean endStream)
+					throws IOException;
+
+	/**
+	 * Get the identifier of the last stream opened by the peer, for the GOAWAY frame.
+	 *
+	 * @return stream identifier, or 0
+	 */
+	abstract int getLastPeerStreamId();
+
+	/**
+	 * Called in the reading thread when the connection ends, after its streams have been reset.
+	 */
+	abstract void connectionClosed();
+
+	/**
+	 * Called in the reading thread when the peer stops accepting new streams.
+	 *
+	 * @param lastStreamId
+	 *            last stream which the peer processes
+	 */
+	void goAwayReceived(int lastStreamId) {
+	}
+
+	/**
+	 * Read the connection until the peer closes it. The caller closes the streams.
+	 *
+	 * @throws IOException
+	 *             if the connection fails, or the peer breaks the protocol
+	 */
+	final void run() throws IOException {
+		try {
+			start();
+
+			final byte[] header = new byte[9];
+			final byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+
+			while (readFully(header, header.length)) {
+				final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+				final int type = header[3] & 0xff;
+				final int flags = header[4] & 0xff;
+				final int streamId = readInt(header, 5) & 0x7fffffff;
+
+				if (length > payload.length) {
+					throw new ConnectionError(FRAME_SIZE_ERROR, "frame of " + length + " bytes");
+				}
+				if (!readFully(payload, length)) {
+					throw new EOFException();
+				}
+				if (m_headerBlock != null && type != CONTINUATION) {
+					throw new ConnectionError(PROTOCOL_ERROR, "header block interrupted");
+				}
+
+				frameReceived(type, flags, streamId, payload, length);
+			}
+		} catch (ConnectionError e) {
+			try {
+				final byte[] goAway = new byte[8];
+				writeInt(goAway, 0, getLastPeerStreamId());
+				writeInt(goAway, 4, e.m_code);
+				writeFrame(GOAWAY, 0, 0, goAway, 0, goAway.length);
+			} catch (IOException e2) {
+				UncheckedInterruptedException.ioException(e2);
+			}
+			throw e;
+		} finally {
+			m_stateLock.lock();
+			try {
+				m_closed = true;
+				for (AbstractStream stream : m_streams.values()) {
+					stream.m_reset = true;
+				}
+				m_stateChanged.signalAll();
+			} finally {
+				m_stateLock.unlock();
+			}
+			for (AbstractStream stream : m_streams.values()) {
+				stream.closed();
+			}
+			m_streams.clear();
+			connectionClosed();
+		}
+	}
+
+	private void frameReceived(int type, int flags, int streamId, byte[] payload, int length) throws IOException {
+		switch (type) {
+		case DATA:
+			dataFrameReceived(flags, streamId, payload, length);
+			break;
+		case HEADERS:
+			headersFrameReceived(flags, streamId, payload, length);
+			break;
+		case CONTINUATION:
+			if (m_headerBlock == null || streamId != m_headerStreamId) {
+				throw new ConnectionError(PROTOCOL_ERROR, "unexpected CONTINUATION");
+			}
+			m_headerBlock.write(payload, 0, length);
+			if (m_headerBlock.size() > MAX_HEADER_BLOCK_SIZE) {
+				throw new ConnectionError(PROTOCOL_ERROR, "header block too large");
+			}
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				headerBlockReceived();
+			}
+			break;
+		case RST_STREAM:
+			if (length != 4) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM");
+			}
+			final AbstractStream reset = m_streams.get(streamId);
+			if (reset != null) {
+				m_stateLock.lock();
+				try {
+					reset.m_reset = true;
+				} finally {
+					m_stateLock.unlock();
+				}
+				removeStream(reset);
+				reset.closed();
+			}
+			break;
+		case SETTINGS:
+			settingsReceived(flags, streamId, payload, length);
+			break;
+		case PUSH_PROMISE:
+			// Servers are told not to push, and clients cannot.
+			throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE");
+		case PING:
+			if (length != 8) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "PING");
+			}
+			if ((flags & FLAG_ACK) == 0) {
+				writeFrame(PING, FLAG_ACK, 0, payload, 0, 8);
+			}
+			break;
+		case WINDOW_UPDATE:
+			if (length != 4) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE");
+			}
+			windowUpdateReceived(streamId, readInt(payload, 0) & 0x7fffffff);
+			break;
+		case GOAWAY:
+			if (length < 8) {
+				throw new ConnectionError(FRAME_SIZE_ERROR, "GOAWAY");
+			}
+			goAwayReceived(readInt(payload, 0) & 0x7fffffff);
+			break;
+		case PRIORITY:
+		default:
+			// Unknown frames are ignored.
+			break;
+		}
+	}
+
+	private void dataFrameReceived(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		int offset = 0;
+		int dataLength = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			offset = 1;
+			dataLength -= 1 + (length > 0 ? payload[0] & 0xff : 0);
+			if (dataLength < 0) {
+				throw new ConnectionError(PROTOCOL_ERROR, "DATA padding");
+			}
+		}
+		if (length > 0) {
+			writeWindowUpdate(0, length);
+		}
+		dataReceived(streamId, payload, offset, dataLength, length, (flags & FLAG_END_STREAM) != 0);
+	}
+
+	private void headersFrameReceived(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+		int offset = 0;
+		int blockLength = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			offset = 1;
+			blockLength -= 1 + (length > 0 ? payload[0] & 0xff : 0);
+		}
+		if ((flags & FLAG_PRIORITY) != 0) {
+			offset += 5;
+			blockLength -= 5;
+		}
+		if (blockLength < 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "HEADERS padding");
+		}
+		m_headerBlock = new ByteArrayOutputStream();
+		m_headerBlock.write(payload, offset, blockLength);
+		m_headerStreamId = streamId;
+		m_headerEndStream = (flags & FLAG_END_STREAM) != 0;
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			headerBlockReceived();
+		}
+	}
+
+	private void headerBlockReceived() throws IOException {
+		final byte[] block = m_headerBlock.toByteArray();
+		m_headerBlock = null;
+
+		final List<Pair<String, String>> fields;
+		try {
+			fields = m_decoder.decode(block, 0, block.length);
+		} catch (IOException e) {
+			throw new ConnectionError(COMPRESSION_ERROR, e.getMessage());
+		}
+		headersReceived(m_headerStreamId, fields, m_headerEndStream);
+	}
+
+	private void settingsReceived(int flags, int streamId, byte[] payload, int length) throws IOException {
+		if (streamId != 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			return;
+		}
+		if (length % 6 != 0) {
+			throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS");
+		}
+		for (int i = 0; i < length; i += 6) {
+			final int identifier = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+			final int value = readInt(payload, i + 2);
+			if (identifier == SETTINGS_INITIAL_WINDOW_SIZE) {
+				if (value < 0) {
+					throw new ConnectionError(FLOW_CONTROL_ERROR, "initial window size");
+				}
+				m_stateLock.lock();
+				try {
+					final int delta = value - m_initialSendWindow;
+					m_initialSendWindow = value;
+					for (AbstractStream stream : m_streams.values()) {
+						stream.m_sendWindow += delta;
+					}
+					m_stateChanged.signalAll();
+				} finally {
+					m_stateLock.unlock();
+				}
+			} else if (identifier == SETTINGS_MAX_FRAME_SIZE) {
+				if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+					throw new ConnectionError(PROTOCOL_ERROR, "max frame size " + value);
+				}
+				m_maxSendFrameSize = value;
+			} else if (identifier == SETTINGS_MAX_CONCURRENT_STREAMS) {
+				m_stateLock.lock();
+				try {
+					m_peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+					m_stateChanged.signalAll();
+				} finally {
+					m_stateLock.unlock();
+				}
+			}
+		}
+		writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0);
+	}
+
+	private void windowUpdateReceived(int streamId, int increment) throws IOException {
+		if (increment == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "window increment of 0");
+		}
+		m_stateLock.lock();
+		try {
+			if (streamId == 0) {
+				m_sendWindow += increment;
+				if (m_sendWindow > MAX_WINDOW_SIZE) {
+					throw new ConnectionError(FLOW_CONTROL_ERROR, "connection window overflow");
+				}
+			} else {
+				final AbstractStream stream = m_streams.get(streamId);
+				if (stream != null) {
+					stream.m_sendWindow += increment;
+				}
+			}
+			m_stateChanged.signalAll();
+		} finally {
+			m_stateLock.unlock();
+		}
+	}
+
+	/**
+	 * Get an open stream.
+	 *
+	 * @param streamId
+	 *            stream identifier
+	 * @return stream, or {@code null} if it is closed, or has never been opened
+	 */
+	final AbstractStream getStream(int streamId) {
+		return m_streams.get(streamId);
+	}
+
+	final int getStreamCount() {
+		return m_streams.size();
+	}
+
+	/**
+	 * Register a new stream. A client holds the write lock, so that the streams are opened in
+	 * order.
+	 *
+	 * @param stream
+	 *            stream
+	 * @throws StreamResetException
+	 *             if the connection is closed
+	 */
+	final void addStream(AbstractStream stream) throws StreamResetException {
+		m_stateLock.lock();
+		try {
+			if (m_closed) {
+				throw new StreamResetException(stream.m_id);
+			}
+			stream.m_sendWindow = m_initialSendWindow;
+			m_streams.put(stream.m_id, stream);
+		} finally {
+			m_stateLock.unlock();
+		}
+	}
+
+	private void removeStream(AbstractStream stream) {
+		if (m_streams.remove(stream.m_id) != null) {
+			m_stateLock.lock();
+			try {
+				m_stateChanged.signalAll();
+			} finally {
+				m_stateLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the peer accepts another stream.
+	 *
+	 * @throws IOException
+	 *             if the connection is closed
+	 */
+	final void awaitStreamSlot() throws IOException {
+		m_stateLock.lock();
+		try {
+			while (!m_closed && m_streams.size() >= m_peerMaxConcurrentStreams) {
+				m_stateChanged.await();
+			}
+			if (m_closed) {
+				throw new EOFException("HTTP/2 connection closed");
+			}
+		} catch (InterruptedException e) {
+			throw new UncheckedInterruptedException(e);
+		} finally {
+			m_stateLock.unlock();
+		}
+	}
+
+	final boolean isClosed() {
+		m_stateLock.lock();
+		try {
+			return m_closed;
+		} finally {
+			m_stateLock.unlock();
+		}
+	}
+
+	final Lock getWriteLock() {
+		return m_writeLock;
+	}
+
+	final void writeWindowUpdate(int streamId, int increment) throws IOException {
+		final byte[] payload = new byte[4];
+		writeInt(payload, 0, increment);
+		writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+	}
+
+	final void writeRaw(byte[] bytes) throws IOException {
+		m_writeLock.lock();
+		try {
+			m_out.write(bytes);
+			m_out.flush();
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	final void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+					throws IOException {
+		final byte[] frame = new byte[9 + length];
+		frame[0] = (byte) (length >>> 16);
+		frame[1] = (byte) (length >>> 8);
+		frame[2] = (byte) length;
+		frame[3] = (byte) type;
+		frame[4] = (byte) flags;
+		writeInt(frame, 5, streamId);
+		System.arraycopy(payload, offset, frame, 9, length);
+		writeRaw(frame);
+	}
+
+	final boolean readFully(byte[] buffer, int length) throws IOException {
+		int n = 0;
+		while (n < length) {
+			final int bytesRead = m_in.read(buffer, n, length - n);
+			if (bytesRead == -1) {
+				if (n == 0) {
+					return false;
+				}
+				throw new EOFException();
+			}
+			n += bytesRead;
+		}
+		return true;
+	}
+
+	static int readInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+						| ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+	}
+
+	static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	static byte[] settings(int... identifiersAndValues) {
+		final byte[] payload = new byte[identifiersAndValues.length * 3];
+		for (int i = 0; i < identifiersAndValues.length; i += 2) {
+			payload[i * 3] = (byte) (identifiersAndValues[i] >>> 8);
+			payload[i * 3 + 1] = (byte) identifiersAndValues[i];
+			writeInt(payload, i * 3 + 2, identifiersAndValues[i + 1]);
+		}
+		return payload;
+	}
+
+	/**
+	 * A stream of the connection. Each side ends its half of the stream; the stream is forgotten
+	 * once both have, or it is reset.
+	 */
+	abstract class AbstractStream {
+		private final int m_id;
+		private volatile boolean m_reset = false;
+		private volatile boolean m_localEnded = false;
+		private volatile boolean m_remoteEnded = false;
+
+		// Guarded by m_stateLock.
+		private long m_sendWindow;
+
+		AbstractStream(int id) {
+			m_id = id;
+		}
+
+		int getId() {
+			return m_id;
+		}
+
+		boolean isReset() {
+			return m_reset;
+		}
+
+		/**
+		 * Called in the reading thread when the peer resets the stream, or the connection ends.
+		 */
+		void closed() {
+		}
+
+		/**
+		 * Record that the peer has ended its half of the stream.
+		 */
+		final void remoteEnded() {
+			m_remoteEnded = true;
+			if (m_localEnded) {
+				removeStream(this);
+			}
+		}
+
+		private void localEnded() {
+			m_localEnded = true;
+			if (m_remoteEnded) {
+				removeStream(this);
+			}
+		}
+
+		/**
+		 * Write a header block.
+		 *
+		 * @param fields
+		 *            header fields with lower case names, pseudo-header fields first
+		 * @param endStream
+		 *            true if nothing follows the block
+		 * @throws IOException
+		 *             if the stream is reset, or the connection fails
+		 */
+		final void writeHeaderBlock(List<Pair<String, String>> fields, boolean endStream) throws IOException {
+			if (m_reset) {
+				throw new StreamResetException(m_id);
+			}
+			final byte[] block = HPACKDecoder.encode(fields);
+
+			// HEADERS and its CONTINUATION frames must not be interleaved with other frames.
+			m_writeLock.lock();
+			try {
+				final int maxFrameSize = m_maxSendFrameSize;
+				int offset = 0;
+				do {
+					final int length = Math.min(maxFrameSize, block.length - offset);
+					final boolean last = offset + length == block.length;
+					final int flags = (last ? FLAG_END_HEADERS : 0) | (offset == 0 && endStream ? FLAG_END_STREAM : 0);
+					writeFrame(offset == 0 ? HEADERS : CONTINUATION, flags, m_id, block, offset, length);
+					offset += length;
+				} while (offset < block.length);
+			} finally {
+				m_writeLock.unlock();
+			}
+			if (endStream) {
+				localEnded();
+			}
+		}
+
+		/**
+		 * Write body bytes, waiting for the flow control windows of the peer.
+		 *
+		 * @param buffer
+		 *            buffer
+		 * @param offset
+		 *            offset of the bytes
+		 * @param length
+		 *            number of the bytes, may be 0
+		 * @param endStream
+		 *            true if this is the end of the body
+		 * @throws IOException
+		 *             if the stream is reset, or the connection fails
+		 */
+		void writeData(byte[] buffer, int offset, int length, boolean endStream) throws IOException {
+			do {
+				final int n = reserveWindow(length);
+				writeFrame(DATA, endStream && n == length ? FLAG_END_STREAM : 0, m_id, buffer, offset, n);
+				offset += n;
+				length -= n;
+			} while (length > 0);
+			if (endStream) {
+				localEnded();
+			}
+		}
+
+		private int reserveWindow(int wanted) throws IOException {
+			m_stateLock.lock();
+			try {
+				while (true) {
+					if (m_reset || m_closed) {
+						throw new StreamResetException(m_id);
+					}
+					final long available = Math.min(Math.min(m_sendWindow, HTTP2Connection.this.m_sendWindow),
+									m_maxSendFrameSize);
+					if (wanted == 0 || available > 0) {
+						final int n = (int) Math.min(available, wanted);
+						m_sendWindow -= n;
+						HTTP2Connection.this.m_sendWindow -= n;
+						return n;
+					}
+					m_stateChanged.await();
+				}
+			} catch (InterruptedException e) {
+				throw new UncheckedInterruptedException(e);
+			} finally {
+				m_stateLock.unlock();
+			}
+		}
+
+		/**
+		 * Reset the stream.
+		 *
+		 * @param errorCode
+		 *            HTTP/2 error code
+		 * @throws IOException
+		 *             if the connection fails
+		 */
+		void reset(int errorCode) throws IOException {
+			m_reset = true;
+			removeStream(this);
+			final byte[] error = new byte[4];
+			writeInt(error, 0, errorCode);
+			writeFrame(RST_STREAM, 0, m_id, error, 0, error.length);
+		}
+	}
+}
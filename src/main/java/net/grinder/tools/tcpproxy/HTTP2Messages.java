@@ -0,0 +1,261 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import net.grinder.util.Pair;
+
+/**
+ * Translation of the messages of an HTTP/2 stream to and from HTTP/1.1, RFC 7540 section 8.1.
+ *
+ * The requests are written as a browser would write them over HTTP/1.1, with capitalised header
+ * names and the cookie crumbs joined, so the recording filters see the usual messages.
+ *
+ * @since 3.3
+ */
+final class HTTP2Messages {
+
+	// Connection specific header fields, which HTTP/2 does not carry.
+	private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList("connection",
+					"keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+	// Also replaced by the pseudo-header fields, or recomputed for the buffered body.
+	private static final Set<String> REQUEST_HEADERS_NOT_COPIED = new HashSet<String>(Arrays.asList("te", "host",
+					"content-length", "expect"));
+
+	// HTTP/2 has no reason phrases. These are the usual ones, for the recording.
+	private static final Map<String, String> REASON_PHRASES = new HashMap<String, String>();
+
+	static {
+		final String[] phrases = { "100", "Continue", "103", "Early Hints", "200", "OK", "201", "Created", "202",
+			"Accepted", "204", "No Content", "206", "Partial Content", "301", "Moved Permanently", "302", "Found",
+			"303", "See Other", "304", "Not Modified", "307", "Temporary Redirect", "308", "Permanent Redirect",
+			"400", "Bad Request", "401", "Unauthorized", "403", "Forbidden", "404", "Not Found", "405",
+			"Method Not Allowed", "409", "Conflict", "410", "Gone", "412", "Precondition Failed", "413",
+			"Payload Too Large", "415", "Unsupported Media Type", "429", "Too Many Requests", "500",
+			"Internal Server Error", "501", "Not Implemented", "502", "Bad Gateway", "503", "Service Unavailable",
+			"504", "Gateway Timeout" };
+		for (int i = 0; i < phrases.length; i += 2) {
+			REASON_PHRASES.put(phrases[i], phrases[i + 1]);
+		}
+	}
+
+	private HTTP2Messages() {
+	}
+
+	/**
+	 * Write the head of the HTTP/1.1 request of a stream.
+	 *
+	 * @param headers
+	 *            request header fields, pseudo-header fields included
+	 * @param defaultAuthority
+	 *            host and port used if the request has no <code>:authority</code>
+	 * @param bodyLength
+	 *            length of the request body
+	 * @return request line and header lines, or {@code null} if the request is malformed
+	 */
+	static String toHTTP11Request(List<Pair<String, String>> headers, String defaultAuthority, int bodyLength) {
+		String method = null;
+		String path = null;
+		String authority = null;
+		StringBuilder cookies = null;
+		final StringBuilder fields = new StringBuilder();
+
+		for (Pair<String, String> field : headers) {
+			final String name = field.getFirst();
+			final String value = field.getSecond();
+			if (":method".equals(name)) {
+				method = value;
+			} else if (":path".equals(name)) {
+				path = value;
+			} else if (":authority".equals(name)) {
+				authority = value;
+			} else if (name.startsWith(":") || CONNECTION_HEADERS.contains(name)
+							|| REQUEST_HEADERS_NOT_COPIED.contains(name)) {
+				continue;
+			} else if ("cookie".equals(name)) {
+				if (cookies == null) {
+					cookies = new StringBuilder(value);
+				} else {
+					cookies.append("; ").append(value);
+				}
+			} else {
+				fields.append(capitalise(name)).append(": ").append(value).append("\r\n");
+			}
+		}
+
+		if (method == null || path == null || path.length() == 0) {
+			return null;
+		}
+
+		final StringBuilder request = new StringBuilder();
+		request.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(authority != null ? authority : defaultAuthority).append("\r\n");
+		request.append(fields);
+		if (cookies != null) {
+			request.append("Cookie: ").append(cookies).append("\r\n");
+		}
+		if (bodyLength > 0 || "POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method)) {
+			request.append("Content-Length: ").append(bodyLength).append("\r\n");
+		}
+		request.append("\r\n");
+		return request.toString();
+	}
+
+	/**
+	 * Convert the header lines of an HTTP/1.1 response to HTTP/2 header fields.
+	 *
+	 * @param headerLines
+	 *            header lines, without the status line
+	 * @return header fields with lower case names, without the connection specific fields
+	 */
+	static List<Pair<String, String>> toHTTP2Headers(List<String> headerLines) {
+		final List<Pair<String, String>> result = newArrayList();
+		for (String line : headerLines) {
+			final int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			final String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+			if (!CONNECTION_HEADERS.contains(name)) {
+				result.add(Pair.of(name, line.substring(colon + 1).trim()));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Convert the head of an HTTP/1.1 request to the header fields of an HTTP/2 stream.
+	 *
+	 * @param method
+	 *            request method
+	 * @param target
+	 *            request target, in origin or absolute form
+	 * @param headerLines
+	 *            header lines, without the request line
+	 * @param defaultAuthority
+	 *            host and port used if the request has no <code>Host</code>
+	 * @return header fields with lower case names, pseudo-header fields first, or {@code null} if
+	 *         the request is malformed
+	 */
+	static List<Pair<String, String>> toHTTP2Request(String method, String target, List<String> headerLines,
+					String defaultAuthority) {
+		String authority = null;
+		String path = target;
+		final int scheme = target.indexOf("://");
+		if (scheme > 0) {
+			final int slash = target.indexOf('/', scheme + 3);
+			authority = slash < 0 ? target.substring(scheme + 3) : target.substring(scheme + 3, slash);
+			path = slash < 0 ? "/" : target.substring(slash);
+		}
+		if (method.length() == 0 || !(path.startsWith("/") || "*".equals(path) && "OPTIONS".equals(method))) {
+			return null;
+		}
+
+		// The Connection header names further fields which are not forwarded.
+		final Set<String> notCopied = new HashSet<String>(CONNECTION_HEADERS);
+		final List<Pair<String, String>> headers = newArrayList();
+		for (String line : headerLines) {
+			final int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+			final String name = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+			final String value = line.substring(colon + 1).trim();
+			if ("host".equals(name)) {
+				if (authority == null) {
+					authority = value;
+				}
+			} else if ("connection".equals(name)) {
+				for (String option : value.split(",")) {
+					notCopied.add(option.trim().toLowerCase(Locale.ENGLISH));
+				}
+			} else if (!"te".equals(name) || "trailers".equalsIgnoreCase(value)) {
+				headers.add(Pair.of(name, value));
+			}
+		}
+
+		final List<Pair<String, String>> result = newArrayList();
+		result.add(Pair.of(":method", method));
+		result.add(Pair.of(":scheme", "https"));
+		result.add(Pair.of(":authority", authority != null ? authority : defaultAuthority));
+		result.add(Pair.of(":path", path));
+		for (Pair<String, String> field : headers) {
+			if (!notCopied.contains(field.getFirst())) {
+				result.add(field);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Write the head of the HTTP/1.1 response of a stream.
+	 *
+	 * @param headers
+	 *            response header fields, pseudo-header fields included
+	 * @param framingHeader
+	 *            header line which tells where the body ends, or {@code null}
+	 * @return status line and header lines, or {@code null} if the response has no valid status
+	 */
+	static String toHTTP11Response(List<Pair<String, String>> headers, String framingHeader) {
+		String status = null;
+		final StringBuilder fields = new StringBuilder();
+		for (Pair<String, String> field : headers) {
+			final String name = field.getFirst();
+			if (":status".equals(name)) {
+				status = field.getSecond();
+			} else if (!name.startsWith(":") && !CONNECTION_HEADERS.contains(name)) {
+				fields.append(capitalise(name)).append(": ").append(field.getSecond()).append("\r\n");
+			}
+		}
+		if (status == null || !status.matches("[1-5]\\d\\d")) {
+			return null;
+		}
+
+		final StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.1 ").append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+		response.append(fields);
+		if (framingHeader != null) {
+			response.append(framingHeader).append("\r\n");
+		}
+		response.append("\r\n");
+		return response.toString();
+	}
+
+	private static String reasonPhrase(String status) {
+		final String reason = REASON_PHRASES.get(status);
+		return reason != null ? reason : "";
+	}
+
+	private static String capitalise(String name) {
+		final char[] chars = name.toCharArray();
+		boolean start = true;
+		for (int i = 0; i < chars.length; i++) {
+			if (start) {
+				chars[i] = Character.toUpperCase(chars[i]);
+			}
+			start = chars[i] == '-';
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.grinder.util.Pair;
+
+/**
+ * Server side of an HTTP/2 connection with the browser, RFC 7540.
+ *
+ * {@link #run()} reads the frames in the calling thread and hands each request to the
+ * {@link RequestHandler} once it is complete, headers and body. The responses are written from
+ * any thread through the {@link Stream}.
+ *
+ * The request bodies are buffered, so the proxy gives the browser its windows back as soon as
+ * the DATA frames arrive. Server push and priorities are not used.
+ *
+ * @since 3.3
+ */
+final class HTTP2ServerConnection extends HTTP2Connection {
+
+	/**
+	 * Receives the requests of the connection.
+	 */
+	interface RequestHandler {
+
+		/**
+		 * Called in the reading thread when the request of a stream is complete. Must not block.
+		 *
+		 * @param stream
+		 *            stream
+		 */
+		void requestReceived(Stream stream);
+
+		/**
+		 * Called in the reading thread when the connection ends.
+		 */
+		void connectionClosed();
+	}
+
+	/**
+	 * Number of streams the browser may open at the same time.
+	 */
+	static final int MAX_CONCURRENT_STREAMS = 100;
+
+	/**
+	 * Largest request body which is buffered. Larger requests are answered with 413.
+	 */
+	static final int MAX_REQUEST_BODY = 16 * 1024 * 1024;
+
+	private final RequestHandler m_handler;
+
+	// Only used by the reading thread.
+	private int m_lastStreamId = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            decrypted input stream from the browser, positioned at the connection preface
+	 * @param out
+	 *            decrypted output stream to the browser
+	 * @param handler
+	 *            receives the requests
+	 */
+	HTTP2ServerConnection(InputStream in, OutputStream out, RequestHandler handler) {
+		super(in, out);
+		m_handler = handler;
+	}
+
+	@Override
+	void start() throws IOException {
+		final byte[] preface = new byte[PREFACE.length];
+		if (!readFully(preface, preface.length) || !Arrays.equals(preface, PREFACE)) {
+			throw new ConnectionError(PROTOCOL_ERROR, "invalid connection preface");
+		}
+		final byte[] settings = settings(SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+	}
+
+	@Override
+	int getLastPeerStreamId() {
+		return m_lastStreamId;
+	}
+
+	@Override
+	void connectionClosed() {
+		m_handler.connectionClosed();
+	}
+
+	@Override
+	void dataReceived(int streamId, byte[] buffer, int offset, int length, int frameLength, boolean endStream)
+					throws IOException {
+		if (streamId > m_lastStreamId) {
+			throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+		}
+		final Stream stream = (Stream) getStream(streamId);
+		if (stream == null || !stream.m_receiving) {
+			// The stream was reset or answered early.
+			return;
+		}
+		if (stream.m_body.size() + length > MAX_REQUEST_BODY) {
+			stream.m_receiving = false;
+			stream.writeHeaders(413, Collections.<Pair<String, String>> emptyList(), true);
+			stream.reset(NO_ERROR);
+			return;
+		}
+		stream.m_body.write(buffer, offset, length);
+		if (endStream) {
+			requestReceived(stream);
+		} else if (frameLength > 0) {
+			writeWindowUpdate(streamId, frameLength);
+		}
+	}
+
+	@Override
+	void headersReceived(int streamId, List<Pair<String, String>> fields, boolean endStream) throws IOException {
+		final Stream existing = (Stream) getStream(streamId);
+		if (existing != null) {
+			// Trailers. Not passed on.
+			if (existing.m_receiving && endStream) {
+				requestReceived(existing);
+			} else if (existing.m_receiving) {
+				existing.reset(PROTOCOL_ERROR);
+			}
+			return;
+		}
+		if ((streamId & 1) == 0) {
+			throw new ConnectionError(PROTOCOL_ERROR, "stream " + streamId + " opened by the client");
+		}
+		if (streamId <= m_lastStreamId) {
+			// A stream which is already closed.
+			return;
+		}
+		m_lastStreamId = streamId;
+
+		if (getStreamCount() >= MAX_CONCURRENT_STREAMS) {
+			final byte[] error = new byte[4];
+			writeInt(error, 0, REFUSED_STREAM);
+			writeFrame(RST_STREAM, 0, streamId, error, 0, error.length);
+			return;
+		}
+
+		final Stream stream = new Stream(streamId, fields);
+		addStream(stream);
+		if (endStream) {
+			requestReceived(stream);
+		}
+	}
+
+	private void requestReceived(Stream stream) {
+		stream.m_receiving = false;
+		stream.remoteEnded();
+		m_handler.requestReceived(stream);
+	}
+
+	/**
+	 * A request of the browser and its response.
+	 */
+	final class Stream extends AbstractStream {
+		private final List<Pair<String, String>> m_headers;
+		private final ByteArrayOutputStream m_body = new ByteArrayOutputStream();
+		private volatile boolean m_receiving = true;
+
+		private Stream(int id, List<Pair<String, String>> headers) {
+			super(id);
+			m_headers = headers;
+		}
+
+		/**
+		 * Get the request header fields, pseudo-header fields first.
+		 *
+		 * @return header fields with lower case names
+		 */
+		List<Pair<String, String>> getHeaders() {
+			return m_headers;
+		}
+
+		/**
+		 * Get the first value of the given request header field.
+		 *
+		 * @param name
+		 *            lower case name
+		 * @return value, or {@code null}
+		 */
+		String getHeader(String name) {
+			for (Pair<String, String> field : m_headers) {
+				if (field.getFirst().equals(name)) {
+					return field.getSecond();
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Get the request body.
+		 *
+		 * @return body, empty if the request has none
+		 */
+		byte[] getBody() {
+			return m_body.toByteArray();
+		}
+
+		/**
+		 * Write the response header fields.
+		 *
+		 * @param status
+		 *            status code
+		 * @param headers
+		 *            header fields with lower case names, without connection specific fields
+		 * @param endStream
+		 *            true if the response has no body
+		 * @throws IOException
+		 *             if the stream is reset, or the connection fails
+		 */
+		void writeHeaders(int status, List<Pair<String, String>> headers, boolean endStream) throws IOException {
+			final List<Pair<String, String>> fields = newArrayList();
+			fields.add(Pair.of(":status", Integer.toString(status)));
+			fields.addAll(headers);
+			writeHeaderBlock(fields, endStream);
+		}
+	}
+}
@@ -0,0 +1,553 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+import static net.grinder.util.NoOp.noOp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.util.Pair;
+
+/**
+ * Transport which sends each HTTP/1.1 request written to it as a stream of a shared HTTP/2
+ * connection, and gives back the responses as HTTP/1.1, in the order of the requests.
+ *
+ * The request bodies are framed by <code>Content-Length</code> or chunked encoding, as HTTP/1.1
+ * requires. A response without a <code>Content-Length</code> is given back with chunked encoding.
+ * A request which HTTP/2 cannot carry, an <code>Upgrade</code> or a <code>CONNECT</code>, and every
+ * byte after it, go over an HTTP/1.1 connection of their own.
+ *
+ * @since 3.3
+ */
+final class HTTP2UpstreamTransport implements UpstreamTransport {
+
+	/**
+	 * The server behind the transport.
+	 */
+	interface Origin {
+
+		/**
+		 * Get a connection which takes new streams, opening one if need be.
+		 *
+		 * @return connection, or {@code null} if the server no longer negotiates HTTP/2
+		 * @throws IOException
+		 *             if a connection cannot be opened
+		 */
+		HTTP2ClientConnection getConnection() throws IOException;
+
+		/**
+		 * Open an HTTP/1.1 connection of its own.
+		 *
+		 * @return transport
+		 * @throws IOException
+		 *             if the connection cannot be opened
+		 */
+		UpstreamTransport openHTTP11() throws IOException;
+	}
+
+	private static final int MAX_HEAD_SIZE = 256 * 1024;
+	private static final byte[] EMPTY = new byte[0];
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private final Origin m_origin;
+	private final String m_defaultAuthority;
+	private final RequestStream m_requestStream = new RequestStream();
+	private final ResponseStream m_responseStream = new ResponseStream();
+
+	// Not a monitor, so a virtual thread which waits for a response does not pin its carrier.
+	private final Lock m_lock = new ReentrantLock();
+	private final Condition m_exchangeAdded = m_lock.newCondition();
+
+	// Guarded by m_lock. Exchanges, then the HTTP/1.1 transport if a request needed one.
+	private final LinkedList<Object> m_exchanges = new LinkedList<Object>();
+	private boolean m_closed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param origin
+	 *            the server
+	 * @param remoteEndPoint
+	 *            end point of the server, the authority of a request without <code>Host</code>
+	 */
+	HTTP2UpstreamTransport(Origin origin, EndPoint remoteEndPoint) {
+		m_origin = origin;
+		m_defaultAuthority = remoteEndPoint.toString();
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return m_responseStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return m_requestStream;
+	}
+
+	/**
+	 * Close the transport. The streams whose response has not ended are cancelled; the shared
+	 * connection is left open.
+	 */
+	@Override
+	public void close() {
+		final List<Object> exchanges = newArrayList();
+		m_lock.lock();
+		try {
+			if (m_closed) {
+				return;
+			}
+			m_closed = true;
+			exchanges.addAll(m_exchanges);
+			m_exchanges.clear();
+			m_exchangeAdded.signalAll();
+		} finally {
+			m_lock.unlock();
+		}
+		for (Object exchange : exchanges) {
+			if (exchange instanceof Exchange) {
+				((Exchange) exchange).cancel();
+			} else {
+				UpstreamTransportFactory.close((UpstreamTransport) exchange);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HTTP/2 transport to " + m_defaultAuthority;
+	}
+
+	private void addExchange(Object exchange) throws IOException {
+		m_lock.lock();
+		try {
+			if (!m_closed) {
+				m_exchanges.add(exchange);
+				m_exchangeAdded.signalAll();
+				return;
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		if (exchange instanceof Exchange) {
+			((Exchange) exchange).cancel();
+		} else {
+			UpstreamTransportFactory.close((UpstreamTransport) exchange);
+		}
+		throw new IOException("Transport closed");
+	}
+
+	/**
+	 * Wait for the exchange whose response is next.
+	 *
+	 * @return exchange, or {@code null} if the transport is closed
+	 */
+	private Object nextExchange() {
+		m_lock.lock();
+		try {
+			while (m_exchanges.isEmpty() && !m_closed) {
+				m_exchangeAdded.await();
+			}
+			return m_closed ? null : m_exchanges.getFirst();
+		} catch (InterruptedException e) {
+			throw new UncheckedInterruptedException(e);
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	private void exchangeComplete(Exchange exchange) {
+		m_lock.lock();
+		try {
+			m_exchanges.remove(exchange);
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * A request sent as an HTTP/2 stream, and the HTTP/1.1 bytes of its response.
+	 */
+	private static final class Exchange {
+		private final HTTP2ClientConnection.Stream m_stream;
+		private final boolean m_head;
+		private volatile boolean m_complete = false;
+
+		// Only used by the thread which reads the response.
+		private boolean m_finalHeaders = false;
+		private boolean m_noBody = false;
+		private boolean m_chunked = false;
+
+		Exchange(HTTP2ClientConnection.Stream stream, boolean head) {
+			m_stream = stream;
+			m_head = head;
+		}
+
+		/**
+		 * Wait for the next part of the response.
+		 *
+		 * @return HTTP/1.1 bytes, possibly none
+		 * @throws IOException
+		 *             if the stream is reset, or the response is malformed
+		 */
+		byte[] next() throws IOException {
+			final Object part = m_stream.take();
+
+			if (part == null) {
+				m_complete = true;
+				if (!m_finalHeaders) {
+					throw new IOException("HTTP/2 stream " + m_stream.getId() + " ended without a response");
+				}
+				return m_chunked ? LAST_CHUNK : EMPTY;
+			}
+
+			if (part instanceof byte[]) {
+				final byte[] data = (byte[]) part;
+				if (!m_finalHeaders) {
+					throw new IOException("HTTP/2 stream " + m_stream.getId() + " sent DATA before HEADERS");
+				}
+				if (m_noBody || data.length == 0) {
+					return EMPTY;
+				}
+				return m_chunked ? chunk(data) : data;
+			}
+
+			@SuppressWarnings("unchecked")
+			final List<Pair<String, String>> fields = (List<Pair<String, String>>) part;
+			if (m_finalHeaders) {
+				// Trailers. Not passed on.
+				return EMPTY;
+			}
+
+			final String status = getHeader(fields, ":status");
+			String framingHeader = null;
+			if (status == null || !status.startsWith("1")) {
+				m_finalHeaders = true;
+				m_noBody = m_head || "204".equals(status) || "304".equals(status);
+				if (!m_noBody && getHeader(fields, "content-length") == null) {
+					if (m_stream.isEndNext()) {
+						framingHeader = "Content-Length: 0";
+					} else {
+						m_chunked = true;
+						framingHeader = "Transfer-Encoding: chunked";
+					}
+				}
+			}
+			final String head = HTTP2Messages.toHTTP11Response(fields, framingHeader);
+			if (head == null) {
+				throw new IOException("HTTP/2 stream " + m_stream.getId() + " has no valid :status");
+			}
+			return head.getBytes("ISO-8859-1");
+		}
+
+		void cancel() {
+			if (!m_complete) {
+				try {
+					m_stream.reset(HTTP2Connection.CANCEL);
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+				}
+			}
+		}
+
+		private static byte[] chunk(byte[] data) {
+			final byte[] size = (Integer.toHexString(data.length) + "\r\n").getBytes();
+			final byte[] result = new byte[size.length + data.length + 2];
+			System.arraycopy(size, 0, result, 0, size.length);
+			System.arraycopy(data, 0, result, size.length, data.length);
+			result[result.length - 2] = '\r';
+			result[result.length - 1] = '\n';
+			return result;
+		}
+
+		private static String getHeader(List<Pair<String, String>> fields, String name) {
+			for (Pair<String, String> field : fields) {
+				if (field.getFirst().equals(name)) {
+					return field.getSecond();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Splits the HTTP/1.1 bytes of the browser into requests, and sends each on a stream.
+	 */
+	private final class RequestStream extends OutputStream {
+		private static final int HEAD = 0;
+		private static final int BODY = 1;
+		private static final int CHUNK_SIZE = 2;
+		private static final int CHUNK_DATA = 3;
+		private static final int CHUNK_END = 4;
+		private static final int TRAILERS = 5;
+		private static final int HTTP11 = 6;
+
+		private final ByteArrayOutputStream m_line = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream m_head = new ByteArrayOutputStream();
+		private int m_state = HEAD;
+		private long m_remaining;
+		private HTTP2ClientConnection.Stream m_stream;
+		private UpstreamTransport m_http11;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			while (length > 0) {
+				final int n;
+				switch (m_state) {
+				case HTTP11:
+					m_http11.getOutputStream().write(buffer, offset, length);
+					return;
+				case BODY:
+				case CHUNK_DATA:
+					n = (int) Math.min(length, m_remaining);
+					sendBody(buffer, offset, n);
+					m_remaining -= n;
+					if (m_remaining == 0) {
+						if (m_state == BODY) {
+							endBody();
+						} else {
+							m_state = CHUNK_END;
+						}
+					}
+					break;
+				default:
+					n = readLine(buffer, offset, length);
+					break;
+				}
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (m_http11 != null) {
+				m_http11.getOutputStream().flush();
+			}
+		}
+
+		@Override
+		public void close() {
+			HTTP2UpstreamTransport.this.close();
+		}
+
+		/**
+		 * Take the bytes of a line of the head, a chunk size, or the trailers.
+		 *
+		 * @return number of bytes taken
+		 */
+		private int readLine(byte[] buffer, int offset, int length) throws IOException {
+			for (int i = 0; i < length; ++i) {
+				final byte b = buffer[offset + i];
+				if (b != '\n') {
+					m_line.write(b);
+					continue;
+				}
+				String line = m_line.toString("ISO-8859-1");
+				m_line.reset();
+				if (line.endsWith("\r")) {
+					line = line.substring(0, line.length() - 1);
+				}
+				lineReceived(line);
+				return i + 1;
+			}
+			m_line.write(buffer, offset, length);
+			if (m_line.size() + m_head.size() > MAX_HEAD_SIZE) {
+				throw new IOException("Request head larger than " + MAX_HEAD_SIZE + " bytes");
+			}
+			return length;
+		}
+
+		private void lineReceived(String line) throws IOException {
+			switch (m_state) {
+			case HEAD:
+				if (line.length() > 0) {
+					m_head.write(line.getBytes("ISO-8859-1"));
+					m_head.write('\r');
+					m_head.write('\n');
+				} else if (m_head.size() > 0) {
+					m_head.write('\r');
+					m_head.write('\n');
+					headReceived();
+				}
+				break;
+			case CHUNK_SIZE:
+				final int extension = line.indexOf(';');
+				try {
+					m_remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid chunk size: " + line);
+				}
+				m_state = m_remaining > 0 ? CHUNK_DATA : TRAILERS;
+				break;
+			case CHUNK_END:
+				m_state = CHUNK_SIZE;
+				break;
+			default:
+				// Request trailers are not passed on.
+				if (line.length() == 0) {
+					endBody();
+				}
+				break;
+			}
+		}
+
+		private void headReceived() throws IOException {
+			final byte[] head = m_head.toByteArray();
+			m_head.reset();
+
+			final String[] lines = new String(head, "ISO-8859-1").split("\r\n");
+			final String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3) {
+				throw new IOException("Malformed request line: " + lines[0]);
+			}
+			final String method = requestLine[0];
+			final List<String> headerLines = newArrayList();
+			boolean chunked = false;
+			boolean upgrade = "CONNECT".equals(method);
+			long contentLength = 0;
+			for (int i = 1; i < lines.length; ++i) {
+				headerLines.add(lines[i]);
+				final int colon = lines[i].indexOf(':');
+				if (colon <= 0) {
+					continue;
+				}
+				final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+				final String value = lines[i].substring(colon + 1).trim();
+				if ("transfer-encoding".equals(name)) {
+					chunked = value.toLowerCase(Locale.ENGLISH).contains("chunked");
+				} else if ("content-length".equals(name)) {
+					try {
+						contentLength = Long.parseLong(value);
+					} catch (NumberFormatException e) {
+						throw new IOException("Invalid Content-Length: " + value);
+					}
+				} else if ("upgrade".equals(name)) {
+					upgrade = true;
+				}
+			}
+
+			final HTTP2ClientConnection connection = upgrade ? null : m_origin.getConnection();
+			if (connection == null) {
+				// This request, and all that follow, go over HTTP/1.1.
+				m_http11 = m_origin.openHTTP11();
+				addExchange(m_http11);
+				m_state = HTTP11;
+				m_http11.getOutputStream().write(head);
+				return;
+			}
+
+			final List<Pair<String, String>> fields = HTTP2Messages.toHTTP2Request(method, requestLine[1],
+							headerLines, m_defaultAuthority);
+			if (fields == null) {
+				throw new IOException("Malformed request target: " + requestLine[1]);
+			}
+			final boolean hasBody = chunked || contentLength > 0;
+			m_stream = connection.newStream(fields, !hasBody);
+			addExchange(new Exchange(m_stream, "HEAD".equals(method)));
+
+			if (chunked) {
+				m_state = CHUNK_SIZE;
+			} else if (hasBody) {
+				m_remaining = contentLength;
+				m_state = BODY;
+			}
+		}
+
+		private void sendBody(byte[] buffer, int offset, int length) throws IOException {
+			try {
+				m_stream.writeData(buffer, offset, length, false);
+			} catch (HTTP2Connection.StreamResetException e) {
+				// The server has answered without the rest of the body.
+				noOp();
+			}
+		}
+
+		private void endBody() throws IOException {
+			try {
+				m_stream.writeData(EMPTY, 0, 0, true);
+			} catch (HTTP2Connection.StreamResetException e) {
+				noOp();
+			}
+			m_stream = null;
+			m_state = HEAD;
+		}
+	}
+
+	/**
+	 * Gives back the responses as HTTP/1.1 bytes, in the order of the requests.
+	 */
+	private final class ResponseStream extends InputStream {
+		private byte[] m_pending = EMPTY;
+		private int m_pendingOffset = 0;
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+			while (m_pendingOffset == m_pending.length) {
+				final Object next = nextExchange();
+				if (next == null) {
+					return -1;
+				}
+				if (next instanceof UpstreamTransport) {
+					return ((UpstreamTransport) next).getInputStream().read(buffer, offset, length);
+				}
+				final Exchange exchange = (Exchange) next;
+				m_pending = exchange.next();
+				m_pendingOffset = 0;
+				if (exchange.m_complete) {
+					exchangeComplete(exchange);
+				}
+			}
+			final int n = Math.min(length, m_pending.length - m_pendingOffset);
+			System.arraycopy(m_pending, m_pendingOffset, buffer, offset, n);
+			m_pendingOffset += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return m_pending.length - m_pendingOffset;
+		}
+
+		@Override
+		public void close() {
+			HTTP2UpstreamTransport.this.close();
+		}
+	}
+}
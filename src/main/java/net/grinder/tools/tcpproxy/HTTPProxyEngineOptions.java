@@ -0,0 +1,600 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+
+import org.apache.commons.lang.builder.ToStringBuilder;
+
+/**
+ * Tuning options shared by the HTTP proxy engines.
+ *
+ * The default values reproduce the behavior of the original thread per socket engine, so an
+ * instance created with the default constructor can be passed anywhere.
+ *
+ * @since 3.3
+ */
+public class HTTPProxyEngineOptions {
+
+	/**
+	 * Engine implementation.
+	 */
+	public enum EngineMode {
+		/** One thread per socket. */
+		THREAD,
+		/** A small number of selector threads own all the sockets. */
+		NIO;
+	}
+
+	/**
+	 * Kind of the threads which run the blocking socket work.
+	 */
+	public enum ThreadMode {
+		/** Platform threads, with bounded pools. */
+		PLATFORM,
+		/** A virtual thread for each task. Needs JDK 21 or later, otherwise platform threads are used. */
+		VIRTUAL;
+	}
+
+	private EngineMode engineMode = EngineMode.THREAD;
+
+	private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+	private int socketThreadsMin = 8;
+
+	private int socketThreadsMax = 64;
+
+	private int socketQueueSize = 256;
+
+	private long socketQueueTargetWait = 20;
+
+	private final ExecutorStatistics socketExecutorStatistics = new ExecutorStatistics();
+
+	private int eventLoopCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private int tunnelSetupThreadCount = 8;
+
+	private TCPProxySSLEngineFactory sslEngineFactory;
+
+	private int sslSessionCacheSize = 1000;
+
+	private int sslSessionTimeout = 24 * 60 * 60;
+
+	private final SSLSessionCacheStatistics sslSessionCacheStatistics = new SSLSessionCacheStatistics();
+
+	private boolean http2 = false;
+	private boolean optimisticConnect = false;
+
+	private int upstreamPoolMaxIdle = 32;
+
+	private int upstreamPoolMaxIdlePerHost = 6;
+
+	private long upstreamPoolIdleTimeout = 4000;
+
+	private boolean upstreamHTTP2 = false;
+
+	private boolean chainedProxySpare = true;
+
+	private BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 256);
+
+	private final TCPProxyPassthrough passthrough = new TCPProxyPassthrough();
+
+	private final TCPProxyAutoConfig autoConfig = new TCPProxyAutoConfig();
+
+	private long connectionIdleTimeout = 5 * 60 * 1000;
+
+	private final ConnectionRegistry connectionRegistry = new ConnectionRegistry();
+
+	private DNSCache dnsCache = new DNSCache(1000);
+
+	private long connectAttemptDelay = 250;
+
+	private final ConnectStatistics connectStatistics = new ConnectStatistics();
+
+	private long connectTimeout = 10000;
+
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	private final TCPProxyResponseCache responseCache = new TCPProxyResponseCache();
+
+	private int acceptShards = 1;
+
+	private int acceptBacklog = 50;
+
+	private final AcceptStatistics acceptStatistics = new AcceptStatistics();
+
+	/**
+	 * Constructor.
+	 */
+	public HTTPProxyEngineOptions() {
+		// The circuit breaker is shared by the engines, so it probes through a connector of its
+		// own. It is created by the first probe, once the options have been set.
+		circuitBreaker.setProber(new CircuitBreaker.Prober() {
+			private HappyEyeballsConnector connector;
+
+			@Override
+			public void probe(EndPoint remoteEndPoint) throws IOException {
+				final HappyEyeballsConnector probeConnector;
+				synchronized (this) {
+					if (connector == null) {
+						connector = new HappyEyeballsConnector(HTTPProxyEngineOptions.this);
+					}
+					probeConnector = connector;
+				}
+				probeConnector.probe(remoteEndPoint);
+			}
+		});
+	}
+
+	public EngineMode getEngineMode() {
+		return engineMode;
+	}
+
+	public void setEngineMode(EngineMode engineMode) {
+		this.engineMode = engineMode;
+	}
+
+	public ThreadMode getThreadMode() {
+		return threadMode;
+	}
+
+	/**
+	 * Set the kind of the threads which sniff, demultiplex and copy the sockets, and which set up
+	 * the upstream connections and the HTTPS tunnels.
+	 *
+	 * @param threadMode
+	 *            thread mode
+	 */
+	public void setThreadMode(ThreadMode threadMode) {
+		this.threadMode = threadMode;
+	}
+
+	public int getSocketThreadsMin() {
+		return socketThreadsMin;
+	}
+
+	/**
+	 * Set the number of threads which sniff the accepted sockets in the thread per socket engine
+	 * when there is no load.
+	 *
+	 * @param socketThreadsMin
+	 *            thread count. values smaller than 1 are treated as 1.
+	 */
+	public void setSocketThreadsMin(int socketThreadsMin) {
+		this.socketThreadsMin = Math.max(1, socketThreadsMin);
+	}
+
+	public int getSocketThreadsMax() {
+		return socketThreadsMax;
+	}
+
+	/**
+	 * Set the hard cap of the threads which sniff the accepted sockets. Connections which find
+	 * all of them busy and the queue full are answered with 503 Service Unavailable. Not used with
+	 * {@link ThreadMode#VIRTUAL}.
+	 *
+	 * @param socketThreadsMax
+	 *            thread count. values smaller than 1 are treated as 1.
+	 */
+	public void setSocketThreadsMax(int socketThreadsMax) {
+		this.socketThreadsMax = Math.max(1, socketThreadsMax);
+	}
+
+	public int getSocketQueueSize() {
+		return socketQueueSize;
+	}
+
+	/**
+	 * Set how many accepted sockets may wait for a sniffing thread.
+	 *
+	 * @param socketQueueSize
+	 *            queue size. values smaller than 1 are treated as 1.
+	 */
+	public void setSocketQueueSize(int socketQueueSize) {
+		this.socketQueueSize = Math.max(1, socketQueueSize);
+	}
+
+	public long getSocketQueueTargetWait() {
+		return socketQueueTargetWait;
+	}
+
+	/**
+	 * Set how long an accepted socket may wait for a sniffing thread before another thread is
+	 * started.
+	 *
+	 * @param socketQueueTargetWait
+	 *            wait in milliseconds
+	 */
+	public void setSocketQueueTargetWait(long socketQueueTargetWait) {
+		this.socketQueueTargetWait = Math.max(1, socketQueueTargetWait);
+	}
+
+	/**
+	 * Get the queue length, the wait percentiles and the worker counts of the threads which sniff
+	 * the accepted sockets.
+	 *
+	 * @return statistics shared by the engines created with these options
+	 */
+	public ExecutorStatistics getSocketExecutorStatistics() {
+		return socketExecutorStatistics;
+	}
+
+	public int getEventLoopCount() {
+		return eventLoopCount;
+	}
+
+	/**
+	 * Set the number of selector threads used in {@link EngineMode#NIO} mode.
+	 *
+	 * @param eventLoopCount
+	 *            thread count. values smaller than 1 are treated as 1.
+	 */
+	public void setEventLoopCount(int eventLoopCount) {
+		this.eventLoopCount = Math.max(1, eventLoopCount);
+	}
+
+	public int getTunnelSetupThreadCount() {
+		return tunnelSetupThreadCount;
+	}
+
+	/**
+	 * Set the number of threads which set up HTTPS tunnels at the same time.
+	 *
+	 * @param tunnelSetupThreadCount
+	 *            thread count. values smaller than 1 are treated as 1.
+	 */
+	public void setTunnelSetupThreadCount(int tunnelSetupThreadCount) {
+		this.tunnelSetupThreadCount = Math.max(1, tunnelSetupThreadCount);
+	}
+
+	public TCPProxySSLEngineFactory getSSLEngineFactory() {
+		return sslEngineFactory;
+	}
+
+	/**
+	 * Set the factory of the engines which terminate the SSL connections of the browser in
+	 * process. If {@code null}, the decrypted traffic goes through a loopback connection to the
+	 * delegate SSL engine.
+	 *
+	 * @param sslEngineFactory
+	 *            factory, or {@code null}
+	 */
+	public void setSSLEngineFactory(TCPProxySSLEngineFactory sslEngineFactory) {
+		this.sslEngineFactory = sslEngineFactory;
+	}
+
+	public int getSSLSessionCacheSize() {
+		return sslSessionCacheSize;
+	}
+
+	/**
+	 * Set the maximum number of SSL sessions which are cached for the browser side and for the
+	 * upstream side each. Takes effect with {@link TCPProxySSLSocketFactoryImplementationEx} and
+	 * the SSL engine factory.
+	 *
+	 * @param sslSessionCacheSize
+	 *            cache size. 0 means no limit.
+	 */
+	public void setSSLSessionCacheSize(int sslSessionCacheSize) {
+		this.sslSessionCacheSize = Math.max(0, sslSessionCacheSize);
+	}
+
+	public int getSSLSessionTimeout() {
+		return sslSessionTimeout;
+	}
+
+	/**
+	 * Set how long cached SSL sessions may be resumed.
+	 *
+	 * @param sslSessionTimeout
+	 *            timeout in seconds. 0 means no limit.
+	 */
+	public void setSSLSessionTimeout(int sslSessionTimeout) {
+		this.sslSessionTimeout = Math.max(0, sslSessionTimeout);
+	}
+
+	/**
+	 * Get the counters of the resumed SSL sessions.
+	 *
+	 * @return statistics shared by the engines created with these options
+	 */
+	public SSLSessionCacheStatistics getSSLSessionCacheStatistics() {
+		return sslSessionCacheStatistics;
+	}
+
+	public boolean isHTTP2() {
+		return http2;
+	}
+
+	/**
+	 * Set if HTTP/2 is offered to the browsers through ALPN. Only the SSL connections which are
+	 * terminated in process without a chained HTTPS proxy can speak HTTP/2. The requests go
+	 * upstream over HTTP/1.1, unless {@link #setUpstreamHTTP2(boolean)} is set.
+	 *
+	 * @param http2
+	 *            true to offer HTTP/2
+	 */
+	public void setHTTP2(boolean http2) {
+		this.http2 = http2;
+	}
+
+	public boolean isOptimisticConnect() {
+		return optimisticConnect;
+	}
+
+	/**
+	 * Set if a CONNECT request is answered with 200 at once, while the server is connected to in
+	 * parallel, so the SSL handshake of the browser does not wait for the connection. The bytes
+	 * which the browser sends meanwhile are buffered, and the tunnel is closed if the connection
+	 * fails. Ignored with a chained HTTPS proxy, whose answer is relayed to the browser.
+	 *
+	 * @param optimisticConnect
+	 *            true to answer before the server is connected
+	 */
+	public void setOptimisticConnect(boolean optimisticConnect) {
+		this.optimisticConnect = optimisticConnect;
+	}
+
+	public int getUpstreamPoolMaxIdle() {
+		return upstreamPoolMaxIdle;
+	}
+
+	/**
+	 * Set how many idle upstream connections are kept for the next browser connections.
+	 *
+	 * @param upstreamPoolMaxIdle
+	 *            maximum number of idle connections. 0 disables the pool.
+	 */
+	public void setUpstreamPoolMaxIdle(int upstreamPoolMaxIdle) {
+		this.upstreamPoolMaxIdle = Math.max(0, upstreamPoolMaxIdle);
+	}
+
+	public int getUpstreamPoolMaxIdlePerHost() {
+		return upstreamPoolMaxIdlePerHost;
+	}
+
+	/**
+	 * Set how many idle upstream connections are kept for one server.
+	 *
+	 * @param upstreamPoolMaxIdlePerHost
+	 *            maximum number of idle connections to one server
+	 */
+	public void setUpstreamPoolMaxIdlePerHost(int upstreamPoolMaxIdlePerHost) {
+		this.upstreamPoolMaxIdlePerHost = Math.max(1, upstreamPoolMaxIdlePerHost);
+	}
+
+	public long getUpstreamPoolIdleTimeout() {
+		return upstreamPoolIdleTimeout;
+	}
+
+	/**
+	 * Set how long an upstream connection stays idle in the pool. This should be shorter than the
+	 * keep-alive timeout of the servers, so a connection is not leased just when the server closes
+	 * it.
+	 *
+	 * @param upstreamPoolIdleTimeout
+	 *            idle timeout in milliseconds
+	 */
+	public void setUpstreamPoolIdleTimeout(long upstreamPoolIdleTimeout) {
+		this.upstreamPoolIdleTimeout = Math.max(0, upstreamPoolIdleTimeout);
+	}
+
+	public boolean isUpstreamHTTP2() {
+		return upstreamHTTP2;
+	}
+
+	/**
+	 * Set if HTTP/2 is offered to the HTTPS servers through ALPN. The requests of all the browser
+	 * connections to a server which accepts it share one connection, closed after the upstream
+	 * pool idle timeout. Plain HTTP, and HTTPS through a chained HTTPS proxy, stay on HTTP/1.1.
+	 *
+	 * @param upstreamHTTP2
+	 *            true to offer HTTP/2
+	 */
+	public void setUpstreamHTTP2(boolean upstreamHTTP2) {
+		this.upstreamHTTP2 = upstreamHTTP2;
+	}
+
+	public boolean isChainedProxySpare() {
+		return chainedProxySpare;
+	}
+
+	/**
+	 * Set if a connection to the chained HTTPS proxy is opened ahead of the next CONNECT, so the
+	 * browser does not wait for its TCP handshake. The spare is kept for the upstream pool idle
+	 * timeout.
+	 *
+	 * @param chainedProxySpare
+	 *            true to keep a spare connection
+	 */
+	public void setChainedProxySpare(boolean chainedProxySpare) {
+		this.chainedProxySpare = chainedProxySpare;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set the pool which the I/O buffers of the engines are leased from. The recording filters
+	 * should share the same pool.
+	 *
+	 * @param bufferPool
+	 *            buffer pool
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Get the passthrough of the connections which are not recorded.
+	 *
+	 * @return passthrough shared by the engines created with these options
+	 */
+	public TCPProxyPassthrough getPassthrough() {
+		return passthrough;
+	}
+
+	/**
+	 * Get the proxy auto-config script served by the engines.
+	 *
+	 * @return script shared by the engines created with these options
+	 */
+	public TCPProxyAutoConfig getAutoConfig() {
+		return autoConfig;
+	}
+
+	public long getConnectionIdleTimeout() {
+		return connectionIdleTimeout;
+	}
+
+	/**
+	 * Set the time after which a browser connection which has carried no byte in either
+	 * direction is closed, with its threads and buffers. A browser which still wants it opens a
+	 * new one.
+	 *
+	 * @param connectionIdleTimeout
+	 *            time in milliseconds. 0 keeps the connections until the browser closes them.
+	 */
+	public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+		this.connectionIdleTimeout = connectionIdleTimeout;
+	}
+
+	/**
+	 * Get the open, reaped and total browser connections.
+	 *
+	 * @return registry shared by the engines created with these options
+	 */
+	public ConnectionRegistry getConnectionRegistry() {
+		return connectionRegistry;
+	}
+
+	public DNSCache getDNSCache() {
+		return dnsCache;
+	}
+
+	/**
+	 * Set the cache which the engines resolve the servers and the chained proxies through.
+	 *
+	 * @param dnsCache
+	 *            DNS cache
+	 */
+	public void setDNSCache(DNSCache dnsCache) {
+		this.dnsCache = dnsCache;
+	}
+
+	public long getConnectAttemptDelay() {
+		return connectAttemptDelay;
+	}
+
+	/**
+	 * Set the time before the next address of a server is tried while the connection to the
+	 * previous ones is still pending, RFC 8305. The first connection wins.
+	 *
+	 * @param connectAttemptDelay
+	 *            time in milliseconds. 0 only tries the first address.
+	 */
+	public void setConnectAttemptDelay(long connectAttemptDelay) {
+		this.connectAttemptDelay = connectAttemptDelay;
+	}
+
+	/**
+	 * Get the connect times of the server addresses, which order the addresses of the next
+	 * connections.
+	 *
+	 * @return statistics shared by the engines created with these options
+	 */
+	public ConnectStatistics getConnectStatistics() {
+		return connectStatistics;
+	}
+
+	public long getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * Set the time after which a connection attempt to a server address fails. A timeout counts
+	 * as a failure for the {@link CircuitBreaker}.
+	 *
+	 * @param connectTimeout
+	 *            time in milliseconds. 0 waits for the TCP connect timeout of the OS.
+	 */
+	public void setConnectTimeout(long connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Get the health of the servers, which fails the connections to the servers which do not
+	 * answer at once.
+	 *
+	 * @return circuit breaker shared by the engines created with these options
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * Get the cache of the static files, which is used once it has a policy.
+	 *
+	 * @return cache shared by the engines created with these options
+	 */
+	public TCPProxyResponseCache getResponseCache() {
+		return responseCache;
+	}
+
+	public int getAcceptShards() {
+		return acceptShards;
+	}
+
+	/**
+	 * Set the number of listening sockets bound to the proxy port with SO_REUSEPORT, each with its
+	 * own accept thread or selector loop. Only one is used if the JDK or the platform does not
+	 * support SO_REUSEPORT.
+	 *
+	 * @param acceptShards
+	 *            number of listening sockets
+	 */
+	public void setAcceptShards(int acceptShards) {
+		this.acceptShards = acceptShards;
+	}
+
+	public int getAcceptBacklog() {
+		return acceptBacklog;
+	}
+
+	/**
+	 * Set the number of connections the kernel queues for each listening socket until they are
+	 * accepted. Connections beyond it are refused or retried by the browser.
+	 *
+	 * @param acceptBacklog
+	 *            backlog of each listening socket
+	 */
+	public void setAcceptBacklog(int acceptBacklog) {
+		this.acceptBacklog = acceptBacklog;
+	}
+
+	/**
+	 * Get the connections accepted by each listening socket.
+	 *
+	 * @return statistics shared by the engines created with these options
+	 */
+	public AcceptStatistics getAcceptStatistics() {
+		return acceptStatistics;
+	}
+
+	@Override
+	public String toString() {
+		return ToStringBuilder.reflectionToString(this);
+	}
+}
@@ -0,0 +1,1401 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+import static net.grinder.util.CollectionUtils.newHashMap;
+import static net.grinder.util.NoOp.noOp;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.util.html.HTMLElement;
+
+import org.slf4j.Logger;
+
+/**
+ * HTTP/HTTPS proxy implementation which drives all the browser and upstream sockets from a small
+ * number of selector threads.
+ *
+ * <p>
+ * {@link HTTPProxyTCPProxyEngineEx} spends two blocked threads on every open socket pair, which is
+ * what limits a recording session of a modern page with dozens of keep-alive connections. This
+ * engine owns the sockets in {@link NIOEventLoop}s instead. Request and response bytes still go
+ * through {@link OutputStreamFilterTee}, so the recording filters see exactly the same calls as
+ * before.
+ * </p>
+ *
+ * <p>
+ * Only the blocking parts of the job are handed to worker threads: name resolution and connect of
+ * upstream sockets, and the handshake with the delegate SSL engine. Decrypted HTTPS traffic is
+ * still handled by the thread pair of the delegate SSL engine.
+ * </p>
+ *
+ * @since 3.3
+ */
+public final class HTTPProxyNIOTCPProxyEngine extends AbstractTCPProxyEngine {
+
+	private static final long CONNECTION_TIMEOUT = Long.getLong("tcpproxy.connecttimeout", 5000).longValue();
+	private static final int BUFFER_SIZE = 40960;
+	private static final int HIGH_WATER_MARK = 256 * 1024;
+	private static final int LOW_WATER_MARK = 64 * 1024;
+	private static final PrintWriter WRITER = new PrintWriter(System.out);
+
+	private final ChannelSocketFactory m_channelSocketFactory;
+	private final HTTPProxyTCPProxyEngineEx.DelegateSSLEngine m_delegateSSLEngine;
+	private final Thread m_delegateSSLEngineThread;
+	private final EndPoint m_chainedHTTPProxy;
+	private final EndPoint m_chainedHTTPSProxy;
+	private final EndPoint m_proxyAddress;
+	private final NIOEventLoop[] m_eventLoops;
+	private final List<UpstreamConnectionPool<PooledUpstream>> m_upstreamPools = newArrayList();
+	private final List<Thread> m_eventLoopThreads = newArrayList();
+	private final ExecutorService m_workerExecutor;
+	private final BufferPool m_bufferPool;
+	private final TCPProxyPassthrough m_passthrough;
+	private final TCPProxyAutoConfig m_autoConfig;
+	private final TCPProxyResponseCache m_responseCache;
+	private final AtomicInteger m_nextEventLoop = new AtomicInteger();
+	private final AcceptStatistics m_acceptStatistics;
+	private final List<ServerSocketChannel> m_shardChannels = newArrayList();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sslSocketFactory
+	 *            Factory for SSL sockets.
+	 * @param requestFilter
+	 *            Request filter.
+	 * @param responseFilter
+	 *            Response filter.
+	 * @param logger
+	 *            Logger.
+	 * @param localEndPoint
+	 *            Local host and port.
+	 * @param chainedHTTPProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param chainedHTTPSProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param options
+	 *            engine options.
+	 * @exception IOException
+	 *                If an I/O error occurs
+	 */
+	public HTTPProxyNIOTCPProxyEngine(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
+					TCPProxyFilter responseFilter, Logger logger, EndPoint localEndPoint, EndPoint chainedHTTPProxy,
+					EndPoint chainedHTTPSProxy, HTTPProxyEngineOptions options) throws IOException {
+		this(new ChannelSocketFactory(new HappyEyeballsConnector(options), options.getAcceptBacklog(), ReusePort
+						.getShardCount(options) > 1), sslSocketFactory, requestFilter, responseFilter, logger,
+						localEndPoint, chainedHTTPProxy, chainedHTTPSProxy, options);
+	}
+
+	private HTTPProxyNIOTCPProxyEngine(ChannelSocketFactory channelSocketFactory,
+					TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
+					TCPProxyFilter responseFilter, Logger logger, EndPoint localEndPoint, EndPoint chainedHTTPProxy,
+					EndPoint chainedHTTPSProxy, HTTPProxyEngineOptions options) throws IOException {
+		super(channelSocketFactory, requestFilter, responseFilter, WRITER, logger, localEndPoint, false, 0);
+		m_channelSocketFactory = channelSocketFactory;
+		m_proxyAddress = localEndPoint;
+		m_chainedHTTPProxy = chainedHTTPProxy;
+		m_chainedHTTPSProxy = chainedHTTPSProxy;
+		m_delegateSSLEngine = new HTTPProxyTCPProxyEngineEx.DelegateSSLEngine(sslSocketFactory, getRequestFilter(),
+						getResponseFilter(), WRITER, logger, false, chainedHTTPSProxy, options);
+		m_delegateSSLEngineThread = new Thread(m_delegateSSLEngine, "Delegate HTTPS engine");
+		m_eventLoops = new NIOEventLoop[options.getEventLoopCount()];
+		for (int i = 0; i < m_eventLoops.length; i++) {
+			m_eventLoops[i] = new NIOEventLoop(BUFFER_SIZE, logger);
+			// An upstream channel belongs to the selector of one loop, so each loop has its own
+			// pool of idle upstream connections.
+			m_upstreamPools.add(new UpstreamConnectionPool<PooledUpstream>(options.getUpstreamPoolMaxIdle(),
+							options.getUpstreamPoolMaxIdlePerHost(), options.getUpstreamPoolIdleTimeout()));
+		}
+		m_workerExecutor = VirtualThreads.createThreadPool("tcp_proxy_nio_worker", 20, options.getThreadMode());
+		m_bufferPool = options.getBufferPool();
+		m_passthrough = options.getPassthrough();
+		m_autoConfig = options.getAutoConfig();
+		m_responseCache = options.getResponseCache();
+
+		final int shardCount = ReusePort.getShardCount(options);
+		if (shardCount < options.getAcceptShards()) {
+			logger.warn("SO_REUSEPORT is not available. Connections are accepted by one listening socket.");
+		}
+		m_acceptStatistics = options.getAcceptStatistics();
+		m_acceptStatistics.start(shardCount);
+		try {
+			for (int i = 1; i < shardCount; i++) {
+				m_shardChannels.add(channelSocketFactory.openServerChannel(getListenEndPoint()));
+			}
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Main event loop. The calling thread runs the first selector loop, which also accepts the
+	 * browser connections. The listening sockets of the other accept shards are dealt out to the
+	 * selector loops.
+	 */
+	@Override
+	public void run() {
+		m_delegateSSLEngineThread.start();
+		for (int i = 1; i < m_eventLoops.length; i++) {
+			final Thread thread = new Thread(m_eventLoops[i], "TCPProxy event loop " + i);
+			thread.setDaemon(true);
+			m_eventLoopThreads.add(thread);
+			thread.start();
+		}
+		registerAcceptor(m_channelSocketFactory.getServerChannel(), 0);
+		for (int i = 0; i < m_shardChannels.size(); i++) {
+			registerAcceptor(m_shardChannels.get(i), i + 1);
+		}
+		m_eventLoops[0].run();
+	}
+
+	private void registerAcceptor(final ServerSocketChannel serverChannel, final int shard) {
+		final NIOEventLoop acceptLoop = m_eventLoops[shard % m_eventLoops.length];
+		acceptLoop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					serverChannel.configureBlocking(false);
+					acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(serverChannel, shard));
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					logIOException(e);
+					acceptLoop.stop();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Override to also stop the selector loops and our delegate SSL engine.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		for (ServerSocketChannel each : m_shardChannels) {
+			try {
+				each.close();
+			} catch (IOException e) {
+				noOp();
+			}
+		}
+		for (NIOEventLoop each : m_eventLoops) {
+			each.stop();
+		}
+		m_delegateSSLEngine.stop();
+		for (UpstreamConnectionPool<PooledUpstream> each : m_upstreamPools) {
+			each.close();
+		}
+		try {
+			m_workerExecutor.shutdownNow();
+		} catch (Exception e) {
+			noOp();
+		}
+		try {
+			m_delegateSSLEngineThread.join();
+			for (Thread each : m_eventLoopThreads) {
+				each.join();
+			}
+		} catch (InterruptedException e) {
+			throw new UncheckedInterruptedException(e);
+		}
+	}
+
+	private int nextEventLoop() {
+		// Called by the acceptors of all the shards.
+		return (m_nextEventLoop.getAndIncrement() & Integer.MAX_VALUE) % m_eventLoops.length;
+	}
+
+	private void sendHTTPErrorResponse(HTMLElement message, String status, Connection connection) {
+		getLogger().error(message.toText());
+		final HTTPResponse response = new HTTPResponse();
+		response.setStatus(status);
+		response.setMessage(status, message);
+		final byte[] bytes = asciiBytes(response.toString());
+		connection.write(bytes, 0, bytes.length);
+		connection.closeAfterFlush();
+	}
+
+	private static byte[] asciiBytes(String text) {
+		try {
+			return text.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String asciiString(byte[] buffer, int length) {
+		try {
+			return new String(buffer, 0, length, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Accepts the browser connections and deals them out to the selector loops.
+	 */
+	private final class Acceptor implements NIOEventLoop.Handler {
+		private final ServerSocketChannel m_serverChannel;
+		private final int m_shard;
+
+		Acceptor(ServerSocketChannel serverChannel, int shard) {
+			m_serverChannel = serverChannel;
+			m_shard = shard;
+		}
+
+		@Override
+		public void ready(SelectionKey key) {
+			while (true) {
+				final SocketChannel channel;
+				try {
+					channel = m_serverChannel.accept();
+					if (channel == null) {
+						return;
+					}
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					if (!isStopped()) {
+						logIOException(e);
+					}
+					return;
+				}
+				m_acceptStatistics.accepted(m_shard);
+				final int index = nextEventLoop();
+				final NIOEventLoop eventLoop = m_eventLoops[index];
+				final UpstreamConnectionPool<PooledUpstream> upstreamPool = m_upstreamPools.get(index);
+				eventLoop.execute(new Runnable() {
+					@Override
+					public void run() {
+						new BrowserConnection(eventLoop, upstreamPool, channel).start();
+					}
+				});
+			}
+		}
+
+		@Override
+		public void loopStopped() {
+			noOp();
+		}
+	}
+
+	/**
+	 * Receives the bytes read by a {@link Connection}. Called in the loop thread.
+	 */
+	private interface Receiver {
+		void received(byte[] buffer, int length) throws IOException;
+
+		void closed();
+	}
+
+	/**
+	 * Non blocking socket owned by a selector loop. Data written before the channel is attached is
+	 * queued and flushed on attach. A connection which splices to another one writes what it reads
+	 * straight from the direct buffer of the loop, without handing it to its receiver.
+	 */
+	private final class Connection implements NIOEventLoop.Handler {
+		private final NIOEventLoop m_eventLoop;
+		private final LinkedList<ByteBuffer> m_writeQueue = new LinkedList<ByteBuffer>();
+		private final List<Connection> m_sources = newArrayList();
+		private SocketChannel m_channel;
+		private SelectionKey m_key;
+		private Receiver m_receiver;
+		private Connection m_spliceTarget;
+		private int m_queuedBytes = 0;
+		private int m_suspensions = 0;
+		private boolean m_full = false;
+		private boolean m_closeAfterFlush = false;
+		private boolean m_closed = false;
+
+		Connection(NIOEventLoop eventLoop) {
+			m_eventLoop = eventLoop;
+		}
+
+		void attach(SocketChannel channel, Receiver receiver) {
+			m_channel = channel;
+			m_receiver = receiver;
+			if (m_closed) {
+				closeQuietly();
+				return;
+			}
+			try {
+				m_key = m_eventLoop.register(channel, m_suspensions == 0 ? SelectionKey.OP_READ : 0, this);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			flush();
+		}
+
+		/**
+		 * Register a connection which writes what it reads into this connection, so that it stops
+		 * reading while this connection can not keep up.
+		 */
+		void addSource(Connection source) {
+			m_sources.add(source);
+			if (m_full) {
+				source.suspendReading();
+			}
+		}
+
+		void removeSource(Connection source) {
+			if (m_sources.remove(source) && m_full) {
+				source.resumeReading();
+			}
+		}
+
+		void spliceTo(Connection target) {
+			m_spliceTarget = target;
+		}
+
+		void write(byte[] buffer, int offset, int length) {
+			write(ByteBuffer.wrap(buffer, offset, length));
+		}
+
+		/**
+		 * Write as much as the channel takes now, and queue a copy of the rest.
+		 */
+		void write(ByteBuffer buffer) {
+			if (m_closed || m_closeAfterFlush || !buffer.hasRemaining()) {
+				return;
+			}
+			if (m_key != null && m_writeQueue.isEmpty()) {
+				try {
+					m_channel.write(buffer);
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					close();
+					return;
+				}
+				if (!buffer.hasRemaining()) {
+					return;
+				}
+			}
+			final int length = buffer.remaining();
+			final ByteBuffer copy = ByteBuffer.allocate(length);
+			copy.put(buffer);
+			copy.flip();
+			m_writeQueue.add(copy);
+			m_queuedBytes += length;
+			flush();
+		}
+
+		void closeAfterFlush() {
+			m_closeAfterFlush = true;
+			flush();
+		}
+
+		OutputStream getOutputStream() {
+			return new ChannelOutputStream(this);
+		}
+
+		private void flush() {
+			if (m_key == null || m_closed) {
+				return;
+			}
+			try {
+				while (!m_writeQueue.isEmpty()) {
+					final ByteBuffer head = m_writeQueue.getFirst();
+					m_queuedBytes -= m_channel.write(head);
+					if (head.hasRemaining()) {
+						break;
+					}
+					m_writeQueue.removeFirst();
+				}
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				close();
+				return;
+			}
+			if (m_writeQueue.isEmpty() && m_closeAfterFlush) {
+				close();
+				return;
+			}
+			setInterest(SelectionKey.OP_WRITE, !m_writeQueue.isEmpty());
+			if (!m_full && m_queuedBytes > HIGH_WATER_MARK) {
+				m_full = true;
+				for (Connection each : m_sources) {
+					each.suspendReading();
+				}
+			} else if (m_full && m_queuedBytes < LOW_WATER_MARK) {
+				m_full = false;
+				for (Connection each : m_sources) {
+					each.resumeReading();
+				}
+			}
+		}
+
+		private void suspendReading() {
+			m_suspensions++;
+			setInterest(SelectionKey.OP_READ, false);
+		}
+
+		private void resumeReading() {
+			m_suspensions--;
+			setInterest(SelectionKey.OP_READ, m_suspensions == 0);
+		}
+
+		private void setInterest(int op, boolean on) {
+			if (m_key == null || !m_key.isValid()) {
+				return;
+			}
+			final int ops = m_key.interestOps();
+			m_key.interestOps(on ? ops | op : ops & ~op);
+		}
+
+		@Override
+		public void ready(SelectionKey key) {
+			if (key.isValid() && key.isWritable()) {
+				flush();
+			}
+			if (key.isValid() && key.isReadable() && m_spliceTarget != null) {
+				splice();
+			} else if (key.isValid() && key.isReadable()) {
+				final byte[] buffer = m_eventLoop.getReadBuffer();
+				try {
+					final int bytesRead = m_channel.read(ByteBuffer.wrap(buffer));
+					if (bytesRead == -1) {
+						close();
+					} else if (bytesRead > 0) {
+						m_receiver.received(buffer, bytesRead);
+					}
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					logIOException(e);
+					close();
+				} catch (RuntimeException e) {
+					// A filter failed. Closing tears the other end of the connection down as well.
+					getLogger().error("Unexpected error on {}", m_channel, e);
+					close();
+				}
+			}
+		}
+
+		private void splice() {
+			final ByteBuffer buffer = m_eventLoop.getDirectBuffer();
+			try {
+				final int bytesRead = m_channel.read(buffer);
+				if (bytesRead == -1) {
+					close();
+				} else if (bytesRead > 0) {
+					buffer.flip();
+					m_spliceTarget.write(buffer);
+				}
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				logIOException(e);
+				close();
+			}
+		}
+
+		void close() {
+			if (m_closed) {
+				return;
+			}
+			m_closed = true;
+			m_writeQueue.clear();
+			if (m_full) {
+				m_full = false;
+				for (Connection each : m_sources) {
+					each.resumeReading();
+				}
+			}
+			closeQuietly();
+			if (m_receiver != null) {
+				m_receiver.closed();
+			}
+		}
+
+		private void closeQuietly() {
+			if (m_key != null) {
+				m_key.cancel();
+			}
+			if (m_channel != null) {
+				try {
+					m_channel.close();
+				} catch (IOException e) {
+					noOp();
+				}
+			}
+		}
+
+		@Override
+		public void loopStopped() {
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Adapts a {@link Connection} to the stream based {@link OutputStreamFilterTee}. May be called
+	 * from any thread.
+	 */
+	private static final class ChannelOutputStream extends OutputStream {
+		private final Connection m_connection;
+
+		ChannelOutputStream(Connection connection) {
+			m_connection = connection;
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) {
+			if (m_connection.m_eventLoop.inEventLoop()) {
+				m_connection.write(buffer, offset, length);
+				return;
+			}
+			final byte[] copy = new byte[length];
+			System.arraycopy(buffer, offset, copy, 0, length);
+			m_connection.m_eventLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					m_connection.write(copy, 0, copy.length);
+				}
+			});
+		}
+
+		@Override
+		public void close() {
+			if (m_connection.m_eventLoop.inEventLoop()) {
+				m_connection.closeAfterFlush();
+				return;
+			}
+			m_connection.m_eventLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					m_connection.closeAfterFlush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Plain HTTP connection to a server, which is handed from one browser connection to another
+	 * through the upstream pool of its loop. Each browser connection gets its own pair of filter
+	 * tees, so the filters see a separate connection for each. A passthrough lease has no filter
+	 * tees.
+	 */
+	private final class PooledUpstream implements Receiver, UpstreamConnectionPool.PooledConnection {
+		private final NIOEventLoop m_eventLoop;
+		private final UpstreamConnectionPool<PooledUpstream> m_pool;
+		private final String m_poolKey;
+		private final Connection m_connection;
+		private final TCPProxyResponseCache.Capture m_capture = m_responseCache.isEnabled() ? m_responseCache
+						.createCapture() : null;
+		private final HTTPResponseFramer m_framer = new HTTPResponseFramer(m_capture);
+		private Connection m_browser;
+		private OutputStreamFilterTee m_requestTee;
+		private OutputStreamFilterTee m_responseTee;
+		private boolean m_responseOpen = false;
+		private ConnectionDetails m_connectionDetails;
+		private TCPProxyFilter m_passthroughFilter;
+		private boolean m_requestStarted = false;
+		private boolean m_connected = false;
+		private boolean m_pooled = false;
+		private boolean m_closed = false;
+
+		PooledUpstream(NIOEventLoop eventLoop, UpstreamConnectionPool<PooledUpstream> pool, String poolKey) {
+			m_eventLoop = eventLoop;
+			m_pool = pool;
+			m_poolKey = poolKey;
+			m_connection = new Connection(eventLoop);
+		}
+
+		/**
+		 * Start a lease by a browser connection.
+		 *
+		 * @param passthrough
+		 *            true if the bytes are relayed without the filters
+		 * @return false if the connection closed while it was idle
+		 */
+		boolean attach(Connection browser, ConnectionDetails connectionDetails, TCPProxyFilter requestFilter,
+						boolean passthrough) {
+			if (m_closed) {
+				return false;
+			}
+			m_pooled = false;
+			m_browser = browser;
+			m_responseOpen = true;
+			browser.addSource(m_connection);
+			m_connection.addSource(browser);
+			if (passthrough) {
+				m_requestTee = null;
+				m_responseTee = null;
+				m_connectionDetails = connectionDetails;
+				m_passthroughFilter = requestFilter;
+				return true;
+			}
+			m_requestTee = new OutputStreamFilterTee(connectionDetails,
+							new HTTPProxyTCPProxyEngineEx.UncloseableOutputStream(m_connection.getOutputStream()),
+							requestFilter, getRequestColour());
+			m_responseTee = new OutputStreamFilterTee(connectionDetails.getOtherEnd(), browser.getOutputStream(),
+							getResponseFilter(), getResponseColour());
+			m_requestTee.connectionOpened();
+			m_responseTee.connectionOpened();
+			return true;
+		}
+
+		void connected(SocketChannel channel) {
+			m_connected = true;
+			m_connection.attach(channel, this);
+		}
+
+		void requestSent(byte[] buffer, int length, TCPProxyResponseCache.Request cacheRequest) {
+			m_framer.requestSent(HTTPResponseFramer.isHeadRequest(buffer, length));
+			if (m_capture != null) {
+				m_capture.requestSent(cacheRequest);
+			}
+			m_requestStarted = true;
+		}
+
+		boolean isIdle() {
+			return m_framer.isIdle();
+		}
+
+		void handle(byte[] buffer, int length) throws IOException {
+			if (m_requestTee != null) {
+				m_requestTee.handle(buffer, length);
+				return;
+			}
+			final byte[] rewritten = m_requestStarted ? HTTPProxyTCPProxyEngineEx.rewriteRequestLine(
+							m_passthroughFilter, m_connectionDetails, buffer, length) : null;
+			m_requestStarted = false;
+			if (rewritten != null) {
+				m_connection.write(rewritten, 0, rewritten.length);
+			} else {
+				m_connection.write(buffer, 0, length);
+			}
+		}
+
+		/**
+		 * End the lease of the browser connection. The connection goes back to the pool if every
+		 * response has been read, otherwise it is closed once the pending requests are flushed.
+		 */
+		void detach() {
+			if (m_requestTee != null) {
+				m_requestTee.connectionClosed();
+			}
+			closeResponse();
+			m_browser.removeSource(m_connection);
+			m_connection.removeSource(m_browser);
+			m_browser = null;
+			if (m_connected && !m_closed && m_framer.isIdle() && m_framer.isReusable()) {
+				m_pooled = true;
+				if (m_pool.release(m_poolKey, this)) {
+					return;
+				}
+				m_pooled = false;
+			}
+			m_connection.closeAfterFlush();
+		}
+
+		@Override
+		public void received(byte[] buffer, int length) throws IOException {
+			if (!m_responseOpen) {
+				// Nothing should arrive between responses.
+				m_connection.close();
+				return;
+			}
+			m_framer.feed(buffer, 0, length);
+			if (m_responseTee != null) {
+				m_responseTee.handle(buffer, length);
+			} else {
+				m_browser.write(buffer, 0, length);
+			}
+		}
+
+		@Override
+		public void closed() {
+			m_closed = true;
+			if (m_capture != null) {
+				m_capture.closed();
+			}
+			if (m_responseOpen && m_responseTee == null) {
+				// The filter tee would close the browser connection likewise.
+				m_responseOpen = false;
+				m_browser.closeAfterFlush();
+			}
+			closeResponse();
+			if (m_pooled) {
+				m_pool.remove(m_poolKey, this);
+			}
+		}
+
+		private void closeResponse() {
+			// Closing the tee closes the browser connection, which detaches this connection.
+			final OutputStreamFilterTee responseTee = m_responseTee;
+			m_responseTee = null;
+			m_responseOpen = false;
+			if (responseTee != null) {
+				responseTee.connectionClosed();
+			}
+		}
+
+		@Override
+		public void discard() {
+			if (m_eventLoop.inEventLoop()) {
+				m_connection.close();
+				return;
+			}
+			m_eventLoop.execute(new Runnable() {
+				@Override
+				public void run() {
+					m_connection.close();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Browser side of the proxy. Works out the destination from the first bytes, then either
+	 * demultiplexes plain HTTP requests to upstream connections or tunnels the CONNECT stream to
+	 * the delegate SSL engine.
+	 */
+	private final class BrowserConnection implements Receiver {
+		private final NIOEventLoop m_eventLoop;
+		private final UpstreamConnectionPool<PooledUpstream> m_upstreamPool;
+		private final SocketChannel m_channel;
+		private final Connection m_connection;
+		private final EndPoint m_clientEndPoint;
+		private final Map<String, PooledUpstream> m_remoteStreamMap = newHashMap();
+		private final ProxyRequestSniffer m_sniffer = new ProxyRequestSniffer();
+		private final ProxyRequestSniffer m_requestSniffer = new ProxyRequestSniffer();
+		private PooledUpstream m_lastRemoteStream;
+		private byte[] m_sniffBuffer = m_bufferPool.lease();
+		private int m_sniffLength = 0;
+		private byte[] m_pendingRequestLine;
+		private PipeInputStream m_tunnelPipe;
+		private boolean m_tunnelPipeFull = false;
+		private Connection m_tunnel;
+		private Closeable m_passthroughConnection;
+
+		BrowserConnection(NIOEventLoop eventLoop, UpstreamConnectionPool<PooledUpstream> upstreamPool,
+						SocketChannel channel) {
+			m_eventLoop = eventLoop;
+			m_upstreamPool = upstreamPool;
+			m_channel = channel;
+			m_connection = new Connection(eventLoop);
+			final Socket socket = channel.socket();
+			// Avoid the reverse lookup of EndPoint.clientEndPoint() in the loop thread.
+			m_clientEndPoint = new EndPoint(socket.getInetAddress().getHostAddress(), socket.getPort());
+		}
+
+		void start() {
+			m_connection.attach(m_channel, this);
+			m_eventLoop.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (m_sniffBuffer != null && !m_connection.m_closed) {
+						final String bufferAsString = asciiString(m_sniffBuffer, m_sniffLength);
+						releaseSniffBuffer();
+						sendHTTPErrorResponse(HTTPProxyTCPProxyEngineEx.createUnknownDestinationMessage(
+										bufferAsString, m_proxyAddress), "400 Bad Request", m_connection);
+					}
+				}
+			}, CONNECTION_TIMEOUT);
+		}
+
+		@Override
+		public void received(byte[] buffer, int length) throws IOException {
+			if (m_sniffBuffer != null) {
+				sniff(buffer, length);
+			} else if (m_tunnel != null) {
+				m_tunnel.write(buffer, 0, length);
+			} else if (m_tunnelPipe != null) {
+				m_tunnelPipe.push(buffer, 0, length);
+				if (!m_tunnelPipeFull && m_tunnelPipe.available() > HIGH_WATER_MARK) {
+					m_tunnelPipeFull = true;
+					m_connection.suspendReading();
+					m_tunnelPipe.notifyWhenDrained(new Runnable() {
+						@Override
+						public void run() {
+							m_eventLoop.execute(new Runnable() {
+								@Override
+								public void run() {
+									m_tunnelPipeFull = false;
+									m_connection.resumeReading();
+								}
+							});
+						}
+					});
+				}
+			} else {
+				demultiplex(buffer, length, false);
+			}
+		}
+
+		private void sniff(byte[] buffer, int length) throws IOException {
+			final int copied = Math.min(length, ProxyRequestSniffer.MAX_REQUEST_HEAD_SIZE - m_sniffLength);
+			if (m_sniffLength + copied > m_sniffBuffer.length) {
+				final byte[] grown = new byte[Math.min(ProxyRequestSniffer.MAX_REQUEST_HEAD_SIZE,
+								Math.max(m_sniffBuffer.length * 2, m_sniffLength + copied))];
+				System.arraycopy(m_sniffBuffer, 0, grown, 0, m_sniffLength);
+				m_bufferPool.release(m_sniffBuffer);
+				m_sniffBuffer = grown;
+			}
+			System.arraycopy(buffer, 0, m_sniffBuffer, m_sniffLength, copied);
+			final ProxyRequestSniffer.Result result = m_sniffer.feed(m_sniffBuffer, m_sniffLength, copied);
+			m_sniffLength += copied;
+			if (result == ProxyRequestSniffer.Result.HTTP) {
+				final byte[] request = m_sniffBuffer;
+				m_sniffBuffer = null;
+				try {
+					demultiplex(request, m_sniffLength, false);
+				} finally {
+					m_bufferPool.release(request);
+				}
+			} else if (result == ProxyRequestSniffer.Result.CONNECT) {
+				final EndPoint remoteEndPoint = m_sniffer.getEndPoint();
+				if (m_chainedHTTPSProxy == null
+								&& m_passthrough.isPassthrough(new ConnectionDetails(m_clientEndPoint, remoteEndPoint,
+												true))) {
+					startPassthroughTunnel(remoteEndPoint, m_sniffer.getConsumed());
+				} else {
+					startTunnel(remoteEndPoint, m_sniffer.getConsumed());
+				}
+			} else if (result == ProxyRequestSniffer.Result.AUTO_CONFIG && m_autoConfig.isEnabled()) {
+				releaseSniffBuffer();
+				final byte[] response = m_autoConfig.createResponse(m_proxyAddress);
+				m_connection.write(response, 0, response.length);
+				m_connection.closeAfterFlush();
+			} else if (result == ProxyRequestSniffer.Result.NO_MATCH
+							|| result == ProxyRequestSniffer.Result.AUTO_CONFIG) {
+				final String bufferAsString = asciiString(m_sniffBuffer, m_sniffLength);
+				releaseSniffBuffer();
+				sendHTTPErrorResponse(HTTPProxyTCPProxyEngineEx.createUnknownDestinationMessage(bufferAsString,
+								m_proxyAddress), "400 Bad Request", m_connection);
+			} else if (m_sniffLength == ProxyRequestSniffer.MAX_REQUEST_HEAD_SIZE) {
+				releaseSniffBuffer();
+				final HTMLElement message = new HTMLElement();
+				message.addElement("p").addText(
+								"Buffer overflow - failed to match HTTP message after " + m_sniffLength + " bytes");
+				sendHTTPErrorResponse(message, "400 Bad Request", m_connection);
+			}
+		}
+
+		private void releaseSniffBuffer() {
+			m_bufferPool.release(m_sniffBuffer);
+			m_sniffBuffer = null;
+		}
+
+		private void demultiplex(byte[] buffer, int length, boolean requestStart) throws IOException {
+			byte[] chunk = buffer;
+			int chunkLength = length;
+			final ProxyRequestSniffer.Result result;
+			final boolean pending = m_pendingRequestLine != null;
+			if (pending) {
+				// Continue the request line which was split across reads.
+				chunkLength = m_pendingRequestLine.length + length;
+				chunk = new byte[chunkLength];
+				System.arraycopy(m_pendingRequestLine, 0, chunk, 0, m_pendingRequestLine.length);
+				System.arraycopy(buffer, 0, chunk, m_pendingRequestLine.length, length);
+				m_pendingRequestLine = null;
+				result = m_requestSniffer.feed(chunk, chunkLength - length, length);
+			} else {
+				m_requestSniffer.reset();
+				result = m_requestSniffer.feed(chunk, 0, chunkLength);
+			}
+			if (result == ProxyRequestSniffer.Result.NEED_MORE
+							&& (requestStart || pending || m_requestSniffer.isAbsoluteURIStarted())
+							&& chunkLength < BUFFER_SIZE) {
+				m_pendingRequestLine = new byte[chunkLength];
+				System.arraycopy(chunk, 0, m_pendingRequestLine, 0, chunkLength);
+				return;
+			}
+			if (result == ProxyRequestSniffer.Result.HTTP) {
+				final EndPoint remoteEndPoint = m_requestSniffer.getEndPoint();
+				final TCPProxyResponseCache.Request cacheRequest = m_responseCache.isEnabled()
+								? TCPProxyResponseCache.parse(remoteEndPoint, false, chunk, 0, chunkLength) : null;
+				// Neither waits for another connection nor reads a spilled response in the loop thread.
+				if (cacheRequest != null && isIdle()
+								&& m_responseCache.serve(cacheRequest, m_connection.getOutputStream(), false)) {
+					// A request answered from the cache has no body, so the rest are pipelined requests.
+					final int headLength = cacheRequest.getHeadLength();
+					if (headLength < chunkLength) {
+						demultiplex(Arrays.copyOfRange(chunk, headLength, chunkLength), chunkLength - headLength, true);
+					}
+					return;
+				}
+				final String key = remoteEndPoint.toString();
+				m_lastRemoteStream = m_remoteStreamMap.get(key);
+				if (m_lastRemoteStream == null) {
+					m_lastRemoteStream = openUpstream(remoteEndPoint);
+					m_remoteStreamMap.put(key, m_lastRemoteStream);
+				}
+				m_lastRemoteStream.requestSent(chunk, chunkLength, cacheRequest);
+			} else if (m_lastRemoteStream == null) {
+				throw new IOException("No last stream");
+			}
+			m_lastRemoteStream.handle(chunk, chunkLength);
+		}
+
+		/**
+		 * Check if every request sent on this browser connection has its response.
+		 */
+		private boolean isIdle() {
+			for (PooledUpstream each : m_remoteStreamMap.values()) {
+				if (!each.isIdle()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private PooledUpstream openUpstream(final EndPoint remoteEndPoint) {
+			final String poolKey = UpstreamConnectionPool.key(remoteEndPoint, m_chainedHTTPProxy);
+			final ConnectionDetails connectionDetails = new ConnectionDetails(m_clientEndPoint, remoteEndPoint, false);
+			final boolean passthrough = m_passthrough.isPassthrough(connectionDetails);
+			if (passthrough) {
+				registerPassthrough();
+			}
+			// A passthrough request still has its request line rewritten.
+			final TCPProxyFilter filter = passthrough ? new NullFilter() : getRequestFilter();
+			final TCPProxyFilter requestFilter;
+			final EndPoint connectEndPoint;
+			if (m_chainedHTTPProxy != null) {
+				connectEndPoint = m_chainedHTTPProxy;
+				requestFilter = new HTTPMethodAbsoluteURIFilterDecorator(new HTTPMethodRelativeURIFilterDecorator(
+								filter), remoteEndPoint);
+			} else {
+				connectEndPoint = remoteEndPoint;
+				requestFilter = new HTTPMethodRelativeURIFilterDecorator(filter);
+			}
+			PooledUpstream leased;
+			while ((leased = m_upstreamPool.lease(poolKey)) != null) {
+				if (leased.attach(m_connection, connectionDetails, requestFilter, passthrough)) {
+					return leased;
+				}
+			}
+			final PooledUpstream upstream = new PooledUpstream(m_eventLoop, m_upstreamPool, poolKey);
+			upstream.attach(m_connection, connectionDetails, requestFilter, passthrough);
+			m_workerExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final SocketChannel channel = m_channelSocketFactory.connect(connectEndPoint);
+						m_eventLoop.execute(new Runnable() {
+							@Override
+							public void run() {
+								upstream.connected(channel);
+							}
+						});
+					} catch (final IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						final String description = logIOException(e);
+						m_eventLoop.execute(new Runnable() {
+							@Override
+							public void run() {
+								upstream.m_connection.close();
+								final HTMLElement message = new HTMLElement();
+								message.addElement("p").addText(description);
+								sendHTTPErrorResponse(message, "502 Bad Gateway", m_connection);
+							}
+						});
+					}
+				}
+			});
+			return upstream;
+		}
+
+		private void startTunnel(final EndPoint remoteEndPoint, final int requestLength) {
+			final byte[] request = m_sniffBuffer;
+			m_sniffBuffer = null;
+			m_tunnelPipe = new PipeInputStream();
+			m_tunnelPipe.push(request, 0, m_sniffLength);
+			final OutputStream out = m_connection.getOutputStream();
+			m_workerExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// The chained HTTPS proxy support rewinds to the start of CONNECT header.
+						final BufferedInputStream in = new BufferedInputStream(m_tunnelPipe, BUFFER_SIZE);
+						in.mark(BUFFER_SIZE);
+						for (int read = 0; read < requestLength;) {
+							final int n = in.read(request, read, requestLength - read);
+							if (n == -1) {
+								throw new EOFException();
+							}
+							read += n;
+						}
+						if (m_delegateSSLEngine.isInProcess()) {
+							// The browser bytes keep going to the pipe, which is decrypted by the
+							// thread pair of the delegate engine.
+							m_delegateSSLEngine.launchInProcessConnection(in, out, m_clientEndPoint, remoteEndPoint);
+							return;
+						}
+						final SocketChannel channel = SocketChannel.open();
+						try {
+							m_delegateSSLEngine.prepareNewConnection(in, out, m_clientEndPoint, remoteEndPoint,
+											channel.socket());
+							channel.connect(m_delegateSSLEngine.getListenAddress());
+						} catch (IOException e) {
+							m_delegateSSLEngine.cancelConnection(channel.socket());
+							channel.close();
+							throw e;
+						}
+						channel.configureBlocking(false);
+						final byte[] leftOver = new byte[in.available()];
+						final int leftOverLength = in.read(leftOver, 0, leftOver.length);
+						m_eventLoop.execute(new Runnable() {
+							@Override
+							public void run() {
+								attachTunnel(channel, leftOver, Math.max(0, leftOverLength));
+							}
+						});
+					} catch (IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						logIOException(e);
+						m_eventLoop.execute(new Runnable() {
+							@Override
+							public void run() {
+								m_connection.close();
+							}
+						});
+					} finally {
+						m_bufferPool.release(request);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Tunnel the CONNECT stream to the server as it is. The SSL connection is not terminated,
+		 * so nothing of it is recorded.
+		 */
+		private void startPassthroughTunnel(final EndPoint remoteEndPoint, int requestLength) {
+			m_tunnelPipe = new PipeInputStream();
+			m_tunnelPipe.push(m_sniffBuffer, requestLength, m_sniffLength - requestLength);
+			releaseSniffBuffer();
+			registerPassthrough();
+			m_workerExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final SocketChannel channel = m_channelSocketFactory.connect(remoteEndPoint);
+						m_eventLoop.execute(new Runnable() {
+							@Override
+							public void run() {
+								final byte[] response = HTTPProxyTCPProxyEngineEx.createConnectResponse();
+								m_connection.write(response, 0, response.length);
+								attachTunnel(channel, response, 0);
+							}
+						});
+					} catch (IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						final String description = logIOException(e);
+						m_eventLoop.execute(new Runnable() {
+							@Override
+							public void run() {
+								m_tunnelPipe.close();
+								final HTMLElement message = new HTMLElement();
+								message.addElement("p").addText(description);
+								sendHTTPErrorResponse(message, "502 Bad Gateway", m_connection);
+							}
+						});
+					}
+				}
+			});
+		}
+
+		private void registerPassthrough() {
+			if (m_passthroughConnection != null) {
+				return;
+			}
+			m_passthroughConnection = new Closeable() {
+				@Override
+				public void close() {
+					m_eventLoop.execute(new Runnable() {
+						@Override
+						public void run() {
+							m_connection.close();
+						}
+					});
+				}
+			};
+			m_passthrough.register(m_passthroughConnection);
+		}
+
+		private void attachTunnel(SocketChannel channel, byte[] leftOver, int leftOverLength) {
+			m_tunnel = new Connection(m_eventLoop);
+			m_tunnel.addSource(m_connection);
+			m_connection.addSource(m_tunnel);
+			m_tunnel.write(leftOver, 0, leftOverLength);
+			final byte[] pending;
+			try {
+				pending = m_tunnelPipe.drain();
+			} catch (InterruptedIOException e) {
+				throw new AssertionError(e);
+			}
+			m_tunnel.write(pending, 0, pending.length);
+			m_tunnel.attach(channel, new Receiver() {
+				@Override
+				public void received(byte[] buffer, int length) {
+					m_connection.write(buffer, 0, length);
+				}
+
+				@Override
+				public void closed() {
+					m_connection.closeAfterFlush();
+				}
+			});
+			// Nothing is filtered in the tunnel, so both ends splice.
+			m_tunnel.spliceTo(m_connection);
+			m_connection.spliceTo(m_tunnel);
+			if (m_connection.m_closed) {
+				m_tunnel.closeAfterFlush();
+			}
+		}
+
+		@Override
+		public void closed() {
+			releaseSniffBuffer();
+			if (m_passthroughConnection != null) {
+				m_passthrough.unregister(m_passthroughConnection);
+			}
+			if (m_tunnel != null) {
+				m_tunnel.closeAfterFlush();
+			} else if (m_tunnelPipe != null) {
+				m_tunnelPipe.close();
+			}
+			// Close all outgoing streams as the thread per socket engine does. The upstream
+			// connections which are between responses go back to the pool, the others are closed
+			// once the pending requests are flushed.
+			for (PooledUpstream each : m_remoteStreamMap.values()) {
+				each.detach();
+			}
+		}
+	}
+
+	/**
+	 * Blocking input stream fed from the selector loop, used while the delegate SSL engine reads
+	 * the CONNECT request in a worker thread.
+	 */
+	private static final class PipeInputStream extends InputStream {
+		// Not a monitor, so that a virtual worker thread which waits for data does not pin its
+		// carrier.
+		private final Lock m_lock = new ReentrantLock();
+		private final Condition m_readable = m_lock.newCondition();
+		private final LinkedList<byte[]> m_chunks = new LinkedList<byte[]>();
+		private int m_offset = 0;
+		private int m_available = 0;
+		private boolean m_closed = false;
+		private Runnable m_drainedListener;
+
+		void push(byte[] buffer, int offset, int length) {
+			final byte[] copy = new byte[length];
+			System.arraycopy(buffer, offset, copy, 0, length);
+			m_lock.lock();
+			try {
+				m_chunks.add(copy);
+				m_available += length;
+				m_readable.signalAll();
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		byte[] drain() throws InterruptedIOException {
+			m_lock.lock();
+			try {
+				final byte[] result = new byte[m_available];
+				if (m_available > 0) {
+					read(result, 0, m_available);
+				}
+				return result;
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws InterruptedIOException {
+			Runnable listener = null;
+			int copied = 0;
+			m_lock.lock();
+			try {
+				while (m_available == 0 && !m_closed) {
+					try {
+						m_readable.await();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException(e.getMessage());
+					}
+				}
+				if (m_available == 0) {
+					return -1;
+				}
+				while (copied < length && !m_chunks.isEmpty()) {
+					final byte[] head = m_chunks.getFirst();
+					final int n = Math.min(length - copied, head.length - m_offset);
+					System.arraycopy(head, m_offset, buffer, offset + copied, n);
+					copied += n;
+					m_offset += n;
+					if (m_offset == head.length) {
+						m_chunks.removeFirst();
+						m_offset = 0;
+					}
+				}
+				m_available -= copied;
+				if (m_drainedListener != null && m_available < LOW_WATER_MARK) {
+					listener = m_drainedListener;
+					m_drainedListener = null;
+				}
+			} finally {
+				m_lock.unlock();
+			}
+			if (listener != null) {
+				listener.run();
+			}
+			return copied;
+		}
+
+		/**
+		 * Run the given listener once, when the reader drains the pipe below the low water mark.
+		 */
+		void notifyWhenDrained(Runnable listener) {
+			m_lock.lock();
+			try {
+				m_drainedListener = listener;
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		@Override
+		public int available() {
+			m_lock.lock();
+			try {
+				return m_available;
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			m_lock.lock();
+			try {
+				m_closed = true;
+				m_readable.signalAll();
+			} finally {
+				m_lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Socket factory which creates channel backed sockets, so that the selector loops can take
+	 * over the listening socket created by {@link AbstractTCPProxyEngine}.
+	 */
+	private static final class ChannelSocketFactory implements TCPProxySocketFactory {
+		private final HappyEyeballsConnector m_connector;
+		private final int m_backlog;
+		private final boolean m_reusePort;
+		private ServerSocketChannel m_serverChannel;
+
+		ChannelSocketFactory(HappyEyeballsConnector connector, int backlog, boolean reusePort) {
+			m_connector = connector;
+			m_backlog = backlog;
+			m_reusePort = reusePort;
+		}
+
+		@Override
+		public ServerSocket createServerSocket(EndPoint localEndPoint, int timeout) throws IOException {
+			m_serverChannel = openServerChannel(localEndPoint);
+			final ServerSocket socket = m_serverChannel.socket();
+			socket.setSoTimeout(timeout);
+			return socket;
+		}
+
+		/**
+		 * Open a listening channel, with SO_REUSEPORT if the engine has more than one accept shard.
+		 */
+		ServerSocketChannel openServerChannel(EndPoint localEndPoint) throws IOException {
+			final ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				if (m_reusePort) {
+					ReusePort.enable(channel);
+				}
+				channel.socket().bind(
+								new InetSocketAddress(InetAddress.getByName(localEndPoint.getHost()), localEndPoint
+												.getPort()), m_backlog);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			return channel;
+		}
+
+		@Override
+		public Socket createClientSocket(EndPoint remoteEndPoint) throws IOException {
+			return open(remoteEndPoint).socket();
+		}
+
+		/**
+		 * Resolve and connect in blocking mode, and return the channel in non blocking mode.
+		 */
+		SocketChannel connect(EndPoint remoteEndPoint) throws IOException {
+			final SocketChannel channel = open(remoteEndPoint);
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			return channel;
+		}
+
+		private SocketChannel open(EndPoint remoteEndPoint) throws IOException {
+			return m_connector.connectChannel(remoteEndPoint);
+		}
+
+		ServerSocketChannel getServerChannel() {
+			return m_serverChannel;
+		}
+	}
+}
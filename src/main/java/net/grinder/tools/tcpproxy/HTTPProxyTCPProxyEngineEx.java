@@ -27,33 +27,54 @@
 // Fixed by nGrinder 
 package net.grinder.tools.tcpproxy;
 
+import static net.grinder.util.CollectionUtils.newArrayList;
 import static net.grinder.util.CollectionUtils.newHashMap;
 import static net.grinder.util.NoOp.noOp;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+
+import net.grinder.common.Closer;
 import net.grinder.common.GrinderBuild;
 import net.grinder.common.UncheckedInterruptedException;
-import net.grinder.util.StreamCopier;
+import net.grinder.tools.tcpproxy.TCPProxyFilter.FilterException;
+import net.grinder.util.Pair;
 import net.grinder.util.html.HTMLElement;
-import net.grinder.util.thread.ExecutorFactory;
 import net.grinder.util.thread.InterruptibleRunnable;
+import net.grinder.util.thread.InterruptibleRunnableAdapter;
 
 import org.slf4j.Logger;
 
@@ -84,16 +105,26 @@ import org.slf4j.Logger;
  */
 public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
-	private ExecutorService socketExecutor = ExecutorFactory.createThreadPool("tcp_proxy_http_socket_processor", 20);
+	private final ExecutorService socketExecutor;
+	private final ExecutorService m_streamExecutor;
 	private static final long CONNECTION_TIMEOUT = Long.getLong("tcpproxy.connecttimeout", 5000).longValue();
 
-	private final Pattern m_httpConnectPattern;
-	private final Pattern m_httpsConnectPattern;
 	private final DelegateSSLEngine m_delegateSSLEngine;
 	private final Thread m_delegateSSLEngineThread;
 	private final EndPoint m_chainedHTTPProxy;
+	private final EndPoint m_chainedHTTPSProxy;
 	private final EndPoint m_proxyAddress;
+	private final UpstreamConnectionPool<UpstreamConnection> m_upstreamPool;
+	private final BufferPool m_bufferPool;
+	private final TCPProxyPassthrough m_passthrough;
+	private final TCPProxyAutoConfig m_autoConfig;
+	private final TCPProxyResponseCache m_responseCache;
+	private final ConnectionRegistry m_connections;
+	private final Timer m_reaper = new Timer("tcp_proxy_reaper", true);
+	private final AcceptStatistics m_acceptStatistics;
+	private final List<ServerSocket> m_shardSockets = newArrayList();
 	private static final PrintWriter WRITER = new PrintWriter(System.out);
+	private static final byte[] SERVICE_UNAVAILABLE_RESPONSE = createServiceUnavailableResponse();
 
 	/**
 	 * Constructor.
@@ -120,22 +151,111 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 	public HTTPProxyTCPProxyEngineEx(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
 					TCPProxyFilter responseFilter, Logger logger, EndPoint localEndPoint, EndPoint chainedHTTPProxy,
 					EndPoint chainedHTTPSProxy) throws IOException {
+		this(sslSocketFactory, requestFilter, responseFilter, logger, localEndPoint, chainedHTTPProxy,
+						chainedHTTPSProxy, new HTTPProxyEngineOptions());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param sslSocketFactory
+	 *            Factory for SSL sockets.
+	 * @param requestFilter
+	 *            Request filter.
+	 * @param responseFilter
+	 *            Response filter.
+	 * 
+	 * @param logger
+	 *            Logger.
+	 * @param localEndPoint
+	 *            Local host and port.
+	 * @param chainedHTTPProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param chainedHTTPSProxy
+	 *            HTTP proxy which output should be routed through, or {@code null} for no proxy.
+	 * @param options
+	 *            engine options.
+	 * 
+	 * @exception IOException
+	 *                If an I/O error occurs
+	 */
+	public HTTPProxyTCPProxyEngineEx(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
+					TCPProxyFilter responseFilter, Logger logger, EndPoint localEndPoint, EndPoint chainedHTTPProxy,
+					EndPoint chainedHTTPSProxy, HTTPProxyEngineOptions options) throws IOException {
 		// We set this engine up for handling plain connections. We
 		// delegate HTTPS to a proxy engine.
-		super(new TCPProxySocketFactoryImplementation(), requestFilter, responseFilter, WRITER, logger, localEndPoint,
-						false, 0);
+		super(new TCPProxySocketFactoryImplementationEx(new HappyEyeballsConnector(options), options
+						.getAcceptBacklog(), ReusePort.getShardCount(options) > 1), requestFilter, responseFilter,
+						WRITER, logger, localEndPoint, false, 0);
 
 		m_proxyAddress = localEndPoint;
 		m_chainedHTTPProxy = chainedHTTPProxy;
-
-		m_httpConnectPattern = Pattern.compile("^([A-Z]+)[ \\t]+http://([^/:]+):?(\\d*)/.*\r\n\r\n", Pattern.DOTALL);
-
-		m_httpsConnectPattern = Pattern.compile("^CONNECT[ \\t]+([^:]+):(\\d+).*\r\n\r\n", Pattern.DOTALL);
+		m_chainedHTTPSProxy = chainedHTTPSProxy;
 
 		m_delegateSSLEngine = new DelegateSSLEngine(sslSocketFactory, getRequestFilter(), getResponseFilter(), WRITER,
-						logger, false, chainedHTTPSProxy);
+						logger, false, chainedHTTPSProxy, options);
 
 		m_delegateSSLEngineThread = new Thread(m_delegateSSLEngine, "Delegate HTTPS engine");
+
+		m_upstreamPool = new UpstreamConnectionPool<UpstreamConnection>(options.getUpstreamPoolMaxIdle(),
+						options.getUpstreamPoolMaxIdlePerHost(), options.getUpstreamPoolIdleTimeout());
+		m_bufferPool = options.getBufferPool();
+		m_passthrough = options.getPassthrough();
+		m_autoConfig = options.getAutoConfig();
+		m_responseCache = options.getResponseCache();
+		m_connections = options.getConnectionRegistry();
+		final long idleTimeout = options.getConnectionIdleTimeout();
+		final long reapPeriod = idleTimeout > 0 ? Math.max(1000, Math.min(idleTimeout / 2, 30000)) : 30000;
+		m_reaper.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				m_connections.reap(idleTimeout);
+			}
+		}, reapPeriod, reapPeriod);
+		socketExecutor = createSocketExecutor(options);
+		m_streamExecutor = VirtualThreads.createStreamExecutor("tcp_proxy_stream", options.getThreadMode());
+
+		final int shardCount = ReusePort.getShardCount(options);
+		if (shardCount < options.getAcceptShards()) {
+			logger.warn("SO_REUSEPORT is not available. Connections are accepted by one listening socket.");
+		}
+		m_acceptStatistics = options.getAcceptStatistics();
+		m_acceptStatistics.start(shardCount);
+		try {
+			for (int i = 1; i < shardCount; i++) {
+				m_shardSockets.add(getSocketFactory().createServerSocket(getListenEndPoint(), 0));
+			}
+		} catch (IOException e) {
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Create the executor which sniffs the accepted sockets. In
+	 * {@link HTTPProxyEngineOptions.ThreadMode#PLATFORM} mode it grows with the queue wait up to a
+	 * hard cap, beyond which the connections are rejected.
+	 */
+	private static ExecutorService createSocketExecutor(HTTPProxyEngineOptions options) {
+		final String name = "tcp_proxy_http_socket_processor";
+		if (options.getThreadMode() == HTTPProxyEngineOptions.ThreadMode.VIRTUAL && VirtualThreads.isAvailable()) {
+			return VirtualThreads.newThreadPerTaskExecutor(name);
+		}
+		return new AdaptiveThreadPool(name, options.getSocketThreadsMin(), options.getSocketThreadsMax(),
+						options.getSocketQueueSize(), options.getSocketQueueTargetWait(),
+						options.getSocketExecutorStatistics());
+	}
+
+	/**
+	 * Start a thread which reads the given stream. It is a virtual thread in
+	 * {@link HTTPProxyEngineOptions.ThreadMode#VIRTUAL} mode.
+	 */
+	private void startStreamThread(InterruptibleRunnable runnable, String name, InputStream in) {
+		if (m_streamExecutor != null) {
+			m_streamExecutor.execute(new InterruptibleRunnableAdapter(runnable));
+		} else {
+			new StreamThread(runnable, name, in).start();
+		}
 	}
 
 	/**
@@ -146,6 +266,13 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 		m_delegateSSLEngineThread.start();
 
+		for (int i = 0; i < m_shardSockets.size(); i++) {
+			final Thread thread = new Thread(new ShardAcceptor(m_shardSockets.get(i), i + 1), "tcp_proxy_accept_"
+							+ (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+
 		// I've seen pathological messages with huge tracking cookies that are
 		// bigger than 4K. Let's super-size this.
 
@@ -160,8 +287,64 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 				continue;
 			}
 
+			m_acceptStatistics.accepted(0);
+			dispatch(localSocket);
+		}
+	}
+
+	private void dispatch(Socket localSocket) {
+		try {
 			socketExecutor.execute(new SocketProcessingRunnable(localSocket));
+		} catch (RejectedExecutionException e) {
+			rejectConnection(localSocket);
+		}
+	}
+
+	/**
+	 * Accepts the connections of a listening socket which shares the port of the engine with
+	 * SO_REUSEPORT.
+	 */
+	private final class ShardAcceptor implements Runnable {
+		private final ServerSocket m_serverSocket;
+		private final int m_shard;
+
+		ShardAcceptor(ServerSocket serverSocket, int shard) {
+			m_serverSocket = serverSocket;
+			m_shard = shard;
+		}
+
+		@Override
+		public void run() {
+			while (!isStopped() && !m_serverSocket.isClosed()) {
+				final Socket localSocket;
+				try {
+					localSocket = m_serverSocket.accept();
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					if (!isStopped()) {
+						logIOException(e);
+					}
+					continue;
+				}
+				m_acceptStatistics.accepted(m_shard);
+				dispatch(localSocket);
+			}
+		}
+	}
+
+	/**
+	 * Turn away a connection which no socket processor can take, without reading its request.
+	 */
+	private void rejectConnection(Socket localSocket) {
+		if (!isStopped()) {
+			getLogger().debug("All socket processors are busy. Rejected {}", localSocket);
+			try {
+				localSocket.getOutputStream().write(SERVICE_UNAVAILABLE_RESPONSE);
+			} catch (IOException e) {
+				noOp();
+			}
 		}
+		Closer.close(localSocket);
 	}
 
 	/**
@@ -172,7 +355,6 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 	 */
 	public class SocketProcessingRunnable implements Runnable {
 		private final Socket localSocket;
-		private final byte[] buffer = new byte[40960];
 
 		/**
 		 * Constructor.
@@ -186,101 +368,113 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 		@Override
 		public void run() {
+			final byte[] buffer = m_bufferPool.lease();
 			try {
-				final BufferedInputStream in = new BufferedInputStream(localSocket.getInputStream(), buffer.length);
-				in.mark(buffer.length);
-				int time = 0;
-				// Read data into buffer until we time out or one of the handlers
-				// matches.
-				while (true) {
-					while (time < CONNECTION_TIMEOUT && in.available() == 0) {
-						sleep(10);
-						time += 10;
+				final ConnectionRegistry.Connection connection = m_connections.register(localSocket, m_bufferPool);
+				final SniffedInputStream in = connection.getInputStream();
+				final OutputStream out = connection.getOutputStream();
+				final ProxyRequestSniffer sniffer = new ProxyRequestSniffer();
+				final long deadline = System.currentTimeMillis() + CONNECTION_TIMEOUT;
+				int received = 0;
+				ProxyRequestSniffer.Result result = ProxyRequestSniffer.Result.NEED_MORE;
+				// Read data until we time out or the sniffer works out the destination. Every byte
+				// is examined only once.
+				while (result == ProxyRequestSniffer.Result.NEED_MORE) {
+					final long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						sendUnknownDestinationResponse(in, received);
+						return;
 					}
-					final boolean timeout = in.available() == 0;
-					// Rewind our buffered stream: easier than maintaining a cursor.
-					in.reset();
+					if (received == ProxyRequestSniffer.MAX_REQUEST_HEAD_SIZE) {
+						final HTMLElement message = new HTMLElement();
+						message.addElement("p").addText(
+										"Buffer overflow - failed to match HTTP message after " + received + " bytes");
+						sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+						localSocket.close();
+						return;
+					}
+					localSocket.setSoTimeout((int) remaining);
 					final int bytesRead;
-					if (in.available() > 0) {
-						bytesRead = in.read(buffer);
-					} else {
-						bytesRead = 0;
+					try {
+						bytesRead = in.read(buffer, 0,
+										Math.min(buffer.length, ProxyRequestSniffer.MAX_REQUEST_HEAD_SIZE - received));
+					} catch (SocketTimeoutException e) {
+						continue;
 					}
-					final String bufferAsString = new String(buffer, 0, bytesRead, "US-ASCII");
-					if (timeout) {
-						final HTMLElement message = createMessage(bufferAsString);
-						sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+					if (bytesRead == -1) {
 						localSocket.close();
-						break;
+						return;
+					}
+					received += bytesRead;
+					result = sniffer.feed(buffer, 0, bytesRead);
+				}
+				localSocket.setSoTimeout(0);
+				// Rewind our buffered stream to the beginning of request.
+				in.replay(received);
+
+				if (result == ProxyRequestSniffer.Result.HTTP) {
+					// HTTP proxy request.
+					startStreamThread(new HTTPProxyStreamDemultiplexer(in, out, localSocket,
+									EndPoint.clientEndPoint(localSocket)), "HTTPProxyStreamDemultiplexer for "
+									+ localSocket, in);
+				} else if (result == ProxyRequestSniffer.Result.CONNECT) {
+					// HTTPS proxy request.
+
+					// When handling HTTPS proxies, we use our plain socket to accept
+					// connections on. We suck the bit we understand off the front and
+					// forward the rest through our proxy engine. The proxy engine
+					// listens for connection attempts (which come from us), then sets
+					// up a thread pair which pushes data back and forth until either
+					// the server closes the connection, or we do (in response to our
+					// client closing the connection). The engine handles multiple
+					// connections by spawning multiple thread pairs.
+
+					// Consume the CONNECT header block. Anything after it belongs to the tunnel.
+					readFully(in, new byte[sniffer.getConsumed()]);
+					final EndPoint remoteEndPoint = sniffer.getEndPoint();
+
+					if (m_chainedHTTPSProxy == null
+									&& m_passthrough.isPassthrough(new ConnectionDetails(EndPoint
+													.clientEndPoint(localSocket), remoteEndPoint, true))) {
+						launchPassthroughTunnel(in, out, remoteEndPoint);
+						return;
 					}
 
-					final Matcher httpConnectMatcher = m_httpConnectPattern.matcher(bufferAsString);
-					final Matcher httpsConnectMatcher = m_httpsConnectPattern.matcher(bufferAsString);
-					if (httpConnectMatcher.find()) {
-						// HTTP proxy request.
-						// RESET stream to beginning of request.
-						in.reset();
-
-						new StreamThread(new HTTPProxyStreamDemultiplexer(in, localSocket,
-										EndPoint.clientEndPoint(localSocket)), "HTTPProxyStreamDemultiplexer for "
-										+ localSocket, in).start();
-
-						break;
-					} else if (httpsConnectMatcher.find()) {
-						// HTTPS proxy request.
-
-						// When handling HTTPS proxies, we use our plain socket to accept
-						// connections on. We suck the bit we understand off the front and
-						// forward the rest through our proxy engine. The proxy engine
-						// listens for connection attempts (which come from us), then sets
-						// up a thread pair which pushes data back and forth until either
-						// the server closes the connection, or we do (in response to our
-						// client closing the connection). The engine handles multiple
-						// connections by spawning multiple thread pairs.
-
-						// group(2) must be a port number by specification.
-						final EndPoint remoteEndPoint = new EndPoint(httpsConnectMatcher.group(1),
-										Integer.parseInt(httpsConnectMatcher.group(2)));
-
-						final OutputStream out = localSocket.getOutputStream();
-
-						m_delegateSSLEngine.prepareNewConnection(in, out, EndPoint.clientEndPoint(localSocket),
+					if (m_delegateSSLEngine.isInProcess()) {
+						// Decrypt on this socket. No loopback connection and copy threads.
+						m_delegateSSLEngine.launchInProcessConnection(in, out, EndPoint.clientEndPoint(localSocket),
 										remoteEndPoint);
-
-						// Create a new proxy connection to the proxy engine.
-						// DelegateSSLEngine.run() will accept() the other end of the
-						// connection.
-						final Socket sslProxySocket = getSocketFactory().createClientSocket(
-										m_delegateSSLEngine.getListenEndPoint());
-
-						// Set up a couple of threads to punt everything we receive
-						// over localSocket to sslProxySocket, and vice versa.
-						// user to proxy
-						new StreamThread(new StreamCopier(4096, true).getInterruptibleRunnable(in,
-										sslProxySocket.getOutputStream()),
-										"Copy to proxy engine for " + remoteEndPoint, in).start();
-						new StreamThread(new StreamCopier(4096, true).getInterruptibleRunnable(
-										sslProxySocket.getInputStream(), out), "Copy from proxy engine for "
-										+ remoteEndPoint, sslProxySocket.getInputStream()).start();
-
-						break;
+						return;
 					}
 
-					if (bytesRead == buffer.length) {
-						while (in.available() > 0) {
-							// Drain.
-							in.read(buffer);
-						}
-
-						final HTMLElement message = new HTMLElement();
-						message.addElement("p").addText(
-										"Buffer overflow - failed to match HTTP message after " + buffer.length
-														+ " bytes");
-
-						sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+					// Create a new proxy connection to the proxy engine.
+					// DelegateSSLEngine.run() will accept() the other end of the
+					// connection and find its context by the local port.
+					final Socket sslProxySocket = new Socket();
 
-						break;
+					try {
+						m_delegateSSLEngine.prepareNewConnection(in, out, EndPoint.clientEndPoint(localSocket),
+										remoteEndPoint, sslProxySocket);
+						sslProxySocket.connect(m_delegateSSLEngine.getListenAddress());
+					} catch (IOException e) {
+						m_delegateSSLEngine.cancelConnection(sslProxySocket);
+						sslProxySocket.close();
+						throw e;
 					}
+
+					// Set up a couple of threads to punt everything we receive
+					// over localSocket to sslProxySocket, and vice versa.
+					// user to proxy
+					startStreamThread(new BufferCopier(in, sslProxySocket.getOutputStream()),
+									"Copy to proxy engine for " + remoteEndPoint, in);
+					startStreamThread(new BufferCopier(sslProxySocket.getInputStream(), out),
+									"Copy from proxy engine for " + remoteEndPoint, sslProxySocket.getInputStream());
+				} else if (result == ProxyRequestSniffer.Result.AUTO_CONFIG && m_autoConfig.isEnabled()) {
+					out.write(m_autoConfig.createResponse(m_proxyAddress));
+					out.flush();
+					localSocket.close();
+				} else {
+					sendUnknownDestinationResponse(in, received);
 				}
 			} catch (IOException e) {
 				UncheckedInterruptedException.ioException(e);
@@ -291,25 +485,50 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 				} catch (IOException closeException) {
 					throw new AssertionError(closeException);
 				}
+			} finally {
+				m_bufferPool.release(buffer);
 			}
 		}
 
-		private HTMLElement createMessage(final String bufferAsString) {
-			// Time out without matching a handler.
-			final HTMLElement message = new HTMLElement();
-			message.addElement("p").addText("Failed to determine proxy destination.");
-			if (bufferAsString.length() > 0) {
-				final HTMLElement paragraph1 = message.addElement("p");
-				paragraph1.addText("Do not type TCPProxy address into your browser. ");
-				paragraph1.addText("The browser proxy settings should be set " + "to the TCPProxy address (");
-				paragraph1.addElement("code").addText(m_proxyAddress.toString());
-				paragraph1.addText("), and you should type the address of the " + "target server into the browser.");
-				message.addElement("p").addText("Text of received message follows:");
-				message.addElement("p").addElement("pre").addElement("blockquote").addText(bufferAsString);
-			} else {
-				message.addElement("p").addText("Client opened connection but sent no bytes.");
+		/**
+		 * Tunnel the CONNECT stream to the server as it is. The SSL connection is not terminated,
+		 * so nothing of it is recorded.
+		 */
+		private void launchPassthroughTunnel(InputStream in, OutputStream out, EndPoint remoteEndPoint)
+						throws IOException {
+			final Socket remoteSocket;
+			try {
+				remoteSocket = getSocketFactory().createClientSocket(remoteEndPoint);
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				out.write(createBadGatewayResponse(logIOException(e)));
+				out.flush();
+				localSocket.close();
+				return;
 			}
-			return message;
+			out.write(createConnectResponse());
+			out.flush();
+			final Closeable connection = new Closeable() {
+				@Override
+				public void close() {
+					Closer.close(localSocket);
+					Closer.close(remoteSocket);
+				}
+			};
+			m_passthrough.register(connection);
+			startStreamThread(new BufferCopier(in, remoteSocket.getOutputStream(), connection), "Passthrough to "
+							+ remoteEndPoint, in);
+			startStreamThread(new BufferCopier(remoteSocket.getInputStream(), out, connection), "Passthrough from "
+							+ remoteEndPoint, remoteSocket.getInputStream());
+		}
+
+		private void sendUnknownDestinationResponse(BufferedInputStream in, int received) throws IOException {
+			in.reset();
+			final byte[] bytes = new byte[received];
+			readFully(in, bytes);
+			final HTMLElement message = createUnknownDestinationMessage(new String(bytes, "US-ASCII"), m_proxyAddress);
+			sendHTTPErrorResponse(message, "400 Bad Request", localSocket.getOutputStream());
+			localSocket.close();
 		}
 	}
 
@@ -319,9 +538,22 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 	@Override
 	public void stop() {
 		super.stop();
+		for (ServerSocket each : m_shardSockets) {
+			try {
+				each.close();
+			} catch (IOException e) {
+				noOp();
+			}
+		}
 		m_delegateSSLEngine.stop();
+		m_upstreamPool.close();
+		m_reaper.cancel();
 		try {
 			socketExecutor.shutdownNow();
+			if (m_streamExecutor != null) {
+				// Interrupting a virtual thread closes the socket it is blocked in.
+				m_streamExecutor.shutdownNow();
+			}
 		} catch (Exception e) {
 			noOp();
 		}
@@ -332,6 +564,33 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		}
 	}
 
+	/**
+	 * Create the message returned when the proxy destination can not be determined.
+	 * 
+	 * @param bufferAsString
+	 *            bytes received from the browser
+	 * @param proxyAddress
+	 *            proxy address which the browser should be configured with
+	 * @return message
+	 */
+	static HTMLElement createUnknownDestinationMessage(final String bufferAsString, EndPoint proxyAddress) {
+		// Time out without matching a handler.
+		final HTMLElement message = new HTMLElement();
+		message.addElement("p").addText("Failed to determine proxy destination.");
+		if (bufferAsString.length() > 0) {
+			final HTMLElement paragraph1 = message.addElement("p");
+			paragraph1.addText("Do not type TCPProxy address into your browser. ");
+			paragraph1.addText("The browser proxy settings should be set " + "to the TCPProxy address (");
+			paragraph1.addElement("code").addText(proxyAddress.toString());
+			paragraph1.addText("), and you should type the address of the " + "target server into the browser.");
+			message.addElement("p").addText("Text of received message follows:");
+			message.addElement("p").addElement("pre").addElement("blockquote").addText(bufferAsString);
+		} else {
+			message.addElement("p").addText("Client opened connection but sent no bytes.");
+		}
+		return message;
+	}
+
 	private void sendHTTPErrorResponse(HTMLElement message, String status, OutputStream outputStream)
 					throws IOException {
 		getLogger().error(message.toText());
@@ -343,11 +602,87 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		outputStream.write(response.toString().getBytes("US-ASCII"));
 	}
 
-	private static void sleep(int milliseconds) {
+	/**
+	 * Create the response to a CONNECT request whose server could not be reached.
+	 * 
+	 * @param description
+	 *            description of the failure
+	 * @return response bytes
+	 */
+	static byte[] createBadGatewayResponse(String description) {
+		final HTMLElement message = new HTMLElement();
+		message.addElement("p").addText(description);
+		final HTTPResponse response = new HTTPResponse();
+		response.setStatus("502 Bad Gateway");
+		response.setHeader("Connection", "close");
+		response.setMessage("502 Bad Gateway", message);
 		try {
-			Thread.sleep(milliseconds);
-		} catch (InterruptedException e) {
-			throw new UncheckedInterruptedException(e);
+			return response.toString().getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static byte[] createServiceUnavailableResponse() {
+		final HTTPResponse response = new HTTPResponse();
+		response.setStatus("503 Service Unavailable");
+		response.setHeader("Retry-After", "1");
+		response.setHeader("Connection", "close");
+		response.setHeader("Content-Length", "0");
+		try {
+			return response.toString().getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Create the response to a CONNECT request which tells the browser the tunnel is open.
+	 * 
+	 * @return response bytes
+	 */
+	static byte[] createConnectResponse() {
+		final StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.0 200 OK\r\n");
+		response.append("Proxy-agent: The Grinder/");
+		response.append(GrinderBuild.getVersionString());
+		response.append("\r\n");
+		response.append("\r\n");
+		return response.toString().getBytes();
+	}
+
+	/**
+	 * Rewrite the request line of a passthrough request with the URI filter decorators, the way
+	 * {@link OutputStreamFilterTee} would.
+	 * 
+	 * @param uriFilter
+	 *            URI filter decorators around a {@link NullFilter}
+	 * @param connectionDetails
+	 *            connection details
+	 * @param buffer
+	 *            buffer which starts with a request line
+	 * @param length
+	 *            number of bytes in the buffer
+	 * @return rewritten bytes, or {@code null} if the buffer is sent as it is
+	 * @throws IOException
+	 *             if the request line can not be decoded
+	 */
+	static byte[] rewriteRequestLine(TCPProxyFilter uriFilter, ConnectionDetails connectionDetails, byte[] buffer,
+					int length) throws IOException {
+		try {
+			return uriFilter.handle(connectionDetails, buffer, length);
+		} catch (FilterException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] bytes) throws IOException {
+		for (int read = 0; read < bytes.length;) {
+			final int n = in.read(bytes, read, bytes.length - read);
+			if (n == -1) {
+				throw new EOFException();
+			}
+			read += n;
 		}
 	}
 
@@ -358,13 +693,17 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 	private final class HTTPProxyStreamDemultiplexer implements InterruptibleRunnable {
 
 		private final InputStream m_in;
+		private final OutputStream m_out;
 		private final Socket m_localSocket;
 		private final EndPoint m_clientEndPoint;
-		private final Map<String, OutputStreamFilterTee> m_remoteStreamMap = newHashMap();
-		private OutputStreamFilterTee m_lastRemoteStream;
+		private final Map<String, UpstreamConnection> m_remoteStreamMap = newHashMap();
+		private final ProxyRequestSniffer m_sniffer = new ProxyRequestSniffer();
+		private UpstreamConnection m_lastRemoteStream;
+		private Closeable m_passthroughConnection;
 
-		HTTPProxyStreamDemultiplexer(InputStream in, Socket localSocket, EndPoint clientEndPoint) {
+		HTTPProxyStreamDemultiplexer(InputStream in, OutputStream out, Socket localSocket, EndPoint clientEndPoint) {
 			m_in = in;
+			m_out = out;
 			m_localSocket = localSocket;
 			m_clientEndPoint = clientEndPoint;
 		}
@@ -374,7 +713,10 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 			// Needs to hold the largest reasonable set of HTTP headers - see
 			// comment in HTTPProxyTCPProxyEngine.run().
-			final byte[] buffer = new byte[40960];
+			final byte[] buffer = m_bufferPool.lease();
+
+			// The bytes after a request answered from the cache, at the start of the buffer.
+			int carried = 0;
 
 			try {
 				while (true) {
@@ -382,61 +724,48 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					// rely on the World conspiring to place request at start of buffer,
 					// the request headers fitting in our buffer, and the request headers
 					// not being fragmented.
-					final int bytesRead = m_in.read(buffer);
+					int bytesRead = carried > 0 ? carried : m_in.read(buffer);
+					final boolean requestStart = carried > 0;
+					carried = 0;
 
 					if (bytesRead == -1) {
 						break;
 					}
 
-					final String bytesReadAsString = new String(buffer, 0, bytesRead, "US-ASCII");
+					m_sniffer.reset();
+					ProxyRequestSniffer.Result result = m_sniffer.feed(buffer, 0, bytesRead);
 
-					final Matcher matcher = m_httpConnectPattern.matcher(bytesReadAsString);
-
-					if (matcher.find()) {
-						final String remoteHost = matcher.group(2);
-						int remotePort = 80;
-						try {
-							remotePort = Integer.parseInt(matcher.group(3));
-						} catch (NumberFormatException e) {
-							noOp();
+					// Complete a request line which is split across reads.
+					while (result == ProxyRequestSniffer.Result.NEED_MORE
+									&& (requestStart || m_sniffer.isAbsoluteURIStarted())
+									&& bytesRead < buffer.length) {
+						final int n = m_in.read(buffer, bytesRead, buffer.length - bytesRead);
+						if (n == -1) {
+							break;
 						}
+						result = m_sniffer.feed(buffer, bytesRead, n);
+						bytesRead += n;
+					}
 
-						final EndPoint remoteEndPoint = new EndPoint(remoteHost, remotePort);
+					if (result == ProxyRequestSniffer.Result.HTTP) {
+						final EndPoint remoteEndPoint = m_sniffer.getEndPoint();
+						final TCPProxyResponseCache.Request cacheRequest = m_responseCache.isEnabled()
+										? TCPProxyResponseCache.parse(remoteEndPoint, false, buffer, 0, bytesRead) : null;
+						if (cacheRequest != null && isIdle() && m_responseCache.serve(cacheRequest, m_out, true)) {
+							// A request answered from the cache has no body, so the rest are pipelined requests.
+							carried = bytesRead - cacheRequest.getHeadLength();
+							System.arraycopy(buffer, cacheRequest.getHeadLength(), buffer, 0, carried);
+							continue;
+						}
 						final String key = remoteEndPoint.toString();
 						m_lastRemoteStream = m_remoteStreamMap.get(key);
 						if (m_lastRemoteStream == null) {
 							// New connection.
-							final Socket remoteSocket;
-							final TCPProxyFilter requestFilter;
-
-							if (m_chainedHTTPProxy != null) {
-								// When running through a chained HTTP proxy, we still
-								// create a new thread pair to handle each target
-								// server. This allows us to reuse
-								// FilteredStreamThread and OutputStreamFilterTee to
-								// log the correct connection details. It may also be
-								// beneficial for performance.
-								remoteSocket = getSocketFactory().createClientSocket(m_chainedHTTPProxy);
-								requestFilter = new HTTPMethodAbsoluteURIFilterDecorator(
-												new HTTPMethodRelativeURIFilterDecorator(getRequestFilter()),
-												remoteEndPoint);
-							} else {
-								remoteSocket = getSocketFactory().createClientSocket(remoteEndPoint);
-								requestFilter = new HTTPMethodRelativeURIFilterDecorator(getRequestFilter());
-							}
-
-							final ConnectionDetails connectionDetails = new ConnectionDetails(m_clientEndPoint,
-											remoteEndPoint, false);
-							m_lastRemoteStream = new OutputStreamFilterTee(connectionDetails,
-											remoteSocket.getOutputStream(), requestFilter, getRequestColour());
-							m_lastRemoteStream.connectionOpened();
+							m_lastRemoteStream = openUpstream(remoteEndPoint);
 							m_remoteStreamMap.put(key, m_lastRemoteStream);
-							// Spawn a thread to handle everything coming back from
-							// the remote server.
-							new FilteredStreamThread(remoteSocket.getInputStream(), new OutputStreamFilterTee(
-											connectionDetails.getOtherEnd(), m_localSocket.getOutputStream(),
-											getResponseFilter(), getResponseColour()));
 						}
+						m_lastRemoteStream.requestSent(HTTPResponseFramer.isHeadRequest(buffer, bytesRead),
+										cacheRequest);
 					} else if (m_lastRemoteStream == null) {
 						throw new AssertionError("No last stream");
 					}
@@ -456,17 +785,20 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 				try {
 					// Should probably return other types of status code.
-					sendHTTPErrorResponse(message, "502 Bad Gateway", m_localSocket.getOutputStream());
+					sendHTTPErrorResponse(message, "502 Bad Gateway", m_out);
 				} catch (IOException e2) {
 					// Ignore.
 					UncheckedInterruptedException.ioException(e2);
 				}
 			} finally {
-				// When exiting, close all our outgoing streams. This will
-				// force all the FilteredStreamThreads we've launched to
-				// handle the paired streams to shut down.
-				for (OutputStreamFilterTee s : m_remoteStreamMap.values()) {
-					s.connectionClosed();
+				// When exiting, close all our outgoing streams. The upstream
+				// connections which are between responses go back to the pool,
+				// the others are closed.
+				for (UpstreamConnection s : m_remoteStreamMap.values()) {
+					s.detach();
+				}
+				if (m_passthroughConnection != null) {
+					m_passthrough.unregister(m_passthroughConnection);
 				}
 
 				// We may not have any FilteredStreamThreads, so ensure the
@@ -479,117 +811,609 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					// Ignore.
 					UncheckedInterruptedException.ioException(e);
 				}
+				m_bufferPool.release(buffer);
 			}
 		}
-	}
 
-	private interface ProxySSLContext {
-		void sendResponse() throws IOException;
+		/**
+		 * Check if every request sent on this browser connection has its response.
+		 */
+		private boolean isIdle() {
+			for (UpstreamConnection each : m_remoteStreamMap.values()) {
+				if (!each.isIdle()) {
+					return false;
+				}
+			}
+			return true;
+		}
 
-		Socket createProxyClientSocket(EndPoint remoteEndPoint) throws IOException;
-	}
+		private UpstreamConnection openUpstream(EndPoint remoteEndPoint) throws IOException {
+			final String poolKey = UpstreamConnectionPool.key(remoteEndPoint, m_chainedHTTPProxy);
+			final ConnectionDetails connectionDetails = new ConnectionDetails(m_clientEndPoint, remoteEndPoint, false);
+			final OutputStream browserOut = m_out;
+			final boolean passthrough = m_passthrough.isPassthrough(connectionDetails);
+			if (passthrough && m_passthroughConnection == null) {
+				m_passthroughConnection = new Closeable() {
+					@Override
+					public void close() {
+						Closer.close(m_localSocket);
+					}
+				};
+				m_passthrough.register(m_passthroughConnection);
+			}
 
-	private interface ProxySSLContextFactory {
-		ProxySSLContext prepareConnection(BufferedInputStream in, OutputStream out) throws IOException;
-	}
+			// A passthrough request still has its request line rewritten.
+			final TCPProxyFilter filter = passthrough ? new NullFilter() : getRequestFilter();
+			final TCPProxyFilter requestFilter;
 
-	private static class ConnectionState {
-		private final EndPoint m_clientEndPoint;
-		private final EndPoint m_remoteEndPoint;
-		private final ProxySSLContext m_proxySSLContext;
+			if (m_chainedHTTPProxy != null) {
+				requestFilter = new HTTPMethodAbsoluteURIFilterDecorator(new HTTPMethodRelativeURIFilterDecorator(
+								filter), remoteEndPoint);
+			} else {
+				requestFilter = new HTTPMethodRelativeURIFilterDecorator(filter);
+			}
 
-		public ConnectionState(EndPoint clientEndPoint, EndPoint remoteEndPoint, ProxySSLContext proxySSLContext) {
-			m_clientEndPoint = clientEndPoint;
-			m_remoteEndPoint = remoteEndPoint;
-			m_proxySSLContext = proxySSLContext;
-		}
+			UpstreamConnection upstream;
+			while ((upstream = m_upstreamPool.lease(poolKey)) != null) {
+				if (upstream.attach(connectionDetails, requestFilter, browserOut, passthrough)) {
+					return upstream;
+				}
+			}
 
-		public EndPoint getClientEndPoint() {
-			return m_clientEndPoint;
+			// When running through a chained HTTP proxy, we still create a
+			// new connection to handle each target server. This allows us to
+			// log the correct connection details.
+			// Plain HTTP servers only speak HTTP/1.1.
+			final UpstreamTransport remoteTransport = new HTTP11UpstreamTransport(getSocketFactory()
+							.createClientSocket(m_chainedHTTPProxy != null ? m_chainedHTTPProxy : remoteEndPoint));
+			upstream = new UpstreamConnection(poolKey, remoteTransport);
+			upstream.attach(connectionDetails, requestFilter, browserOut, passthrough);
+			// Spawn a thread to handle everything coming back from the remote
+			// server.
+			startStreamThread(upstream, "Filter thread for " + poolKey, remoteTransport.getInputStream());
+			return upstream;
 		}
+	}
 
-		public EndPoint getRemoteEndPoint() {
-			return m_remoteEndPoint;
+	/**
+	 * Plain HTTP connection to a server, which is handed from one browser connection to another
+	 * through the upstream pool. Each browser connection gets its own pair of filter tees, so the
+	 * filters see a separate connection for each. A passthrough lease has no filter tees.
+	 */
+	private final class UpstreamConnection implements InterruptibleRunnable,
+					UpstreamConnectionPool.PooledConnection {
+
+		private final String m_poolKey;
+		private final UpstreamTransport m_transport;
+		private final OutputStream m_out;
+		private final TCPProxyResponseCache.Capture m_capture = m_responseCache.isEnabled() ? m_responseCache
+						.createCapture() : null;
+		private final HTTPResponseFramer m_framer = new HTTPResponseFramer(m_capture);
+		// Not a monitor, so a virtual thread which blocks in a write does not pin its carrier.
+		private final Lock m_lock = new ReentrantLock();
+		private OutputStreamFilterTee m_requestTee;
+		private OutputStreamFilterTee m_responseTee;
+		// Null between responses.
+		private OutputStream m_browserOut;
+		private ConnectionDetails m_connectionDetails;
+		private TCPProxyFilter m_passthroughFilter;
+		private boolean m_requestStarted = false;
+		private boolean m_pooled = false;
+		private boolean m_closed = false;
+
+		UpstreamConnection(String poolKey, UpstreamTransport transport) throws IOException {
+			m_poolKey = poolKey;
+			m_transport = transport;
+			m_out = new UncloseableOutputStream(transport.getOutputStream());
 		}
 
-		public ProxySSLContext getProxySSLContext() {
-			return m_proxySSLContext;
+		/**
+		 * Start a lease by a browser connection.
+		 * 
+		 * @param passthrough
+		 *            true if the bytes are relayed without the filters
+		 * @return false if the connection closed while it was idle
+		 */
+		boolean attach(ConnectionDetails connectionDetails, TCPProxyFilter requestFilter, OutputStream browserOut,
+						boolean passthrough) {
+			m_lock.lock();
+			try {
+				if (m_closed) {
+					return false;
+				}
+				m_pooled = false;
+				m_browserOut = browserOut;
+				if (passthrough) {
+					m_requestTee = null;
+					m_responseTee = null;
+					m_connectionDetails = connectionDetails;
+					m_passthroughFilter = requestFilter;
+					return true;
+				}
+				m_requestTee = new OutputStreamFilterTee(connectionDetails, m_out, requestFilter, getRequestColour());
+				m_responseTee = new OutputStreamFilterTee(connectionDetails.getOtherEnd(), browserOut,
+								getResponseFilter(), getResponseColour());
+			} finally {
+				m_lock.unlock();
+			}
+			m_requestTee.connectionOpened();
+			m_responseTee.connectionOpened();
+			return true;
 		}
-	}
-
-	private static final class DelegateSSLEngine extends AbstractTCPProxyEngine {
-
-		private final TCPProxySSLSocketFactory m_sslSocketFactory;
-		private final Pattern m_httpsProxyResponsePattern;
-		private final ProxySSLContextFactory m_proxySSLContextFactory;
-
-		private final BlockingQueue<ConnectionState> m_nextConnection = new SynchronousQueue<ConnectionState>();
-
-		DelegateSSLEngine(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
-						TCPProxyFilter responseFilter, PrintWriter output, Logger logger, boolean useColour,
-						EndPoint chainedHTTPSProxy) throws IOException {
-			super(sslSocketFactory, requestFilter, responseFilter, output, logger, new EndPoint(
-							InetAddress.getByName(null), 0), useColour, 0);
 
-			m_sslSocketFactory = sslSocketFactory;
+		void requestSent(boolean head, TCPProxyResponseCache.Request cacheRequest) {
+			m_lock.lock();
+			try {
+				m_framer.requestSent(head);
+				if (m_capture != null) {
+					m_capture.requestSent(cacheRequest);
+				}
+				m_requestStarted = true;
+			} finally {
+				m_lock.unlock();
+			}
+		}
 
-			m_httpsProxyResponsePattern = Pattern.compile("^HTTP.*? (\\d+) .*", Pattern.DOTALL);
+		boolean isIdle() {
+			m_lock.lock();
+			try {
+				return m_framer.isIdle();
+			} finally {
+				m_lock.unlock();
+			}
+		}
 
-			if (chainedHTTPSProxy != null) {
-				m_proxySSLContextFactory = new HTTPSProxyContextFactory(chainedHTTPSProxy);
+		void handle(byte[] buffer, int bytesRead) throws IOException {
+			if (m_requestTee != null) {
+				m_requestTee.handle(buffer, bytesRead);
+				return;
+			}
+			// Only the chunk which starts a request can have a request line to rewrite.
+			final byte[] rewritten = m_requestStarted ? rewriteRequestLine(m_passthroughFilter,
+							m_connectionDetails, buffer, bytesRead) : null;
+			m_requestStarted = false;
+			if (rewritten != null) {
+				m_out.write(rewritten);
 			} else {
-				m_proxySSLContextFactory = new SimpleContextFactory();
+				m_out.write(buffer, 0, bytesRead);
 			}
 		}
 
 		/**
-		 * Set the DelegateSSLEngine up with the context required to establish a delegate
-		 * connection.
-		 * 
-		 * <p>
-		 * We block here until we are ready to accept a new connection. This is necessary because
-		 * there is no context associated with our TCP connection attempt that can be used to
-		 * identify the appropriate connection information. If we ever wish to support more
-		 * parallelism, consider having multiple delegate engines.
-		 * </p>
-		 * 
-		 * @param in
-		 *            input stream
-		 * @param out
-		 *            output stream
-		 * @param clientEndPoint
-		 *            client end point
-		 * @param remoteEndPoint
-		 *            remote end point
-		 * @throws IOException
-		 *             exception
+		 * End the lease of the browser connection. The connection goes back to the pool if every
+		 * response has been read.
 		 */
-		public void prepareNewConnection(BufferedInputStream in, OutputStream out, EndPoint clientEndPoint,
-						EndPoint remoteEndPoint) throws IOException {
+		void detach() {
+			final OutputStreamFilterTee responseTee;
+			final boolean reusable;
+			m_lock.lock();
+			try {
+				responseTee = m_responseTee;
+				m_responseTee = null;
+				m_browserOut = null;
+				reusable = !m_closed && m_framer.isIdle() && m_framer.isReusable();
+				m_pooled = reusable;
+			} finally {
+				m_lock.unlock();
+			}
+			if (m_requestTee != null) {
+				m_requestTee.connectionClosed();
+			}
+			if (responseTee != null) {
+				responseTee.connectionClosed();
+			}
+			if (!reusable || !m_upstreamPool.release(m_poolKey, this)) {
+				discard();
+			}
+		}
 
-			getLogger().debug("prepareNewConnection for {} -> {}", clientEndPoint, remoteEndPoint);
+		@Override
+		public void discard() {
+			try {
+				m_transport.close();
+			} catch (IOException e) {
+				noOp();
+			}
+		}
 
-			final ProxySSLContext proxySSLContext = m_proxySSLContextFactory.prepareConnection(in, out);
+		@Override
+		public void interruptibleRun() {
+			final byte[] buffer = m_bufferPool.lease();
+			try {
+				final InputStream in = m_transport.getInputStream();
+				while (true) {
+					final int bytesRead = in.read(buffer);
+					if (bytesRead == -1) {
+						break;
+					}
+					m_lock.lock();
+					try {
+						if (m_browserOut == null) {
+							// Nothing should arrive between responses.
+							break;
+						}
+						m_framer.feed(buffer, 0, bytesRead);
+						if (m_responseTee != null) {
+							m_responseTee.handle(buffer, bytesRead);
+						} else {
+							m_browserOut.write(buffer, 0, bytesRead);
+						}
+					} finally {
+						m_lock.unlock();
+					}
+				}
+			} catch (SocketException e) {
+				noOp();
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				logIOException(e);
+			} finally {
+				final OutputStreamFilterTee responseTee;
+				final OutputStream browserOut;
+				final boolean pooled;
+				m_lock.lock();
+				try {
+					m_closed = true;
+					if (m_capture != null) {
+						m_capture.closed();
+					}
+					responseTee = m_responseTee;
+					m_responseTee = null;
+					browserOut = m_browserOut;
+					m_browserOut = null;
+					pooled = m_pooled;
+				} finally {
+					m_lock.unlock();
+				}
+				if (responseTee != null) {
+					responseTee.connectionClosed();
+				} else if (browserOut != null) {
+					// The filter tee would close the browser connection likewise.
+					Closer.close(browserOut);
+				}
+				if (pooled) {
+					m_upstreamPool.remove(m_poolKey, this);
+				}
+				discard();
+				m_bufferPool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Copies between the browser and the delegate SSL engine, or the server of a passthrough
+	 * tunnel, with a pooled buffer.
+	 */
+	private final class BufferCopier implements InterruptibleRunnable {
+		private final InputStream m_in;
+		private final OutputStream m_out;
+		private final Closeable m_passthroughConnection;
+
+		BufferCopier(InputStream in, OutputStream out) {
+			this(in, out, null);
+		}
+
+		BufferCopier(InputStream in, OutputStream out, Closeable passthroughConnection) {
+			m_in = in;
+			m_out = out;
+			m_passthroughConnection = passthroughConnection;
+		}
 
+		@Override
+		public void interruptibleRun() {
+			final byte[] buffer = m_bufferPool.lease();
 			try {
-				m_nextConnection.put(new ConnectionState(clientEndPoint, remoteEndPoint, proxySSLContext));
-			} catch (InterruptedException e) {
-				throw new InterruptedIOException(e.getMessage());
+				int bytesRead;
+				while ((bytesRead = m_in.read(buffer, 0, buffer.length)) != -1) {
+					m_out.write(buffer, 0, bytesRead);
+					m_out.flush();
+				}
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+			} finally {
+				Closer.close(m_out);
+				Closer.close(m_in);
+				m_bufferPool.release(buffer);
+				if (m_passthroughConnection != null) {
+					m_passthrough.unregister(m_passthroughConnection);
+				}
 			}
 		}
+	}
+
+	/**
+	 * Output stream of a pooled upstream connection, which is not closed with the filter tee of
+	 * one lease.
+	 */
+	static final class UncloseableOutputStream extends FilterOutputStream {
+		UncloseableOutputStream(OutputStream out) {
+			super(out);
+		}
 
 		@Override
-		public void run() {
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+		}
 
-			while (true) {
-				final ConnectionState connection;
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+	private interface ProxySSLContext {
+		void sendResponse() throws IOException;
+
+		void sendBadGatewayResponse(String description) throws IOException;
+
+		Socket createProxyClientSocket(EndPoint remoteEndPoint) throws IOException;
+	}
+
+	private interface ProxySSLContextFactory {
+		ProxySSLContext prepareConnection(BufferedInputStream in, OutputStream out) throws IOException;
+
+		void close();
+	}
+
+	private static class ConnectionState {
+		private final EndPoint m_clientEndPoint;
+		private final EndPoint m_remoteEndPoint;
+		private final ProxySSLContext m_proxySSLContext;
+		private final UpstreamTransport m_remoteTransport;
+
+		public ConnectionState(EndPoint clientEndPoint, EndPoint remoteEndPoint, ProxySSLContext proxySSLContext,
+						UpstreamTransport remoteTransport) {
+			m_clientEndPoint = clientEndPoint;
+			m_remoteEndPoint = remoteEndPoint;
+			m_proxySSLContext = proxySSLContext;
+			m_remoteTransport = remoteTransport;
+		}
+
+		public EndPoint getClientEndPoint() {
+			return m_clientEndPoint;
+		}
+
+		public EndPoint getRemoteEndPoint() {
+			return m_remoteEndPoint;
+		}
+
+		public ProxySSLContext getProxySSLContext() {
+			return m_proxySSLContext;
+		}
+
+		/**
+		 * Get the transport being connected when the browser was answered at once.
+		 * 
+		 * @return transport, or {@code null} if the server is connected to with the connection
+		 */
+		public UpstreamTransport getRemoteTransport() {
+			return m_remoteTransport;
+		}
+	}
+
+	/**
+	 * Delegate engine which terminates the SSL connections of CONNECT requests. Shared with
+	 * {@link HTTPProxyNIOTCPProxyEngine}.
+	 *
+	 * <p>
+	 * A connection to this engine is identified by the local port of the loopback socket which
+	 * makes it. The context of the connection is registered under that port before the socket
+	 * connects, so any number of tunnels can be set up at the same time.
+	 * </p>
+	 */
+	static final class DelegateSSLEngine extends AbstractTCPProxyEngine {
+
+		private final TCPProxySSLSocketFactory m_sslSocketFactory;
+		private final ProxySSLContextFactory m_proxySSLContextFactory;
+
+		private final ConcurrentMap<Integer, ConnectionState> m_pendingConnections = //
+		new ConcurrentHashMap<Integer, ConnectionState>();
+		private final ExecutorService m_connectionExecutor;
+		private final ExecutorService m_streamExecutor;
+		private final TCPProxySSLEngineFactory m_sslEngineFactory;
+		private final SSLSessionCacheStatistics m_sessionCacheStatistics;
+		private final BufferPool m_bufferPool;
+		private final HappyEyeballsConnector m_connector;
+		private final boolean m_http2;
+		private final long m_upstreamIdleTimeout;
+		private final UpstreamTransportFactory m_upstreamTransports;
+		private final TCPProxyResponseCache m_responseCache;
+		private final boolean m_optimisticConnect;
+
+		DelegateSSLEngine(TCPProxySSLSocketFactory sslSocketFactory, TCPProxyFilter requestFilter,
+						TCPProxyFilter responseFilter, PrintWriter output, Logger logger, boolean useColour,
+						EndPoint chainedHTTPSProxy, HTTPProxyEngineOptions options) throws IOException {
+			super(sslSocketFactory, requestFilter, responseFilter, output, logger, new EndPoint(
+							InetAddress.getByName(null), 0), useColour, 0);
+
+			m_sslSocketFactory = sslSocketFactory;
 
+			if (chainedHTTPSProxy != null) {
+				m_proxySSLContextFactory = new HTTPSProxyContextFactory(chainedHTTPSProxy, options);
+			} else {
+				m_proxySSLContextFactory = new SimpleContextFactory();
+			}
+
+			m_connectionExecutor = VirtualThreads.createThreadPool("tcp_proxy_https_tunnel_setup",
+							options.getTunnelSetupThreadCount(), options.getThreadMode());
+			m_streamExecutor = VirtualThreads.createStreamExecutor("tcp_proxy_https_stream", options.getThreadMode());
+			m_sslEngineFactory = options.getSSLEngineFactory();
+			m_sessionCacheStatistics = options.getSSLSessionCacheStatistics();
+			m_bufferPool = options.getBufferPool();
+			m_connector = new HappyEyeballsConnector(options);
+			// Through a chained proxy, each stream would need its own tunnel.
+			m_http2 = options.isHTTP2() && chainedHTTPSProxy == null && ApplicationProtocols.isAvailable();
+			m_upstreamIdleTimeout = options.getUpstreamPoolIdleTimeout();
+			// A chained proxy answers the CONNECT itself.
+			m_optimisticConnect = options.isOptimisticConnect() && chainedHTTPSProxy == null;
+			m_responseCache = options.getResponseCache();
+			// The tunnel through a chained proxy carries a single connection.
+			m_upstreamTransports = new UpstreamTransportFactory(options.isUpstreamHTTP2() && chainedHTTPSProxy == null,
+							m_upstreamIdleTimeout, getLogger());
+			if (m_sslEngineFactory != null) {
+				m_sslEngineFactory.configureSessionCache(options.getSSLSessionCacheSize(),
+								options.getSSLSessionTimeout());
+			}
+			if (sslSocketFactory instanceof TCPProxySSLSocketFactoryImplementationEx) {
+				((TCPProxySSLSocketFactoryImplementationEx) sslSocketFactory).configureSessionCache(
+								options.getSSLSessionCacheSize(), options.getSSLSessionTimeout(),
+								m_sessionCacheStatistics);
+				((TCPProxySSLSocketFactoryImplementationEx) sslSocketFactory).setConnector(m_connector);
+			}
+		}
+
+		/**
+		 * Check if the SSL connections of the browser are terminated in process.
+		 * 
+		 * @return true if {@link #launchInProcessConnection} should be used.
+		 */
+		public boolean isInProcess() {
+			return m_sslEngineFactory != null;
+		}
+
+		/**
+		 * Terminate the SSL connection of the browser on the given streams with an
+		 * {@link javax.net.ssl.SSLEngine}, and launch a thread pair which filters the decrypted
+		 * bytes. Unlike {@link #prepareNewConnection}, no loopback connection to this engine is
+		 * made. The SSL handshake with the browser runs in the calling thread. If HTTP/2 is
+		 * enabled and the browser chooses it, an {@link HTTP2Session} is launched instead.
+		 * 
+		 * @param in
+		 *            input stream from the browser, positioned after the CONNECT request
+		 * @param out
+		 *            output stream to the browser
+		 * @param clientEndPoint
+		 *            client end point
+		 * @param remoteEndPoint
+		 *            remote end point
+		 * @throws IOException
+		 *             exception
+		 */
+		public void launchInProcessConnection(BufferedInputStream in, OutputStream out, EndPoint clientEndPoint,
+						EndPoint remoteEndPoint) throws IOException {
+
+			getLogger().debug("launchInProcessConnection for {} -> {}", clientEndPoint, remoteEndPoint);
+
+			final ProxySSLContext proxySSLContext = m_proxySSLContextFactory.prepareConnection(in, out);
+			final UpstreamTransport remoteTransport;
+			if (m_optimisticConnect) {
+				remoteTransport = openUpstreamInBackground(proxySSLContext, remoteEndPoint, in, out);
+			} else {
 				try {
-					connection = m_nextConnection.take();
-				} catch (InterruptedException e1) {
-					throw new UncheckedInterruptedException(e1);
+					remoteTransport = openUpstream(proxySSLContext, remoteEndPoint);
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					proxySSLContext.sendBadGatewayResponse(logIOException(e));
+					Closer.close(out);
+					return;
+				}
+			}
+
+			try {
+				proxySSLContext.sendResponse();
+
+				// The browser names the host it expects a certificate for in the ClientHello.
+				final String serverName = TLSClientHello.peekServerName(in);
+				final EndPoint sslEndPoint = serverName != null ? new EndPoint(serverName, remoteEndPoint.getPort())
+								: remoteEndPoint;
+				final SSLEngine sslEngine = m_sslEngineFactory.createServerEngine(sslEndPoint);
+				if (m_http2) {
+					ApplicationProtocols.offer(sslEngine, ApplicationProtocols.HTTP_2, ApplicationProtocols.HTTP_1_1);
+				}
+				final SSLEngineStreams browserStreams = new SSLEngineStreams(sslEngine, in, out);
+				final long handshakeStartTime = System.currentTimeMillis();
+				browserStreams.handshake();
+				m_sessionCacheStatistics.browserHandshakeCompleted(sslEngine.getSession(), handshakeStartTime);
+
+				if (ApplicationProtocols.HTTP_2.equals(ApplicationProtocols.getNegotiated(sslEngine))) {
+					new HTTP2Session(browserStreams, clientEndPoint, remoteEndPoint, proxySSLContext,
+									remoteTransport);
+					return;
+				}
+
+				final ConnectionDetails connectionDetails = new ConnectionDetails(clientEndPoint, remoteEndPoint,
+								true);
+				launchFilterThreadPair(browserStreams.getInputStream(), browserStreams.getOutputStream(),
+								remoteTransport, connectionDetails);
+			} catch (IOException e) {
+				UpstreamTransportFactory.close(remoteTransport);
+				throw e;
+			}
+		}
+
+		/**
+		 * Set the DelegateSSLEngine up with the context required to establish a delegate
+		 * connection, and return an unconnected socket which identifies the connection. The caller
+		 * should connect it to {@link #getListenEndPoint()}, or call
+		 * {@link #cancelConnection(Socket)} if it fails to.
+		 * 
+		 * @param in
+		 *            input stream
+		 * @param out
+		 *            output stream
+		 * @param clientEndPoint
+		 *            client end point
+		 * @param remoteEndPoint
+		 *            remote end point
+		 * @param socket
+		 *            unconnected socket which will be bound to identify the connection
+		 * @throws IOException
+		 *             exception
+		 */
+		public void prepareNewConnection(BufferedInputStream in, OutputStream out, EndPoint clientEndPoint,
+						EndPoint remoteEndPoint, Socket socket) throws IOException {
+
+			getLogger().debug("prepareNewConnection for {} -> {}", clientEndPoint, remoteEndPoint);
+
+			final ProxySSLContext proxySSLContext = m_proxySSLContextFactory.prepareConnection(in, out);
+			UpstreamTransport remoteTransport = null;
+			try {
+				if (m_optimisticConnect) {
+					// The browser starts its handshake while the loopback connection and the
+					// server connection are made.
+					remoteTransport = openUpstreamInBackground(proxySSLContext, remoteEndPoint, in, out);
+					proxySSLContext.sendResponse();
 				}
+				socket.bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+			} catch (IOException e) {
+				UpstreamTransportFactory.close(remoteTransport);
+				throw e;
+			}
+			m_pendingConnections.put(socket.getLocalPort(), new ConnectionState(clientEndPoint, remoteEndPoint,
+							proxySSLContext, remoteTransport));
+		}
 
+		/**
+		 * Forget the context of a connection which could not be made.
+		 * 
+		 * @param socket
+		 *            socket passed to {@link #prepareNewConnection}
+		 */
+		public void cancelConnection(Socket socket) {
+			if (socket.getLocalPort() > 0) {
+				final ConnectionState connection = m_pendingConnections.remove(socket.getLocalPort());
+				if (connection != null) {
+					UpstreamTransportFactory.close(connection.getRemoteTransport());
+				}
+			}
+		}
+
+		/**
+		 * Get the address of {@link #getListenEndPoint()}.
+		 * 
+		 * @return socket address
+		 * @throws UnknownHostException
+		 *             never thrown for a listen address.
+		 */
+		InetSocketAddress getListenAddress() throws UnknownHostException {
+			final EndPoint endPoint = getListenEndPoint();
+			return new InetSocketAddress(InetAddress.getByName(endPoint.getHost()), endPoint.getPort());
+		}
+
+		@Override
+		public void run() {
+
+			while (true) {
 				final Socket localSocket;
 
 				try {
@@ -606,45 +1430,581 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					continue;
 				}
 
-				final EndPoint clientEndPoint = connection.getClientEndPoint();
-				final EndPoint remoteEndPoint = connection.getRemoteEndPoint();
-				final ProxySSLContext proxySSLContext = connection.getProxySSLContext();
+				final ConnectionState connection = m_pendingConnections.remove(localSocket.getPort());
 
-				getLogger().debug("Creating connection threads for {} -> {}", clientEndPoint, remoteEndPoint);
+				if (connection == null) {
+					getLogger().error("Unexpected connection to the delegate HTTPS engine from {}", localSocket);
+					closeQuietly(localSocket);
+					continue;
+				}
+
+				if (localSocket instanceof SSLSocket) {
+					((SSLSocket) localSocket).addHandshakeCompletedListener(m_sessionCacheStatistics
+									.createBrowserListener());
+				}
 
 				try {
-					launchThreadPair(localSocket, proxySSLContext.createProxyClientSocket(remoteEndPoint),
-									clientEndPoint, remoteEndPoint, true);
+					m_connectionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							launchConnection(localSocket, connection);
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					closeQuietly(localSocket);
+				}
+			}
+		}
 
-					// Send a response back to the browser.
-					proxySSLContext.sendResponse();
+		private void launchConnection(Socket localSocket, ConnectionState connection) {
+			final EndPoint clientEndPoint = connection.getClientEndPoint();
+			final EndPoint remoteEndPoint = connection.getRemoteEndPoint();
+			final ProxySSLContext proxySSLContext = connection.getProxySSLContext();
+
+			getLogger().debug("Creating connection threads for {} -> {}", clientEndPoint, remoteEndPoint);
+
+			try {
+				if (connection.getRemoteTransport() != null) {
+					// Answered already by prepareNewConnection().
+					launchFilterThreadPair(localSocket.getInputStream(), localSocket.getOutputStream(),
+									connection.getRemoteTransport(), new ConnectionDetails(clientEndPoint,
+													remoteEndPoint, true));
+					return;
+				}
 
-					getLogger().debug("Flushed response to {}", clientEndPoint);
+				final UpstreamTransport remoteTransport;
+				try {
+					remoteTransport = openUpstream(proxySSLContext, remoteEndPoint);
 				} catch (IOException e) {
 					UncheckedInterruptedException.ioException(e);
+					// The browser still waits for the answer to its CONNECT request.
+					proxySSLContext.sendBadGatewayResponse(logIOException(e));
+					closeQuietly(localSocket);
+					return;
+				}
 
-					if (isStopped()) {
-						break;
+				launchFilterThreadPair(localSocket.getInputStream(), localSocket.getOutputStream(),
+								remoteTransport, new ConnectionDetails(clientEndPoint, remoteEndPoint, true));
+
+				// Send a response back to the browser.
+				proxySSLContext.sendResponse();
+
+				getLogger().debug("Flushed response to {}", clientEndPoint);
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+
+				if (!isStopped()) {
+					logIOException(e);
+				}
+
+				UpstreamTransportFactory.close(connection.getRemoteTransport());
+				closeQuietly(localSocket);
+			}
+		}
+
+		/**
+		 * Same as {@link #launchThreadPair}, but the threads read into pooled buffers.
+		 */
+		private void launchFilterThreadPair(InputStream browserIn, OutputStream browserOut,
+						UpstreamTransport remoteTransport, ConnectionDetails connectionDetails) throws IOException {
+			final TCPProxyResponseCache.Exchange exchange = m_responseCache.isEnabled() ? m_responseCache
+							.createExchange(connectionDetails.getRemoteEndPoint(), browserOut) : null;
+			new PooledFilteredStreamThread(browserIn, new OutputStreamFilterTee(connectionDetails,
+							remoteTransport.getOutputStream(), getRequestFilter(), getRequestColour()), exchange, true);
+			new PooledFilteredStreamThread(remoteTransport.getInputStream(), new OutputStreamFilterTee(
+							connectionDetails.getOtherEnd(), browserOut, getResponseFilter(), getResponseColour()),
+							exchange, false);
+		}
+
+		/**
+		 * Open the upstream transport of a browser connection. With upstream HTTP/2, the
+		 * connection to the server may already be open, and shared.
+		 */
+		private UpstreamTransport openUpstream(final ProxySSLContext proxySSLContext, EndPoint remoteEndPoint)
+						throws IOException {
+			return m_upstreamTransports.open(remoteEndPoint, new UpstreamTransportFactory.Connector() {
+				@Override
+				public Socket connect(EndPoint endPoint) throws IOException {
+					return proxySSLContext.createProxyClientSocket(endPoint);
+				}
+
+				@Override
+				public void startReader(InterruptibleRunnable reader, String name, InputStream in) {
+					startStreamThread(reader, name, in);
+				}
+			});
+		}
+
+		/**
+		 * Start connecting to the server of a browser connection, and return a transport which
+		 * buffers the requests until the connection is made. If it fails, the browser connection
+		 * is closed, as if the server closed the tunnel.
+		 */
+		private UpstreamTransport openUpstreamInBackground(final ProxySSLContext proxySSLContext,
+						final EndPoint remoteEndPoint, final InputStream browserIn, final OutputStream browserOut) {
+			final DeferredUpstreamTransport transport = new DeferredUpstreamTransport(remoteEndPoint);
+			startStreamThread(new InterruptibleRunnable() {
+				@Override
+				public void interruptibleRun() {
+					try {
+						transport.connected(openUpstream(proxySSLContext, remoteEndPoint));
+					} catch (IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						transport.failed(e);
+						Closer.close(browserOut);
+						Closer.close(browserIn);
+						if (!isStopped()) {
+							logIOException(e);
+						}
 					}
+				}
+			}, "Connect to " + remoteEndPoint, null);
+			return transport;
+		}
+
+		private void startStreamThread(InterruptibleRunnable runnable, String name, InputStream in) {
+			if (m_streamExecutor != null) {
+				m_streamExecutor.execute(new InterruptibleRunnableAdapter(runnable));
+			} else {
+				new StreamThread(runnable, name, in).start();
+			}
+		}
 
+		/**
+		 * {@link FilteredStreamThread} which reads into a buffer leased from the buffer pool. The
+		 * requests which the response cache answers are not sent on.
+		 */
+		private final class PooledFilteredStreamThread implements InterruptibleRunnable {
+			private final InputStream m_in;
+			private final OutputStreamFilterTee m_outputStreamFilterTee;
+			private final TCPProxyResponseCache.Exchange m_exchange;
+			private final boolean m_requests;
+
+			PooledFilteredStreamThread(InputStream in, OutputStreamFilterTee outputStreamFilterTee,
+							TCPProxyResponseCache.Exchange exchange, boolean requests) {
+				m_in = in;
+				m_outputStreamFilterTee = outputStreamFilterTee;
+				m_exchange = exchange;
+				m_requests = requests;
+				startStreamThread(this, "Filter thread for " + outputStreamFilterTee.getConnectionDetails(), m_in);
+			}
+
+			@Override
+			public void interruptibleRun() {
+				m_outputStreamFilterTee.connectionOpened();
+				final byte[] buffer = m_bufferPool.lease();
+				try {
+					int bytesRead;
+					while ((bytesRead = m_in.read(buffer, 0, buffer.length)) != -1) {
+						if (m_exchange != null) {
+							if (!m_requests) {
+								m_exchange.response(buffer, 0, bytesRead);
+							} else if (m_exchange.request(buffer, bytesRead)) {
+								continue;
+							}
+						}
+						m_outputStreamFilterTee.handle(buffer, bytesRead);
+					}
+				} catch (SocketException e) {
+					noOp();
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
+					logIOException(e);
+				} finally {
+					if (m_exchange != null) {
+						m_exchange.closed();
+					}
+					m_outputStreamFilterTee.connectionClosed();
+					m_bufferPool.release(buffer);
+				}
+				Closer.close(m_in);
+			}
+		}
+
+		/**
+		 * HTTP/2 connection of a browser, whose streams are sent upstream as HTTP/1.1 requests.
+		 *
+		 * Each stream is filtered as a connection of its own, whose client end point carries the
+		 * stream identifier, so the recording sees one request per connection, as it does for
+		 * HTTP/1.1. Up to {@link #MAX_UPSTREAM_CONNECTIONS}
+		 * workers send the requests of the session, each over an upstream transport which it
+		 * keeps until it has been idle for the upstream pool idle timeout. With upstream HTTP/2,
+		 * the transports are streams of one connection to the server.
+		 */
+		private final class HTTP2Session implements InterruptibleRunnable, HTTP2ServerConnection.RequestHandler {
+
+			// As many as a browser opens to one server over HTTP/1.1.
+			private static final int MAX_UPSTREAM_CONNECTIONS = 6;
+
+			private final SSLEngineStreams m_browserStreams;
+			private final HTTP2ServerConnection m_connection;
+			private final EndPoint m_clientEndPoint;
+			private final EndPoint m_remoteEndPoint;
+			private final ProxySSLContext m_proxySSLContext;
+
+			private final Lock m_lock = new ReentrantLock();
+			private final Condition m_requestQueued = m_lock.newCondition();
+			// Guarded by m_lock.
+			private final LinkedList<HTTP2ServerConnection.Stream> m_requests = //
+			new LinkedList<HTTP2ServerConnection.Stream>();
+			private int m_workers = 0;
+			private int m_idleWorkers = 0;
+			private boolean m_closed = false;
+			// The connection opened before the handshake, until the first worker takes it.
+			private UpstreamTransport m_firstTransport;
+
+			HTTP2Session(SSLEngineStreams browserStreams, EndPoint clientEndPoint, EndPoint remoteEndPoint,
+							ProxySSLContext proxySSLContext, UpstreamTransport firstTransport) {
+				m_browserStreams = browserStreams;
+				m_connection = new HTTP2ServerConnection(browserStreams.getInputStream(),
+								browserStreams.getOutputStream(), this);
+				m_clientEndPoint = clientEndPoint;
+				m_remoteEndPoint = remoteEndPoint;
+				m_proxySSLContext = proxySSLContext;
+				m_firstTransport = firstTransport;
+				startStreamThread(this, "HTTP/2 session for " + clientEndPoint + " -> " + remoteEndPoint,
+								browserStreams.getInputStream());
+			}
+
+			@Override
+			public void interruptibleRun() {
+				try {
+					m_connection.run();
+				} catch (SocketException e) {
+					noOp();
+				} catch (IOException e) {
+					UncheckedInterruptedException.ioException(e);
 					logIOException(e);
+				} finally {
+					Closer.close(m_browserStreams.getOutputStream());
+					Closer.close(m_browserStreams.getInputStream());
+				}
+			}
+
+			@Override
+			public void requestReceived(HTTP2ServerConnection.Stream stream) {
+				final boolean startWorker;
+				m_lock.lock();
+				try {
+					m_requests.add(stream);
+					startWorker = m_requests.size() > m_idleWorkers && m_workers < MAX_UPSTREAM_CONNECTIONS;
+					if (startWorker) {
+						++m_workers;
+					} else {
+						m_requestQueued.signal();
+					}
+				} finally {
+					m_lock.unlock();
+				}
+				if (startWorker) {
+					startStreamThread(new HTTP2UpstreamWorker(), "HTTP/2 upstream for " + m_remoteEndPoint, null);
+				}
+			}
+
+			@Override
+			public void connectionClosed() {
+				final UpstreamTransport firstTransport;
+				m_lock.lock();
+				try {
+					m_closed = true;
+					m_requests.clear();
+					m_requestQueued.signalAll();
+					firstTransport = m_firstTransport;
+					m_firstTransport = null;
+				} finally {
+					m_lock.unlock();
+				}
+				UpstreamTransportFactory.close(firstTransport);
+			}
 
+			/**
+			 * Wait for the next request.
+			 *
+			 * @return request, or {@code null} if the worker should end
+			 */
+			private HTTP2ServerConnection.Stream nextRequest() {
+				m_lock.lock();
+				try {
+					++m_idleWorkers;
+					long remaining = TimeUnit.MILLISECONDS.toNanos(m_upstreamIdleTimeout);
+					while (m_requests.isEmpty() && !m_closed && remaining > 0) {
+						remaining = m_requestQueued.awaitNanos(remaining);
+					}
+					--m_idleWorkers;
+					if (m_requests.isEmpty() || m_closed) {
+						--m_workers;
+						return null;
+					}
+					return m_requests.removeFirst();
+				} catch (InterruptedException e) {
+					--m_idleWorkers;
+					--m_workers;
+					throw new UncheckedInterruptedException(e);
+				} finally {
+					m_lock.unlock();
+				}
+			}
+
+			private UpstreamTransport takeFirstTransport() {
+				m_lock.lock();
+				try {
+					final UpstreamTransport transport = m_firstTransport;
+					m_firstTransport = null;
+					return transport;
+				} finally {
+					m_lock.unlock();
+				}
+			}
+
+			/**
+			 * Sends the requests of the session over one upstream transport.
+			 */
+			private final class HTTP2UpstreamWorker implements InterruptibleRunnable {
+				private UpstreamTransport m_transport = takeFirstTransport();
+
+				@Override
+				public void interruptibleRun() {
 					try {
-						localSocket.close();
-					} catch (IOException closeException) {
-						throw new AssertionError(closeException);
+						HTTP2ServerConnection.Stream stream;
+						while ((stream = nextRequest()) != null) {
+							if (!stream.isReset()) {
+								exchange(stream);
+							}
+						}
+					} finally {
+						UpstreamTransportFactory.close(m_transport);
+					}
+				}
+
+				private void exchange(HTTP2ServerConnection.Stream stream) {
+					final HTTP2ResponseWriter responseWriter = new HTTP2ResponseWriter(stream);
+					final byte[] body = stream.getBody();
+					final String requestHead = HTTP2Messages.toHTTP11Request(stream.getHeaders(),
+									m_remoteEndPoint.toString(), body.length);
+					final String method = stream.getHeader(":method");
+
+					try {
+						if ("CONNECT".equals(method)) {
+							stream.writeHeaders(501, Collections.<Pair<String, String>> emptyList(), true);
+							return;
+						}
+						if (requestHead == null) {
+							stream.reset(HTTP2ServerConnection.PROTOCOL_ERROR);
+							return;
+						}
+						if (m_transport == null) {
+							m_transport = openUpstream(m_proxySSLContext, m_remoteEndPoint);
+						}
+					} catch (IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						responseWriter.fail(logIOException(e));
+						return;
+					}
+
+					// The filters keep a handler per connection details, and the streams of the
+					// session run at the same time, so each stream has a client end point of its own.
+					final ConnectionDetails connectionDetails = new ConnectionDetails(new EndPoint(
+									m_clientEndPoint.getHost() + "#" + stream.getId(), m_clientEndPoint.getPort()),
+									m_remoteEndPoint, true);
+					final OutputStreamFilterTee requestTee;
+					try {
+						// The tee closes its stream when the stream ends, but the connection is kept.
+						requestTee = new OutputStreamFilterTee(connectionDetails, new UncloseableOutputStream(
+										m_transport.getOutputStream()), getRequestFilter(), getRequestColour());
+					} catch (IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						responseWriter.fail(logIOException(e));
+						UpstreamTransportFactory.close(m_transport);
+						m_transport = null;
+						return;
+					}
+					final OutputStreamFilterTee responseTee = new OutputStreamFilterTee(
+									connectionDetails.getOtherEnd(), responseWriter, getResponseFilter(),
+									getResponseColour());
+
+					requestTee.connectionOpened();
+					responseTee.connectionOpened();
+					final byte[] buffer = m_bufferPool.lease();
+					boolean reusable = false;
+
+					try {
+						responseWriter.m_framer.requestSent("HEAD".equals(method));
+						send(requestTee, requestHead.getBytes("ISO-8859-1"), buffer);
+						send(requestTee, body, buffer);
+						m_transport.getOutputStream().flush();
+
+						final InputStream in = m_transport.getInputStream();
+						while (!responseWriter.m_complete) {
+							final int bytesRead = in.read(buffer);
+							if (bytesRead == -1) {
+								responseWriter.m_framer.connectionClosed();
+								responseWriter.checkError();
+								break;
+							}
+							responseTee.handle(buffer, bytesRead);
+						}
+
+						if (responseWriter.m_complete) {
+							reusable = responseWriter.m_framer.isIdle() && responseWriter.m_framer.isReusable();
+						} else {
+							responseWriter.fail("Connection closed by " + m_remoteEndPoint);
+						}
+					} catch (HTTP2ServerConnection.StreamResetException e) {
+						// The browser cancelled the request.
+						noOp();
+					} catch (IOException e) {
+						UncheckedInterruptedException.ioException(e);
+						responseWriter.fail(logIOException(e));
+					} finally {
+						responseTee.connectionClosed();
+						requestTee.connectionClosed();
+						m_bufferPool.release(buffer);
+						if (!reusable) {
+							UpstreamTransportFactory.close(m_transport);
+							m_transport = null;
+						}
+					}
+				}
+
+				private void send(OutputStreamFilterTee tee, byte[] bytes, byte[] buffer) throws IOException {
+					for (int offset = 0; offset < bytes.length; offset += buffer.length) {
+						final int length = Math.min(buffer.length, bytes.length - offset);
+						System.arraycopy(bytes, offset, buffer, 0, length);
+						tee.handle(buffer, length);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Writes the filtered HTTP/1.1 response of a stream to the browser as HTTP/2 frames. The
+		 * headers are held back until the body starts, so a response without a body takes one
+		 * frame.
+		 */
+		private static final class HTTP2ResponseWriter extends OutputStream implements HTTPResponseFramer.Listener {
+			private static final byte[] EMPTY = new byte[0];
+
+			private final HTTP2ServerConnection.Stream m_stream;
+			private final HTTPResponseFramer m_framer = new HTTPResponseFramer(this);
+			private IOException m_error;
+			private int m_status;
+			private List<Pair<String, String>> m_headers;
+			private boolean m_headersSent = false;
+			private boolean m_complete = false;
+
+			HTTP2ResponseWriter(HTTP2ServerConnection.Stream stream) {
+				m_stream = stream;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buffer, int offset, int length) throws IOException {
+				m_framer.feed(buffer, offset, length);
+				checkError();
+			}
+
+			void checkError() throws IOException {
+				if (m_error != null) {
+					throw m_error;
+				}
+			}
+
+			@Override
+			public void responseHeaders(int status, List<String> headerLines) {
+				m_status = status;
+				m_headers = HTTP2Messages.toHTTP2Headers(headerLines);
+			}
+
+			@Override
+			public void body(byte[] buffer, int offset, int length) {
+				if (m_error == null) {
+					try {
+						sendHeaders(false);
+						m_stream.writeData(buffer, offset, length, false);
+					} catch (IOException e) {
+						m_error = e;
 					}
 				}
 			}
+
+			@Override
+			public void endOfMessage() {
+				if (m_error == null) {
+					try {
+						if (m_headersSent) {
+							m_stream.writeData(EMPTY, 0, 0, true);
+						} else {
+							sendHeaders(true);
+						}
+						m_complete = true;
+					} catch (IOException e) {
+						m_error = e;
+					}
+				}
+			}
+
+			private void sendHeaders(boolean endStream) throws IOException {
+				if (!m_headersSent) {
+					m_headersSent = true;
+					m_stream.writeHeaders(m_status, m_headers, endStream);
+				}
+			}
+
+			/**
+			 * End a stream whose response could not be completed: with a 502 response if nothing
+			 * has been sent yet, otherwise with a reset.
+			 *
+			 * @param description
+			 *            description of the failure
+			 */
+			void fail(String description) {
+				try {
+					if (m_headersSent) {
+						m_stream.reset(HTTP2ServerConnection.INTERNAL_ERROR);
+					} else {
+						m_headersSent = true;
+						final byte[] message = description.getBytes("ISO-8859-1");
+						final List<Pair<String, String>> headers = newArrayList();
+						headers.add(Pair.of("content-type", "text/plain"));
+						headers.add(Pair.of("content-length", Integer.toString(message.length)));
+						m_stream.writeHeaders(502, headers, false);
+						m_stream.writeData(message, 0, message.length, true);
+					}
+				} catch (IOException e) {
+					// The browser has gone.
+					UncheckedInterruptedException.ioException(e);
+				}
+			}
+		}
+
+		private void closeQuietly(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException closeException) {
+				throw new AssertionError(closeException);
+			}
 		}
 
 		/**
-		 * Override to interrupt our queue.
+		 * Override to stop the connection set up.
 		 */
 		@Override
 		public void stop() {
 			super.stop();
-			m_nextConnection.offer(new ConnectionState(null, null, null));
+			m_connectionExecutor.shutdownNow();
+			if (m_streamExecutor != null) {
+				m_streamExecutor.shutdownNow();
+			}
+			for (ConnectionState connection : m_pendingConnections.values()) {
+				UpstreamTransportFactory.close(connection.getRemoteTransport());
+			}
+			m_pendingConnections.clear();
+			m_upstreamTransports.close();
+			m_proxySSLContextFactory.close();
 		}
 
 		private final class SimpleContextFactory implements ProxySSLContextFactory {
@@ -659,14 +2019,13 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					public void sendResponse() throws IOException {
 						// Send a 200 response to send to client. Client
 						// will now start sending SSL data to localSocket.
-						final StringBuilder response = new StringBuilder();
-						response.append("HTTP/1.0 200 OK\r\n");
-						response.append("Proxy-agent: The Grinder/");
-						response.append(GrinderBuild.getVersionString());
-						response.append("\r\n");
-						response.append("\r\n");
-
-						out.write(response.toString().getBytes());
+						out.write(createConnectResponse());
+						out.flush();
+					}
+
+					@Override
+					public void sendBadGatewayResponse(String description) throws IOException {
+						out.write(createBadGatewayResponse(description));
 						out.flush();
 					}
 
@@ -676,6 +2035,11 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 					}
 				};
 			}
+
+			@Override
+			public void close() {
+				// Nothing is kept between connections.
+			}
 		}
 
 		/**
@@ -684,22 +2048,35 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 		private final class HTTPSProxyContextFactory implements ProxySSLContextFactory {
 
 			private final EndPoint m_httpsProxy;
+			private final String m_poolKey;
+			private final UpstreamConnectionPool<ChainedProxyConnection> m_idleConnections;
+			private final boolean m_spare;
+			private final AtomicBoolean m_openingSpare = new AtomicBoolean(false);
+
+			// Ends the wait for the next request of a browser after a non-200 response.
+			private final Timer m_browserTimer = new Timer("tcp_proxy_https_proxy_negotiation", true);
 
 			/**
 			 * Constructor.
 			 * 
 			 * @param chainedHTTPSProxy
 			 *            HTTPS proxy to direct connections through.
+			 * @param options
+			 *            options of the pool of idle proxy connections
 			 */
-			public HTTPSProxyContextFactory(EndPoint chainedHTTPSProxy) {
+			public HTTPSProxyContextFactory(EndPoint chainedHTTPSProxy, HTTPProxyEngineOptions options) {
 				m_httpsProxy = chainedHTTPSProxy;
+				m_poolKey = chainedHTTPSProxy.toString();
+				m_idleConnections = new UpstreamConnectionPool<ChainedProxyConnection>(options.getUpstreamPoolMaxIdle(),
+								options.getUpstreamPoolMaxIdlePerHost(), options.getUpstreamPoolIdleTimeout());
+				m_spare = options.isChainedProxySpare() && options.getUpstreamPoolMaxIdle() > 0;
 			}
 
 			/**
 			 * Negotiate a connection to the remote proxy and pass requests and responses between
 			 * the browser and the remote proxy until the proxy returns a 200 or closes the
 			 * connection. This should handle multistage proxy authentication protocols such as NTLM
-			 * and Negotiate.
+			 * and Negotiate, which need the same proxy connection for every stage.
 			 * 
 			 * <p>
 			 * The final 200 response is not sent to the browser by this method; instead, we return
@@ -709,7 +2086,8 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 			 * 
 			 * <p>
 			 * If the negotiation was unsuccessful, one of the parties will close a connection and
-			 * we'll throw an {@link IOException}
+			 * we'll throw an {@link IOException}. A proxy connection which is still open between
+			 * responses is kept for the next CONNECT.
 			 * </p>
 			 * 
 			 * @param in
@@ -726,73 +2104,48 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 
 				// Rewind input stream to start of CONNECT header.
 				in.reset();
+				byte[] request = ChainedProxyConnection.readHead(in);
 
-				final Socket socket;
-
-				try {
-					socket = new Socket(m_httpsProxy.getHost(), m_httpsProxy.getPort());
-				} catch (ConnectException e) {
-					throw new VerboseConnectException(e, "HTTPS proxy " + m_httpsProxy);
+				ChainedProxyConnection connection = m_idleConnections.lease(m_poolKey);
+				boolean reused = connection != null;
+				if (connection == null) {
+					connection = connect();
 				}
+				openSpare();
 
-				while (true) {
-					// Use a buffered output stream so the output is flushed as one.
-					final OutputStream proxyRequest = new BufferedOutputStream(socket.getOutputStream());
-
-					final byte[] buffer = new byte[1024];
-
-					final InputStream proxyResponse = socket.getInputStream();
-
-					// Non-blocking read.
-					while (in.available() > 0) {
-						final int n = in.read(buffer);
-
-						if (n > 0) {
-							proxyRequest.write(buffer, 0, n);
-						}
-					}
-
-					proxyRequest.flush();
-
-					// Wait for response.
-
-					for (int i = 0; i < CONNECTION_TIMEOUT && proxyResponse.available() == 0; i += 10) {
-						sleep(10);
-					}
-
-					if (proxyResponse.available() == 0) {
-						throw new IOException("HTTPS proxy " + m_httpsProxy + " failed to respond after "
-										+ CONNECTION_TIMEOUT + " ms");
-					}
-
-					// We've got a live one. Parse its response.
-					final ByteArrayOutputStream responseBytes = new ByteArrayOutputStream();
-
-					// Non-blocking read.
-					while (proxyResponse.available() > 0) {
-						final int n = proxyResponse.read(buffer);
-
-						if (n > 0) {
-							responseBytes.write(buffer, 0, n);
+				try {
+					while (true) {
+						final ChainedProxyConnection.Response response;
+						try {
+							response = connection.exchange(request);
+						} catch (IOException e) {
+							if (!reused) {
+								throw e;
+							}
+							// The proxy has closed the idle connection.
+							UncheckedInterruptedException.ioException(e);
+							connection.discard();
+							connection = connect();
+							reused = false;
+							continue;
 						}
-					}
-
-					final byte[] bytesRead = responseBytes.toByteArray();
+						reused = false;
 
-					final String bufferAsString = new String(bytesRead, "US-ASCII");
-
-					final Matcher statusCodeMatcher = m_httpsProxyResponsePattern.matcher(bufferAsString);
-
-					if (statusCodeMatcher.find()) {
-						final String statusCode = statusCodeMatcher.group(1);
-
-						if ("200".equals(statusCode)) {
+						if (response.isSuccessful()) {
+							final Socket socket = connection.getSocket();
+							connection = null;
 							return new ProxySSLContext() {
 								@Override
 								public void sendResponse() throws IOException {
 									// Chuck the chained proxy's final response back to
 									// the browser.
-									out.write(bytesRead);
+									out.write(response.getHead());
+									out.flush();
+								}
+
+								@Override
+								public void sendBadGatewayResponse(String description) throws IOException {
+									out.write(createBadGatewayResponse(description));
 									out.flush();
 								}
 
@@ -802,25 +2155,101 @@ public final class HTTPProxyTCPProxyEngineEx extends AbstractTCPProxyEngine {
 								}
 							};
 						}
-					}
 
-					getLogger().debug("Non-200 response from delegate HTTPS proxy, " + "returning to browser\n{}",
-									bufferAsString);
+						getLogger().debug("{} response from delegate HTTPS proxy, returning to browser",
+										response.getStatus());
 
-					// Not a 200, flush directly back to the browser.
-					out.write(bytesRead);
-					out.flush();
+						// Not a 200, flush directly back to the browser.
+						out.write(response.getHead());
+						connection.relayBody(response, out);
+						out.flush();
 
-					// Wait for request.
+						request = awaitRequest(in);
+						if (!connection.isIdle()) {
+							// The proxy closed the connection after the response.
+							connection.discard();
+							connection = connect();
+						}
+					}
+				} finally {
+					if (connection != null) {
+						release(connection);
+					}
+				}
+			}
 
-					for (int i = 0; i < CONNECTION_TIMEOUT && in.available() == 0; i += 10) {
-						sleep(10);
+			/**
+			 * Close the browser connection if it sends no request in time.
+			 */
+			private byte[] awaitRequest(final InputStream in) throws IOException {
+				final TimerTask timeout = new TimerTask() {
+					@Override
+					public void run() {
+						Closer.close(in);
 					}
+				};
+				m_browserTimer.schedule(timeout, CONNECTION_TIMEOUT);
 
-					if (in.available() == 0) {
+				final byte[] request;
+				try {
+					request = ChainedProxyConnection.readHead(in);
+				} finally {
+					if (!timeout.cancel()) {
 						throw new IOException("Timed out waiting for browser after " + CONNECTION_TIMEOUT + " ms");
 					}
 				}
+				if (request == null) {
+					throw new EOFException("Browser closed the connection during the HTTPS proxy negotiation");
+				}
+				return request;
+			}
+
+			private ChainedProxyConnection connect() throws IOException {
+				try {
+					return new ChainedProxyConnection(m_connector.connect(m_httpsProxy), m_httpsProxy,
+									(int) CONNECTION_TIMEOUT);
+				} catch (ConnectException e) {
+					throw new VerboseConnectException(e, "HTTPS proxy " + m_httpsProxy);
+				}
+			}
+
+			private void release(ChainedProxyConnection connection) {
+				if (!connection.isIdle() || !m_idleConnections.release(m_poolKey, connection)) {
+					connection.discard();
+				}
+			}
+
+			/**
+			 * Open a connection for the next CONNECT in the background, unless one is idle.
+			 */
+			private void openSpare() {
+				if (!m_spare || m_idleConnections.getIdleCount() > 0 || !m_openingSpare.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					m_connectionExecutor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								release(connect());
+							} catch (IOException e) {
+								UncheckedInterruptedException.ioException(e);
+								getLogger().debug("Failed to open a spare connection to {}", m_httpsProxy);
+							} finally {
+								m_openingSpare.set(false);
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Stopped.
+					m_openingSpare.set(false);
+				}
+			}
+
+			@Override
+			public void close() {
+				m_browserTimer.cancel();
+				m_idleConnections.close();
 			}
 		}
 	}
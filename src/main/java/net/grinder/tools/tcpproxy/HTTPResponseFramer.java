@@ -0,0 +1,357 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Follows the responses read from an upstream HTTP/1.x connection, to tell when the connection is
+ * between responses and may be used by another browser connection.
+ *
+ * Only the message framing is parsed: the status line, the headers which delimit the body, and
+ * the chunk sizes of a chunked body. A connection whose response is delimited by the end of the
+ * connection, or which asks to be closed, is never reusable.
+ *
+ * A {@link Listener} also gets the header lines and the body bytes of the final responses, with
+ * the chunked encoding removed, so the responses can be framed again for another protocol.
+ *
+ * @since 3.3
+ */
+final class HTTPResponseFramer {
+
+	/**
+	 * Receives the parts of the final responses. Called in the thread which feeds the framer.
+	 */
+	interface Listener {
+
+		/**
+		 * The headers of a final response are complete.
+		 *
+		 * @param status
+		 *            status code
+		 * @param headerLines
+		 *            header lines, without the status line
+		 */
+		void responseHeaders(int status, List<String> headerLines);
+
+		/**
+		 * Body bytes of the response.
+		 *
+		 * @param buffer
+		 *            buffer
+		 * @param offset
+		 *            offset of the bytes
+		 * @param length
+		 *            number of the bytes
+		 */
+		void body(byte[] buffer, int offset, int length);
+
+		/**
+		 * The response is complete.
+		 */
+		void endOfMessage();
+	}
+
+	private enum State {
+		IDLE, STATUS_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS, UNTIL_CLOSE
+	}
+
+	private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	// One element per request waiting for a response. True for HEAD requests.
+	private final LinkedList<Boolean> m_pendingRequests = new LinkedList<Boolean>();
+	private final StringBuilder m_line = new StringBuilder();
+	private final Listener m_listener;
+	// Only collected for the listener.
+	private final List<String> m_headerLines = newArrayList();
+	private State m_state = State.IDLE;
+	private boolean m_reusable = true;
+	private long m_remaining;
+
+	private int m_status;
+	private boolean m_http10;
+	private long m_contentLength;
+	private boolean m_chunked;
+	private boolean m_close;
+	private boolean m_keepAlive;
+	// True if the response in UNTIL_CLOSE state is delimited by the end of the connection.
+	private boolean m_bodyUntilClose;
+
+	/**
+	 * Constructor for a framer which only follows the responses.
+	 */
+	HTTPResponseFramer() {
+		this(null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param listener
+	 *            receives the parts of the responses, or {@code null}
+	 */
+	HTTPResponseFramer(Listener listener) {
+		m_listener = listener;
+	}
+
+	/**
+	 * Check if the request which starts in the buffer is a HEAD request.
+	 *
+	 * @param buffer
+	 *            buffer which starts with a request line
+	 * @param length
+	 *            number of bytes in the buffer
+	 * @return true for a HEAD request
+	 */
+	static boolean isHeadRequest(byte[] buffer, int length) {
+		return length >= 5 && buffer[0] == 'H' && buffer[1] == 'E' && buffer[2] == 'A' && buffer[3] == 'D'
+						&& buffer[4] == ' ';
+	}
+
+	/**
+	 * Record a request sent on the connection.
+	 *
+	 * @param head
+	 *            true if the request method is HEAD, whose response has no body
+	 */
+	void requestSent(boolean head) {
+		m_pendingRequests.add(head);
+		if (m_state == State.IDLE) {
+			m_state = State.STATUS_LINE;
+		}
+	}
+
+	/**
+	 * Feed bytes read from the connection.
+	 *
+	 * @param buffer
+	 *            buffer
+	 * @param offset
+	 *            offset of the bytes
+	 * @param length
+	 *            number of the bytes
+	 */
+	void feed(byte[] buffer, int offset, int length) {
+		final int end = offset + length;
+		int i = offset;
+		while (i < end) {
+			switch (m_state) {
+			case BODY:
+			case CHUNK_DATA:
+				final int skipped = (int) Math.min(m_remaining, end - i);
+				if (m_listener != null && skipped > 0) {
+					m_listener.body(buffer, i, skipped);
+				}
+				i += skipped;
+				m_remaining -= skipped;
+				if (m_remaining == 0) {
+					if (m_state == State.BODY) {
+						endOfMessage();
+					} else {
+						m_state = State.CHUNK_DATA_END;
+					}
+				}
+				break;
+			case IDLE:
+				// A response nobody asked for.
+				untilClose();
+				break;
+			case UNTIL_CLOSE:
+				if (m_bodyUntilClose && m_listener != null) {
+					m_listener.body(buffer, i, end - i);
+				}
+				return;
+			default:
+				final byte b = buffer[i++];
+				if (b == '\n') {
+					final String line = m_line.toString();
+					m_line.setLength(0);
+					lineReceived(line);
+				} else if (b != '\r') {
+					m_line.append((char) (b & 0xff));
+					if (m_line.length() > MAX_LINE_LENGTH) {
+						untilClose();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check if every request sent so far has its response complete.
+	 *
+	 * @return true if the connection is between responses
+	 */
+	boolean isIdle() {
+		return m_state == State.IDLE;
+	}
+
+	/**
+	 * Check if the connection may carry more requests.
+	 *
+	 * @return false if a response asked to close the connection or was not delimited
+	 */
+	boolean isReusable() {
+		return m_reusable;
+	}
+
+	/**
+	 * Tell the framer that the connection has ended, which completes a response delimited by the
+	 * end of the connection.
+	 */
+	void connectionClosed() {
+		if (m_state == State.UNTIL_CLOSE && m_bodyUntilClose) {
+			m_bodyUntilClose = false;
+			if (m_listener != null) {
+				m_listener.endOfMessage();
+			}
+		}
+	}
+
+	private void lineReceived(String line) {
+		switch (m_state) {
+		case STATUS_LINE:
+			if (line.length() == 0) {
+				// Tolerate an empty line between responses.
+				return;
+			}
+			statusLine(line);
+			break;
+		case HEADERS:
+			if (line.length() == 0) {
+				endOfHeaders();
+			} else {
+				header(line);
+			}
+			break;
+		case CHUNK_SIZE:
+			chunkSize(line);
+			break;
+		case CHUNK_DATA_END:
+			m_state = State.CHUNK_SIZE;
+			break;
+		case TRAILERS:
+			if (line.length() == 0) {
+				endOfMessage();
+			}
+			break;
+		default:
+			throw new AssertionError(m_state);
+		}
+	}
+
+	private void statusLine(String line) {
+		if (!line.startsWith("HTTP/1.") || line.length() < 12) {
+			untilClose();
+			return;
+		}
+		try {
+			m_status = Integer.parseInt(line.substring(9, 12));
+		} catch (NumberFormatException e) {
+			untilClose();
+			return;
+		}
+		m_http10 = line.startsWith("HTTP/1.0");
+		m_contentLength = -1;
+		m_chunked = false;
+		m_close = false;
+		m_keepAlive = false;
+		m_headerLines.clear();
+		m_state = State.HEADERS;
+	}
+
+	private void header(String line) {
+		final int colon = line.indexOf(':');
+		if (m_listener != null) {
+			m_headerLines.add(line);
+		}
+		if (colon <= 0) {
+			return;
+		}
+		final String name = line.substring(0, colon).trim();
+		final String value = line.substring(colon + 1).trim().toLowerCase();
+		if ("Content-Length".equalsIgnoreCase(name)) {
+			try {
+				m_contentLength = Long.parseLong(value);
+			} catch (NumberFormatException e) {
+				m_close = true;
+			}
+		} else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+			m_chunked = value.endsWith("chunked");
+		} else if ("Connection".equalsIgnoreCase(name)) {
+			m_close |= value.contains("close");
+			m_keepAlive |= value.contains("keep-alive");
+		}
+	}
+
+	private void endOfHeaders() {
+		if (m_status == 101) {
+			// The connection now speaks another protocol.
+			untilClose();
+			return;
+		}
+		if (m_status >= 100 && m_status < 200) {
+			// Interim response. The final response follows.
+			m_state = State.STATUS_LINE;
+			return;
+		}
+		final boolean head = m_pendingRequests.removeFirst();
+		if (m_close || (m_http10 && !m_keepAlive)) {
+			m_reusable = false;
+		}
+		if (m_listener != null) {
+			m_listener.responseHeaders(m_status, m_headerLines);
+		}
+		if (head || m_status == 204 || m_status == 304) {
+			endOfMessage();
+		} else if (m_chunked) {
+			m_state = State.CHUNK_SIZE;
+		} else if (m_contentLength > 0) {
+			m_remaining = m_contentLength;
+			m_state = State.BODY;
+		} else if (m_contentLength == 0) {
+			endOfMessage();
+		} else {
+			untilClose();
+			m_bodyUntilClose = true;
+		}
+	}
+
+	private void chunkSize(String line) {
+		final int extension = line.indexOf(';');
+		final String size = (extension >= 0 ? line.substring(0, extension) : line).trim();
+		try {
+			m_remaining = Long.parseLong(size, 16);
+		} catch (NumberFormatException e) {
+			untilClose();
+			return;
+		}
+		m_state = m_remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+	}
+
+	private void endOfMessage() {
+		if (m_listener != null) {
+			m_listener.endOfMessage();
+		}
+		m_state = m_pendingRequests.isEmpty() ? State.IDLE : State.STATUS_LINE;
+	}
+
+	private void untilClose() {
+		m_reusable = false;
+		m_state = State.UNTIL_CLOSE;
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.grinder.common.Closer;
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.tools.tcpproxy.HTTPProxyEngineOptions.ThreadMode;
+
+/**
+ * Connects to the servers with the "Happy Eyeballs" algorithm of RFC 8305, so a server address
+ * which does not answer costs the attempt delay rather than the TCP connect timeout.
+ *
+ * The addresses of the host are tried in the order of the {@link ConnectStatistics}, one more
+ * each attempt delay or as soon as the attempts so far have failed. The first connected socket is
+ * returned, and the other attempts are closed. The connections to a server whose circuit is open in
+ * the {@link CircuitBreaker} fail at once.
+ *
+ * @since 3.3
+ */
+final class HappyEyeballsConnector implements CircuitBreaker.Prober {
+
+	private final DNSCache m_dnsCache;
+	private final long m_attemptDelay;
+	private final int m_connectTimeout;
+	private final ConnectStatistics m_statistics;
+	private final CircuitBreaker m_circuitBreaker;
+	private final ExecutorService m_executor;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param options
+	 *            engine options, which give the DNS cache, the attempt delay, the connect timeout,
+	 *            the statistics and the circuit breaker
+	 */
+	HappyEyeballsConnector(HTTPProxyEngineOptions options) {
+		this(options.getDNSCache(), options.getConnectAttemptDelay(), (int) options.getConnectTimeout(), options
+						.getConnectStatistics(), options.getCircuitBreaker(), options.getThreadMode());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dnsCache
+	 *            cache of the remote host addresses
+	 * @param attemptDelay
+	 *            time in milliseconds before the next address is tried. 0 only tries the first
+	 *            address.
+	 * @param connectTimeout
+	 *            time in milliseconds before an attempt fails. 0 waits for the TCP connect
+	 *            timeout.
+	 * @param statistics
+	 *            connect times of the addresses
+	 * @param circuitBreaker
+	 *            health of the servers
+	 * @param threadMode
+	 *            kind of the threads which run the attempts
+	 */
+	HappyEyeballsConnector(DNSCache dnsCache, long attemptDelay, int connectTimeout, ConnectStatistics statistics,
+					CircuitBreaker circuitBreaker, ThreadMode threadMode) {
+		m_dnsCache = dnsCache;
+		m_attemptDelay = attemptDelay;
+		m_connectTimeout = connectTimeout;
+		m_statistics = statistics;
+		m_circuitBreaker = circuitBreaker;
+		if (threadMode == ThreadMode.VIRTUAL && VirtualThreads.isAvailable()) {
+			m_executor = VirtualThreads.newThreadPerTaskExecutor("tcp_proxy_connect");
+		} else {
+			// The attempts are short lived, and the idle threads go away on their own.
+			m_executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+							new SynchronousQueue<Runnable>(), new DNSCache.DaemonThreadFactory("tcp_proxy_connect"));
+		}
+	}
+
+	/**
+	 * Connect a plain socket to the given end point.
+	 *
+	 * @param remoteEndPoint
+	 *            remote end point
+	 * @return connected socket
+	 * @throws IOException
+	 *             if the host can not be resolved or the connection fails
+	 */
+	Socket connect(EndPoint remoteEndPoint) throws IOException {
+		return connect(remoteEndPoint, false);
+	}
+
+	/**
+	 * Connect a socket channel to the given end point.
+	 *
+	 * @param remoteEndPoint
+	 *            remote end point
+	 * @return connected channel, in blocking mode
+	 * @throws IOException
+	 *             if the host can not be resolved or the connection fails
+	 */
+	SocketChannel connectChannel(EndPoint remoteEndPoint) throws IOException {
+		return connect(remoteEndPoint, true).getChannel();
+	}
+
+	/**
+	 * Connect to the server whatever the state of its circuit, and close the connection.
+	 *
+	 * @param remoteEndPoint
+	 *            remote end point
+	 * @throws IOException
+	 *             if the host can not be resolved or the connection fails
+	 */
+	@Override
+	public void probe(EndPoint remoteEndPoint) throws IOException {
+		race(remoteEndPoint, false).close();
+	}
+
+	private Socket connect(EndPoint remoteEndPoint, boolean channel) throws IOException {
+		m_circuitBreaker.check(remoteEndPoint);
+		final Socket socket;
+		try {
+			socket = race(remoteEndPoint, channel);
+		} catch (UnknownHostException e) {
+			throw e;
+		} catch (IOException e) {
+			m_circuitBreaker.failed(remoteEndPoint);
+			throw e;
+		}
+		m_circuitBreaker.succeeded(remoteEndPoint);
+		return socket;
+	}
+
+	private Socket race(EndPoint remoteEndPoint, boolean channel) throws IOException {
+		final InetAddress[] addresses = m_statistics.order(m_dnsCache.resolveAll(remoteEndPoint.getHost()));
+		final Race race = new Race(remoteEndPoint.getPort(), channel);
+		try {
+			if (addresses.length == 1 || m_attemptDelay <= 0) {
+				race.attempt(addresses[0]);
+			} else {
+				race.start(addresses[0]);
+				for (int i = 1; i < addresses.length && race.await(m_attemptDelay) == null; i++) {
+					race.start(addresses[i]);
+				}
+			}
+			final Socket socket = race.await(0);
+			if (socket == null) {
+				throw race.getFailure();
+			}
+			m_statistics.used(race.getWinner() != addresses[0]);
+			return socket;
+		} catch (ConnectException e) {
+			throw new VerboseConnectException(e, remoteEndPoint.toString());
+		} finally {
+			race.finish();
+		}
+	}
+
+	/**
+	 * The attempts of one connection.
+	 */
+	private final class Race {
+		private final int m_port;
+		private final boolean m_channel;
+		private final Lock m_lock = new ReentrantLock();
+		private final Condition m_changed = m_lock.newCondition();
+
+		// Guarded by m_lock.
+		private final List<Socket> m_sockets = newArrayList();
+		private int m_started = 0;
+		private int m_failed = 0;
+		private Socket m_socket;
+		private InetAddress m_winner;
+		private IOException m_failure;
+		private boolean m_finished = false;
+
+		Race(int port, boolean channel) {
+			m_port = port;
+			m_channel = channel;
+		}
+
+		void start(final InetAddress address) {
+			m_lock.lock();
+			try {
+				++m_started;
+			} finally {
+				m_lock.unlock();
+			}
+			m_executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					attempt(address);
+				}
+			});
+		}
+
+		/**
+		 * Run an attempt in the current thread.
+		 */
+		void attempt(InetAddress address) {
+			final Socket socket;
+			m_lock.lock();
+			try {
+				if (m_finished) {
+					return;
+				}
+				socket = m_channel ? SocketChannel.open().socket() : new Socket();
+				m_sockets.add(socket);
+			} catch (IOException e) {
+				m_failure = e;
+				++m_failed;
+				m_changed.signalAll();
+				return;
+			} finally {
+				m_lock.unlock();
+			}
+
+			final long start = System.currentTimeMillis();
+			try {
+				socket.connect(new InetSocketAddress(address, m_port), m_connectTimeout);
+				m_statistics.connected(address, System.currentTimeMillis() - start);
+			} catch (IOException e) {
+				failed(address, e);
+				Closer.close(socket);
+				return;
+			}
+			if (!won(address, socket)) {
+				Closer.close(socket);
+			}
+		}
+
+		private boolean won(InetAddress address, Socket socket) {
+			m_lock.lock();
+			try {
+				if (m_finished || m_socket != null) {
+					return false;
+				}
+				m_socket = socket;
+				m_winner = address;
+				m_changed.signalAll();
+				return true;
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		private void failed(InetAddress address, IOException e) {
+			m_lock.lock();
+			try {
+				// The attempts closed by finish() do not count.
+				if (!m_finished) {
+					m_statistics.failed(address);
+					m_failure = e;
+				}
+				++m_failed;
+				m_changed.signalAll();
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		/**
+		 * Wait for an attempt to connect, or for all the attempts started so far to fail.
+		 *
+		 * @param timeout
+		 *            time in milliseconds, or 0 to wait as long as an attempt is running
+		 * @return connected socket, or {@code null}
+		 */
+		Socket await(long timeout) {
+			m_lock.lock();
+			try {
+				long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+				while (m_socket == null && m_failed < m_started) {
+					if (timeout == 0) {
+						m_changed.await();
+					} else if (nanos > 0) {
+						nanos = m_changed.awaitNanos(nanos);
+					} else {
+						break;
+					}
+				}
+				return m_socket;
+			} catch (InterruptedException e) {
+				throw new UncheckedInterruptedException(e);
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		InetAddress getWinner() {
+			m_lock.lock();
+			try {
+				return m_winner;
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		IOException getFailure() {
+			m_lock.lock();
+			try {
+				return m_failure;
+			} finally {
+				m_lock.unlock();
+			}
+		}
+
+		/**
+		 * Close the attempts which have not won.
+		 */
+		void finish() {
+			final List<Socket> losers = newArrayList();
+			m_lock.lock();
+			try {
+				m_finished = true;
+				for (Socket socket : m_sockets) {
+					if (socket != m_socket) {
+						losers.add(socket);
+					}
+				}
+			} finally {
+				m_lock.unlock();
+			}
+			for (Socket socket : losers) {
+				Closer.close(socket);
+			}
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+
+/**
+ * Single threaded selector loop.
+ *
+ * All the channels registered in a loop are only touched by the loop thread. Other threads hand
+ * over their work by {@link #execute(Runnable)}.
+ *
+ * @since 3.3
+ */
+final class NIOEventLoop implements Runnable {
+
+	/**
+	 * Selection key attachment which is notified when its channel is ready.
+	 */
+	interface Handler {
+		/**
+		 * Called in the loop thread when the channel is ready.
+		 *
+		 * @param key
+		 *            selected key
+		 */
+		void ready(SelectionKey key);
+
+		/**
+		 * Called in the loop thread when the loop is shutting down.
+		 */
+		void loopStopped();
+	}
+
+	private final Selector m_selector;
+	private final Queue<Runnable> m_tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final PriorityQueue<Timer> m_timers = new PriorityQueue<Timer>();
+	private final byte[] m_readBuffer;
+	private ByteBuffer m_directBuffer;
+	private final Logger m_logger;
+	private volatile boolean m_stopped = false;
+	private volatile Thread m_thread;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param readBufferSize
+	 *            size of the read buffer shared by all channels in this loop
+	 * @param logger
+	 *            logger
+	 * @throws IOException
+	 *             if the selector can not be opened
+	 */
+	NIOEventLoop(int readBufferSize, Logger logger) throws IOException {
+		m_selector = Selector.open();
+		m_readBuffer = new byte[readBufferSize];
+		m_logger = logger;
+	}
+
+	/**
+	 * Get the read buffer. Only valid in the loop thread, and only until the handler returns.
+	 *
+	 * @return shared read buffer
+	 */
+	byte[] getReadBuffer() {
+		return m_readBuffer;
+	}
+
+	/**
+	 * Get the direct buffer which splices are read into, so that the bytes go from one channel to
+	 * the other without being copied to the heap. Only valid in the loop thread, and only until
+	 * the handler returns.
+	 *
+	 * @return shared direct buffer, cleared
+	 */
+	ByteBuffer getDirectBuffer() {
+		if (m_directBuffer == null) {
+			m_directBuffer = ByteBuffer.allocateDirect(m_readBuffer.length);
+		}
+		m_directBuffer.clear();
+		return m_directBuffer;
+	}
+
+	/**
+	 * Check if the current thread is the loop thread.
+	 *
+	 * @return true if the caller runs in this loop
+	 */
+	boolean inEventLoop() {
+		return Thread.currentThread() == m_thread;
+	}
+
+	/**
+	 * Run the given task in the loop thread.
+	 *
+	 * @param task
+	 *            task to run
+	 */
+	void execute(Runnable task) {
+		m_tasks.add(task);
+		if (!inEventLoop()) {
+			m_selector.wakeup();
+		}
+	}
+
+	/**
+	 * Run the given task in the loop thread after the given delay. Must be called in the loop
+	 * thread.
+	 *
+	 * @param task
+	 *            task
+	 * @param delay
+	 *            delay in milliseconds
+	 */
+	void schedule(Runnable task, long delay) {
+		m_timers.add(new Timer(System.currentTimeMillis() + delay, task));
+	}
+
+	/**
+	 * Register the given channel. Must be called in the loop thread.
+	 *
+	 * @param channel
+	 *            non blocking channel
+	 * @param ops
+	 *            interest set
+	 * @param handler
+	 *            handler notified when the channel is ready
+	 * @return selection key
+	 * @throws ClosedChannelException
+	 *             if the channel is already closed
+	 */
+	SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+		return channel.register(m_selector, ops, handler);
+	}
+
+	/**
+	 * Stop the loop. All the registered handlers are notified by {@link Handler#loopStopped()}.
+	 */
+	void stop() {
+		m_stopped = true;
+		m_selector.wakeup();
+	}
+
+	boolean isStopped() {
+		return m_stopped;
+	}
+
+	@Override
+	public void run() {
+		m_thread = Thread.currentThread();
+		try {
+			while (!m_stopped) {
+				try {
+					m_selector.select(nextTimeout());
+				} catch (IOException e) {
+					m_logger.error("Selector failure", e);
+					break;
+				}
+				final Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						((Handler) key.attachment()).ready(key);
+					} catch (CancelledKeyException e) {
+						// Closed by the handler of another channel.
+						continue;
+					} catch (RuntimeException e) {
+						m_logger.error("Unexpected error in the event loop", e);
+						key.cancel();
+					}
+				}
+				runTasks();
+				runTimers();
+			}
+		} finally {
+			for (SelectionKey each : m_selector.keys()) {
+				((Handler) each.attachment()).loopStopped();
+			}
+			try {
+				m_selector.close();
+			} catch (IOException e) {
+				m_logger.debug("Failed to close selector", e);
+			}
+		}
+	}
+
+	private long nextTimeout() {
+		if (!m_tasks.isEmpty()) {
+			return 1;
+		}
+		final Timer timer = m_timers.peek();
+		if (timer == null) {
+			return 0;
+		}
+		return Math.max(1, timer.m_deadline - System.currentTimeMillis());
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = m_tasks.poll()) != null) {
+			runSafely(task);
+		}
+	}
+
+	private void runTimers() {
+		final long now = System.currentTimeMillis();
+		while (!m_timers.isEmpty() && m_timers.peek().m_deadline <= now) {
+			runSafely(m_timers.poll().m_task);
+		}
+	}
+
+	private void runSafely(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			m_logger.error("Unexpected error in the event loop", e);
+		}
+	}
+
+	private static final class Timer implements Comparable<Timer> {
+		private final long m_deadline;
+		private final Runnable m_task;
+
+		Timer(long deadline, Runnable task) {
+			m_deadline = deadline;
+			m_task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return m_deadline < other.m_deadline ? -1 : (m_deadline == other.m_deadline ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+/**
+ * Incremental parser which works out the proxy destination from the first bytes sent by a browser.
+ *
+ * Bytes are fed as they arrive and are examined only once. A plain HTTP request with an absolute
+ * URI is recognized as soon as its request line is complete. A CONNECT request is recognized when
+ * its header block is complete, because the rest of the stream belongs to the tunnel. A request
+ * for the proxy auto-config script of the proxy itself is recognized at the end of its request
+ * line.
+ *
+ * @since 3.3
+ */
+final class ProxyRequestSniffer {
+
+	/**
+	 * Result of {@link ProxyRequestSniffer#feed(byte[], int, int)}.
+	 */
+	enum Result {
+		/** More bytes are required. */
+		NEED_MORE,
+		/** Plain HTTP request with an absolute URI. */
+		HTTP,
+		/** HTTPS CONNECT request. */
+		CONNECT,
+		/** Request for {@link TCPProxyAutoConfig#PATH}, sent to the proxy as a server. */
+		AUTO_CONFIG,
+		/** Not a proxy request. */
+		NO_MATCH
+	}
+
+	private enum State {
+		METHOD, METHOD_SPACE, SCHEME, AUTO_CONFIG_PATH, HOST, PORT, REQUEST_LINE, HEADERS, DONE
+	}
+
+	/**
+	 * Maximum size of the bytes which are examined. This bounds the request line of a plain HTTP
+	 * request and the header block of a CONNECT request. The other headers are not examined.
+	 */
+	static final int MAX_REQUEST_HEAD_SIZE = Integer.getInteger("tcpproxy.maxrequesthead", 1024 * 1024).intValue();
+
+	private static final byte[] SCHEME = { 'h', 't', 't', 'p', ':', '/', '/' };
+	private static final byte[] CONNECT = { 'C', 'O', 'N', 'N', 'E', 'C', 'T' };
+	private static final byte[] GET = { 'G', 'E', 'T' };
+	private static final byte[] AUTO_CONFIG_PATH = TCPProxyAutoConfig.PATH.getBytes();
+	private static final int MAX_TOKEN_LENGTH = 1024;
+	private static final int DEFAULT_HTTP_PORT = 80;
+
+	private State m_state;
+	private Result m_result;
+	private final StringBuilder m_host = new StringBuilder();
+	private int m_methodLength;
+	private boolean m_connect;
+	private boolean m_get;
+	private boolean m_autoConfig;
+	private int m_pathIndex;
+	private int m_schemeIndex;
+	private int m_port;
+	private boolean m_hasPort;
+	private int m_headerLineLength;
+	private int m_consumed;
+
+	/**
+	 * Constructor.
+	 */
+	ProxyRequestSniffer() {
+		reset();
+	}
+
+	/**
+	 * Forget the bytes fed so far, to sniff the next request.
+	 */
+	void reset() {
+		m_state = State.METHOD;
+		m_result = Result.NEED_MORE;
+		m_host.setLength(0);
+		m_methodLength = 0;
+		m_connect = true;
+		m_get = true;
+		m_autoConfig = false;
+		m_pathIndex = 0;
+		m_schemeIndex = 0;
+		m_port = 0;
+		m_hasPort = false;
+		m_headerLineLength = 0;
+		m_consumed = 0;
+	}
+
+	/**
+	 * Feed the next bytes. Once a result other than {@link Result#NEED_MORE} is returned, further
+	 * bytes are ignored until {@link #reset()}.
+	 *
+	 * @param buffer
+	 *            buffer
+	 * @param offset
+	 *            offset of the new bytes
+	 * @param length
+	 *            number of the new bytes
+	 * @return result
+	 */
+	Result feed(byte[] buffer, int offset, int length) {
+		final int end = offset + length;
+		for (int i = offset; i < end && m_result == Result.NEED_MORE; i++) {
+			m_consumed++;
+			m_result = next(buffer[i]);
+		}
+		return m_result;
+	}
+
+	private Result next(byte b) {
+		switch (m_state) {
+		case METHOD:
+			if (b >= 'A' && b <= 'Z') {
+				m_connect = m_connect && m_methodLength < CONNECT.length && CONNECT[m_methodLength] == b;
+				m_get = m_get && m_methodLength < GET.length && GET[m_methodLength] == b;
+				return ++m_methodLength > MAX_TOKEN_LENGTH ? Result.NO_MATCH : Result.NEED_MORE;
+			} else if (isBlank(b) && m_methodLength > 0) {
+				m_connect = m_connect && m_methodLength == CONNECT.length;
+				m_get = m_get && m_methodLength == GET.length;
+				m_state = State.METHOD_SPACE;
+				return Result.NEED_MORE;
+			}
+			return Result.NO_MATCH;
+		case METHOD_SPACE:
+			if (isBlank(b)) {
+				return Result.NEED_MORE;
+			}
+			if (m_connect) {
+				m_state = State.HOST;
+			} else if (m_get && b == '/') {
+				m_state = State.AUTO_CONFIG_PATH;
+			} else {
+				m_state = State.SCHEME;
+			}
+			return next(b);
+		case AUTO_CONFIG_PATH:
+			if (m_pathIndex == AUTO_CONFIG_PATH.length) {
+				if (!isBlank(b) && b != '?') {
+					return Result.NO_MATCH;
+				}
+				m_autoConfig = true;
+				m_state = State.REQUEST_LINE;
+				return Result.NEED_MORE;
+			}
+			return AUTO_CONFIG_PATH[m_pathIndex++] == b ? Result.NEED_MORE : Result.NO_MATCH;
+		case SCHEME:
+			if (SCHEME[m_schemeIndex] != b) {
+				return Result.NO_MATCH;
+			}
+			if (++m_schemeIndex == SCHEME.length) {
+				m_state = State.HOST;
+			}
+			return Result.NEED_MORE;
+		case HOST:
+			if (b == ':') {
+				m_state = State.PORT;
+				return m_host.length() > 0 ? Result.NEED_MORE : Result.NO_MATCH;
+			} else if (!m_connect && (b == '/' || b == '?' || isBlank(b))) {
+				return endOfAuthority(b);
+			} else if (b == '/' || b == '?' || isBlank(b) || b == '\r' || b == '\n') {
+				return Result.NO_MATCH;
+			}
+			m_host.append((char) (b & 0xff));
+			return m_host.length() > MAX_TOKEN_LENGTH ? Result.NO_MATCH : Result.NEED_MORE;
+		case PORT:
+			if (b >= '0' && b <= '9') {
+				m_port = m_port * 10 + (b - '0');
+				m_hasPort = true;
+				return m_port > 0xffff ? Result.NO_MATCH : Result.NEED_MORE;
+			} else if (m_connect) {
+				if (!m_hasPort) {
+					return Result.NO_MATCH;
+				}
+				m_state = State.REQUEST_LINE;
+				return next(b);
+			} else if (b == '/' || b == '?' || isBlank(b)) {
+				return endOfAuthority(b);
+			}
+			return Result.NO_MATCH;
+		case REQUEST_LINE:
+			if (b == '\n') {
+				if (m_autoConfig) {
+					m_state = State.DONE;
+					return Result.AUTO_CONFIG;
+				}
+				if (m_connect) {
+					m_state = State.HEADERS;
+					m_headerLineLength = 0;
+					return Result.NEED_MORE;
+				}
+				m_state = State.DONE;
+				return Result.HTTP;
+			}
+			return Result.NEED_MORE;
+		case HEADERS:
+			if (b == '\n') {
+				if (m_headerLineLength == 0) {
+					m_state = State.DONE;
+					return Result.CONNECT;
+				}
+				m_headerLineLength = 0;
+			} else if (b != '\r') {
+				m_headerLineLength++;
+			}
+			return Result.NEED_MORE;
+		default:
+			return m_result;
+		}
+	}
+
+	private Result endOfAuthority(byte b) {
+		if (m_host.length() == 0) {
+			return Result.NO_MATCH;
+		}
+		if (!m_hasPort) {
+			m_port = DEFAULT_HTTP_PORT;
+		}
+		m_state = State.REQUEST_LINE;
+		return next(b);
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	/**
+	 * Check if the bytes so far are the beginning of a request line with an absolute http URI.
+	 *
+	 * @return true if the method and the URI scheme have been received.
+	 */
+	boolean isAbsoluteURIStarted() {
+		return m_state == State.HOST || m_state == State.PORT || m_state == State.REQUEST_LINE;
+	}
+
+	/**
+	 * Get the number of bytes which were consumed to reach the current result. For
+	 * {@link Result#CONNECT}, this is the length of the CONNECT header block.
+	 *
+	 * @return consumed byte count
+	 */
+	int getConsumed() {
+		return m_consumed;
+	}
+
+	/**
+	 * Get the destination end point. Only valid after {@link Result#HTTP} or
+	 * {@link Result#CONNECT}.
+	 *
+	 * @return destination
+	 */
+	EndPoint getEndPoint() {
+		return new EndPoint(m_host.toString(), m_port);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+
+/**
+ * Access to the SO_REUSEPORT socket option of JDK 9 and later, while the code is still built for
+ * older JDKs.
+ *
+ * The option lets several listening sockets bind the same port, and the kernel deals the incoming
+ * connections out to them. The JDK API is looked up by reflection once. When it is missing, or the
+ * platform does not support the option, a single listening socket is used.
+ *
+ * @since 3.3
+ */
+final class ReusePort {
+
+	private static final Object SO_REUSEPORT;
+	private static final Method SERVER_SOCKET_SET_OPTION;
+	private static final Method CHANNEL_SET_OPTION;
+
+	static {
+		Object reusePort = null;
+		Method serverSocketSetOption = null;
+		Method channelSetOption = null;
+		try {
+			final Class<?> socketOption = Class.forName("java.net.SocketOption");
+			reusePort = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			serverSocketSetOption = ServerSocket.class.getMethod("setOption", socketOption, Object.class);
+			channelSetOption = ServerSocketChannel.class.getMethod("setOption", socketOption, Object.class);
+			final ServerSocket probe = new ServerSocket();
+			try {
+				final Set<?> supported = (Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(probe);
+				if (!supported.contains(reusePort)) {
+					reusePort = null;
+				}
+			} finally {
+				probe.close();
+			}
+		} catch (Exception e) {
+			reusePort = null;
+		}
+		SO_REUSEPORT = reusePort;
+		SERVER_SOCKET_SET_OPTION = serverSocketSetOption;
+		CHANNEL_SET_OPTION = channelSetOption;
+	}
+
+	private ReusePort() {
+	}
+
+	/**
+	 * Check if the running JDK and platform support SO_REUSEPORT.
+	 *
+	 * @return true on JDK 9 and later, on a platform with the option
+	 */
+	static boolean isAvailable() {
+		return SO_REUSEPORT != null;
+	}
+
+	/**
+	 * Get the number of listening sockets an engine binds to its port.
+	 *
+	 * @param options
+	 *            engine options
+	 * @return the accept shards of the options, or 1 if SO_REUSEPORT is not available
+	 */
+	static int getShardCount(HTTPProxyEngineOptions options) {
+		return isAvailable() ? Math.max(1, options.getAcceptShards()) : 1;
+	}
+
+	/**
+	 * Enable SO_REUSEPORT on a socket which is not bound yet.
+	 *
+	 * @param socket
+	 *            listening socket
+	 * @throws IOException
+	 *             if the option can not be set
+	 */
+	static void enable(ServerSocket socket) throws IOException {
+		invoke(SERVER_SOCKET_SET_OPTION, socket);
+	}
+
+	/**
+	 * Enable SO_REUSEPORT on a channel which is not bound yet.
+	 *
+	 * @param channel
+	 *            listening channel
+	 * @throws IOException
+	 *             if the option can not be set
+	 */
+	static void enable(ServerSocketChannel channel) throws IOException {
+		invoke(CHANNEL_SET_OPTION, channel);
+	}
+
+	private static void invoke(Method setOption, Object target) throws IOException {
+		if (!isAvailable()) {
+			throw new UnsupportedOperationException("SO_REUSEPORT requires JDK 9 or later");
+		}
+		try {
+			setOption.invoke(target, SO_REUSEPORT, Boolean.TRUE);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new UnsupportedOperationException("Failed to set SO_REUSEPORT", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new UnsupportedOperationException("Failed to set SO_REUSEPORT", e);
+		}
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.NoOp.noOp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Blocking streams which encrypt and decrypt the bytes of an existing connection with an
+ * {@link SSLEngine}.
+ *
+ * This lets the proxy terminate the SSL connection of the browser on the socket which received
+ * the CONNECT request. The input stream and the output stream may be used by different threads.
+ * The locks are not monitors, so a virtual thread which blocks in a read does not pin its carrier.
+ *
+ * @since 3.3
+ */
+final class SSLEngineStreams {
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SSLEngine m_engine;
+	private final InputStream m_rawIn;
+	private final OutputStream m_rawOut;
+	private final Lock m_readLock = new ReentrantLock();
+	private final Lock m_writeLock = new ReentrantLock();
+	// Encrypted bytes which are read but not unwrapped yet. Always ready to be filled.
+	private ByteBuffer m_netIn;
+	// Decrypted bytes which are not returned yet. Always ready to be drained.
+	private ByteBuffer m_appIn;
+	private ByteBuffer m_netOut;
+	private final InputStream m_in = new SSLInputStream();
+	private final OutputStream m_out = new SSLOutputStream();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param engine
+	 *            engine which is not used yet
+	 * @param rawIn
+	 *            stream of encrypted bytes
+	 * @param rawOut
+	 *            stream to write encrypted bytes
+	 */
+	SSLEngineStreams(SSLEngine engine, InputStream rawIn, OutputStream rawOut) {
+		m_engine = engine;
+		m_rawIn = rawIn;
+		m_rawOut = rawOut;
+		m_netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+		m_appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		m_appIn.flip();
+		m_netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+	}
+
+	/**
+	 * Run the initial handshake in the calling thread.
+	 *
+	 * @throws IOException
+	 *             if the handshake fails or the connection is closed
+	 */
+	void handshake() throws IOException {
+		m_engine.beginHandshake();
+		m_readLock.lock();
+		try {
+			while (true) {
+				switch (m_engine.getHandshakeStatus()) {
+				case NEED_UNWRAP:
+					if (!unwrap()) {
+						throw new EOFException("Connection closed during SSL handshake");
+					}
+					break;
+				case NEED_WRAP:
+					wrapEmpty();
+					break;
+				case NEED_TASK:
+					runDelegatedTasks();
+					break;
+				default:
+					return;
+				}
+			}
+		} finally {
+			m_readLock.unlock();
+		}
+	}
+
+	InputStream getInputStream() {
+		return m_in;
+	}
+
+	OutputStream getOutputStream() {
+		return m_out;
+	}
+
+	/**
+	 * Unwrap the next record into {@link #m_appIn}, reading from the connection if required.
+	 *
+	 * @return false if the connection or the SSL session is closed
+	 */
+	private boolean unwrap() throws IOException {
+		while (true) {
+			m_netIn.flip();
+			m_appIn.compact();
+			final SSLEngineResult result;
+			try {
+				result = m_engine.unwrap(m_netIn, m_appIn);
+			} finally {
+				m_appIn.flip();
+				m_netIn.compact();
+			}
+			switch (result.getStatus()) {
+			case BUFFER_UNDERFLOW:
+				if (!m_netIn.hasRemaining()) {
+					m_netIn = grow(m_netIn, m_engine.getSession().getPacketBufferSize());
+				}
+				if (!readRecord()) {
+					return false;
+				}
+				break;
+			case BUFFER_OVERFLOW:
+				m_appIn = growForRead(m_appIn, m_engine.getSession().getApplicationBufferSize());
+				break;
+			case CLOSED:
+				return false;
+			default:
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+				}
+				if (m_engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+					wrapEmpty();
+				}
+				return true;
+			}
+		}
+	}
+
+	private boolean readRecord() throws IOException {
+		final int n = m_rawIn.read(m_netIn.array(), m_netIn.arrayOffset() + m_netIn.position(), m_netIn.remaining());
+		if (n == -1) {
+			return false;
+		}
+		m_netIn.position(m_netIn.position() + n);
+		return true;
+	}
+
+	private void wrapEmpty() throws IOException {
+		m_writeLock.lock();
+		try {
+			wrap(EMPTY);
+		} finally {
+			m_writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Wrap all the given bytes and write the records. Must be called with {@link #m_writeLock}.
+	 */
+	private void wrap(ByteBuffer source) throws IOException {
+		boolean more = true;
+		while (more) {
+			m_netOut.clear();
+			final SSLEngineResult result = m_engine.wrap(source, m_netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				m_netOut = ByteBuffer.allocate(m_netOut.capacity() + m_engine.getSession().getPacketBufferSize());
+				continue;
+			}
+			m_rawOut.write(m_netOut.array(), m_netOut.arrayOffset(), m_netOut.position());
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				runDelegatedTasks();
+			}
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				if (source.hasRemaining()) {
+					throw new SSLException("SSL session is closed");
+				}
+				more = result.bytesProduced() > 0 && m_engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+			} else {
+				more = source.hasRemaining() || m_engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+			}
+		}
+		m_rawOut.flush();
+	}
+
+	private void runDelegatedTasks() {
+		Runnable task;
+		while ((task = m_engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer fillable, int extra) {
+		final ByteBuffer grown = ByteBuffer.allocate(fillable.capacity() + extra);
+		fillable.flip();
+		grown.put(fillable);
+		return grown;
+	}
+
+	private static ByteBuffer growForRead(ByteBuffer drainable, int extra) {
+		final ByteBuffer grown = ByteBuffer.allocate(drainable.capacity() + extra);
+		grown.put(drainable);
+		grown.flip();
+		return grown;
+	}
+
+	private final class SSLInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			final byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			m_readLock.lock();
+			try {
+				while (!m_appIn.hasRemaining()) {
+					if (!unwrap()) {
+						return -1;
+					}
+				}
+				final int n = Math.min(length, m_appIn.remaining());
+				m_appIn.get(buffer, offset, n);
+				return n;
+			} finally {
+				m_readLock.unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			m_rawIn.close();
+		}
+	}
+
+	private final class SSLOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			m_writeLock.lock();
+			try {
+				wrap(ByteBuffer.wrap(buffer, offset, length));
+			} finally {
+				m_writeLock.unlock();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			m_writeLock.lock();
+			try {
+				m_engine.closeOutbound();
+				wrap(EMPTY);
+			} catch (IOException e) {
+				// The connection may be closed already.
+				noOp();
+			} finally {
+				m_writeLock.unlock();
+				m_rawOut.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Counts the SSL handshakes which resumed a cached session, on the browser side and on the
+ * upstream side of the proxy.
+ *
+ * A handshake resumed a session if the session is older than the handshake.
+ *
+ * @since 3.3
+ */
+public final class SSLSessionCacheStatistics {
+
+	private final AtomicLong m_browserHits = new AtomicLong();
+	private final AtomicLong m_browserMisses = new AtomicLong();
+	private final AtomicLong m_upstreamHits = new AtomicLong();
+	private final AtomicLong m_upstreamMisses = new AtomicLong();
+
+	/**
+	 * Record a completed handshake with the browser.
+	 *
+	 * @param session
+	 *            negotiated session
+	 * @param startTime
+	 *            time when the handshake started
+	 */
+	public void browserHandshakeCompleted(SSLSession session, long startTime) {
+		(isResumed(session, startTime) ? m_browserHits : m_browserMisses).incrementAndGet();
+	}
+
+	/**
+	 * Record a completed handshake with a server.
+	 *
+	 * @param session
+	 *            negotiated session
+	 * @param startTime
+	 *            time when the handshake started
+	 */
+	public void upstreamHandshakeCompleted(SSLSession session, long startTime) {
+		(isResumed(session, startTime) ? m_upstreamHits : m_upstreamMisses).incrementAndGet();
+	}
+
+	/**
+	 * Create a listener which records the handshake of a browser socket created now.
+	 *
+	 * @return listener
+	 */
+	HandshakeCompletedListener createBrowserListener() {
+		final long startTime = System.currentTimeMillis();
+		return new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				browserHandshakeCompleted(event.getSession(), startTime);
+			}
+		};
+	}
+
+	/**
+	 * Create a listener which records the handshake of an upstream socket created now.
+	 *
+	 * @return listener
+	 */
+	HandshakeCompletedListener createUpstreamListener() {
+		final long startTime = System.currentTimeMillis();
+		return new HandshakeCompletedListener() {
+			@Override
+			public void handshakeCompleted(HandshakeCompletedEvent event) {
+				upstreamHandshakeCompleted(event.getSession(), startTime);
+			}
+		};
+	}
+
+	private static boolean isResumed(SSLSession session, long startTime) {
+		return session.getCreationTime() < startTime;
+	}
+
+	public long getBrowserHits() {
+		return m_browserHits.get();
+	}
+
+	public long getBrowserMisses() {
+		return m_browserMisses.get();
+	}
+
+	public long getUpstreamHits() {
+		return m_upstreamHits.get();
+	}
+
+	public long getUpstreamMisses() {
+		return m_upstreamMisses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "browser hits=" + getBrowserHits() + " misses=" + getBrowserMisses() + ", upstream hits="
+						+ getUpstreamHits() + " misses=" + getUpstreamMisses();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream of a browser connection whose first bytes are examined by the
+ * {@link ProxyRequestSniffer}, and then read again by the handler of the request.
+ *
+ * The bytes are kept only until they have been read again. A mark which outlived the sniffing
+ * would have the buffer grow with every byte of a long-lived connection. The buffer is leased from
+ * a {@link BufferPool}, and given back when the stream is closed.
+ *
+ * @since 3.3
+ */
+final class SniffedInputStream extends BufferedInputStream {
+
+	private final BufferPool m_bufferPool;
+	private byte[] m_leased;
+
+	/**
+	 * Constructor. The stream is marked, so every byte read can be read again.
+	 *
+	 * @param in
+	 *            stream of the browser connection
+	 * @param bufferPool
+	 *            pool which the buffer is leased from
+	 */
+	SniffedInputStream(InputStream in, BufferPool bufferPool) {
+		super(in, 1);
+		m_bufferPool = bufferPool;
+		m_leased = bufferPool.lease();
+		buf = m_leased;
+		mark(ProxyRequestSniffer.MAX_REQUEST_HEAD_SIZE);
+	}
+
+	/**
+	 * Rewind the stream to the beginning of the request. The mark is dropped once the sniffed
+	 * bytes have been read again.
+	 *
+	 * @param sniffed
+	 *            number of bytes read since the stream was created
+	 * @throws IOException
+	 *             if the stream is closed
+	 */
+	synchronized void replay(int sniffed) throws IOException {
+		reset();
+		mark(sniffed);
+	}
+
+	/**
+	 * Close the stream, and give the buffer back once no read is using it. A read blocked in
+	 * the closed stream returns first.
+	 *
+	 * @throws IOException
+	 *             if the stream can not be closed
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			synchronized (this) {
+				// The buffer may have been replaced by a larger one, but it is not used any more.
+				m_bufferPool.release(m_leased);
+				m_leased = null;
+			}
+		}
+	}
+
+	int getBufferSize() {
+		final byte[] buffer = buf;
+		return buffer != null ? buffer.length : 0;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Proxy auto-config script served by the proxy at {@link #PATH}, so the browser sends only the
+ * hosts which are recorded through the proxy, and the others directly to the server.
+ *
+ * The script is generated from the hosts the {@link Policy} has decided about, and from a list
+ * of host patterns which are always sent through the proxy. A host which is neither is sent
+ * directly if there are include patterns, or through the proxy otherwise, so it can be listed.
+ * {@link #update()} regenerates the script, and tells if the browser should load it again.
+ *
+ * @since 3.3
+ */
+public final class TCPProxyAutoConfig {
+
+	/**
+	 * Path of the script, relative to the proxy address.
+	 */
+	public static final String PATH = "/proxy.pac";
+
+	/**
+	 * Tells which hosts are recorded.
+	 */
+	public interface Policy {
+		/**
+		 * Get the hosts which are known.
+		 *
+		 * @return host names, mapped to true if they are sent through the proxy
+		 */
+		Map<String, Boolean> getHosts();
+	}
+
+	private final Lock m_lock = new ReentrantLock();
+	private final AtomicLong m_requestCount = new AtomicLong();
+	private volatile Policy m_policy;
+	private volatile List<String> m_includes = Collections.emptyList();
+
+	// Guarded by m_lock.
+	private String m_rules;
+	private int m_version = 0;
+
+	/**
+	 * Set the policy. Without a policy no script is served.
+	 *
+	 * @param policy
+	 *            policy, or {@code null}
+	 */
+	public void setPolicy(Policy policy) {
+		m_policy = policy;
+	}
+
+	/**
+	 * Set the host patterns which are always sent through the proxy.
+	 *
+	 * @param includes
+	 *            shell expressions as in <code>shExpMatch</code>, such as
+	 *            <code>*.example.com</code>
+	 */
+	public void setIncludes(List<String> includes) {
+		m_includes = Collections.unmodifiableList(includes);
+	}
+
+	public boolean isEnabled() {
+		return m_policy != null;
+	}
+
+	/**
+	 * Regenerate the script from the policy.
+	 *
+	 * @return true if the script has changed since the last update
+	 */
+	public boolean update() {
+		final Policy policy = m_policy;
+		if (policy == null) {
+			return false;
+		}
+		final String rules = createRules(new TreeMap<String, Boolean>(policy.getHosts()), m_includes);
+		m_lock.lock();
+		try {
+			if (rules.equals(m_rules)) {
+				return false;
+			}
+			m_rules = rules;
+			m_version++;
+			return true;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of times the script has changed. It is added to the script URL, so the
+	 * browser does not use the one it has loaded before.
+	 *
+	 * @return version
+	 */
+	public int getVersion() {
+		m_lock.lock();
+		try {
+			return m_version;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the script generated by the last update.
+	 *
+	 * @param proxyAddress
+	 *            address of the proxy which serves the script
+	 * @return script
+	 */
+	String getScript(EndPoint proxyAddress) {
+		final String rules;
+		m_lock.lock();
+		try {
+			rules = m_rules;
+		} finally {
+			m_lock.unlock();
+		}
+		return "var proxy = " + quote("PROXY " + proxyAddress) + ";\n" + rules;
+	}
+
+	/**
+	 * Create the response to a request for the script. The script is regenerated first, so it
+	 * does not wait for the next update.
+	 *
+	 * @param proxyAddress
+	 *            address of the proxy which serves the script
+	 * @return response bytes
+	 */
+	byte[] createResponse(EndPoint proxyAddress) {
+		m_requestCount.incrementAndGet();
+		update();
+		try {
+			final byte[] script = getScript(proxyAddress).getBytes("UTF-8");
+			final StringBuilder head = new StringBuilder();
+			head.append("HTTP/1.1 200 OK\r\n");
+			head.append("Content-Type: application/x-ns-proxy-autoconfig\r\n");
+			head.append("Cache-Control: no-cache\r\n");
+			head.append("Content-Length: ").append(script.length).append("\r\n");
+			head.append("Connection: close\r\n\r\n");
+			final byte[] headBytes = head.toString().getBytes("US-ASCII");
+			final byte[] response = new byte[headBytes.length + script.length];
+			System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+			System.arraycopy(script, 0, response, headBytes.length, script.length);
+			return response;
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String createRules(Map<String, Boolean> hosts, List<String> includes) {
+		final StringBuilder result = new StringBuilder();
+		result.append("var hosts = {");
+		String separator = "\n";
+		for (Map.Entry<String, Boolean> each : hosts.entrySet()) {
+			result.append(separator).append('\t').append(quote(each.getKey())).append(": ").append(each.getValue());
+			separator = ",\n";
+		}
+		result.append("\n};\nvar includes = [");
+		separator = "\n";
+		for (String each : includes) {
+			result.append(separator).append('\t').append(quote(each));
+			separator = ",\n";
+		}
+		result.append("\n];\n");
+		result.append("function FindProxyForURL(url, host) {\n");
+		result.append("\thost = host.toLowerCase();\n");
+		result.append("\tif (hosts.hasOwnProperty(host)) {\n");
+		result.append("\t\treturn hosts[host] ? proxy : \"DIRECT\";\n");
+		result.append("\t}\n");
+		result.append("\tfor (var i = 0; i < includes.length; i++) {\n");
+		result.append("\t\tif (shExpMatch(host, includes[i])) {\n");
+		result.append("\t\t\treturn proxy;\n");
+		result.append("\t\t}\n");
+		result.append("\t}\n");
+		result.append("\treturn ").append(includes.isEmpty() ? "proxy" : "\"DIRECT\"").append(";\n");
+		result.append("}\n");
+		return result.toString();
+	}
+
+	private static String quote(String value) {
+		final StringBuilder result = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				result.append('\\').append(c);
+			} else if (c < 0x20 || c > 0x7e) {
+				result.append(String.format("\\u%04x", (int) c));
+			} else {
+				result.append(c);
+			}
+		}
+		return result.append('"').toString();
+	}
+
+	public long getRequestCount() {
+		return m_requestCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "version=" + getVersion() + " requests=" + getRequestCount();
+	}
+}
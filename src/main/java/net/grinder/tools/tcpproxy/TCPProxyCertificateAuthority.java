@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+import net.grinder.common.Closer;
+
+/**
+ * Certificate authority which issues a leaf certificate for each host recorded over HTTPS.
+ *
+ * The browser trusts the recorded hosts once the certificate of this authority is imported. The
+ * authority is generated on first use and, if a directory is given, kept there as
+ * {@value #KEY_STORE_FILE_NAME} with the certificate alone in {@value #CERTIFICATE_FILE_NAME} for
+ * importing.
+ *
+ * @since 3.3
+ */
+public final class TCPProxyCertificateAuthority {
+
+	/** Name of the key store which keeps the authority. */
+	public static final String KEY_STORE_FILE_NAME = "ca.jks";
+
+	/** Name of the DER encoded certificate which browsers import. */
+	public static final String CERTIFICATE_FILE_NAME = "ca.cer";
+
+	static final char[] KEY_STORE_PASSWORD = "ngrinder".toCharArray();
+	static final String KEY_ALGORITHM = "RSA";
+	static final int KEY_SIZE = 2048;
+
+	private static final String ALIAS = "ca";
+	private static final long CA_VALIDITY = TimeUnit.DAYS.toMillis(3650);
+	private static final long LEAF_VALIDITY = TimeUnit.DAYS.toMillis(365);
+	// Tolerate clocks which are a little behind.
+	private static final long BACKDATE = TimeUnit.DAYS.toMillis(1);
+
+	private final X509Certificate m_certificate;
+	private final PrivateKey m_privateKey;
+	private final SecureRandom m_random = new SecureRandom();
+
+	private TCPProxyCertificateAuthority(X509Certificate certificate, PrivateKey privateKey) {
+		m_certificate = certificate;
+		m_privateKey = privateKey;
+	}
+
+	/**
+	 * Create a new authority which is not stored anywhere.
+	 *
+	 * @return new authority
+	 * @throws GeneralSecurityException
+	 *             if the key pair or the certificate can not be generated
+	 */
+	public static TCPProxyCertificateAuthority create() throws GeneralSecurityException {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+		generator.initialize(KEY_SIZE);
+		final KeyPair keyPair = generator.generateKeyPair();
+		final X500Principal name = new X500Principal("CN=nGrinder Recorder CA, O=nGrinder");
+		final long now = System.currentTimeMillis();
+		final X509Certificate certificate = new X509CertificateBuilder().subject(name).issuer(name)
+						.publicKey(keyPair.getPublic()).serialNumber(new BigInteger(63, new SecureRandom()))
+						.validity(new Date(now - BACKDATE), new Date(now + CA_VALIDITY)).certificateAuthority(true)
+						.sign(keyPair.getPrivate());
+		return new TCPProxyCertificateAuthority(certificate, keyPair.getPrivate());
+	}
+
+	/**
+	 * Load the authority kept in the given directory, or create and keep a new one there.
+	 *
+	 * @param directory
+	 *            directory of the authority
+	 * @return authority
+	 * @throws IOException
+	 *             if the directory can not be read or written
+	 * @throws GeneralSecurityException
+	 *             if the stored authority is not valid
+	 */
+	public static TCPProxyCertificateAuthority loadOrCreate(File directory) throws IOException,
+					GeneralSecurityException {
+		final File keyStoreFile = new File(directory, KEY_STORE_FILE_NAME);
+		if (keyStoreFile.exists()) {
+			final KeyStore keyStore = load(keyStoreFile);
+			return new TCPProxyCertificateAuthority((X509Certificate) keyStore.getCertificate(ALIAS),
+							(PrivateKey) keyStore.getKey(ALIAS, KEY_STORE_PASSWORD));
+		}
+		final TCPProxyCertificateAuthority authority = create();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		keyStore.load(null, null);
+		keyStore.setKeyEntry(ALIAS, authority.m_privateKey, KEY_STORE_PASSWORD,
+						new Certificate[] { authority.m_certificate });
+		store(keyStore, keyStoreFile);
+		final OutputStream out = new FileOutputStream(new File(directory, CERTIFICATE_FILE_NAME));
+		try {
+			out.write(authority.m_certificate.getEncoded());
+		} finally {
+			Closer.close(out);
+		}
+		return authority;
+	}
+
+	/**
+	 * Get the certificate which browsers should trust.
+	 *
+	 * @return certificate
+	 */
+	public X509Certificate getCertificate() {
+		return m_certificate;
+	}
+
+	/**
+	 * Issue a leaf certificate for the given host.
+	 *
+	 * @param host
+	 *            host name or IP address
+	 * @param publicKey
+	 *            public key of the certificate
+	 * @return certificate signed by this authority
+	 * @throws GeneralSecurityException
+	 *             if the certificate can not be signed
+	 */
+	public X509Certificate issue(String host, PublicKey publicKey) throws GeneralSecurityException {
+		final long now = System.currentTimeMillis();
+		final BigInteger serialNumber;
+		synchronized (m_random) {
+			serialNumber = new BigInteger(63, m_random);
+		}
+		return new X509CertificateBuilder().subject(new X500Principal("CN=" + host))
+						.issuer(m_certificate.getSubjectX500Principal()).publicKey(publicKey)
+						.serialNumber(serialNumber).validity(new Date(now - BACKDATE), new Date(now + LEAF_VALIDITY))
+						.hostName(host).sign(m_privateKey);
+	}
+
+	static KeyStore load(File file) throws IOException, GeneralSecurityException {
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		final InputStream in = new FileInputStream(file);
+		try {
+			keyStore.load(in, KEY_STORE_PASSWORD);
+		} finally {
+			Closer.close(in);
+		}
+		return keyStore;
+	}
+
+	static void store(KeyStore keyStore, File file) throws IOException, GeneralSecurityException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			keyStore.store(out, KEY_STORE_PASSWORD);
+		} finally {
+			Closer.close(out);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link TCPProxySSLEngineFactory} which presents a certificate issued for the requested host by a
+ * {@link TCPProxyCertificateAuthority}.
+ *
+ * RSA key generation is slow, so key pairs are generated ahead of time by a background thread.
+ * When the pool runs dry, the key pair of the first certificate is reused rather than making the
+ * browser wait. The SSL contexts of the issued certificates are kept in a bounded LRU cache, and
+ * the certificates may also be kept in a directory to survive restarts.
+ *
+ * @since 3.3
+ */
+public final class TCPProxyMintingSSLEngineFactory implements TCPProxySSLEngineFactory {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TCPProxyMintingSSLEngineFactory.class);
+	private static final String ALIAS = "host";
+	private static final Pattern VALID_HOST = Pattern.compile("[A-Za-z0-9._:\\-]+");
+
+	private final TCPProxyCertificateAuthority m_authority;
+	private final File m_storeDirectory;
+	private final Map<String, SSLContext> m_cache;
+	private final BlockingQueue<KeyPair> m_keyPairs;
+	private final KeyPair m_fallbackKeyPair;
+	private final KeyPairGenerator m_keyPairGenerator;
+	private volatile int m_sessionCacheSize = -1;
+	private volatile int m_sessionTimeout = -1;
+	private final ExecutorService m_background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "tcp_proxy_certificate");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	/**
+	 * Constructor.
+	 *
+	 * @param authority
+	 *            authority which issues the certificates
+	 * @param storeDirectory
+	 *            directory where the issued certificates are kept. {@code null} to keep them only
+	 *            in memory.
+	 * @param cacheSize
+	 *            maximum number of hosts whose SSL context is cached
+	 * @param keyPairPoolSize
+	 *            number of key pairs which are generated ahead of time
+	 * @throws GeneralSecurityException
+	 *             if RSA keys can not be generated
+	 */
+	public TCPProxyMintingSSLEngineFactory(TCPProxyCertificateAuthority authority, File storeDirectory,
+					final int cacheSize, int keyPairPoolSize) throws GeneralSecurityException {
+		m_authority = authority;
+		m_storeDirectory = storeDirectory;
+		m_cache = new LinkedHashMap<String, SSLContext>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SSLContext> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		m_keyPairGenerator = KeyPairGenerator.getInstance(TCPProxyCertificateAuthority.KEY_ALGORITHM);
+		m_keyPairGenerator.initialize(TCPProxyCertificateAuthority.KEY_SIZE);
+		m_fallbackKeyPair = m_keyPairGenerator.generateKeyPair();
+		m_keyPairs = new ArrayBlockingQueue<KeyPair>(Math.max(1, keyPairPoolSize));
+		refillKeyPairs();
+	}
+
+	@Override
+	public SSLEngine createServerEngine(EndPoint remoteEndPoint) throws IOException {
+		final SSLEngine engine = getSSLContext(remoteEndPoint.getHost()).createSSLEngine();
+		engine.setUseClientMode(false);
+		return engine;
+	}
+
+	/**
+	 * {@inheritDoc} Each host has its own cache.
+	 */
+	@Override
+	public void configureSessionCache(int cacheSize, int timeout) {
+		m_sessionCacheSize = cacheSize;
+		m_sessionTimeout = timeout;
+		synchronized (m_cache) {
+			for (SSLContext each : m_cache.values()) {
+				configureSessionCache(each);
+			}
+		}
+	}
+
+	private void configureSessionCache(SSLContext sslContext) {
+		if (m_sessionCacheSize >= 0) {
+			sslContext.getServerSessionContext().setSessionCacheSize(m_sessionCacheSize);
+			sslContext.getServerSessionContext().setSessionTimeout(m_sessionTimeout);
+		}
+	}
+
+	/**
+	 * Stop the background thread.
+	 */
+	public void shutdown() {
+		m_background.shutdownNow();
+	}
+
+	/**
+	 * Get the number of key pairs which are ready to be used.
+	 *
+	 * @return pooled key pair count
+	 */
+	int getPooledKeyPairCount() {
+		return m_keyPairs.size();
+	}
+
+	SSLContext getSSLContext(String host) throws IOException {
+		if (!VALID_HOST.matcher(host).matches()) {
+			throw new IOException("Can not issue a certificate for " + host);
+		}
+		final String key = host.toLowerCase();
+		synchronized (m_cache) {
+			final SSLContext cached = m_cache.get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		// Two connections to a new host may both issue a certificate. Either is fine.
+		final SSLContext sslContext;
+		try {
+			sslContext = createSSLContext(key);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to issue a certificate for " + host + ": " + e.getMessage());
+		}
+		configureSessionCache(sslContext);
+		synchronized (m_cache) {
+			m_cache.put(key, sslContext);
+		}
+		return sslContext;
+	}
+
+	private SSLContext createSSLContext(String host) throws GeneralSecurityException, IOException {
+		final File storeFile = getStoreFile(host);
+		if (storeFile != null && storeFile.exists()) {
+			try {
+				return createSSLContext(TCPProxyCertificateAuthority.load(storeFile));
+			} catch (IOException e) {
+				LOGGER.debug("Failed to load the certificate of " + host + ", issue a new one", e);
+			} catch (GeneralSecurityException e) {
+				LOGGER.debug("Failed to load the certificate of " + host + ", issue a new one", e);
+			}
+		}
+
+		KeyPair keyPair = m_keyPairs.poll();
+		if (keyPair == null) {
+			keyPair = m_fallbackKeyPair;
+		}
+		refillKeyPairs();
+
+		final X509Certificate certificate = m_authority.issue(host, keyPair.getPublic());
+		final KeyStore keyStore = KeyStore.getInstance("JKS");
+		keyStore.load(null, null);
+		keyStore.setKeyEntry(ALIAS, keyPair.getPrivate(), TCPProxyCertificateAuthority.KEY_STORE_PASSWORD,
+						new Certificate[] { certificate, m_authority.getCertificate() });
+		final SSLContext sslContext = createSSLContext(keyStore);
+		if (storeFile != null) {
+			store(keyStore, storeFile);
+		}
+		return sslContext;
+	}
+
+	private static SSLContext createSSLContext(KeyStore keyStore) throws GeneralSecurityException {
+		if (!(keyStore.getKey(ALIAS, TCPProxyCertificateAuthority.KEY_STORE_PASSWORD) instanceof PrivateKey)) {
+			throw new GeneralSecurityException("No key in the stored certificate");
+		}
+		final KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory
+						.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, TCPProxyCertificateAuthority.KEY_STORE_PASSWORD);
+		final SSLContext sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+		return sslContext;
+	}
+
+	private void store(final KeyStore keyStore, final File storeFile) {
+		m_background.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (storeFile.getParentFile().isDirectory() || storeFile.getParentFile().mkdirs()) {
+						TCPProxyCertificateAuthority.store(keyStore, storeFile);
+					}
+				} catch (Exception e) {
+					LOGGER.debug("Failed to store " + storeFile, e);
+				}
+			}
+		});
+	}
+
+	private File getStoreFile(String host) {
+		if (m_storeDirectory == null) {
+			return null;
+		}
+		return new File(m_storeDirectory, host.replaceAll("[^a-z0-9.\\-]", "_") + ".jks");
+	}
+
+	private void refillKeyPairs() {
+		m_background.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (m_keyPairs.remainingCapacity() > 0 && !Thread.currentThread().isInterrupted()) {
+					m_keyPairs.offer(m_keyPairGenerator.generateKeyPair());
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.grinder.util.NoOp;
+
+/**
+ * Decides which connections are relayed without the filters, and keeps track of them.
+ *
+ * A passthrough HTTPS connection is tunnelled to the server as it is, without terminating SSL. A
+ * passthrough HTTP connection is still demultiplexed, but its bytes skip the filter tees. Once the
+ * policy changes its mind, for example when the recording starts, {@link #closeAll()} makes the
+ * browser open new connections which the policy is asked about again.
+ *
+ * @since 3.3
+ */
+public final class TCPProxyPassthrough {
+
+	/**
+	 * Tells which connections are not recorded.
+	 */
+	public interface Policy {
+		/**
+		 * Check if a new connection is relayed without the filters.
+		 *
+		 * @param connectionDetails
+		 *            browser and server of the connection. It is secure for a CONNECT tunnel.
+		 * @return true for passthrough
+		 */
+		boolean isPassthrough(ConnectionDetails connectionDetails);
+	}
+
+	private final Set<Closeable> m_connections = Collections
+					.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+	private final AtomicLong m_totalCount = new AtomicLong();
+	private volatile Policy m_policy;
+
+	/**
+	 * Set the policy. Without a policy every connection goes through the filters.
+	 *
+	 * @param policy
+	 *            policy, or {@code null}
+	 */
+	public void setPolicy(Policy policy) {
+		m_policy = policy;
+	}
+
+	boolean isPassthrough(ConnectionDetails connectionDetails) {
+		final Policy policy = m_policy;
+		return policy != null && policy.isPassthrough(connectionDetails);
+	}
+
+	void register(Closeable connection) {
+		m_connections.add(connection);
+		m_totalCount.incrementAndGet();
+	}
+
+	void unregister(Closeable connection) {
+		m_connections.remove(connection);
+	}
+
+	/**
+	 * Close all the open passthrough connections.
+	 */
+	public void closeAll() {
+		for (Closeable each : m_connections) {
+			m_connections.remove(each);
+			try {
+				each.close();
+			} catch (IOException e) {
+				NoOp.noOp();
+			}
+		}
+	}
+
+	public int getOpenCount() {
+		return m_connections.size();
+	}
+
+	public long getTotalCount() {
+		return m_totalCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "open=" + getOpenCount() + " total=" + getTotalCount();
+	}
+}
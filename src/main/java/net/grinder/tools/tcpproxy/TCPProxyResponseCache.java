@@ -0,0 +1,1137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.grinder.common.UncheckedInterruptedException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Cache of the responses to the GET requests for static files, such as the images, scripts and
+ * style sheets which the recording leaves out of the script anyway, so the pages which are browsed
+ * again and again while recording do not fetch them from the servers each time.
+ *
+ * A {@link Policy} tells which responses are kept. Only complete 200 responses which
+ * Cache-Control or Expires, or failing those Last-Modified, make fresh for a while are kept, and
+ * they are served until they are stale. Responses which are private, must be revalidated, set
+ * cookies or vary on anything but Accept-Encoding are never kept, and neither are the responses
+ * to requests with credentials or a range. A request with its own validator which matches a fresh
+ * response is answered with 304 Not Modified. A request for a file which another browser
+ * connection is fetching waits for that response rather than fetching it again.
+ *
+ * The responses are kept in memory up to a total size, the least recently used going first. With
+ * a spill directory, the responses pushed out of memory are written there, up to another total
+ * size, and read back when they are asked for again. The directory is emptied when it is set, as
+ * the spilled responses only live as long as the process.
+ *
+ * The engines only answer a request from the cache while no other response is due on the browser
+ * connection, so the cached response cannot overtake one from a server.
+ *
+ * @since 3.3
+ */
+public final class TCPProxyResponseCache {
+
+	/**
+	 * Tells which responses are kept.
+	 */
+	public interface Policy {
+		/**
+		 * Check if the response to a request may be kept.
+		 *
+		 * @param path
+		 *            path of the request, with the query string
+		 * @param contentType
+		 *            content type of the response, or {@code null} while the request is sent
+		 * @return true to keep it
+		 */
+		boolean isCacheable(String path, String contentType);
+	}
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	// Heuristic freshness from Last-Modified is a tenth of the age of the file, at most a day.
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60;
+
+	// How long a request waits for the same response which another connection is fetching.
+	private static final long FILL_TIMEOUT = 30 * 1000;
+
+	// Not stored, as they describe the connection which carried the response, or are recomputed.
+	private static final String[] HOP_BY_HOP_HEADERS = { "Connection", "Keep-Alive", "Proxy-Connection",
+			"Transfer-Encoding", "TE", "Trailer", "Upgrade", "Content-Length", "Age" };
+
+	// Sent again with 304 Not Modified.
+	private static final String[] NOT_MODIFIED_HEADERS = { "Date", "ETag", "Cache-Control", "Expires",
+			"Last-Modified", "Vary", "Content-Location" };
+
+	private final Lock m_lock = new ReentrantLock();
+	// In access order, so the eldest is the least recently used.
+	private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final LinkedHashMap<String, Entry> m_spilledEntries = new LinkedHashMap<String, Entry>(16, 0.75f,
+					true);
+	private final ConcurrentMap<String, Fill> m_fills = new ConcurrentHashMap<String, Fill>();
+	private final AtomicLong m_spillSequence = new AtomicLong();
+	private final AtomicLong m_hits = new AtomicLong();
+	private final AtomicLong m_misses = new AtomicLong();
+	private final AtomicLong m_coalesced = new AtomicLong();
+	private final AtomicLong m_stored = new AtomicLong();
+	private final AtomicLong m_evicted = new AtomicLong();
+	private final AtomicLong m_spillHits = new AtomicLong();
+	private volatile Policy m_policy;
+	private volatile long m_maxSize = 64L * 1024 * 1024;
+	private volatile int m_maxEntrySize = 8 * 1024 * 1024;
+	private volatile File m_spillDirectory;
+	private volatile long m_maxSpillSize;
+	private long m_size;
+	private long m_spillSize;
+
+	/**
+	 * Set the policy. Without a policy nothing is cached.
+	 *
+	 * @param policy
+	 *            policy, or {@code null}
+	 */
+	public void setPolicy(Policy policy) {
+		m_policy = policy;
+	}
+
+	/**
+	 * Check if the engines use the cache.
+	 *
+	 * @return true if there is a policy and room for responses
+	 */
+	public boolean isEnabled() {
+		return m_policy != null && m_maxSize > 0;
+	}
+
+	/**
+	 * Set the total size of the responses kept in memory.
+	 *
+	 * @param maxSize
+	 *            size in bytes
+	 */
+	public void setMaxSize(long maxSize) {
+		m_maxSize = maxSize;
+	}
+
+	public long getMaxSize() {
+		return m_maxSize;
+	}
+
+	/**
+	 * Set the size of the largest response which is kept.
+	 *
+	 * @param maxEntrySize
+	 *            size of the body in bytes
+	 */
+	public void setMaxEntrySize(int maxEntrySize) {
+		m_maxEntrySize = maxEntrySize;
+	}
+
+	public int getMaxEntrySize() {
+		return m_maxEntrySize;
+	}
+
+	/**
+	 * Set the directory which the responses pushed out of memory are written to. Whatever is in
+	 * the directory is deleted.
+	 *
+	 * @param spillDirectory
+	 *            directory, or {@code null} to drop the responses pushed out of memory
+	 * @param maxSpillSize
+	 *            total size of the responses kept in the directory, in bytes
+	 * @throws IOException
+	 *             if the directory cannot be created or emptied
+	 */
+	public void setSpillDirectory(File spillDirectory, long maxSpillSize) throws IOException {
+		if (spillDirectory != null) {
+			FileUtils.forceMkdir(spillDirectory);
+			FileUtils.cleanDirectory(spillDirectory);
+		}
+		m_spillDirectory = spillDirectory;
+		m_maxSpillSize = maxSpillSize;
+	}
+
+	public File getSpillDirectory() {
+		return m_spillDirectory;
+	}
+
+	/**
+	 * Parse the request head at the start of the buffer.
+	 *
+	 * @param remoteEndPoint
+	 *            server of the request
+	 * @param secure
+	 *            true for HTTPS
+	 * @param buffer
+	 *            buffer
+	 * @param offset
+	 *            offset of the request
+	 * @param length
+	 *            number of bytes which follow
+	 * @return request, or {@code null} if the buffer does not hold a complete request head
+	 */
+	static Request parse(EndPoint remoteEndPoint, boolean secure, byte[] buffer, int offset, int length) {
+		final int end = offset + length;
+		int headEnd = -1;
+		for (int i = offset; i + 3 < end; ++i) {
+			if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n') {
+				headEnd = i + 4;
+				break;
+			}
+		}
+		if (headEnd == -1) {
+			return null;
+		}
+		final String[] lines = new String(buffer, offset, headEnd - offset - 4, ISO_8859_1).split("\r\n");
+		final String[] requestLine = lines[0].split(" ");
+		if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+			return null;
+		}
+		final List<String> headerLines = new ArrayList<String>(lines.length);
+		for (int i = 1; i < lines.length; ++i) {
+			headerLines.add(lines[i]);
+		}
+		return new Request(remoteEndPoint, secure, requestLine[0], requestLine[1], requestLine[2], headerLines,
+						headEnd - offset);
+	}
+
+	/**
+	 * Answer a request from the cache.
+	 *
+	 * @param request
+	 *            request
+	 * @param out
+	 *            stream to the browser
+	 * @param blocking
+	 *            true if the caller may wait for the same response which another connection is
+	 *            fetching, and for a response to be read back from the spill directory
+	 * @return true if the response has been written, false if the request should be sent on
+	 * @throws IOException
+	 *             if the response cannot be written
+	 */
+	boolean serve(Request request, OutputStream out, boolean blocking) throws IOException {
+		if (!request.isCandidate() || request.isNoCache()) {
+			return false;
+		}
+		Entry entry = lookup(request, blocking);
+		if (entry == null && blocking) {
+			final Fill fill = m_fills.get(request.getKey());
+			if (fill != null && fill.await()) {
+				entry = lookup(request, true);
+				if (entry != null) {
+					m_coalesced.incrementAndGet();
+				}
+			}
+		}
+		if (entry == null) {
+			if (isCacheablePath(request)) {
+				m_misses.incrementAndGet();
+			}
+			return false;
+		}
+		m_hits.incrementAndGet();
+		out.write(entry.createResponse(request, System.currentTimeMillis()));
+		out.flush();
+		return true;
+	}
+
+	/**
+	 * Create the listener of the responses to the requests sent on an upstream connection, which
+	 * keeps the cacheable ones. The caller feeds the framer the listener is registered with, and
+	 * tells the listener about each request it tells the framer about, under the same lock.
+	 *
+	 * @return capture
+	 */
+	Capture createCapture() {
+		return new Capture();
+	}
+
+	/**
+	 * Create the cache of a connection whose requests and responses are read by a thread each, in
+	 * a stream of their own.
+	 *
+	 * @param remoteEndPoint
+	 *            server of the connection
+	 * @param browserOut
+	 *            stream to the browser
+	 * @return exchange
+	 */
+	Exchange createExchange(EndPoint remoteEndPoint, OutputStream browserOut) {
+		return new Exchange(remoteEndPoint, browserOut);
+	}
+
+	private boolean isCacheablePath(Request request) {
+		final Policy policy = m_policy;
+		return policy != null && policy.isCacheable(request.getPath(), null);
+	}
+
+	private Entry lookup(Request request, boolean readSpilled) throws IOException {
+		final long now = System.currentTimeMillis();
+		Entry entry;
+		m_lock.lock();
+		try {
+			entry = m_entries.get(request.getKey());
+			if (entry == null && readSpilled) {
+				entry = m_spilledEntries.remove(request.getKey());
+				if (entry != null) {
+					m_spillSize -= entry.getSize();
+				}
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		if (entry != null && entry.getBody() == null) {
+			// Read back from the spill directory.
+			final File file = entry.getFile();
+			try {
+				entry.setBody(FileUtils.readFileToByteArray(file));
+			} finally {
+				FileUtils.deleteQuietly(file);
+			}
+			m_spillHits.incrementAndGet();
+			store(entry);
+		}
+		if (entry == null || !entry.isFresh(now) || !entry.matches(request)) {
+			return null;
+		}
+		return entry;
+	}
+
+	private void store(Entry entry) {
+		final List<Entry> spilled = new ArrayList<Entry>();
+		final File spillDirectory = m_spillDirectory;
+		m_lock.lock();
+		try {
+			remove(entry.getKey());
+			m_entries.put(entry.getKey(), entry);
+			m_size += entry.getSize();
+			final Iterator<Entry> eldest = m_entries.values().iterator();
+			while (m_size > m_maxSize && eldest.hasNext()) {
+				final Entry evicted = eldest.next();
+				eldest.remove();
+				m_size -= evicted.getSize();
+				m_evicted.incrementAndGet();
+				if (spillDirectory != null && evicted.getSize() <= m_maxSpillSize) {
+					spilled.add(evicted);
+				}
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		for (Entry each : spilled) {
+			spill(spillDirectory, each);
+		}
+	}
+
+	private void spill(File spillDirectory, Entry entry) {
+		final File file = new File(spillDirectory, "response-" + m_spillSequence.incrementAndGet());
+		try {
+			FileUtils.writeByteArrayToFile(file, entry.getBody());
+		} catch (IOException e) {
+			FileUtils.deleteQuietly(file);
+			return;
+		}
+		final Entry spilled = entry.spilled(file);
+		final List<File> deleted = new ArrayList<File>();
+		m_lock.lock();
+		try {
+			if (m_entries.containsKey(entry.getKey())) {
+				// Stored again meanwhile.
+				deleted.add(file);
+			} else {
+				final Entry previous = m_spilledEntries.put(entry.getKey(), spilled);
+				if (previous != null) {
+					m_spillSize -= previous.getSize();
+					deleted.add(previous.getFile());
+				}
+				m_spillSize += spilled.getSize();
+				final Iterator<Entry> eldest = m_spilledEntries.values().iterator();
+				while (m_spillSize > m_maxSpillSize && eldest.hasNext()) {
+					final Entry evicted = eldest.next();
+					eldest.remove();
+					m_spillSize -= evicted.getSize();
+					deleted.add(evicted.getFile());
+				}
+			}
+		} finally {
+			m_lock.unlock();
+		}
+		for (File each : deleted) {
+			FileUtils.deleteQuietly(each);
+		}
+	}
+
+	// Called with the lock held.
+	private void remove(String key) {
+		final Entry entry = m_entries.remove(key);
+		if (entry != null) {
+			m_size -= entry.getSize();
+		}
+		final Entry spilled = m_spilledEntries.remove(key);
+		if (spilled != null) {
+			m_spillSize -= spilled.getSize();
+			FileUtils.deleteQuietly(spilled.getFile());
+		}
+	}
+
+	private void freshen(Request request, List<String> headerLines) {
+		final String etag = header(headerLines, "ETag");
+		if (etag == null) {
+			return;
+		}
+		m_lock.lock();
+		try {
+			Entry entry = m_entries.get(request.getKey());
+			if (entry == null) {
+				entry = m_spilledEntries.get(request.getKey());
+			}
+			if (entry != null && etag.equals(entry.getETag())) {
+				entry.freshen(headerLines, System.currentTimeMillis());
+			}
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Create an entry for a 200 response, if it may be kept.
+	 */
+	private Entry createEntry(Request request, List<String> headerLines) {
+		final Policy policy = m_policy;
+		if (policy == null || header(headerLines, "Set-Cookie") != null) {
+			return null;
+		}
+		final String cacheControl = header(headerLines, "Cache-Control");
+		if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "no-cache")
+						|| hasDirective(cacheControl, "private")) {
+			return null;
+		}
+		boolean varyAcceptEncoding = false;
+		final String vary = header(headerLines, "Vary");
+		if (vary != null) {
+			for (String each : vary.split(",")) {
+				if ("accept-encoding".equalsIgnoreCase(each.trim())) {
+					varyAcceptEncoding = true;
+				} else if (each.trim().length() > 0) {
+					return null;
+				}
+			}
+		}
+		if (!policy.isCacheable(request.getPath(), header(headerLines, "Content-Type"))) {
+			return null;
+		}
+		final long now = System.currentTimeMillis();
+		final long lifetime = getLifetime(headerLines, now, true);
+		if (lifetime <= 0) {
+			return null;
+		}
+		final StringBuilder head = new StringBuilder("HTTP/1.1 200 OK\r\n");
+		final StringBuilder notModifiedHead = new StringBuilder("HTTP/1.1 304 Not Modified\r\n");
+		for (String each : headerLines) {
+			final int colon = each.indexOf(':');
+			final String name = colon > 0 ? each.substring(0, colon).trim() : "";
+			if (!contains(HOP_BY_HOP_HEADERS, name)) {
+				head.append(each).append("\r\n");
+			}
+			if (contains(NOT_MODIFIED_HEADERS, name)) {
+				notModifiedHead.append(each).append("\r\n");
+			}
+		}
+		return new Entry(request.getKey(), head.toString(), notModifiedHead.toString(), header(headerLines,
+						"ETag"), header(headerLines, "Last-Modified"), varyAcceptEncoding ? request
+						.getAcceptEncoding() : null, varyAcceptEncoding, now, getAge(headerLines), lifetime);
+	}
+
+	/**
+	 * Get the freshness lifetime of a response, in seconds.
+	 *
+	 * @param heuristic
+	 *            true to fall back to a tenth of the age of Last-Modified
+	 * @return lifetime, or -1 if the headers do not tell
+	 */
+	private static long getLifetime(List<String> headerLines, long now, boolean heuristic) {
+		final String cacheControl = header(headerLines, "Cache-Control");
+		long maxAge = getDirectiveValue(cacheControl, "s-maxage");
+		if (maxAge < 0) {
+			maxAge = getDirectiveValue(cacheControl, "max-age");
+		}
+		if (maxAge >= 0) {
+			return maxAge;
+		}
+		final long date = parseDate(header(headerLines, "Date"), now);
+		final String expires = header(headerLines, "Expires");
+		if (expires != null) {
+			// An invalid date means already expired.
+			return Math.max(0, (parseDate(expires, date) - date) / 1000);
+		}
+		final String lastModified = header(headerLines, "Last-Modified");
+		if (heuristic && lastModified != null) {
+			return Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, (date - parseDate(lastModified, date)) / 10000));
+		}
+		return -1;
+	}
+
+	private static long getAge(List<String> headerLines) {
+		final String age = header(headerLines, "Age");
+		if (age != null) {
+			try {
+				return Math.max(0, Long.parseLong(age.trim()));
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	private static long parseDate(String value, long defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			final Date date = format.parse(value.trim());
+			return date.getTime();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Get the value of a header. The values of a repeated header are joined with commas.
+	 */
+	static String header(List<String> headerLines, String name) {
+		String value = null;
+		for (String each : headerLines) {
+			final int colon = each.indexOf(':');
+			if (colon == name.length() && each.regionMatches(true, 0, name, 0, colon)) {
+				final String eachValue = each.substring(colon + 1).trim();
+				value = value == null ? eachValue : value + ", " + eachValue;
+			}
+		}
+		return value;
+	}
+
+	private static boolean hasDirective(String value, String directive) {
+		if (value == null) {
+			return false;
+		}
+		for (String each : value.split(",")) {
+			final String token = each.trim();
+			if (token.regionMatches(true, 0, directive, 0, directive.length())
+							&& (token.length() == directive.length() || token.charAt(directive.length()) == '=')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long getDirectiveValue(String value, String directive) {
+		if (value == null) {
+			return -1;
+		}
+		for (String each : value.split(",")) {
+			final String token = each.trim();
+			if (token.length() > directive.length() + 1 && token.charAt(directive.length()) == '='
+							&& token.regionMatches(true, 0, directive, 0, directive.length())) {
+				try {
+					return Math.max(0, Long.parseLong(token.substring(directive.length() + 1).replace("\"", "")));
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static boolean contains(String[] names, String name) {
+		for (String each : names) {
+			if (each.equalsIgnoreCase(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getEntryCount() {
+		m_lock.lock();
+		try {
+			return m_entries.size();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	public long getSize() {
+		m_lock.lock();
+		try {
+			return m_size;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	public long getSpillSize() {
+		m_lock.lock();
+		try {
+			return m_spillSize;
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	public long getHitCount() {
+		return m_hits.get();
+	}
+
+	public long getMissCount() {
+		return m_misses.get();
+	}
+
+	public long getCoalescedCount() {
+		return m_coalesced.get();
+	}
+
+	public long getStoredCount() {
+		return m_stored.get();
+	}
+
+	public long getEvictedCount() {
+		return m_evicted.get();
+	}
+
+	public long getSpillHitCount() {
+		return m_spillHits.get();
+	}
+
+	@Override
+	public String toString() {
+		return "entries=" + getEntryCount() + " size=" + getSize() / 1024 + "KB spilled=" + getSpillSize() / 1024
+						+ "KB hits=" + getHitCount() + " misses=" + getMissCount() + " coalesced="
+						+ getCoalescedCount() + " stored=" + getStoredCount() + " evicted=" + getEvictedCount()
+						+ " spillhits=" + getSpillHitCount();
+	}
+
+	/**
+	 * Request head, as far as the cache is concerned.
+	 */
+	static final class Request {
+		private final String m_method;
+		private final String m_path;
+		private final String m_key;
+		private final boolean m_http11;
+		private final int m_headLength;
+		private final long m_contentLength;
+		private final boolean m_chunked;
+		private final boolean m_upgrade;
+		private final boolean m_close;
+		private final boolean m_credentials;
+		private final boolean m_range;
+		private final boolean m_noStore;
+		private final boolean m_noCache;
+		private final String m_ifNoneMatch;
+		private final String m_ifModifiedSince;
+		private final String m_acceptEncoding;
+		// Set while this request fetches a response other requests may wait for.
+		private Fill m_fill;
+
+		Request(EndPoint remoteEndPoint, boolean secure, String method, String target, String version,
+						List<String> headerLines, int headLength) {
+			m_method = method;
+			String path = target;
+			if (!target.startsWith("/")) {
+				// Absolute URI, sent to a proxy.
+				final int authority = target.indexOf("//");
+				final int slash = authority >= 0 ? target.indexOf('/', authority + 2) : -1;
+				path = slash >= 0 ? target.substring(slash) : "/";
+			}
+			m_path = path;
+			m_key = (secure ? "https://" : "http://") + remoteEndPoint + path;
+			m_http11 = "HTTP/1.1".equals(version);
+			m_headLength = headLength;
+			long contentLength = 0;
+			final String contentLengthHeader = header(headerLines, "Content-Length");
+			if (contentLengthHeader != null) {
+				try {
+					contentLength = Long.parseLong(contentLengthHeader.trim());
+				} catch (NumberFormatException e) {
+					contentLength = -1;
+				}
+			}
+			m_contentLength = contentLength;
+			final String transferEncoding = header(headerLines, "Transfer-Encoding");
+			m_chunked = transferEncoding != null;
+			m_upgrade = header(headerLines, "Upgrade") != null;
+			final String connection = header(headerLines, "Connection");
+			m_close = connection != null && hasDirective(connection, "close");
+			m_credentials = header(headerLines, "Authorization") != null;
+			m_range = header(headerLines, "Range") != null;
+			final String cacheControl = header(headerLines, "Cache-Control");
+			final String pragma = header(headerLines, "Pragma");
+			m_noStore = hasDirective(cacheControl, "no-store");
+			m_noCache = hasDirective(cacheControl, "no-cache") || getDirectiveValue(cacheControl, "max-age") == 0
+							|| (cacheControl == null && hasDirective(pragma, "no-cache"));
+			m_ifNoneMatch = header(headerLines, "If-None-Match");
+			m_ifModifiedSince = header(headerLines, "If-Modified-Since");
+			m_acceptEncoding = header(headerLines, "Accept-Encoding");
+		}
+
+		/**
+		 * Check if the request may be answered from the cache, or its response kept.
+		 *
+		 * @return true for a GET request without credentials, range or body
+		 */
+		boolean isCandidate() {
+			return "GET".equals(m_method) && m_http11 && !m_credentials && !m_range && !m_noStore && !m_upgrade
+							&& !m_close && m_contentLength == 0 && !m_chunked;
+		}
+
+		boolean isHead() {
+			return "HEAD".equals(m_method);
+		}
+
+		boolean isNoCache() {
+			return m_noCache;
+		}
+
+		String getPath() {
+			return m_path;
+		}
+
+		String getKey() {
+			return m_key;
+		}
+
+		int getHeadLength() {
+			return m_headLength;
+		}
+
+		/**
+		 * Get the length of the request body.
+		 *
+		 * @return length, or -1 if the body is chunked or the length is invalid
+		 */
+		long getContentLength() {
+			return m_chunked ? -1 : m_contentLength;
+		}
+
+		boolean isUpgrade() {
+			return m_upgrade;
+		}
+
+		String getIfNoneMatch() {
+			return m_ifNoneMatch;
+		}
+
+		String getIfModifiedSince() {
+			return m_ifModifiedSince;
+		}
+
+		String getAcceptEncoding() {
+			return m_acceptEncoding;
+		}
+	}
+
+	/**
+	 * Cached response.
+	 */
+	private static final class Entry {
+		private final String m_key;
+		private final String m_head;
+		private final String m_notModifiedHead;
+		private final String m_etag;
+		private final String m_lastModified;
+		private final String m_acceptEncoding;
+		private final boolean m_varyAcceptEncoding;
+		private volatile long m_storedTime;
+		private volatile long m_initialAge;
+		private volatile long m_lifetime;
+		private volatile byte[] m_body;
+		private File m_file;
+		private byte[] m_headBytes;
+		private int m_bodyLength;
+
+		Entry(String key, String head, String notModifiedHead, String etag, String lastModified,
+						String acceptEncoding, boolean varyAcceptEncoding, long storedTime, long initialAge,
+						long lifetime) {
+			m_key = key;
+			m_head = head;
+			m_notModifiedHead = notModifiedHead;
+			m_etag = etag;
+			m_lastModified = lastModified;
+			m_acceptEncoding = acceptEncoding;
+			m_varyAcceptEncoding = varyAcceptEncoding;
+			m_storedTime = storedTime;
+			m_initialAge = initialAge;
+			m_lifetime = lifetime;
+		}
+
+		Entry spilled(File file) {
+			final Entry entry = new Entry(m_key, m_head, m_notModifiedHead, m_etag, m_lastModified,
+							m_acceptEncoding, m_varyAcceptEncoding, m_storedTime, m_initialAge, m_lifetime);
+			entry.m_headBytes = m_headBytes;
+			entry.m_bodyLength = m_bodyLength;
+			entry.m_file = file;
+			return entry;
+		}
+
+		String getKey() {
+			return m_key;
+		}
+
+		String getETag() {
+			return m_etag;
+		}
+
+		File getFile() {
+			return m_file;
+		}
+
+		byte[] getBody() {
+			return m_body;
+		}
+
+		void setBody(byte[] body) {
+			m_headBytes = (m_head + "Content-Length: " + body.length + "\r\n").getBytes(ISO_8859_1);
+			m_bodyLength = body.length;
+			m_body = body;
+			m_file = null;
+		}
+
+		long getSize() {
+			return m_headBytes.length + m_bodyLength;
+		}
+
+		boolean isFresh(long now) {
+			return getAge(now) < m_lifetime;
+		}
+
+		private long getAge(long now) {
+			return m_initialAge + Math.max(0, now - m_storedTime) / 1000;
+		}
+
+		boolean matches(Request request) {
+			if (!m_varyAcceptEncoding) {
+				return true;
+			}
+			return m_acceptEncoding == null ? request.getAcceptEncoding() == null : m_acceptEncoding
+							.equals(request.getAcceptEncoding());
+		}
+
+		void freshen(List<String> headerLines, long now) {
+			final long lifetime = getLifetime(headerLines, now, false);
+			if (lifetime >= 0) {
+				m_lifetime = lifetime;
+			}
+			m_initialAge = TCPProxyResponseCache.getAge(headerLines);
+			m_storedTime = now;
+		}
+
+		byte[] createResponse(Request request, long now) {
+			final String age = "Age: " + getAge(now) + "\r\n\r\n";
+			if (isNotModified(request)) {
+				return (m_notModifiedHead + age).getBytes(ISO_8859_1);
+			}
+			final byte[] ageBytes = age.getBytes(ISO_8859_1);
+			final byte[] body = m_body;
+			final byte[] response = new byte[m_headBytes.length + ageBytes.length + body.length];
+			System.arraycopy(m_headBytes, 0, response, 0, m_headBytes.length);
+			System.arraycopy(ageBytes, 0, response, m_headBytes.length, ageBytes.length);
+			System.arraycopy(body, 0, response, m_headBytes.length + ageBytes.length, body.length);
+			return response;
+		}
+
+		private boolean isNotModified(Request request) {
+			final String ifNoneMatch = request.getIfNoneMatch();
+			if (ifNoneMatch != null) {
+				if (m_etag == null) {
+					return false;
+				}
+				final String etag = weak(m_etag);
+				for (String each : ifNoneMatch.split(",")) {
+					if ("*".equals(each.trim()) || etag.equals(weak(each.trim()))) {
+						return true;
+					}
+				}
+				return false;
+			}
+			return m_lastModified != null && m_lastModified.equals(request.getIfModifiedSince());
+		}
+
+		private static String weak(String etag) {
+			return etag.startsWith("W/") ? etag.substring(2) : etag;
+		}
+	}
+
+	/**
+	 * Response which a request is fetching, which the requests for the same file wait for.
+	 */
+	private static final class Fill {
+		private final CountDownLatch m_done = new CountDownLatch(1);
+
+		void complete() {
+			m_done.countDown();
+		}
+
+		boolean await() {
+			try {
+				return m_done.await(FILL_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				throw new UncheckedInterruptedException(e);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the cacheable responses of an upstream connection. Not thread safe: it is called under
+	 * the lock of the connection, or in its event loop.
+	 */
+	final class Capture implements HTTPResponseFramer.Listener {
+		// One element per request sent, null for the requests which are not cacheable.
+		private final LinkedList<Request> m_requests = new LinkedList<Request>();
+		private Request m_request;
+		private Entry m_entry;
+		private ByteArrayOutputStream m_body;
+
+		/**
+		 * Record a request sent on the connection.
+		 *
+		 * @param request
+		 *            request, or {@code null} if it was not parsed
+		 */
+		void requestSent(Request request) {
+			if (request == null || !request.isCandidate()) {
+				m_requests.add(null);
+				return;
+			}
+			if (isCacheablePath(request)) {
+				final Fill fill = new Fill();
+				if (m_fills.putIfAbsent(request.getKey(), fill) == null) {
+					request.m_fill = fill;
+				}
+			}
+			m_requests.add(request);
+		}
+
+		@Override
+		public void responseHeaders(int status, List<String> headerLines) {
+			complete();
+			m_request = m_requests.poll();
+			if (m_request == null) {
+				return;
+			}
+			if (status == 304) {
+				freshen(m_request, headerLines);
+			} else if (status == 200) {
+				m_entry = createEntry(m_request, headerLines);
+				if (m_entry != null) {
+					m_body = new ByteArrayOutputStream();
+				}
+			}
+		}
+
+		@Override
+		public void body(byte[] buffer, int offset, int length) {
+			if (m_body == null) {
+				return;
+			}
+			if (m_body.size() + length > m_maxEntrySize) {
+				m_entry = null;
+				m_body = null;
+				return;
+			}
+			m_body.write(buffer, offset, length);
+		}
+
+		@Override
+		public void endOfMessage() {
+			if (m_entry != null) {
+				m_entry.setBody(m_body.toByteArray());
+				store(m_entry);
+				m_stored.incrementAndGet();
+			}
+			complete();
+		}
+
+		/**
+		 * The connection has ended. The requests which are waiting for a response stop waiting.
+		 */
+		void closed() {
+			complete();
+			for (Request each : m_requests) {
+				m_request = each;
+				complete();
+			}
+			m_requests.clear();
+		}
+
+		private void complete() {
+			final Request request = m_request;
+			m_request = null;
+			m_entry = null;
+			m_body = null;
+			if (request != null && request.m_fill != null) {
+				m_fills.remove(request.getKey(), request.m_fill);
+				request.m_fill.complete();
+				request.m_fill = null;
+			}
+		}
+	}
+
+	/**
+	 * Cache of a connection whose requests and responses are read by a thread each. The requests
+	 * are expected to start at the start of the bytes read, as the browsers write them. Once the
+	 * requests can no longer be followed, for example after an upgrade or a chunked request body,
+	 * the exchange steps aside for the rest of the connection.
+	 */
+	final class Exchange {
+		private final EndPoint m_remoteEndPoint;
+		private final OutputStream m_browserOut;
+		// Not a monitor, so a virtual thread which blocks in a read does not pin its carrier.
+		private final Lock m_exchangeLock = new ReentrantLock();
+		private final Capture m_capture = new Capture();
+		private final HTTPResponseFramer m_framer = new HTTPResponseFramer(m_capture);
+		private long m_bodyRemaining = 0;
+		private boolean m_disabled = false;
+
+		Exchange(EndPoint remoteEndPoint, OutputStream browserOut) {
+			m_remoteEndPoint = remoteEndPoint;
+			m_browserOut = browserOut;
+		}
+
+		/**
+		 * Take bytes read from the browser.
+		 *
+		 * @param buffer
+		 *            buffer
+		 * @param length
+		 *            number of bytes
+		 * @return true if the request has been answered from the cache, and must not be sent on
+		 * @throws IOException
+		 *             if the response cannot be written to the browser
+		 */
+		boolean request(byte[] buffer, int length) throws IOException {
+			final Request request;
+			m_exchangeLock.lock();
+			try {
+				if (m_disabled) {
+					return false;
+				}
+				if (m_bodyRemaining > 0) {
+					m_bodyRemaining -= length;
+					if (m_bodyRemaining < 0) {
+						disable();
+					}
+					return false;
+				}
+				request = parse(m_remoteEndPoint, true, buffer, 0, length);
+				if (request == null || request.isUpgrade() || request.getContentLength() < 0) {
+					disable();
+					return false;
+				}
+				m_bodyRemaining = request.getContentLength() - (length - request.getHeadLength());
+				if (m_bodyRemaining < 0) {
+					// More than one request in the bytes.
+					disable();
+					return false;
+				}
+				if (!m_framer.isIdle()) {
+					sent(request);
+					return false;
+				}
+			} finally {
+				m_exchangeLock.unlock();
+			}
+			// The response thread has nothing to write until the next request is sent.
+			if (serve(request, m_browserOut, true)) {
+				return true;
+			}
+			m_exchangeLock.lock();
+			try {
+				if (!m_disabled) {
+					sent(request);
+				}
+			} finally {
+				m_exchangeLock.unlock();
+			}
+			return false;
+		}
+
+		/**
+		 * Take bytes read from the server.
+		 *
+		 * @param buffer
+		 *            buffer
+		 * @param offset
+		 *            offset of the bytes
+		 * @param length
+		 *            number of bytes
+		 */
+		void response(byte[] buffer, int offset, int length) {
+			m_exchangeLock.lock();
+			try {
+				if (!m_disabled) {
+					m_framer.feed(buffer, offset, length);
+				}
+			} finally {
+				m_exchangeLock.unlock();
+			}
+		}
+
+		/**
+		 * The connection has ended.
+		 */
+		void closed() {
+			m_exchangeLock.lock();
+			try {
+				disable();
+			} finally {
+				m_exchangeLock.unlock();
+			}
+		}
+
+		private void sent(Request request) {
+			m_framer.requestSent(request.isHead());
+			m_capture.requestSent(request);
+		}
+
+		private void disable() {
+			m_disabled = true;
+			m_capture.closed();
+		}
+	}
+}
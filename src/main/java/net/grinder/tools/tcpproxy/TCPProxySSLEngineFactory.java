@@ -0,0 +1,49 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Factory for the {@link SSLEngine}s which terminate the SSL connections of the browser in
+ * process.
+ *
+ * @since 3.3
+ */
+public interface TCPProxySSLEngineFactory {
+
+	/**
+	 * Create a server mode engine which the browser handshakes with.
+	 *
+	 * @param remoteEndPoint
+	 *            end point which the browser asked to CONNECT to. The host is the server name of
+	 *            the ClientHello if the browser sent one.
+	 * @return new engine
+	 * @throws IOException
+	 *             if the engine can not be created
+	 */
+	SSLEngine createServerEngine(EndPoint remoteEndPoint) throws IOException;
+
+	/**
+	 * Configure the cache of the sessions which browsers resume.
+	 *
+	 * @param cacheSize
+	 *            maximum number of cached sessions. 0 means no limit.
+	 * @param timeout
+	 *            session timeout in seconds. 0 means no limit.
+	 */
+	void configureSessionCache(int cacheSize, int timeout);
+}
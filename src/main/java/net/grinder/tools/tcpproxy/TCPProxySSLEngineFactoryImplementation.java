@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import net.grinder.common.Closer;
+import net.grinder.common.SSLContextFactory.SSLContextFactoryException;
+import net.grinder.util.InsecureSSLContextFactory;
+
+/**
+ * {@link TCPProxySSLEngineFactory} which presents the certificate of a key store, like
+ * {@link TCPProxySSLSocketFactoryImplementation} does.
+ *
+ * @since 3.3
+ */
+public final class TCPProxySSLEngineFactoryImplementation implements TCPProxySSLEngineFactory {
+
+	private final SSLContext m_sslContext;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keyStoreFile
+	 *            key store file
+	 * @param keyStorePassword
+	 *            key store password
+	 * @param keyStoreType
+	 *            key store type. the default type is used if {@code null}.
+	 * @throws IOException
+	 *             if the key store can not be read
+	 * @throws GeneralSecurityException
+	 *             if the key store is not valid
+	 * @throws SSLContextFactoryException
+	 *             if the SSL context can not be created
+	 */
+	public TCPProxySSLEngineFactoryImplementation(File keyStoreFile, char[] keyStorePassword, String keyStoreType)
+					throws IOException, GeneralSecurityException, SSLContextFactoryException {
+		this(new FileInputStream(keyStoreFile), keyStoreType != null ? keyStoreType : KeyStore.getDefaultType(),
+						keyStorePassword);
+	}
+
+	/**
+	 * Constructor which uses the default key store of The Grinder.
+	 *
+	 * @throws IOException
+	 *             if the key store can not be read
+	 * @throws GeneralSecurityException
+	 *             if the key store is not valid
+	 * @throws SSLContextFactoryException
+	 *             if the SSL context can not be created
+	 */
+	public TCPProxySSLEngineFactoryImplementation() throws IOException, GeneralSecurityException,
+					SSLContextFactoryException {
+		this(TCPProxySSLSocketFactoryImplementation.class.getResourceAsStream("resources/default.keystore"), "jks",
+						"passphrase".toCharArray());
+	}
+
+	private TCPProxySSLEngineFactoryImplementation(InputStream keyStoreInputStream, String keyStoreType,
+					char[] keyStorePassword) throws IOException, GeneralSecurityException, SSLContextFactoryException {
+		try {
+			m_sslContext = new InsecureSSLContextFactory(keyStoreInputStream, keyStorePassword, keyStoreType)
+							.getSSLContext();
+		} finally {
+			Closer.close(keyStoreInputStream);
+		}
+	}
+
+	@Override
+	public void configureSessionCache(int cacheSize, int timeout) {
+		m_sslContext.getServerSessionContext().setSessionCacheSize(cacheSize);
+		m_sslContext.getServerSessionContext().setSessionTimeout(timeout);
+	}
+
+	@Override
+	public SSLEngine createServerEngine(EndPoint remoteEndPoint) {
+		final SSLEngine engine = m_sslContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		engine.setEnabledCipherSuites(engine.getSupportedCipherSuites());
+		engine.setEnabledProtocols(engine.getSupportedProtocols());
+		return engine;
+	}
+}
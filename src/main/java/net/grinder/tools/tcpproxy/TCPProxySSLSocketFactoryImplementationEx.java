@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import HTTPClient.HTTPConnection;
+import net.grinder.common.Closer;
+import net.grinder.common.SSLContextFactory.SSLContextFactoryException;
+import net.grinder.util.InsecureSSLContextFactory;
+
+/**
+ * {@link TCPProxySSLSocketFactoryImplementation} whose SSL session caches can be tuned.
+ *
+ * All the sockets share one {@link SSLContext}, so a connection to an {@link EndPoint} which was
+ * connected before resumes the cached session instead of doing a full handshake. The same goes
+ * for the browser connections to the delegate SSL engine.
+ *
+ * @since 3.3
+ */
+public final class TCPProxySSLSocketFactoryImplementationEx implements TCPProxySSLSocketFactory {
+
+	private final SSLContext m_sslContext;
+	private volatile SSLSessionCacheStatistics m_statistics;
+	private volatile HappyEyeballsConnector m_connector;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param keyStoreFile
+	 *            key store file
+	 * @param keyStorePassword
+	 *            key store password
+	 * @param keyStoreType
+	 *            key store type. the default type is used if {@code null}.
+	 * @throws IOException
+	 *             if the key store can not be read
+	 * @throws GeneralSecurityException
+	 *             if the key store is not valid
+	 * @throws SSLContextFactoryException
+	 *             if the SSL context can not be created
+	 */
+	public TCPProxySSLSocketFactoryImplementationEx(File keyStoreFile, char[] keyStorePassword, String keyStoreType)
+					throws IOException, GeneralSecurityException, SSLContextFactoryException {
+		this(new FileInputStream(keyStoreFile), keyStoreType != null ? keyStoreType : KeyStore.getDefaultType(),
+						keyStorePassword);
+	}
+
+	/**
+	 * Constructor which uses the default key store of The Grinder.
+	 *
+	 * @throws IOException
+	 *             if the key store can not be read
+	 * @throws GeneralSecurityException
+	 *             if the key store is not valid
+	 * @throws SSLContextFactoryException
+	 *             if the SSL context can not be created
+	 */
+	public TCPProxySSLSocketFactoryImplementationEx() throws IOException, GeneralSecurityException,
+					SSLContextFactoryException {
+		this(TCPProxySSLSocketFactoryImplementation.class.getResourceAsStream("resources/default.keystore"), "jks",
+						"passphrase".toCharArray());
+	}
+
+	private TCPProxySSLSocketFactoryImplementationEx(InputStream keyStoreInputStream, String keyStoreType,
+					char[] keyStorePassword) throws IOException, GeneralSecurityException, SSLContextFactoryException {
+		try {
+			m_sslContext = new InsecureSSLContextFactory(keyStoreInputStream, keyStorePassword, keyStoreType)
+							.getSSLContext();
+		} finally {
+			Closer.close(keyStoreInputStream);
+		}
+	}
+
+	/**
+	 * Configure the session caches of both sides.
+	 *
+	 * @param cacheSize
+	 *            maximum number of cached sessions of each side. 0 means no limit.
+	 * @param timeout
+	 *            session timeout in seconds. 0 means no limit.
+	 * @param statistics
+	 *            statistics which counts the handshakes, or {@code null}
+	 */
+	public void configureSessionCache(int cacheSize, int timeout, SSLSessionCacheStatistics statistics) {
+		m_sslContext.getClientSessionContext().setSessionCacheSize(cacheSize);
+		m_sslContext.getClientSessionContext().setSessionTimeout(timeout);
+		m_sslContext.getServerSessionContext().setSessionCacheSize(cacheSize);
+		m_sslContext.getServerSessionContext().setSessionTimeout(timeout);
+		m_statistics = statistics;
+	}
+
+	/**
+	 * Connect to the remote hosts through the given connector.
+	 *
+	 * @param connector
+	 *            connector, or {@code null} to resolve each time and connect to the first address
+	 */
+	void setConnector(HappyEyeballsConnector connector) {
+		m_connector = connector;
+	}
+
+	@Override
+	public ServerSocket createServerSocket(EndPoint localEndPoint, int timeout) throws IOException {
+		final SSLServerSocket socket = (SSLServerSocket) m_sslContext.getServerSocketFactory().createServerSocket(
+						localEndPoint.getPort(), 50, InetAddress.getByName(localEndPoint.getHost()));
+		socket.setSoTimeout(timeout);
+		socket.setEnabledCipherSuites(socket.getSupportedCipherSuites());
+		socket.setEnabledProtocols(socket.getSupportedProtocols());
+		return socket;
+	}
+
+	@Override
+	public Socket createClientSocket(EndPoint remoteEndPoint) throws IOException {
+		final HappyEyeballsConnector connector = m_connector;
+		if (connector != null) {
+			// Layered on a plain socket, so the host name is still sent for SNI.
+			final Socket plainSocket = connector.connect(remoteEndPoint);
+			try {
+				return createClientSocket(plainSocket, remoteEndPoint);
+			} catch (IOException e) {
+				plainSocket.close();
+				throw e;
+			}
+		}
+		final SSLSocket socket;
+		try {
+			socket = (SSLSocket) m_sslContext.getSocketFactory().createSocket(remoteEndPoint.getHost(),
+							remoteEndPoint.getPort());
+		} catch (ConnectException e) {
+			throw new VerboseConnectException(e, "SSL end point " + remoteEndPoint);
+		}
+		return configureClientSocket(socket);
+	}
+
+	@Override
+	public Socket createClientSocket(Socket existingSocket, EndPoint remoteEndPoint) throws IOException {
+		return configureClientSocket((SSLSocket) m_sslContext.getSocketFactory().createSocket(existingSocket,
+						remoteEndPoint.getHost(), remoteEndPoint.getPort(), true));
+	}
+
+	private Socket configureClientSocket(SSLSocket socket) {
+		socket.setEnabledCipherSuites(HTTPConnection.getSSLCipherSuites());
+		socket.setEnabledProtocols(HTTPConnection.getSSLProtocols());
+		final SSLSessionCacheStatistics statistics = m_statistics;
+		if (statistics != null) {
+			socket.addHandshakeCompletedListener(statistics.createUpstreamListener());
+		}
+		return socket;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Plain socket factory which connects through a {@link HappyEyeballsConnector}. Its listening
+ * sockets may share their port with SO_REUSEPORT.
+ *
+ * @since 3.3
+ */
+final class TCPProxySocketFactoryImplementationEx implements TCPProxySocketFactory {
+
+	private final HappyEyeballsConnector m_connector;
+	private final int m_backlog;
+	private final boolean m_reusePort;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param connector
+	 *            connector to the remote hosts
+	 * @param backlog
+	 *            backlog of the listening sockets
+	 * @param reusePort
+	 *            true to bind the listening sockets with SO_REUSEPORT
+	 */
+	TCPProxySocketFactoryImplementationEx(HappyEyeballsConnector connector, int backlog, boolean reusePort) {
+		m_connector = connector;
+		m_backlog = backlog;
+		m_reusePort = reusePort;
+	}
+
+	@Override
+	public ServerSocket createServerSocket(EndPoint localEndPoint, int timeout) throws IOException {
+		final ServerSocket socket = new ServerSocket();
+		try {
+			if (m_reusePort) {
+				ReusePort.enable(socket);
+			}
+			socket.bind(new InetSocketAddress(InetAddress.getByName(localEndPoint.getHost()), localEndPoint.getPort()),
+							m_backlog);
+			socket.setSoTimeout(timeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	@Override
+	public Socket createClientSocket(EndPoint remoteEndPoint) throws IOException {
+		return m_connector.connect(remoteEndPoint);
+	}
+}
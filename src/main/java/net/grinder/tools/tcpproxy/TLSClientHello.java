@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the server name indication from the first TLS record sent by a browser, without consuming
+ * it.
+ *
+ * @since 3.3
+ */
+final class TLSClientHello {
+
+	private static final int RECORD_HEADER_SIZE = 5;
+	private static final int MAX_RECORD_SIZE = 16384 + 2048;
+	private static final int HANDSHAKE = 0x16;
+	private static final int CLIENT_HELLO = 1;
+	private static final int SERVER_NAME = 0;
+	private static final int HOST_NAME = 0;
+
+	private TLSClientHello() {
+	}
+
+	/**
+	 * Peek the server name of the ClientHello at the current position of the given stream. The
+	 * stream is reset to the current position before returning.
+	 *
+	 * @param in
+	 *            stream from the browser
+	 * @return server name, or {@code null} if the browser did not send one
+	 * @throws IOException
+	 *             if the stream can not be read
+	 */
+	static String peekServerName(BufferedInputStream in) throws IOException {
+		in.mark(RECORD_HEADER_SIZE + MAX_RECORD_SIZE);
+		try {
+			final byte[] header = new byte[RECORD_HEADER_SIZE];
+			if (!readFully(in, header) || (header[0] & 0xff) != HANDSHAKE) {
+				return null;
+			}
+			final int length = ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+			if (length > MAX_RECORD_SIZE) {
+				return null;
+			}
+			final byte[] record = new byte[length];
+			return readFully(in, record) ? parseServerName(record) : null;
+		} finally {
+			in.reset();
+		}
+	}
+
+	/**
+	 * Parse the server name of a ClientHello handshake record. A record which only has the
+	 * beginning of the ClientHello is parsed as far as it goes.
+	 *
+	 * @param record
+	 *            record body without the record header
+	 * @return server name, or {@code null} if there is none
+	 */
+	static String parseServerName(byte[] record) {
+		final ByteBuffer buffer = ByteBuffer.wrap(record);
+		try {
+			if ((buffer.get() & 0xff) != CLIENT_HELLO) {
+				return null;
+			}
+			// Handshake length, client version and random.
+			skip(buffer, 3 + 2 + 32);
+			skip(buffer, buffer.get() & 0xff);
+			skip(buffer, buffer.getShort() & 0xffff);
+			skip(buffer, buffer.get() & 0xff);
+			final int extensionsEnd = Math.min(buffer.limit(), buffer.position() + (buffer.getShort() & 0xffff) + 2);
+			while (buffer.position() + 4 <= extensionsEnd) {
+				final int type = buffer.getShort() & 0xffff;
+				final int length = buffer.getShort() & 0xffff;
+				if (type != SERVER_NAME) {
+					skip(buffer, length);
+					continue;
+				}
+				final int listEnd = buffer.position() + (buffer.getShort() & 0xffff) + 2;
+				while (buffer.position() + 3 <= listEnd) {
+					final int nameType = buffer.get() & 0xff;
+					final byte[] name = new byte[buffer.getShort() & 0xffff];
+					buffer.get(name);
+					if (nameType == HOST_NAME && name.length > 0) {
+						return new String(name, "US-ASCII");
+					}
+				}
+				return null;
+			}
+		} catch (BufferUnderflowException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+		return null;
+	}
+
+	private static void skip(ByteBuffer buffer, int length) {
+		buffer.position(buffer.position() + length);
+	}
+
+	private static boolean readFully(BufferedInputStream in, byte[] bytes) throws IOException {
+		int read = 0;
+		while (read < bytes.length) {
+			final int n = in.read(bytes, read, bytes.length - read);
+			if (n == -1) {
+				return false;
+			}
+			read += n;
+		}
+		return true;
+	}
+}
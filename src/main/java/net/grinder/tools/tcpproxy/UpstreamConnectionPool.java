@@ -0,0 +1,255 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+import static net.grinder.util.CollectionUtils.newHashMap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Idle upstream connections kept for the next browser connection to the same destination.
+ *
+ * Connections are keyed by destination. The most recently released connection of a key is leased
+ * first, and a connection which has been idle longer than the idle timeout is discarded. The pool
+ * never blocks: when there is no idle connection, the caller opens a new one.
+ *
+ * @param <C>
+ *            connection type
+ * @since 3.3
+ */
+final class UpstreamConnectionPool<C extends UpstreamConnectionPool.PooledConnection> {
+
+	/**
+	 * Connection which can be kept in the pool.
+	 */
+	interface PooledConnection {
+		/**
+		 * Close the connection, which is no longer pooled. Called without the pool lock.
+		 */
+		void discard();
+	}
+
+	private final int m_maxIdle;
+	private final int m_maxIdlePerKey;
+	private final long m_idleTimeout;
+	private final Map<String, LinkedList<Idle<C>>> m_idle = newHashMap();
+	private int m_idleCount = 0;
+	private long m_hits = 0;
+	private long m_misses = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxIdle
+	 *            maximum number of idle connections. 0 disables the pool.
+	 * @param maxIdlePerKey
+	 *            maximum number of idle connections to one destination
+	 * @param idleTimeout
+	 *            time in milliseconds after which an idle connection is discarded
+	 */
+	UpstreamConnectionPool(int maxIdle, int maxIdlePerKey, long idleTimeout) {
+		m_maxIdle = maxIdle;
+		m_maxIdlePerKey = maxIdlePerKey;
+		m_idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Create the key of a destination.
+	 *
+	 * @param remoteEndPoint
+	 *            destination server
+	 * @param chainedProxy
+	 *            proxy the connection goes through, or {@code null}
+	 * @return key
+	 */
+	static String key(EndPoint remoteEndPoint, EndPoint chainedProxy) {
+		return chainedProxy == null ? remoteEndPoint.toString() : remoteEndPoint + " via " + chainedProxy;
+	}
+
+	/**
+	 * Take an idle connection.
+	 *
+	 * @param key
+	 *            destination key
+	 * @return connection, or {@code null} if there is none
+	 */
+	C lease(String key) {
+		final List<C> expired = newArrayList();
+		C leased = null;
+		synchronized (this) {
+			removeExpired(expired);
+			final LinkedList<Idle<C>> idle = m_idle.get(key);
+			if (idle != null) {
+				leased = idle.removeLast().m_connection;
+				m_idleCount--;
+				if (idle.isEmpty()) {
+					m_idle.remove(key);
+				}
+			}
+			if (leased != null) {
+				m_hits++;
+			} else if (m_maxIdle > 0) {
+				m_misses++;
+			}
+		}
+		discard(expired);
+		return leased;
+	}
+
+	/**
+	 * Give back a connection which is between responses.
+	 *
+	 * @param key
+	 *            destination key
+	 * @param connection
+	 *            connection
+	 * @return false if the pool is full for the key, in which case the caller keeps the
+	 *         connection
+	 */
+	boolean release(String key, C connection) {
+		final List<C> expired = newArrayList();
+		try {
+			synchronized (this) {
+				removeExpired(expired);
+				if (m_maxIdle <= 0) {
+					return false;
+				}
+				LinkedList<Idle<C>> idle = m_idle.get(key);
+				if (idle != null && idle.size() >= m_maxIdlePerKey) {
+					return false;
+				}
+				if (m_idleCount >= m_maxIdle) {
+					removeOldest(expired);
+					idle = m_idle.get(key);
+				}
+				if (idle == null) {
+					idle = new LinkedList<Idle<C>>();
+					m_idle.put(key, idle);
+				}
+				idle.addLast(new Idle<C>(connection, System.currentTimeMillis()));
+				m_idleCount++;
+				return true;
+			}
+		} finally {
+			discard(expired);
+		}
+	}
+
+	/**
+	 * Forget a connection which closed while it was idle.
+	 *
+	 * @param key
+	 *            destination key
+	 * @param connection
+	 *            connection
+	 * @return true if the connection was idle in the pool
+	 */
+	synchronized boolean remove(String key, C connection) {
+		final LinkedList<Idle<C>> idle = m_idle.get(key);
+		if (idle == null) {
+			return false;
+		}
+		for (Iterator<Idle<C>> i = idle.iterator(); i.hasNext();) {
+			if (i.next().m_connection == connection) {
+				i.remove();
+				m_idleCount--;
+				if (idle.isEmpty()) {
+					m_idle.remove(key);
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Discard all the idle connections.
+	 */
+	void close() {
+		final List<C> all = newArrayList();
+		synchronized (this) {
+			for (LinkedList<Idle<C>> each : m_idle.values()) {
+				for (Idle<C> idle : each) {
+					all.add(idle.m_connection);
+				}
+			}
+			m_idle.clear();
+			m_idleCount = 0;
+		}
+		discard(all);
+	}
+
+	synchronized int getIdleCount() {
+		return m_idleCount;
+	}
+
+	synchronized long getHits() {
+		return m_hits;
+	}
+
+	synchronized long getMisses() {
+		return m_misses;
+	}
+
+	private void removeExpired(List<C> expired) {
+		final long deadline = System.currentTimeMillis() - m_idleTimeout;
+		for (Iterator<LinkedList<Idle<C>>> i = m_idle.values().iterator(); i.hasNext();) {
+			final LinkedList<Idle<C>> idle = i.next();
+			while (!idle.isEmpty() && idle.getFirst().m_since <= deadline) {
+				expired.add(idle.removeFirst().m_connection);
+				m_idleCount--;
+			}
+			if (idle.isEmpty()) {
+				i.remove();
+			}
+		}
+	}
+
+	private void removeOldest(List<C> removed) {
+		Map.Entry<String, LinkedList<Idle<C>>> oldest = null;
+		for (Map.Entry<String, LinkedList<Idle<C>>> each : m_idle.entrySet()) {
+			final LinkedList<Idle<C>> idle = each.getValue();
+			if (!idle.isEmpty() && (oldest == null || idle.getFirst().m_since < oldest.getValue().getFirst().m_since)) {
+				oldest = each;
+			}
+		}
+		if (oldest != null) {
+			removed.add(oldest.getValue().removeFirst().m_connection);
+			m_idleCount--;
+			if (oldest.getValue().isEmpty()) {
+				m_idle.remove(oldest.getKey());
+			}
+		}
+	}
+
+	private void discard(List<C> connections) {
+		for (C each : connections) {
+			each.discard();
+		}
+	}
+
+	private static final class Idle<C> {
+		private final C m_connection;
+		private final long m_since;
+
+		Idle(C connection, long since) {
+			m_connection = connection;
+			m_since = since;
+		}
+	}
+}
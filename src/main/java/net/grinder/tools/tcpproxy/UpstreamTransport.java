@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Connection to a server which carries HTTP/1.1 messages, whatever the protocol on the wire.
+ *
+ * The filters are written against HTTP/1.1 byte streams. A transport takes the requests as the
+ * browser writes them, and gives back the responses as an HTTP/1.1 server would, so the filter
+ * threads do not know whether a socket of their own or a stream of a shared HTTP/2 connection is
+ * behind them. Closing either stream closes the transport, as it closes a socket.
+ *
+ * @since 3.3
+ * @see UpstreamTransportFactory
+ */
+interface UpstreamTransport extends Closeable {
+
+	/**
+	 * Get the stream of the HTTP/1.1 responses.
+	 *
+	 * @return input stream
+	 * @throws IOException
+	 *             if the transport is closed
+	 */
+	InputStream getInputStream() throws IOException;
+
+	/**
+	 * Get the stream which takes the HTTP/1.1 requests.
+	 *
+	 * @return output stream
+	 * @throws IOException
+	 *             if the transport is closed
+	 */
+	OutputStream getOutputStream() throws IOException;
+}
@@ -0,0 +1,375 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+import static net.grinder.util.CollectionUtils.newHashMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLSocket;
+
+import net.grinder.common.Closer;
+import net.grinder.common.UncheckedInterruptedException;
+import net.grinder.util.thread.InterruptibleRunnable;
+
+import org.slf4j.Logger;
+
+/**
+ * Opens the upstream transports of the HTTPS connections of an engine.
+ *
+ * With HTTP/2 enabled, the handshake with a server offers h2 through ALPN. A server which chooses
+ * it gets a single connection, shared by the requests of all the browser connections to it, so a
+ * recording session makes one TLS handshake per server rather than one per browser connection. A
+ * server which chooses HTTP/1.1 keeps the socket as the transport of the browser connection, as
+ * it does with HTTP/2 disabled.
+ *
+ * A shared connection is closed once it has had no stream for the idle timeout, the next time a
+ * transport is opened.
+ *
+ * @since 3.3
+ */
+final class UpstreamTransportFactory {
+
+	/**
+	 * Creates the sockets and the threads of the transports.
+	 */
+	interface Connector {
+
+		/**
+		 * Open a socket to the server. The handshake of an {@link SSLSocket} must not have
+		 * started.
+		 *
+		 * @param remoteEndPoint
+		 *            server
+		 * @return socket
+		 * @throws IOException
+		 *             if the connection fails
+		 */
+		Socket connect(EndPoint remoteEndPoint) throws IOException;
+
+		/**
+		 * Start a thread which reads a shared connection.
+		 *
+		 * @param reader
+		 *            runnable
+		 * @param name
+		 *            thread name
+		 * @param in
+		 *            stream the runnable reads
+		 */
+		void startReader(InterruptibleRunnable reader, String name, InputStream in);
+	}
+
+	private final boolean m_http2;
+	private final long m_idleTimeout;
+	private final Logger m_logger;
+
+	private final Lock m_lock = new ReentrantLock();
+	private final Condition m_connectionOpened = m_lock.newCondition();
+
+	// Guarded by m_lock.
+	private final Map<String, SharedConnection> m_connections = newHashMap();
+	private final Set<String> m_opening = new HashSet<String>();
+	private final Set<String> m_http11Servers = new HashSet<String>();
+	private boolean m_closed = false;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param http2
+	 *            true to offer HTTP/2 to the servers
+	 * @param idleTimeout
+	 *            time in milliseconds after which a shared connection without streams is closed
+	 * @param logger
+	 *            logger
+	 */
+	UpstreamTransportFactory(boolean http2, long idleTimeout, Logger logger) {
+		m_http2 = http2 && ApplicationProtocols.isAvailable();
+		m_idleTimeout = idleTimeout;
+		m_logger = logger;
+	}
+
+	/**
+	 * Open a transport to a server.
+	 *
+	 * @param remoteEndPoint
+	 *            server
+	 * @param connector
+	 *            creates the socket if one is needed
+	 * @return transport
+	 * @throws IOException
+	 *             if the connection fails
+	 */
+	UpstreamTransport open(EndPoint remoteEndPoint, Connector connector) throws IOException {
+		if (!m_http2) {
+			return new HTTP11UpstreamTransport(connector.connect(remoteEndPoint));
+		}
+		final Origin origin = new Origin(remoteEndPoint, connector);
+		final Object connection = origin.connect();
+		if (connection instanceof Socket) {
+			return new HTTP11UpstreamTransport((Socket) connection);
+		}
+		return new HTTP2UpstreamTransport(origin, remoteEndPoint);
+	}
+
+	/**
+	 * Close the shared connections.
+	 */
+	void close() {
+		final List<SharedConnection> all = newArrayList();
+		m_lock.lock();
+		try {
+			m_closed = true;
+			all.addAll(m_connections.values());
+			m_connections.clear();
+			m_connectionOpened.signalAll();
+		} finally {
+			m_lock.unlock();
+		}
+		for (SharedConnection shared : all) {
+			Closer.close(shared.m_socket);
+		}
+	}
+
+	/**
+	 * Get the number of shared connections.
+	 *
+	 * @return number of connections
+	 */
+	int getConnectionCount() {
+		m_lock.lock();
+		try {
+			return m_connections.size();
+		} finally {
+			m_lock.unlock();
+		}
+	}
+
+	/**
+	 * Close a transport, ignoring errors, as {@link Closer} does for streams and sockets.
+	 *
+	 * @param transport
+	 *            transport, may be {@code null}
+	 */
+	static void close(UpstreamTransport transport) {
+		if (transport != null) {
+			try {
+				transport.close();
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+			}
+		}
+	}
+
+	private static boolean handshake(Socket socket, String... protocols) throws IOException {
+		if (!(socket instanceof SSLSocket)) {
+			return false;
+		}
+		final SSLSocket sslSocket = (SSLSocket) socket;
+		ApplicationProtocols.offer(sslSocket, protocols);
+		sslSocket.startHandshake();
+		return ApplicationProtocols.HTTP_2.equals(ApplicationProtocols.getNegotiated(sslSocket));
+	}
+
+	// Called with m_lock held.
+	private void removeIdle(List<SharedConnection> idle) {
+		for (Iterator<SharedConnection> i = m_connections.values().iterator(); i.hasNext();) {
+			final SharedConnection shared = i.next();
+			if (shared.m_connection.isIdle(m_idleTimeout)) {
+				i.remove();
+				idle.add(shared);
+			}
+		}
+	}
+
+	private static final class SharedConnection {
+		private final HTTP2ClientConnection m_connection;
+		private final Socket m_socket;
+
+		SharedConnection(HTTP2ClientConnection connection, Socket socket) {
+			m_connection = connection;
+			m_socket = socket;
+		}
+	}
+
+	/**
+	 * A server, as seen by the transports which send requests to it.
+	 */
+	private final class Origin implements HTTP2UpstreamTransport.Origin {
+		private final EndPoint m_remoteEndPoint;
+		private final String m_key;
+		private final Connector m_connector;
+
+		Origin(EndPoint remoteEndPoint, Connector connector) {
+			m_remoteEndPoint = remoteEndPoint;
+			m_key = remoteEndPoint.toString();
+			m_connector = connector;
+		}
+
+		@Override
+		public HTTP2ClientConnection getConnection() throws IOException {
+			final Object connection = connect();
+			if (connection instanceof Socket) {
+				Closer.close((Socket) connection);
+				return null;
+			}
+			return (HTTP2ClientConnection) connection;
+		}
+
+		@Override
+		public UpstreamTransport openHTTP11() throws IOException {
+			final Socket socket = m_connector.connect(m_remoteEndPoint);
+			try {
+				handshake(socket, ApplicationProtocols.HTTP_1_1);
+			} catch (IOException e) {
+				Closer.close(socket);
+				throw e;
+			}
+			return new HTTP11UpstreamTransport(socket);
+		}
+
+		/**
+		 * Get the shared connection to the server, opening it if need be. While one thread opens
+		 * it, the others wait, unless the server is known to choose HTTP/1.1.
+		 *
+		 * @return the {@link HTTP2ClientConnection}, or a {@link Socket} if the server chose
+		 *         HTTP/1.1
+		 * @throws IOException
+		 *             if the connection fails
+		 */
+		Object connect() throws IOException {
+			final List<SharedConnection> idle = newArrayList();
+			boolean opening = false;
+			m_lock.lock();
+			try {
+				removeIdle(idle);
+				while (true) {
+					if (m_closed) {
+						throw new IOException("Upstream transports closed");
+					}
+					final SharedConnection shared = m_connections.get(m_key);
+					if (shared != null && shared.m_connection.isAvailable()) {
+						return shared.m_connection;
+					}
+					if (m_http11Servers.contains(m_key)) {
+						break;
+					}
+					if (m_opening.add(m_key)) {
+						opening = true;
+						break;
+					}
+					m_connectionOpened.await();
+				}
+			} catch (InterruptedException e) {
+				throw new UncheckedInterruptedException(e);
+			} finally {
+				m_lock.unlock();
+				for (SharedConnection shared : idle) {
+					Closer.close(shared.m_socket);
+				}
+			}
+
+			Socket socket = null;
+			try {
+				socket = m_connector.connect(m_remoteEndPoint);
+				final boolean http2 = handshake(socket, ApplicationProtocols.HTTP_2, ApplicationProtocols.HTTP_1_1);
+				if (!http2) {
+					m_lock.lock();
+					try {
+						m_http11Servers.add(m_key);
+					} finally {
+						m_lock.unlock();
+					}
+					return socket;
+				}
+
+				final HTTP2ClientConnection connection = new HTTP2ClientConnection(socket.getInputStream(),
+								socket.getOutputStream());
+				connection.connect();
+				final SharedConnection shared = new SharedConnection(connection, socket);
+				m_lock.lock();
+				try {
+					if (m_closed) {
+						throw new IOException("Upstream transports closed");
+					}
+					m_http11Servers.remove(m_key);
+					m_connections.put(m_key, shared);
+				} finally {
+					m_lock.unlock();
+				}
+				m_connector.startReader(new Reader(m_key, shared), "HTTP/2 upstream connection to " + m_key,
+								socket.getInputStream());
+				return connection;
+			} catch (IOException e) {
+				Closer.close(socket);
+				throw e;
+			} finally {
+				if (opening) {
+					m_lock.lock();
+					try {
+						m_opening.remove(m_key);
+						m_connectionOpened.signalAll();
+					} finally {
+						m_lock.unlock();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the frames of a shared connection until it closes.
+	 */
+	private final class Reader implements InterruptibleRunnable {
+		private final String m_key;
+		private final SharedConnection m_shared;
+
+		Reader(String key, SharedConnection shared) {
+			m_key = key;
+			m_shared = shared;
+		}
+
+		@Override
+		public void interruptibleRun() {
+			try {
+				m_shared.m_connection.run();
+			} catch (IOException e) {
+				UncheckedInterruptedException.ioException(e);
+				// The transports see their streams reset.
+				m_logger.debug("HTTP/2 connection to {} failed: {}", m_key, e.getMessage());
+			} finally {
+				m_lock.lock();
+				try {
+					if (m_connections.get(m_key) == m_shared) {
+						m_connections.remove(m_key);
+					}
+				} finally {
+					m_lock.unlock();
+				}
+				Closer.close(m_shared.m_socket);
+			}
+		}
+	}
+}
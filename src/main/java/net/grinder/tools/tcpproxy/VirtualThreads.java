@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.grinder.tools.tcpproxy.HTTPProxyEngineOptions.ThreadMode;
+import net.grinder.util.thread.ExecutorFactory;
+
+/**
+ * Access to the virtual threads of JDK 21 and later, while the code is still built for older JDKs.
+ *
+ * The JDK API is looked up by reflection once. When it is missing, or only available as a preview
+ * feature, the executors fall back to platform threads.
+ *
+ * @since 3.3
+ */
+public final class VirtualThreads {
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_FACTORY;
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderFactory = null;
+		Method newThreadPerTaskExecutor = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class, long.class);
+			builderFactory = builder.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			// Fails on a JDK which has virtual threads as a preview feature only.
+			builderFactory.invoke(ofVirtual.invoke(null));
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_FACTORY = builderFactory;
+		NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Check if the running JDK supports virtual threads.
+	 *
+	 * @return true on JDK 21 and later
+	 */
+	public static boolean isAvailable() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Create an executor which runs each task in a new virtual thread.
+	 *
+	 * @param name
+	 *            prefix of the thread names
+	 * @return executor
+	 * @throws UnsupportedOperationException
+	 *             if virtual threads are not available
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String name) {
+		if (!isAvailable()) {
+			throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+		}
+		try {
+			final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 1L);
+			final ThreadFactory threadFactory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+			return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Failed to create virtual threads", e);
+		}
+	}
+
+	/**
+	 * Create the executor of a blocking task type. It has a new virtual thread for each task in
+	 * {@link ThreadMode#VIRTUAL} mode, and the given number of platform threads otherwise.
+	 *
+	 * @param name
+	 *            thread name prefix
+	 * @param numberOfThreads
+	 *            number of platform threads
+	 * @param threadMode
+	 *            thread mode. falls back to platform threads if virtual threads are not available.
+	 * @return executor
+	 */
+	static ExecutorService createThreadPool(String name, int numberOfThreads, ThreadMode threadMode) {
+		if (threadMode == ThreadMode.VIRTUAL && isAvailable()) {
+			return newThreadPerTaskExecutor(name);
+		}
+		return ExecutorFactory.createThreadPool(name, numberOfThreads);
+	}
+
+	/**
+	 * Create the executor of the stream threads, which read one socket each.
+	 *
+	 * @param name
+	 *            thread name prefix
+	 * @param threadMode
+	 *            thread mode
+	 * @return executor, or {@code null} if the stream threads are platform threads started by
+	 *         the engine
+	 */
+	static ExecutorService createStreamExecutor(String name, ThreadMode threadMode) {
+		return threadMode == ThreadMode.VIRTUAL && isAvailable() ? newThreadPerTaskExecutor(name) : null;
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.grinder.tools.tcpproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Minimal DER encoder for the X.509 v3 certificates of {@link TCPProxyCertificateAuthority}.
+ *
+ * Only the fields which browsers check are written: a CA certificate has basic constraints and
+ * key usage, a leaf certificate has key usage, extended key usage and a subject alternative name.
+ * Certificates are signed with SHA256withRSA.
+ *
+ * @since 3.3
+ */
+final class X509CertificateBuilder {
+
+	private static final byte[] SHA256_WITH_RSA = { 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7,
+		0x0d, 0x01, 0x01, 0x0b };
+	private static final byte[] NULL = { 0x05, 0x00 };
+	private static final byte[] BASIC_CONSTRAINTS = { 0x06, 0x03, 0x55, 0x1d, 0x13 };
+	private static final byte[] KEY_USAGE = { 0x06, 0x03, 0x55, 0x1d, 0x0f };
+	private static final byte[] EXTENDED_KEY_USAGE = { 0x06, 0x03, 0x55, 0x1d, 0x25 };
+	private static final byte[] SUBJECT_ALT_NAME = { 0x06, 0x03, 0x55, 0x1d, 0x11 };
+	private static final byte[] SERVER_AUTH = { 0x06, 0x08, 0x2b, 0x06, 0x01, 0x05, 0x05, 0x07, 0x03, 0x01 };
+	private static final byte[] CRITICAL = { 0x01, 0x01, (byte) 0xff };
+	// keyCertSign and cRLSign.
+	private static final byte[] CA_KEY_USAGE = { 0x03, 0x02, 0x01, 0x06 };
+	// digitalSignature and keyEncipherment.
+	private static final byte[] LEAF_KEY_USAGE = { 0x03, 0x02, 0x05, (byte) 0xa0 };
+
+	private static final int SEQUENCE = 0x30;
+	private static final int INTEGER = 0x02;
+	private static final int BIT_STRING = 0x03;
+	private static final int OCTET_STRING = 0x04;
+	private static final int UTC_TIME = 0x17;
+	private static final int GENERALIZED_TIME = 0x18;
+	private static final int DNS_NAME = 0x82;
+	private static final int IP_ADDRESS = 0x87;
+	private static final int EXPLICIT_0 = 0xa0;
+	private static final int EXPLICIT_3 = 0xa3;
+
+	private X500Principal m_subject;
+	private X500Principal m_issuer;
+	private PublicKey m_publicKey;
+	private BigInteger m_serialNumber = BigInteger.ONE;
+	private Date m_notBefore;
+	private Date m_notAfter;
+	private boolean m_certificateAuthority = false;
+	private String m_hostName;
+
+	X509CertificateBuilder subject(X500Principal subject) {
+		m_subject = subject;
+		return this;
+	}
+
+	X509CertificateBuilder issuer(X500Principal issuer) {
+		m_issuer = issuer;
+		return this;
+	}
+
+	X509CertificateBuilder publicKey(PublicKey publicKey) {
+		m_publicKey = publicKey;
+		return this;
+	}
+
+	X509CertificateBuilder serialNumber(BigInteger serialNumber) {
+		m_serialNumber = serialNumber;
+		return this;
+	}
+
+	X509CertificateBuilder validity(Date notBefore, Date notAfter) {
+		m_notBefore = notBefore;
+		m_notAfter = notAfter;
+		return this;
+	}
+
+	X509CertificateBuilder certificateAuthority(boolean certificateAuthority) {
+		m_certificateAuthority = certificateAuthority;
+		return this;
+	}
+
+	X509CertificateBuilder hostName(String hostName) {
+		m_hostName = hostName;
+		return this;
+	}
+
+	/**
+	 * Sign and build the certificate.
+	 *
+	 * @param issuerKey
+	 *            private key of the issuer
+	 * @return certificate
+	 * @throws GeneralSecurityException
+	 *             if the certificate can not be signed
+	 */
+	X509Certificate sign(PrivateKey issuerKey) throws GeneralSecurityException {
+		final byte[] algorithm = sequence(SHA256_WITH_RSA, NULL);
+		final byte[] tbs = sequence(
+			tlv(EXPLICIT_0, tlv(INTEGER, new byte[] { 2 })),
+			tlv(INTEGER, m_serialNumber.toByteArray()),
+			algorithm,
+			m_issuer.getEncoded(),
+			sequence(time(m_notBefore), time(m_notAfter)),
+			m_subject.getEncoded(),
+			m_publicKey.getEncoded(),
+			tlv(EXPLICIT_3, sequence(extensions())));
+
+		final Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(issuerKey);
+		signature.update(tbs);
+		final byte[] certificate = sequence(tbs, algorithm, bitString(signature.sign()));
+
+		return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+			new ByteArrayInputStream(certificate));
+	}
+
+	private byte[][] extensions() {
+		if (m_certificateAuthority) {
+			return new byte[][] {
+				sequence(BASIC_CONSTRAINTS, CRITICAL, tlv(OCTET_STRING, sequence(CRITICAL))),
+				sequence(KEY_USAGE, CRITICAL, tlv(OCTET_STRING, CA_KEY_USAGE)) };
+		}
+		return new byte[][] {
+			sequence(KEY_USAGE, CRITICAL, tlv(OCTET_STRING, LEAF_KEY_USAGE)),
+			sequence(EXTENDED_KEY_USAGE, tlv(OCTET_STRING, sequence(SERVER_AUTH))),
+			sequence(SUBJECT_ALT_NAME, tlv(OCTET_STRING, sequence(generalName(m_hostName)))) };
+	}
+
+	private static byte[] generalName(String hostName) {
+		if (isAddress(hostName)) {
+			try {
+				return tlv(IP_ADDRESS, InetAddress.getByName(hostName).getAddress());
+			} catch (UnknownHostException e) {
+				// Not an address literal after all.
+				return tlv(DNS_NAME, ascii(hostName));
+			}
+		}
+		return tlv(DNS_NAME, ascii(hostName));
+	}
+
+	/**
+	 * Check if the given host is an IP address literal, which never needs a name lookup.
+	 */
+	static boolean isAddress(String host) {
+		return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+	}
+
+	private static byte[] time(Date date) {
+		final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTime(date);
+		final boolean utcTime = calendar.get(Calendar.YEAR) < 2050;
+		final SimpleDateFormat format = new SimpleDateFormat(utcTime ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+		format.setTimeZone(calendar.getTimeZone());
+		return tlv(utcTime ? UTC_TIME : GENERALIZED_TIME, ascii(format.format(date)));
+	}
+
+	private static byte[] bitString(byte[] bytes) {
+		final byte[] content = new byte[bytes.length + 1];
+		System.arraycopy(bytes, 0, content, 1, bytes.length);
+		return tlv(BIT_STRING, content);
+	}
+
+	private static byte[] sequence(byte[]... elements) {
+		return tlv(SEQUENCE, elements);
+	}
+
+	private static byte[] tlv(int tag, byte[]... contents) {
+		int length = 0;
+		for (byte[] each : contents) {
+			length += each.length;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int size = 0;
+			for (int rest = length; rest > 0; rest >>>= 8) {
+				size++;
+			}
+			out.write(0x80 | size);
+			for (int i = size - 1; i >= 0; i--) {
+				out.write(length >>> (i * 8));
+			}
+		}
+		for (byte[] each : contents) {
+			out.write(each, 0, each.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] ascii(String text) {
+		try {
+			return text.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
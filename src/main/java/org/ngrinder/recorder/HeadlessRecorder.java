@@ -0,0 +1,291 @@
+/* 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ */
+package org.ngrinder.recorder;
+
+import static net.grinder.util.CollectionUtils.newArrayList;
+import static net.grinder.util.CollectionUtils.newHashSet;
+import static net.grinder.util.TypeUtil.cast;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Set;
+
+import net.grinder.plugin.http.tcpproxyfilter.options.FileTypeCategory;
+import net.grinder.plugin.http.tcpproxyfilter.options.GenerationOption;
+import net.grinder.util.Language;
+import net.grinder.util.Pair;
+
+import org.apache.commons.io.FileUtils;
+import org.ngrinder.recorder.event.MessageBus;
+import org.ngrinder.recorder.event.MessageBusConnection;
+import org.ngrinder.recorder.event.Topics;
+import org.ngrinder.recorder.infra.RecorderConfig;
+import org.ngrinder.recorder.proxy.ProxyEndPointPair;
+import org.ngrinder.recorder.proxy.ScriptRecorderProxy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recorder without the user interface, for the browsers driven by tests.
+ * 
+ * It runs {@link ScriptRecorderProxy} and sends it the events of the recording control panel,
+ * without loading Swing or the embedded browser. The browser is set up to use the returned proxy
+ * end points. Only one recorder may run at a time in a JVM, as they share the {@link MessageBus}.
+ * 
+ * <pre>
+ * HeadlessRecorder recorder = new HeadlessRecorder();
+ * ProxyEndPointPair endPoints = recorder.start();
+ * recorder.startRecording(filteredFileTypes);
+ * // Browse through endPoints.getHttpEndPoint().
+ * Pair&lt;Language, String&gt; script = recorder.stopRecording(filteredFileTypes, generationOptions);
+ * recorder.stop();
+ * </pre>
+ * 
+ * {@link #main(String[])} runs the same operations from the command line.
+ * 
+ * @since 3.3
+ */
+public class HeadlessRecorder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(HeadlessRecorder.class);
+
+	private static final int NGRINDER_DEFAULT_PORT = 10288;
+
+	private final RecorderConfig recorderConfig;
+	private final ScriptRecorderProxy proxy;
+	private final MessageBus messageBus = MessageBus.getInstance();
+	private MessageBusConnection connection;
+	private Pair<Language, String> script;
+	private boolean recording = false;
+
+	/**
+	 * Constructor with the configuration of the recorder home.
+	 */
+	public HeadlessRecorder() {
+		this(new RecorderConfig().init());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param recorderConfig
+	 *            initialized configuration
+	 */
+	public HeadlessRecorder(RecorderConfig recorderConfig) {
+		this.recorderConfig = recorderConfig;
+		this.proxy = new ScriptRecorderProxy(recorderConfig);
+	}
+
+	/**
+	 * Start the proxy on the proxy.port of recorder.conf.
+	 * 
+	 * @return proxy end points, which differ from the configured port if it is in use
+	 */
+	public ProxyEndPointPair start() {
+		return start(recorderConfig.getPropertyInt("proxy.port", NGRINDER_DEFAULT_PORT));
+	}
+
+	/**
+	 * Start the proxy. The connections are relayed without being recorded until
+	 * {@link #startRecording(List)}.
+	 * 
+	 * @param port
+	 *            port which is tried first
+	 * @return proxy end points
+	 */
+	public synchronized ProxyEndPointPair start(int port) {
+		connection = messageBus.connect();
+		connection.subscribe(Topics.SHOW_SCRIPT, new PropertyChangeListener() {
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+				script = cast(evt.getNewValue());
+			}
+		});
+		final ProxyEndPointPair endPoints = proxy.startProxy(port);
+		LOGGER.info("Headless recorder is listening on {}", endPoints.getHttpEndPoint());
+		return endPoints;
+	}
+
+	/**
+	 * Start recording. The connections opened before are closed, so the browser opens them again
+	 * through the recording filters.
+	 * 
+	 * @param filteredFileTypes
+	 *            categories of the files which are not recorded
+	 */
+	public synchronized void startRecording(List<FileTypeCategory> filteredFileTypes) {
+		messageBus.getPublisher(Topics.START_RECORDING).propertyChange(
+						new PropertyChangeEvent(this, "Start Recording", null, filteredFileTypes));
+		recording = true;
+	}
+
+	/**
+	 * Start a new page. The following requests are recorded in a new test method.
+	 */
+	public synchronized void startPage() {
+		messageBus.getPublisher(Topics.START_USER_PAGE).propertyChange(
+						new PropertyChangeEvent(this, "Start User Page", null, null));
+	}
+
+	/**
+	 * Forget the requests recorded so far.
+	 */
+	public synchronized void reset() {
+		messageBus.getPublisher(Topics.RESET).propertyChange(new PropertyChangeEvent(this, "Reset", null, null));
+	}
+
+	/**
+	 * Stop recording and generate the script of the recorded requests. The recording may be
+	 * started again, and goes on with the same requests unless {@link #reset()} is called.
+	 * 
+	 * @param filteredFileTypes
+	 *            categories of the files which are not recorded
+	 * @param generationOptions
+	 *            script language and generation options
+	 * @return script language and text
+	 */
+	public synchronized Pair<Language, String> stopRecording(List<FileTypeCategory> filteredFileTypes,
+					Set<GenerationOption> generationOptions) {
+		script = null;
+		messageBus.getPublisher(Topics.STOP_RECORDING).propertyChange(
+						new PropertyChangeEvent(this, "Stop Recording", null, Pair.of(filteredFileTypes,
+										generationOptions)));
+		recording = false;
+		return script;
+	}
+
+	public synchronized boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * Stop the proxy.
+	 */
+	public synchronized void stop() {
+		if (connection != null) {
+			proxy.stopProxy();
+			messageBus.disconnect(connection);
+			connection = null;
+		}
+	}
+
+	private static final String USAGE = "Usage: HeadlessRecorder [-port <port>] [-language jython|groovy] "
+					+ "[-sleep] [-redirect] [-filter image,script,css,multimedia] [-record] [-output <file>]\n"
+					+ "Commands on the standard input: start, page, reset, stop, quit. "
+					+ "stop writes the script. The end of the input or a signal stops the recorder likewise.";
+
+	/**
+	 * Run the recorder from the command line. The proxy end point is printed on the standard
+	 * output, and the script is written to the output file, or the standard output.
+	 * 
+	 * @param args
+	 *            options
+	 * @throws IOException
+	 *             if the script can not be written
+	 */
+	public static void main(String[] args) throws IOException {
+		final List<FileTypeCategory> filteredFileTypes = newArrayList();
+		final Set<GenerationOption> generationOptions = newHashSet();
+		GenerationOption language = GenerationOption.Jython;
+		Integer port = null;
+		File output = null;
+		boolean record = false;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("-port".equals(args[i])) {
+					port = Integer.valueOf(args[++i]);
+				} else if ("-language".equals(args[i])) {
+					language = "groovy".equalsIgnoreCase(args[++i]) ? GenerationOption.Groovy
+									: GenerationOption.Jython;
+				} else if ("-sleep".equals(args[i])) {
+					generationOptions.add(GenerationOption.AddSleep);
+				} else if ("-redirect".equals(args[i])) {
+					generationOptions.add(GenerationOption.FollowRedirection);
+				} else if ("-filter".equals(args[i])) {
+					for (String each : args[++i].split(",")) {
+						filteredFileTypes.add(FileTypeCategory.valueOf(each.trim()));
+					}
+				} else if ("-record".equals(args[i])) {
+					record = true;
+				} else if ("-output".equals(args[i])) {
+					output = new File(args[++i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		generationOptions.add(language);
+
+		final HeadlessRecorder recorder = new HeadlessRecorder();
+		final ProxyEndPointPair endPoints = port != null ? recorder.start(port) : recorder.start();
+		final File scriptFile = output;
+		final Thread shutdownHook = new Thread() {
+			@Override
+			public void run() {
+				if (recorder.isRecording()) {
+					writeScript(recorder.stopRecording(filteredFileTypes, generationOptions), scriptFile);
+				}
+				recorder.stop();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+		System.out.println("proxy " + endPoints.getHttpEndPoint());
+		if (record) {
+			recorder.startRecording(filteredFileTypes);
+		}
+
+		final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = in.readLine()) != null && !"quit".equals(line.trim())) {
+			final String command = line.trim();
+			if ("start".equals(command)) {
+				recorder.startRecording(filteredFileTypes);
+			} else if ("page".equals(command)) {
+				recorder.startPage();
+			} else if ("reset".equals(command)) {
+				recorder.reset();
+			} else if ("stop".equals(command)) {
+				writeScript(recorder.stopRecording(filteredFileTypes, generationOptions), scriptFile);
+			} else if (command.length() > 0) {
+				System.err.println(USAGE);
+				continue;
+			}
+			System.out.println("ok " + command);
+		}
+		System.exit(0);
+	}
+
+	private static void writeScript(Pair<Language, String> script, File output) {
+		if (script == null) {
+			return;
+		}
+		if (output == null) {
+			System.out.println(script.getSecond());
+			return;
+		}
+		try {
+			FileUtils.writeStringToFile(output, script.getSecond(), "UTF-8");
+			System.out.println("script " + output.getAbsolutePath());
+		} catch (IOException e) {
+			LOGGER.error("Failed to write the script to {}", output, e);
+		}
+	}
+}
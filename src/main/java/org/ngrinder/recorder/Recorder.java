@@ -254,7 +254,8 @@ public class Recorder {
 			size = screenSize;
 		}
 		boolean frameUse = recorderConfig.getPropertyBoolean("use.frame", false);
-		RecordingControlPanel recordingControlPanel = new RecordingControlPanel(proxy.getConnectionFilter());
+		RecordingControlPanel recordingControlPanel = new RecordingControlPanel(proxy.getConnectionFilter(),
+						proxy.getCircuitBreaker());
 		frame.getContentPane().add(createSplitPane(tabbedPane, recordingControlPanel));
 		if (!frameUse) {
 			frame.setUndecorated(true);
@@ -377,6 +378,16 @@ public class Recorder {
 			}
 		});
 
+		connect.subscribe(Topics.PROXY_AUTO_CONFIG_CHANGE, new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						BrowserFactoryEx.refreshBrowserProxy();
+					}
+				});
+			}
+		});
+
 		connect.subscribe(Topics.SHOW_ABOUT_DIALOG, new PropertyChangeListener() {
 			public void propertyChange(PropertyChangeEvent evt) {
 				AboutDialog dialog = AboutDialog.getInstance(frame, recorderConfig);
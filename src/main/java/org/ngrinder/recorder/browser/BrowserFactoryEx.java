@@ -16,7 +16,12 @@ package org.ngrinder.recorder.browser;
 import static net.grinder.util.CollectionUtils.newArrayList;
 import static net.grinder.util.Preconditions.checkNotNull;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.apache.commons.lang.SystemUtils;
 import org.ngrinder.recorder.infra.NGrinderRuntimeException;
@@ -45,6 +50,8 @@ public abstract class BrowserFactoryEx {
 	private static SilentSecurityHandler securityHandler = new SilentSecurityHandler();
 	private static PromptIgnoreService promptIgnoreService = new PromptIgnoreService();
 	private static ProxyEndPointPair endPoints;
+	private static Set<Browser> browsers = Collections.synchronizedSet(Collections
+					.newSetFromMap(new WeakHashMap<Browser, Boolean>()));
 	@SuppressWarnings("unused")
 	private static RecorderConfig config;
 
@@ -62,6 +69,7 @@ public abstract class BrowserFactoryEx {
 			browser.getServices().setPromptService(promptIgnoreService);
 			browser.setHttpSecurityHandler(securityHandler);
 			setupBrowserProxy(browser, endPoints);
+			browsers.add(browser);
 			return browser;
 		} catch (Exception e) {
 			LOGGER.error("Failed to create browser due to ", e);
@@ -127,9 +135,25 @@ public abstract class BrowserFactoryEx {
 		BrowserFactoryEx.config = config;
 	}
 
+	/**
+	 * Set up the browsers created so far again, so they load the changed proxy auto-config script.
+	 */
+	public static void refreshBrowserProxy() {
+		Browser[] created;
+		synchronized (browsers) {
+			created = browsers.toArray(new Browser[browsers.size()]);
+		}
+		for (Browser each : created) {
+			setupBrowserProxy(each, endPoints);
+		}
+	}
+
 	/**
 	 * Set up the given browser with the given end points.
 	 * 
+	 * If the end points have a proxy auto-config URL, the browser is set up with it, so only the
+	 * hosts which are recorded go through the proxy.
+	 * 
 	 * @param browser
 	 *            browser to be set up
 	 * @param endPoints
@@ -140,6 +164,15 @@ public abstract class BrowserFactoryEx {
 			return;
 		}
 		ProxyConfig proxyConfig = browser.getServices().getProxyConfig();
+		String autoConfigUrl = endPoints.getAutoConfigUrl();
+		if (autoConfigUrl != null) {
+			try {
+				proxyConfig.setAutoConfigUrl(new URL(autoConfigUrl));
+				return;
+			} catch (MalformedURLException e) {
+				LOGGER.error("Failed to use the proxy auto-config " + autoConfigUrl, e);
+			}
+		}
 		ProxyServer proxyServer = new ProxyServer(endPoints.getHttpEndPoint().getHost(), endPoints.getHttpEndPoint()
 						.getPort());
 		proxyConfig.setProxy(ServerType.HTTP, proxyServer);
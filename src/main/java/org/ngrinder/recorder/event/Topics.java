@@ -88,5 +88,10 @@ public abstract class Topics {
 	 * Home Event.
 	 */
 	public static final Topic<PropertyChangeListener> HOME = Topic.create(PropertyChangeListener.class);
+	/**
+	 * Proxy Auto-Config Change Event.
+	 */
+	public static final Topic<PropertyChangeListener> PROXY_AUTO_CONFIG_CHANGE = Topic
+					.create(PropertyChangeListener.class);
 
 }
@@ -26,6 +26,7 @@ import org.apache.commons.lang.builder.ToStringBuilder;
 public class ProxyEndPointPair {
 	private final EndPoint httpEndPoint;
 	private final EndPoint httpsEndPoint;
+	private volatile String autoConfigUrl;
 
 	/**
 	 * Constuctor.
@@ -48,6 +49,21 @@ public class ProxyEndPointPair {
 		return httpsEndPoint;
 	}
 
+	public String getAutoConfigUrl() {
+		return autoConfigUrl;
+	}
+
+	/**
+	 * Set the URL of the proxy auto-config script which the browser is configured with instead
+	 * of the end points.
+	 * 
+	 * @param autoConfigUrl
+	 *            url, or null to use the end points
+	 */
+	public void setAutoConfigUrl(String autoConfigUrl) {
+		this.autoConfigUrl = autoConfigUrl;
+	}
+
 	@Override
 	public String toString() {
 		return ToStringBuilder.reflectionToString(this);
@@ -20,19 +20,30 @@ import static org.ngrinder.recorder.util.NetworkUtil.getAvailablePort;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.IOException;
 import java.io.StringWriter;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 
+import net.grinder.plugin.http.tcpproxyfilter.CapturePipeline;
+import net.grinder.plugin.http.tcpproxyfilter.CapturePipeline.OverflowPolicy;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectedHostHTTPFilterEventListener;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionAwareNullRequestFilter;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionCache;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionFilter;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionFilterImpl;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionHandlerFactoryImplEx;
+import net.grinder.plugin.http.tcpproxyfilter.FileTypeFilter;
 import net.grinder.plugin.http.tcpproxyfilter.FileTypeFilterImpl;
+import net.grinder.plugin.http.tcpproxyfilter.HTTPFilterEventListener;
 import net.grinder.plugin.http.tcpproxyfilter.HTTPRecordingImplEx;
 import net.grinder.plugin.http.tcpproxyfilter.HTTPRequestFilter;
 import net.grinder.plugin.http.tcpproxyfilter.HTTPResponseFilter;
@@ -45,15 +56,33 @@ import net.grinder.plugin.http.tcpproxyfilter.SwitchableTcpProxyFilter;
 import net.grinder.plugin.http.tcpproxyfilter.options.FileTypeCategory;
 import net.grinder.plugin.http.tcpproxyfilter.options.GenerationOption;
 import net.grinder.tools.tcpproxy.AbstractTCPProxyEngine;
+import net.grinder.tools.tcpproxy.BufferPool;
+import net.grinder.tools.tcpproxy.CircuitBreaker;
 import net.grinder.tools.tcpproxy.CommentSourceImplementation;
 import net.grinder.tools.tcpproxy.CompositeFilter;
+import net.grinder.tools.tcpproxy.ConnectionDetails;
+import net.grinder.tools.tcpproxy.DNSCache;
 import net.grinder.tools.tcpproxy.EndPoint;
+import net.grinder.tools.tcpproxy.ExecutorStatistics;
+import net.grinder.tools.tcpproxy.HTTPProxyEngineOptions;
+import net.grinder.tools.tcpproxy.HTTPProxyEngineOptions.EngineMode;
+import net.grinder.tools.tcpproxy.HTTPProxyEngineOptions.ThreadMode;
+import net.grinder.tools.tcpproxy.HTTPProxyNIOTCPProxyEngine;
 import net.grinder.tools.tcpproxy.HTTPProxyTCPProxyEngineEx;
 import net.grinder.tools.tcpproxy.NullFilter;
+import net.grinder.tools.tcpproxy.SSLSessionCacheStatistics;
+import net.grinder.tools.tcpproxy.TCPProxyAutoConfig;
+import net.grinder.tools.tcpproxy.TCPProxyCertificateAuthority;
 import net.grinder.tools.tcpproxy.TCPProxyFilter;
+import net.grinder.tools.tcpproxy.TCPProxyMintingSSLEngineFactory;
+import net.grinder.tools.tcpproxy.TCPProxyPassthrough;
+import net.grinder.tools.tcpproxy.TCPProxyResponseCache;
+import net.grinder.tools.tcpproxy.TCPProxySSLEngineFactory;
+import net.grinder.tools.tcpproxy.TCPProxySSLEngineFactoryImplementation;
 import net.grinder.tools.tcpproxy.TCPProxySSLSocketFactory;
-import net.grinder.tools.tcpproxy.TCPProxySSLSocketFactoryImplementation;
+import net.grinder.tools.tcpproxy.TCPProxySSLSocketFactoryImplementationEx;
 import net.grinder.tools.tcpproxy.UpdatableCommentSource;
+import net.grinder.tools.tcpproxy.VirtualThreads;
 import net.grinder.util.AttributeStringParserImplementation;
 import net.grinder.util.Language;
 import net.grinder.util.Pair;
@@ -82,10 +111,25 @@ import org.slf4j.LoggerFactory;
 public class ScriptRecorderProxy {
 	private static final Logger LOG = LoggerFactory.getLogger(ScriptRecorderProxy.class);
 
+	// Time to wait for the capture pipeline to catch up, in milliseconds.
+	private static final long CAPTURE_FLUSH_TIMEOUT = 10000;
+
 	private AbstractTCPProxyEngine m_httpProxyEngine;
 
+	private HTTPProxyEngineOptions m_engineOptions;
+
+	private BufferPool m_bufferPool;
+
+	private volatile CapturePipeline m_capturePipeline;
+
+	private volatile boolean m_recording = false;
+
 	private DefaultPicoContainer m_filterContainer;
 
+	private MessageBusConnection m_messageBusConnection;
+
+	private Timer m_autoConfigTimer;
+
 	private final RecorderConfig recorderConfig;
 
 	/**
@@ -104,12 +148,86 @@ public class ScriptRecorderProxy {
 	 */
 	public synchronized void stopProxy() {
 		m_httpProxyEngine.stop();
+		if (m_capturePipeline != null) {
+			m_capturePipeline.stop(CAPTURE_FLUSH_TIMEOUT);
+			LOG.info("Capture pipeline {}", m_capturePipeline);
+			m_capturePipeline = null;
+		}
+		if (m_messageBusConnection != null) {
+			// So a proxy started later in the same JVM is the only one to handle the events.
+			MessageBus.getInstance().disconnect(m_messageBusConnection);
+			m_messageBusConnection = null;
+		}
+		if (m_autoConfigTimer != null) {
+			m_autoConfigTimer.cancel();
+			m_autoConfigTimer = null;
+		}
+		if (m_engineOptions != null) {
+			LOG.info("SSL session cache {}", m_engineOptions.getSSLSessionCacheStatistics());
+		}
+		if (m_bufferPool != null) {
+			LOG.info("Buffer pool {}", m_bufferPool);
+		}
+		if (m_engineOptions != null) {
+			LOG.info("Passthrough connections {}", m_engineOptions.getPassthrough());
+			if (m_engineOptions.getAutoConfig().isEnabled()) {
+				LOG.info("Proxy auto-config {}", m_engineOptions.getAutoConfig());
+			}
+			LOG.info("Browser connections {}", m_engineOptions.getConnectionRegistry());
+			LOG.info("Socket processors {}", m_engineOptions.getSocketExecutorStatistics());
+			LOG.info("DNS cache {}", m_engineOptions.getDNSCache());
+			LOG.info("Upstream connections {}", m_engineOptions.getConnectStatistics());
+			LOG.info("Accepted connections {}", m_engineOptions.getAcceptStatistics());
+			LOG.info("Circuit breaker {}", m_engineOptions.getCircuitBreaker());
+			if (m_engineOptions.getResponseCache().isEnabled()) {
+				LOG.info("Response cache {}", m_engineOptions.getResponseCache());
+			}
+		}
 		if (m_filterContainer.getLifecycleState().isStarted()) {
 			m_filterContainer.stop();
 			m_filterContainer.dispose();
 		}
 	}
 
+	/**
+	 * Get the counters of the SSL sessions resumed by the running proxy.
+	 * 
+	 * @return statistics, or {@code null} if the proxy is not started
+	 */
+	public SSLSessionCacheStatistics getSSLSessionCacheStatistics() {
+		return m_engineOptions != null ? m_engineOptions.getSSLSessionCacheStatistics() : null;
+	}
+
+	/**
+	 * Get the queue length, the queue wait percentiles and the worker counts of the threads which
+	 * sniff the browser connections.
+	 * 
+	 * @return statistics, or {@code null} if the proxy is not started
+	 */
+	public ExecutorStatistics getSocketExecutorStatistics() {
+		return m_engineOptions != null ? m_engineOptions.getSocketExecutorStatistics() : null;
+	}
+
+	/**
+	 * Get the per upstream host circuits of the running proxy, which fail the connections to the
+	 * hosts that keep refusing them fast.
+	 * 
+	 * @return circuit breaker, or {@code null} if the proxy is not started
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return m_engineOptions != null ? m_engineOptions.getCircuitBreaker() : null;
+	}
+
+	/**
+	 * Get the I/O buffer pool shared by the proxy engine and the recording filters. Its counters
+	 * tell the pool size, the hit rate and the outstanding leases.
+	 * 
+	 * @return buffer pool, or {@code null} if the proxy is not started
+	 */
+	public BufferPool getBufferPool() {
+		return m_bufferPool;
+	}
+
 	/**
 	 * Start proxy.
 	 * 
@@ -130,6 +248,9 @@ public class ScriptRecorderProxy {
 		m_filterContainer.addComponent(LOG);
 		UpdatableCommentSource commentSource = new CommentSourceImplementation();
 		m_filterContainer.addComponent(commentSource);
+		m_bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, recorderConfig.getPropertyInt(
+						"proxy.buffer.pool", 256));
+		m_filterContainer.addComponent(m_bufferPool);
 
 		final FilterChain requestFilterChain = new FilterChain();
 		final FilterChain responseFilterChain = new FilterChain();
@@ -171,8 +292,14 @@ public class ScriptRecorderProxy {
 		final HTTPRecordingImplEx httpRecording = m_filterContainer.getComponent(HTTPRecordingImplEx.class);
 		final ConnectedHostHTTPFilterEventListener connectionCache = m_filterContainer
 						.getComponent(ConnectedHostHTTPFilterEventListener.class);
+		m_capturePipeline = createCapturePipeline(m_filterContainer.getComponent(ConnectionCache.class));
+		if (m_capturePipeline != null) {
+			m_capturePipeline.start();
+			connectionCache.setCapturePipeline(m_capturePipeline);
+		}
 		final MessageBus messageBus = MessageBus.getInstance();
 		MessageBusConnection connect = messageBus.connect();
+		m_messageBusConnection = connect;
 		LOG.info("Register event handler..");
 		connect.subscribe(Topics.START_RECORDING, new PropertyChangeListener() {
 			@Override
@@ -181,11 +308,17 @@ public class ScriptRecorderProxy {
 				initFileTypeFilter(fileTypeFilter, (List<FileTypeCategory>) evt.getNewValue());
 				switchableResponseFilter.setTcpProxyFilter(httpResponseFilter);
 				switchableRequestFilter.setTcpProxyFilter(httpRequestFilter);
+				m_recording = true;
+				if (m_engineOptions != null) {
+					// Make the browser reconnect through the filters.
+					m_engineOptions.getPassthrough().closeAll();
+				}
 			}
 		});
 		connect.subscribe(Topics.STOP_RECORDING, new PropertyChangeListener() {
 			@Override
 			public void propertyChange(PropertyChangeEvent evt) {
+				m_recording = false;
 				switchableResponseFilter.setTcpProxyFilter(nullFilter);
 				switchableRequestFilter.setTcpProxyFilter(connectionAwareNullRequestFilter);
 				Pair<List<FileTypeCategory>, Set<GenerationOption>> pair = cast(evt.getNewValue());
@@ -193,6 +326,7 @@ public class ScriptRecorderProxy {
 				ProcessHTTPRecordingWithFreeMarker httpOutput = m_filterContainer
 								.getComponent(ProcessHTTPRecordingWithFreeMarker.class);
 				HTTPRecordingImplEx recoding = m_filterContainer.getComponent(HTTPRecordingImplEx.class);
+				flushCapturePipeline();
 				StringWriter writer = new StringWriter();
 				Set<GenerationOption> second = (Set<GenerationOption>) pair.getSecond();
 				httpOutput.setGenerationOptions(second);
@@ -215,6 +349,7 @@ public class ScriptRecorderProxy {
 		connect.subscribe(Topics.START_USER_PAGE, new PropertyChangeListener() {
 			@Override
 			public void propertyChange(PropertyChangeEvent evt) {
+				flushCapturePipeline();
 				httpRecording.setNewPageRequested();
 			}
 		});
@@ -238,10 +373,23 @@ public class ScriptRecorderProxy {
 		final TCPProxyFilter responseFilter = responseFilterChain.resolveFilter();
 		try {
 			TCPProxySSLSocketFactory sslSocketFactory = ceateTCPProxySSlSocketFactory();
-			m_httpProxyEngine = new HTTPProxyTCPProxyEngineEx(sslSocketFactory, requestFilter, responseFilter, LOG,
-							localHttpEndPoint, null, null);
+			HTTPProxyEngineOptions engineOptions = createEngineOptions();
+			m_engineOptions = engineOptions;
+			LOG.info("Proxy engine options {}", engineOptions);
+			EndPoint chainedHttpProxy = createChainedProxyEndPoint("proxy.http.proxy");
+			EndPoint chainedHttpsProxy = createChainedProxyEndPoint("proxy.https.proxy");
+			if (engineOptions.getEngineMode() == EngineMode.NIO) {
+				m_httpProxyEngine = new HTTPProxyNIOTCPProxyEngine(sslSocketFactory, requestFilter, responseFilter, LOG,
+								localHttpEndPoint, chainedHttpProxy, chainedHttpsProxy, engineOptions);
+			} else {
+				m_httpProxyEngine = new HTTPProxyTCPProxyEngineEx(sslSocketFactory, requestFilter, responseFilter, LOG,
+								localHttpEndPoint, chainedHttpProxy, chainedHttpsProxy, engineOptions);
+			}
 			Thread httpProxyThread = new Thread(m_httpProxyEngine);
 			httpProxyThread.start();
+			if (engineOptions.getAutoConfig().isEnabled()) {
+				startAutoConfigUpdates(engineOptions.getAutoConfig(), proxyEndPointPair, localHttpEndPoint);
+			}
 			LOG.info("Finish proxy initailization.");
 		} catch (Exception e) {
 			throw new NGrinderRuntimeException("Failed to start the tcp proxy engine.", e);
@@ -249,6 +397,191 @@ public class ScriptRecorderProxy {
 		return proxyEndPointPair;
 	}
 
+	/**
+	 * Create the proxy engine options from recorder.conf.
+	 * 
+	 * @return engine options
+	 */
+	protected HTTPProxyEngineOptions createEngineOptions() {
+		HTTPProxyEngineOptions options = new HTTPProxyEngineOptions();
+		String engine = recorderConfig.getProperty("proxy.engine", "thread");
+		if ("nio".equalsIgnoreCase(engine)) {
+			options.setEngineMode(EngineMode.NIO);
+		} else if (!"thread".equalsIgnoreCase(engine)) {
+			LOG.info("proxy.engine {} is not supported. thread engine is used.", engine);
+		}
+		String threads = recorderConfig.getProperty("proxy.threads", "platform");
+		if ("virtual".equalsIgnoreCase(threads)) {
+			if (VirtualThreads.isAvailable()) {
+				options.setThreadMode(ThreadMode.VIRTUAL);
+			} else {
+				LOG.info("proxy.threads virtual needs JDK 21 or later. platform threads are used.");
+			}
+		} else if (!"platform".equalsIgnoreCase(threads)) {
+			LOG.info("proxy.threads {} is not supported. platform threads are used.", threads);
+		}
+		options.setSocketThreadsMin(recorderConfig.getPropertyInt("proxy.socket.threads.min",
+						options.getSocketThreadsMin()));
+		options.setSocketThreadsMax(recorderConfig.getPropertyInt("proxy.socket.threads.max",
+						options.getSocketThreadsMax()));
+		options.setSocketQueueSize(recorderConfig.getPropertyInt("proxy.socket.queue", options.getSocketQueueSize()));
+		options.setSocketQueueTargetWait(recorderConfig.getPropertyInt("proxy.socket.queue.targetwait",
+						(int) options.getSocketQueueTargetWait()));
+		options.setEventLoopCount(recorderConfig.getPropertyInt("proxy.nio.threads", options.getEventLoopCount()));
+		options.setAcceptShards(recorderConfig.getPropertyInt("proxy.accept.shards", options.getAcceptShards()));
+		options.setAcceptBacklog(recorderConfig.getPropertyInt("proxy.accept.backlog", options.getAcceptBacklog()));
+		options.setTunnelSetupThreadCount(recorderConfig.getPropertyInt("proxy.https.setup.threads",
+						options.getTunnelSetupThreadCount()));
+		options.setSSLSessionCacheSize(recorderConfig.getPropertyInt("proxy.https.session.cache",
+						options.getSSLSessionCacheSize()));
+		options.setSSLSessionTimeout(recorderConfig.getPropertyInt("proxy.https.session.timeout",
+						options.getSSLSessionTimeout()));
+		options.setHTTP2(recorderConfig.getPropertyBoolean("proxy.https.h2", options.isHTTP2()));
+		options.setOptimisticConnect(recorderConfig.getPropertyBoolean("proxy.https.optimistic",
+						options.isOptimisticConnect()));
+		options.setUpstreamPoolMaxIdle(recorderConfig.getPropertyInt("proxy.upstream.pool.max",
+						options.getUpstreamPoolMaxIdle()));
+		options.setUpstreamPoolMaxIdlePerHost(recorderConfig.getPropertyInt("proxy.upstream.pool.perhost",
+						options.getUpstreamPoolMaxIdlePerHost()));
+		options.setUpstreamPoolIdleTimeout(recorderConfig.getPropertyInt("proxy.upstream.pool.idletimeout",
+						(int) options.getUpstreamPoolIdleTimeout()));
+		options.setUpstreamHTTP2(recorderConfig.getPropertyBoolean("proxy.upstream.h2", options.isUpstreamHTTP2()));
+		options.setChainedProxySpare(recorderConfig.getPropertyBoolean("proxy.https.proxy.spare",
+						options.isChainedProxySpare()));
+		if (m_bufferPool != null) {
+			options.setBufferPool(m_bufferPool);
+		}
+		options.setConnectionIdleTimeout(recorderConfig.getPropertyInt("proxy.connection.idletimeout",
+						(int) (options.getConnectionIdleTimeout() / 1000)) * 1000L);
+		options.setDNSCache(createDNSCache());
+		options.setConnectAttemptDelay(recorderConfig.getPropertyInt("proxy.connect.attemptdelay",
+						(int) options.getConnectAttemptDelay()));
+		options.setConnectTimeout(recorderConfig.getPropertyInt("proxy.connect.timeout",
+						(int) options.getConnectTimeout()));
+		CircuitBreaker circuitBreaker = options.getCircuitBreaker();
+		circuitBreaker.setFailureThreshold(recorderConfig.getPropertyInt("proxy.circuit.failures",
+						circuitBreaker.getFailureThreshold()));
+		circuitBreaker.setProbeInterval(recorderConfig.getPropertyInt("proxy.circuit.probe",
+						(int) circuitBreaker.getProbeInterval()));
+		if (recorderConfig.getPropertyBoolean("proxy.passthrough", true) && m_filterContainer != null) {
+			options.getPassthrough().setPolicy(createPassthroughPolicy(getConnectionFilter()));
+		}
+		if (recorderConfig.getPropertyBoolean("proxy.pac", false) && m_filterContainer != null) {
+			String[] includes = StringUtils.split(recorderConfig.getProperty("proxy.pac.include", "")
+							.toLowerCase(Locale.ENGLISH), ", ");
+			options.getAutoConfig().setIncludes(Arrays.asList(includes));
+			options.getAutoConfig().setPolicy(createAutoConfigPolicy(getConnectionFilter()));
+		}
+		if (recorderConfig.getPropertyBoolean("proxy.cache", false) && m_filterContainer != null) {
+			TCPProxyResponseCache responseCache = options.getResponseCache();
+			responseCache.setMaxSize(recorderConfig.getPropertyInt("proxy.cache.size", 64) * 1024L * 1024);
+			responseCache.setMaxEntrySize(recorderConfig.getPropertyInt("proxy.cache.entry.max", 8) * 1024 * 1024);
+			int spillSize = recorderConfig.getPropertyInt("proxy.cache.spill", 0);
+			if (spillSize > 0) {
+				File spillDirectory = recorderConfig.getHome().getFile("cache");
+				try {
+					responseCache.setSpillDirectory(spillDirectory, spillSize * 1024L * 1024);
+				} catch (IOException e) {
+					LOG.error("Failed to prepare the response cache directory " + spillDirectory, e);
+				}
+			}
+			responseCache.setPolicy(createResponseCachePolicy(m_filterContainer
+							.getComponent(FileTypeFilterImpl.class)));
+		}
+		if (recorderConfig.getPropertyBoolean("proxy.https.mint", false)) {
+			options.setSSLEngineFactory(createTCPProxyMintingSSLEngineFactory());
+		} else if (recorderConfig.getPropertyBoolean("proxy.https.inprocess", false)) {
+			options.setSSLEngineFactory(createTCPProxySSLEngineFactory());
+		}
+		return options;
+	}
+
+	/**
+	 * Create the end point of a chained proxy from a host:port property.
+	 * 
+	 * @param key
+	 *            property key
+	 * @return end point, or null if the property is not set or invalid
+	 */
+	protected EndPoint createChainedProxyEndPoint(String key) {
+		String value = StringUtils.trimToEmpty(recorderConfig.getProperty(key, ""));
+		if (value.isEmpty()) {
+			return null;
+		}
+		int colon = value.lastIndexOf(':');
+		try {
+			String host = StringUtils.removeEnd(StringUtils.removeStart(value.substring(0, colon), "["), "]");
+			int port = Integer.parseInt(value.substring(colon + 1));
+			if (host.isEmpty() || port <= 0 || port > 65535) {
+				throw new NumberFormatException(value);
+			}
+			LOG.info("Requests are sent through the chained proxy {}:{} set by {}", new Object[] { host, port, key });
+			return new EndPoint(host, port);
+		} catch (RuntimeException e) {
+			LOG.info("{} {} is not host:port. No chained proxy is used.", key, value);
+			return null;
+		}
+	}
+
+	/**
+	 * Create the cache of the upstream host addresses. The times to live default to the ones of
+	 * the JVM.
+	 * 
+	 * @return DNS cache
+	 */
+	protected DNSCache createDNSCache() {
+		int ttl = recorderConfig.getPropertyInt("proxy.dns.ttl", (int) (DNSCache.getDefaultTtl() / 1000));
+		int negativeTtl = recorderConfig.getPropertyInt("proxy.dns.negativettl",
+						(int) (DNSCache.getDefaultNegativeTtl() / 1000));
+		return new DNSCache(recorderConfig.getPropertyInt("proxy.dns.cache", 1000), ttl * 1000L, negativeTtl * 1000L);
+	}
+
+	/**
+	 * Create TCPProxySSLEngineFactory which issues a certificate for each host with the recorder CA
+	 * kept in the ca directory of the recorder home.
+	 * 
+	 * @return configured {@link TCPProxySSLEngineFactory}
+	 */
+	protected TCPProxySSLEngineFactory createTCPProxyMintingSSLEngineFactory() {
+		File caDirectory = recorderConfig.getHome().getFile("ca");
+		try {
+			TCPProxyCertificateAuthority authority = TCPProxyCertificateAuthority.loadOrCreate(caDirectory);
+			LOG.info("HTTPS certificates are issued by the recorder CA. Import {} to the browser to trust it.",
+							new File(caDirectory, TCPProxyCertificateAuthority.CERTIFICATE_FILE_NAME).getAbsolutePath());
+			File storeDirectory = recorderConfig.getPropertyBoolean("proxy.https.mint.persist", true) ? new File(
+							caDirectory, "hosts") : null;
+			return new TCPProxyMintingSSLEngineFactory(authority, storeDirectory, recorderConfig.getPropertyInt(
+							"proxy.https.mint.cache", 1000), recorderConfig.getPropertyInt("proxy.https.mint.pool", 8));
+		} catch (Exception e) {
+			throw new RuntimeException("error occurs while configuring the recorder CA in " + caDirectory, e);
+		}
+	}
+
+	/**
+	 * Create TCPProxySSLEngineFactory which presents the same key store as
+	 * {@link #ceateTCPProxySSlSocketFactory()}.
+	 * 
+	 * @return configured {@link TCPProxySSLEngineFactory}
+	 */
+	protected TCPProxySSLEngineFactory createTCPProxySSLEngineFactory() {
+		File keyStoreFile = recorderConfig.getHome().getFile("keystore");
+		String keyStorePassword = recorderConfig.getProperty("keystore.password", "");
+		String keyStoreType = recorderConfig.getProperty("keystore.type", null);
+		try {
+			if (keyStoreFile.exists() && StringUtils.isNotEmpty(keyStorePassword)) {
+				return new TCPProxySSLEngineFactoryImplementation(keyStoreFile, keyStorePassword.toCharArray(),
+								keyStoreType);
+			}
+		} catch (Exception e) {
+			LOG.info("exception occurs while configuring TCPProxySSLEngineFactory using {}.", keyStoreFile);
+		}
+		try {
+			return new TCPProxySSLEngineFactoryImplementation();
+		} catch (Exception e) {
+			throw new RuntimeException("error occurs while configuring default TCPProxySSLEngineFactory", e);
+		}
+	}
+
 	/**
 	 * Create TCPProxySSLSocketFactory.
 	 * 
@@ -263,7 +596,7 @@ public class ScriptRecorderProxy {
 			if (keyStoreFile.exists()) {
 				if (StringUtils.isNotEmpty(keyStorePassword)) {
 					LOG.info("user provided keystore {} is used", keyStoreFile.getAbsolutePath());
-					return new TCPProxySSLSocketFactoryImplementation(keyStoreFile, keyStorePassword.toCharArray(),
+					return new TCPProxySSLSocketFactoryImplementationEx(keyStoreFile, keyStorePassword.toCharArray(),
 									keyStoreType);
 				}
 				LOG.info("user provides keystore file but not provide keystore.password in recorder.conf is not set.");
@@ -274,12 +607,148 @@ public class ScriptRecorderProxy {
 		}
 		LOG.info("use the default keystore.");
 		try {
-			return new TCPProxySSLSocketFactoryImplementation();
+			return new TCPProxySSLSocketFactoryImplementationEx();
 		} catch (Exception e) {
 			throw new RuntimeException("error occurs while configuring default TCPProxySocketFactory", e);
 		}
 	}
 
+	/**
+	 * Create the policy which relays the connections without the filters while the recording is
+	 * stopped, and the connections to the hosts filtered by the user while it is running.
+	 * 
+	 * @param connectionFilter
+	 *            connection filter which lists the hosts
+	 * @return passthrough policy
+	 */
+	protected TCPProxyPassthrough.Policy createPassthroughPolicy(final ConnectionFilter connectionFilter) {
+		return new TCPProxyPassthrough.Policy() {
+			@Override
+			public boolean isPassthrough(ConnectionDetails connectionDetails) {
+				if (!m_recording) {
+					// Still list the host as ConnectionAwareNullRequestFilter does.
+					connectionFilter.addConnectionDetails(connectionDetails, false);
+					return true;
+				}
+				return connectionFilter.isFiltered(connectionDetails.getRemoteEndPoint());
+			}
+		};
+	}
+
+	/**
+	 * Create the policy which sends the checked hosts through the proxy, and the unchecked ones
+	 * directly to the server.
+	 * 
+	 * @param connectionFilter
+	 *            connection filter which lists the hosts
+	 * @return auto-config policy
+	 */
+	protected TCPProxyAutoConfig.Policy createAutoConfigPolicy(final ConnectionFilter connectionFilter) {
+		return new TCPProxyAutoConfig.Policy() {
+			@Override
+			public Map<String, Boolean> getHosts() {
+				List<EndPoint> endPoints;
+				// ConnectionFilterImpl adds the hosts while holding its lock.
+				synchronized (connectionFilter) {
+					endPoints = new ArrayList<EndPoint>(connectionFilter.getConnectionEndPoints());
+				}
+				Map<String, Boolean> hosts = new HashMap<String, Boolean>();
+				for (EndPoint each : endPoints) {
+					// The script does not see the port. A host is sent through the proxy if one of
+					// its ports is checked.
+					String host = each.getHost().toLowerCase(Locale.ENGLISH);
+					Boolean proxied = hosts.get(host);
+					hosts.put(host, (proxied != null && proxied) || !connectionFilter.isFiltered(each));
+				}
+				return hosts;
+			}
+		};
+	}
+
+	/**
+	 * Create the pipeline which records on its own threads from recorder.conf.
+	 * 
+	 * @param connectionCache
+	 *            listener which parses the connections
+	 * @return pipeline, or {@code null} if the recording is done on the forwarding threads
+	 */
+	protected CapturePipeline createCapturePipeline(HTTPFilterEventListener connectionCache) {
+		if (!recorderConfig.getPropertyBoolean("proxy.capture.async", false)) {
+			return null;
+		}
+		OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+		String overflow = recorderConfig.getProperty("proxy.capture.overflow", "block");
+		if ("drop".equalsIgnoreCase(overflow)) {
+			overflowPolicy = OverflowPolicy.DROP;
+		} else if (!"block".equalsIgnoreCase(overflow)) {
+			LOG.info("proxy.capture.overflow {} is not supported. block is used.", overflow);
+		}
+		return new CapturePipeline(connectionCache, recorderConfig.getPropertyInt("proxy.capture.threads", 1),
+						recorderConfig.getPropertyInt("proxy.capture.queue", 4096), recorderConfig.getPropertyInt(
+										"proxy.capture.queue.size", 32) * 1024L * 1024, overflowPolicy);
+	}
+
+	// The recording must hold everything sent before the user acts on it.
+	private void flushCapturePipeline() {
+		final CapturePipeline capturePipeline = m_capturePipeline;
+		if (capturePipeline != null && !capturePipeline.flush(CAPTURE_FLUSH_TIMEOUT)) {
+			LOG.warn("Capture pipeline is still behind: {}", capturePipeline);
+		}
+	}
+
+	/**
+	 * Create the policy which caches the responses of the file types left out of the script.
+	 * 
+	 * @param fileTypeFilter
+	 *            file type filter of the recording
+	 * @return response cache policy
+	 */
+	protected TCPProxyResponseCache.Policy createResponseCachePolicy(final FileTypeFilter fileTypeFilter) {
+		return new TCPProxyResponseCache.Policy() {
+			@Override
+			public boolean isCacheable(String path, String contentType) {
+				return fileTypeFilter.isFiltered(path)
+								|| (contentType != null && fileTypeFilter.isFilteredContentType(contentType));
+			}
+		};
+	}
+
+	/**
+	 * Regenerate the proxy auto-config script every second, and tell the browsers to load it
+	 * again when the user has checked or unchecked a host.
+	 * 
+	 * @param autoConfig
+	 *            auto-config script served by the proxy
+	 * @param endPoints
+	 *            end points whose auto-config URL is updated
+	 * @param proxyAddress
+	 *            address of the proxy
+	 */
+	protected void startAutoConfigUpdates(final TCPProxyAutoConfig autoConfig, final ProxyEndPointPair endPoints,
+					EndPoint proxyAddress) {
+		final String url = "http://" + proxyAddress + TCPProxyAutoConfig.PATH + "?v=";
+		autoConfig.update();
+		endPoints.setAutoConfigUrl(url + autoConfig.getVersion());
+		LOG.info("Proxy auto-config is served at {}", endPoints.getAutoConfigUrl());
+		m_autoConfigTimer = new Timer("proxy_auto_config", true);
+		m_autoConfigTimer.schedule(new TimerTask() {
+			private int m_version = autoConfig.getVersion();
+
+			@Override
+			public void run() {
+				// The script is also regenerated when the browser loads it.
+				autoConfig.update();
+				int version = autoConfig.getVersion();
+				if (version != m_version) {
+					m_version = version;
+					endPoints.setAutoConfigUrl(url + version);
+					MessageBus.getInstance().getPublisher(Topics.PROXY_AUTO_CONFIG_CHANGE).propertyChange(
+									new PropertyChangeEvent(this, "Proxy Auto-Config Change", null, endPoints));
+				}
+			}
+		}, 1000, 1000);
+	}
+
 	private void initFileTypeFilter(final FileTypeFilterImpl fileTypeFilter, List<FileTypeCategory> categories) {
 		fileTypeFilter.reset();
 		for (FileTypeCategory each : categories) {
@@ -14,11 +14,13 @@
 package org.ngrinder.recorder.ui;
 
 import java.util.List;
+import java.util.Locale;
 
 import javax.swing.table.AbstractTableModel;
 
 
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionFilter;
+import net.grinder.tools.tcpproxy.CircuitBreaker;
 import net.grinder.tools.tcpproxy.EndPoint;
 import net.grinder.util.CollectionUtils;
 
@@ -34,9 +36,11 @@ public class FilterTableModel extends AbstractTableModel {
 	/** UUID. */
 	private static final long serialVersionUID = -1221672488662820272L;
 	private final ConnectionFilter connectionFilter;
+	private final CircuitBreaker circuitBreaker;
+	private long circuitChangeCount;
 
-	private String[] columns = { "I", "HOST", "R" };
-	private Class<?>[] columnClass = { Boolean.class, String.class, Integer.class };
+	private String[] columns = { "I", "HOST", "R", "S" };
+	private Class<?>[] columnClass = { Boolean.class, String.class, Integer.class, String.class };
 
 	/**
 	 * Constructor.
@@ -45,7 +49,20 @@ public class FilterTableModel extends AbstractTableModel {
 	 *            connectionFilter to which this model connect to
 	 */
 	public FilterTableModel(ConnectionFilter connectionFilter) {
+		this(connectionFilter, null);
+	}
+
+	/**
+	 * Constructor which shows the circuit state of each host as well.
+	 * 
+	 * @param connectionFilter
+	 *            connectionFilter to which this model connect to
+	 * @param circuitBreaker
+	 *            circuit breaker of the proxy, or {@code null} not to show the circuit state
+	 */
+	public FilterTableModel(ConnectionFilter connectionFilter, CircuitBreaker circuitBreaker) {
 		this.connectionFilter = connectionFilter;
+		this.circuitBreaker = circuitBreaker;
 	}
 
 	@Override
@@ -60,7 +77,7 @@ public class FilterTableModel extends AbstractTableModel {
 
 	@Override
 	public int getColumnCount() {
-		return 3;
+		return circuitBreaker == null ? 3 : 4;
 	}
 
 	/**
@@ -92,6 +109,9 @@ public class FilterTableModel extends AbstractTableModel {
 		case 2:
 			EndPoint endPoint2 = connectionFilter.getConnectionEndPoint(rowIndex);
 			return connectionFilter.getEndPointInfo(endPoint2).getCount();
+		case 3:
+			CircuitBreaker.State state = circuitBreaker.getState(connectionFilter.getConnectionEndPoint(rowIndex));
+			return state == CircuitBreaker.State.CLOSED ? "" : state.name().toLowerCase(Locale.ENGLISH);
 		default:
 			return 0;
 		}
@@ -150,7 +170,12 @@ public class FilterTableModel extends AbstractTableModel {
 	 * UI.
 	 */
 	public void update() {
-		if (connectionFilter.isChanged()) {
+		boolean changed = connectionFilter.isChanged();
+		if (circuitBreaker != null && circuitBreaker.getChangeCount() != circuitChangeCount) {
+			circuitChangeCount = circuitBreaker.getChangeCount();
+			changed = true;
+		}
+		if (changed) {
 			fireTableDataChanged();
 		}
 	}
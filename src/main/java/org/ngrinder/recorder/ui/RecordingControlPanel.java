@@ -66,6 +66,7 @@ import javax.swing.table.TableRowSorter;
 import net.grinder.plugin.http.tcpproxyfilter.ConnectionFilter;
 import net.grinder.plugin.http.tcpproxyfilter.options.FileTypeCategory;
 import net.grinder.plugin.http.tcpproxyfilter.options.GenerationOption;
+import net.grinder.tools.tcpproxy.CircuitBreaker;
 import net.grinder.tools.tcpproxy.EndPoint;
 import net.grinder.util.CollectionUtils;
 import net.grinder.util.NoOp;
@@ -96,6 +97,7 @@ public class RecordingControlPanel extends JPanel {
 	private Timer timer;
 	private MessageBus messageBus;
 	private ConnectionFilter connectionFilter;
+	private CircuitBreaker circuitBreaker;
 	private JComponent typeFilter;
 	private JComponent generationOptions;
 	private OptionPersistencyHandler typeFilterPersistentHandler;
@@ -110,7 +112,20 @@ public class RecordingControlPanel extends JPanel {
 	 *            {@link ConnectionFilter}
 	 */
 	public RecordingControlPanel(ConnectionFilter connectionFilter) {
+		this(connectionFilter, null);
+	}
+
+	/**
+	 * Constructor which shows the circuit state of each host in the filter table.
+	 * 
+	 * @param connectionFilter
+	 *            {@link ConnectionFilter}
+	 * @param circuitBreaker
+	 *            {@link CircuitBreaker} of the proxy, or {@code null}
+	 */
+	public RecordingControlPanel(ConnectionFilter connectionFilter, CircuitBreaker circuitBreaker) {
 		this.connectionFilter = connectionFilter;
+		this.circuitBreaker = circuitBreaker;
 		initUI(connectionFilter);
 		initEventHandler();
 	}
@@ -567,11 +582,14 @@ public class RecordingControlPanel extends JPanel {
 	}
 
 	protected JTable createFilterTables(ConnectionFilter connectionFilter) {
-		final FilterTableModel dm = new FilterTableModel(connectionFilter);
+		final FilterTableModel dm = new FilterTableModel(connectionFilter, circuitBreaker);
 		JTable jTable = new JTable(dm);
 		TableColumnModel columnModel = jTable.getColumnModel();
 		setColumnWidth(columnModel.getColumn(0), 30, 30, 30);
 		setColumnWidth(columnModel.getColumn(2), 30, 50, 30);
+		if (circuitBreaker != null) {
+			setColumnWidth(columnModel.getColumn(3), 50, 60, 40);
+		}
 		jTable.setRowSorter(new TableRowSorter<TableModel>(dm));
 		createUpdateCheckScheduledTask(dm);
 		return jTable;
@@ -89,6 +89,9 @@ public class TestRunner {
 		/***********************************************************************************************
 		 * ${uris[each_request.uri.extends].scheme}://${uris[each_request.uri.extends].host}${each_request.uri.path.getStringValue()}
 		 ***********************************************************************************************/
+		<#list each_request.getCommentArray() as each_comment>
+		${f.wrapWithComment(each_comment)?trim}
+		</#list>
 		<#assign token_arrays = []>
 		<#if f.hasOption("AddSleep") && each_request.sleepTime != 0>
 		sleepFor(${each_request.sleepTime?c})
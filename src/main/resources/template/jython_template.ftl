@@ -104,6 +104,9 @@ class TestRunner:
 		##########################################################################################
 		# ${uris[each_request.uri.extends].scheme}://${uris[each_request.uri.extends].host}${each_request.uri.path.getStringValue()}
 		##########################################################################################
+		<#list each_request.getCommentArray() as each_comment>
+		${f.wrapWithComment(each_comment)?trim}
+		</#list>
 		<#assign token_arrays = []>
 		<#if f.hasOption("AddSleep") && each_request.sleepTime != 0>
 		self.sleep(${each_request.sleepTime?c})
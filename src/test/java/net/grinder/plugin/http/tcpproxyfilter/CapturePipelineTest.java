@@ -0,0 +1,169 @@
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.grinder.tools.tcpproxy.ConnectionDetails;
+import net.grinder.tools.tcpproxy.EndPoint;
+
+import org.junit.Test;
+
+public class CapturePipelineTest {
+
+	private static ConnectionDetails connection(int port) {
+		return new ConnectionDetails(new EndPoint("localhost", port), new EndPoint("server", 80), false);
+	}
+
+	/**
+	 * Writes down the events of each connection, as "open", the first byte of each chunk, and
+	 * "close".
+	 */
+	private static class RecordingListener implements HTTPFilterEventListener {
+		private final List<String> m_events = Collections.synchronizedList(new ArrayList<String>());
+		private final CountDownLatch m_release = new CountDownLatch(1);
+		private volatile boolean m_blocking;
+		private volatile long m_lastTime;
+
+		@Override
+		public void open(ConnectionDetails connectionDetails) {
+			m_events.add(connectionDetails.getLocalEndPoint().getPort() + " open");
+		}
+
+		@Override
+		public void request(ConnectionDetails connectionDetails, byte[] buffer, int length) {
+			m_lastTime = CapturePipeline.currentTimeMillis();
+			m_events.add(connectionDetails.getLocalEndPoint().getPort() + " " + buffer[0]);
+			if (m_blocking) {
+				try {
+					m_release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		public void response(ConnectionDetails connectionDetails, byte[] buffer, int length) {
+			request(connectionDetails, buffer, length);
+		}
+
+		@Override
+		public void close(ConnectionDetails connectionDetails) {
+			m_events.add(connectionDetails.getLocalEndPoint().getPort() + " close");
+		}
+
+		List<String> getEvents(int port) {
+			final List<String> result = new ArrayList<String>();
+			synchronized (m_events) {
+				for (String each : m_events) {
+					if (each.startsWith(port + " ")) {
+						result.add(each.substring(each.indexOf(' ') + 1));
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	@Test
+	public void testEventsOfAConnectionKeepTheirOrderAndTime() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		CapturePipeline pipeline = new CapturePipeline(listener, 2, 16, 1024 * 1024,
+						CapturePipeline.OverflowPolicy.BLOCK);
+		pipeline.start();
+		List<String> expected = new ArrayList<String>();
+		expected.add("open");
+		byte[] buffer = new byte[1];
+		for (int port = 1; port <= 3; port++) {
+			pipeline.open(connection(port));
+		}
+		for (int i = 0; i < 100; i++) {
+			for (int port = 1; port <= 3; port++) {
+				buffer[0] = (byte) i;
+				pipeline.request(connection(port), buffer, 1);
+			}
+			expected.add(String.valueOf((byte) i));
+		}
+		long sent = System.currentTimeMillis();
+		Thread.sleep(50);
+		for (int port = 1; port <= 3; port++) {
+			pipeline.close(connection(port));
+		}
+		expected.add("close");
+
+		assertThat(pipeline.flush(10000), is(true));
+		for (int port = 1; port <= 3; port++) {
+			assertThat(listener.getEvents(port), is(expected));
+		}
+		assertThat(listener.m_lastTime <= sent, is(true));
+		assertThat(pipeline.getProcessed(), is(306L));
+		assertThat(pipeline.getQueued(), is(0L));
+		assertThat(pipeline.getQueuedBytes(), is(0L));
+		pipeline.stop(1000);
+	}
+
+	@Test
+	public void testDropLeavesOutTheRestOfTheConnection() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		listener.m_blocking = true;
+		CapturePipeline pipeline = new CapturePipeline(listener, 1, 4, 1024 * 1024,
+						CapturePipeline.OverflowPolicy.DROP);
+		pipeline.start();
+		byte[] buffer = new byte[1];
+		pipeline.open(connection(1));
+		for (int i = 0; i < 10; i++) {
+			buffer[0] = (byte) i;
+			pipeline.request(connection(1), buffer, 1);
+		}
+		assertThat(pipeline.getDropped() > 0, is(true));
+		listener.m_release.countDown();
+		pipeline.close(connection(1));
+
+		assertThat(pipeline.flush(10000), is(true));
+		List<String> events = listener.getEvents(1);
+		assertThat(events.get(events.size() - 1), is("close"));
+		assertThat(events.size() - 2 + pipeline.getDropped(), is(10L));
+		for (int i = 1; i < events.size() - 1; i++) {
+			assertThat(events.get(i), is(String.valueOf(i - 1)));
+		}
+		pipeline.stop(1000);
+	}
+
+	@Test
+	public void testEventsAfterStopFollowTheQueuedEvents() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		listener.m_blocking = true;
+		CapturePipeline pipeline = new CapturePipeline(listener, 1, 16, 1024 * 1024,
+						CapturePipeline.OverflowPolicy.BLOCK);
+		pipeline.start();
+		List<String> expected = new ArrayList<String>();
+		expected.add("open");
+		byte[] buffer = new byte[1];
+		pipeline.open(connection(1));
+		for (int i = 0; i < 15; i++) {
+			if (i == 5) {
+				// The worker is still behind when the stop gives up.
+				pipeline.stop(50);
+			} else if (i == 10) {
+				listener.m_release.countDown();
+				assertThat(pipeline.flush(10000), is(true));
+				pipeline.stop(10000);
+			}
+			buffer[0] = (byte) i;
+			pipeline.request(connection(1), buffer, 1);
+			expected.add(String.valueOf(i));
+		}
+		pipeline.close(connection(1));
+		expected.add("close");
+
+		assertThat(listener.getEvents(1), is(expected));
+		assertThat(pipeline.getQueued(), is(0L));
+		assertThat(pipeline.getQueuedBytes(), is(0L));
+	}
+}
@@ -0,0 +1,39 @@
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import net.grinder.tools.tcpproxy.BufferPool;
+import net.grinder.tools.tcpproxy.ConnectionDetails;
+import net.grinder.tools.tcpproxy.EndPoint;
+
+import org.junit.Test;
+
+public class ConnectionHandlerImplExTest {
+
+	private static ConnectionHandlerImplEx createHandler(BufferPool bufferPool) {
+		// Nothing is recorded before a request line is matched.
+		return new ConnectionHandlerImplEx(null, new RegularExpressionsImplementation(), null, null, null,
+						new ConnectionDetails(new EndPoint("localhost", 1), new EndPoint("server", 80), false), null,
+						bufferPool);
+	}
+
+	@Test
+	public void testPartialRequestLineIsReleasedWhenClosed() throws Exception {
+		final BufferPool bufferPool = new BufferPool(1024, 4);
+		final byte[] partial = "GET /ind".getBytes();
+
+		final ConnectionHandlerImplEx finished = createHandler(bufferPool);
+		finished.handleRequest(partial, partial.length);
+		assertThat(bufferPool.getOutstanding(), is(1));
+		finished.requestFinished();
+		assertThat(bufferPool.getOutstanding(), is(0));
+		finished.requestFinished();
+		assertThat(bufferPool.getOutstanding(), is(0));
+
+		final ConnectionHandlerImplEx canceled = createHandler(bufferPool);
+		canceled.handleRequest(partial, partial.length);
+		assertThat(bufferPool.getOutstanding(), is(1));
+		canceled.requestCanceled();
+		assertThat(bufferPool.getOutstanding(), is(0));
+	}
+}
@@ -0,0 +1,55 @@
+package net.grinder.plugin.http.tcpproxyfilter;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class WebSocketCaptureTest {
+
+	@Test
+	public void testFramesSplitAcrossPackets() throws Exception {
+		WebSocketCapture capture = new WebSocketCapture();
+
+		// RFC 6455 5.7, a masked "Hello" from the browser, fed a byte at a time.
+		byte[] sent = { (byte) 0x81, (byte) 0x85, 0x37, (byte) 0xfa, 0x21, 0x3d, 0x7f, (byte) 0x9f, 0x4d, 0x51,
+			0x58 };
+		for (int i = 0; i < sent.length; i++) {
+			capture.sent(sent, i, 1);
+		}
+
+		// An unmasked 256 byte binary frame, then a close with status 1000.
+		byte[] received = new byte[4 + 256 + 4];
+		received[0] = (byte) 0x82;
+		received[1] = 126;
+		received[2] = 1;
+		received[4 + 256] = (byte) 0x88;
+		received[4 + 256 + 1] = 2;
+		received[4 + 256 + 2] = 0x03;
+		received[4 + 256 + 3] = (byte) 0xe8;
+		capture.received(received, 0, 100);
+		capture.received(received, 100, received.length - 100);
+
+		assertThat(capture.getComments(), is(Arrays.asList(
+						"WebSocket: sent 1 frames (5 bytes), received 2 frames (258 bytes)", "> text 5: Hello",
+						"< binary 256", "< close 2: 1000")));
+	}
+
+	@Test
+	public void testFramesAreBounded() throws Exception {
+		WebSocketCapture capture = new WebSocketCapture();
+		byte[] text = new byte[2 + 125];
+		text[0] = (byte) 0x81;
+		text[1] = 125;
+		Arrays.fill(text, 2, text.length, (byte) 'x');
+		for (int i = 0; i < WebSocketCapture.MAX_FRAMES + 5; i++) {
+			capture.received(text, 0, text.length);
+		}
+
+		assertThat(capture.getComments().size(), is(1 + WebSocketCapture.MAX_FRAMES + 1));
+		assertThat(capture.getComments().get(WebSocketCapture.MAX_FRAMES + 1), is("... 5 more frames"));
+		assertThat(capture.getComments().get(1).endsWith("x..."), is(true));
+	}
+}
@@ -0,0 +1,98 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class AdaptiveThreadPoolTest {
+
+	@Test
+	public void testGrowsWhileTasksWait() throws Exception {
+		ExecutorStatistics statistics = new ExecutorStatistics();
+		AdaptiveThreadPool pool = new AdaptiveThreadPool("test", 1, 2, 10, 10, statistics);
+		try {
+			CountDownLatch release = new CountDownLatch(1);
+			CountDownLatch second = new CountDownLatch(1);
+			pool.execute(new Blocking(release));
+			pool.execute(new Blocking(second, new CountDownLatch(0)));
+
+			// The first task holds the only thread. The second starts on the added one.
+			assertTrue(second.await(5, TimeUnit.SECONDS));
+			assertThat(statistics.getWorkers(), is(2));
+			assertTrue(statistics.getWaitPercentile(100) >= 10);
+			release.countDown();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testWorkersAreDaemons() throws Exception {
+		AdaptiveThreadPool pool = new AdaptiveThreadPool("test", 1, 1, 1, 10, new ExecutorStatistics());
+		try {
+			final AtomicBoolean daemon = new AtomicBoolean();
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					daemon.set(Thread.currentThread().isDaemon());
+				}
+			}).get(5, TimeUnit.SECONDS);
+			assertTrue(daemon.get());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRejectsBeyondTheCap() throws Exception {
+		ExecutorStatistics statistics = new ExecutorStatistics();
+		AdaptiveThreadPool pool = new AdaptiveThreadPool("test", 1, 1, 1, 10, statistics);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			pool.execute(new Blocking(release));
+			pool.execute(new Blocking(release));
+			assertThat(statistics.getQueueLength(), is(1));
+			try {
+				pool.execute(new Blocking(release));
+				fail("Expected RejectedExecutionException");
+			} catch (RejectedExecutionException e) {
+				assertThat(statistics.getRejected(), is(1L));
+			}
+		} finally {
+			release.countDown();
+			pool.shutdownNow();
+		}
+	}
+
+	private static final class Blocking implements Runnable {
+		private final CountDownLatch m_started;
+		private final CountDownLatch m_release;
+
+		Blocking(CountDownLatch release) {
+			this(new CountDownLatch(1), release);
+		}
+
+		Blocking(CountDownLatch started, CountDownLatch release) {
+			m_started = started;
+			m_release = release;
+		}
+
+		@Override
+		public void run() {
+			m_started.countDown();
+			try {
+				m_release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testLeaseAndRelease() {
+		BufferPool pool = new BufferPool(16, 1);
+		byte[] first = pool.lease();
+		byte[] second = pool.lease();
+		assertThat(first.length, is(16));
+		assertThat(pool.getOutstanding(), is(2));
+
+		pool.release(first);
+		pool.release(second);
+		pool.release(new byte[8]);
+		assertThat(pool.getOutstanding(), is(0));
+		assertThat(pool.getPooledCount(), is(1));
+
+		assertThat(pool.lease(), sameInstance(first));
+		assertThat(pool.getHits(), is(1L));
+		assertThat(pool.getMisses(), is(2L));
+	}
+
+	@Test
+	public void testDisabled() {
+		BufferPool pool = new BufferPool(16, 0);
+		pool.release(pool.lease());
+		assertThat(pool.getPooledCount(), is(0));
+		assertThat(pool.getHitRate(), is(0.0));
+	}
+}
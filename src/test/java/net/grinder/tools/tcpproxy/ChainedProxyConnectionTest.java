@@ -0,0 +1,34 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class ChainedProxyConnectionTest {
+
+	@Test
+	public void testReadHeadLeavesTheRest() throws Exception {
+		InputStream in = new ByteArrayInputStream(
+						"HTTP/1.1 200 Connection established\r\n\r\n\u0016\u0003\u0001".getBytes("ISO-8859-1"));
+		byte[] head = ChainedProxyConnection.readHead(in);
+		assertThat(new String(head, "ISO-8859-1"), is("HTTP/1.1 200 Connection established\r\n\r\n"));
+		assertThat(in.read(), is(0x16));
+		assertThat(ChainedProxyConnection.readHead(new ByteArrayInputStream(new byte[0])), nullValue());
+	}
+
+	@Test
+	public void testResponse() throws Exception {
+		ChainedProxyConnection.Response response = new ChainedProxyConnection.Response(
+						"HTTP/1.1 407 Proxy Authentication Required\r\nContent-Length: 10\r\n\r\n".getBytes("ISO-8859-1"));
+		assertThat(response.getStatus(), is(407));
+		assertThat(response.isSuccessful(), is(false));
+
+		response = new ChainedProxyConnection.Response("HTTP/1.0 200 OK\r\n\r\n".getBytes("ISO-8859-1"));
+		assertThat(response.isSuccessful(), is(true));
+	}
+}
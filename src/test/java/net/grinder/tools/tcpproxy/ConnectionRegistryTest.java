@@ -0,0 +1,47 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.Test;
+
+public class ConnectionRegistryTest {
+
+	@Test
+	public void testReapsIdleConnections() throws Exception {
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+		Socket idle = server.accept();
+		Socket busy = new Socket(server.getInetAddress(), server.getLocalPort());
+		Socket closed = new Socket(server.getInetAddress(), server.getLocalPort());
+		try {
+			BufferPool bufferPool = new BufferPool(1024, 4);
+			ConnectionRegistry registry = new ConnectionRegistry();
+			registry.register(idle, bufferPool);
+			ConnectionRegistry.Connection connection = registry.register(busy, bufferPool);
+			registry.register(closed, bufferPool);
+			closed.close();
+			assertThat(registry.getOpenCount(), is(2));
+
+			Thread.sleep(200);
+			connection.getOutputStream().write(1);
+			registry.reap(100);
+			assertThat(idle.isClosed(), is(true));
+			assertThat(busy.isClosed(), is(false));
+			assertThat(registry.toString(), is("open=1 reaped=1 total=3"));
+			// The buffers of the forgotten connections are given back.
+			assertThat(bufferPool.getOutstanding(), is(1));
+
+			registry.reap(0);
+			assertThat(busy.isClosed(), is(false));
+		} finally {
+			client.close();
+			busy.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DNSCacheTest {
+
+	private static final class CountingResolver implements DNSCache.Resolver {
+		private final AtomicInteger m_count = new AtomicInteger();
+
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			m_count.incrementAndGet();
+			if (host.endsWith(".invalid")) {
+				throw new UnknownHostException(host);
+			}
+			return new InetAddress[] { InetAddress.getByAddress(host, new byte[] { 10, 0, 0, 1 }) };
+		}
+	}
+
+	@Test
+	public void testCachesAddresses() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		DNSCache cache = new DNSCache(resolver, 10, 60000, 60000);
+		InetAddress first = cache.resolve("example.com");
+		assertThat(cache.resolve("example.com"), sameInstance(first));
+		assertThat(resolver.m_count.get(), is(1));
+		assertThat(cache.getHits(), is(1L));
+		assertThat(cache.getMisses(), is(1L));
+	}
+
+	@Test
+	public void testCachesFailures() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		DNSCache cache = new DNSCache(resolver, 10, 60000, 60000);
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.resolve("host.invalid");
+				fail("Expected UnknownHostException");
+			} catch (UnknownHostException e) {
+				assertThat(e.getMessage(), is("host.invalid"));
+			}
+		}
+		assertThat(resolver.m_count.get(), is(1));
+		assertThat(cache.getFailures(), is(1L));
+	}
+
+	@Test
+	public void testExpiresAndRefreshes() throws Exception {
+		CountingResolver resolver = new CountingResolver();
+		DNSCache cache = new DNSCache(resolver, 10, 400, 0);
+		cache.resolve("example.com");
+		Thread.sleep(320);
+		// Past three quarters of the time to live. Served from the cache, refreshed behind.
+		cache.resolve("example.com");
+		assertThat(cache.getHits(), is(1L));
+		assertThat(cache.getRefreshes(), is(1L));
+		for (int i = 0; i < 100 && resolver.m_count.get() < 2; i++) {
+			Thread.sleep(10);
+		}
+		assertThat(resolver.m_count.get(), is(2));
+	}
+
+	@Test
+	public void testBoundedSize() throws Exception {
+		DNSCache cache = new DNSCache(new CountingResolver(), 2, 60000, 60000);
+		cache.resolve("a.com");
+		cache.resolve("b.com");
+		cache.resolve("c.com");
+		assertThat(cache.getSize(), is(2));
+	}
+}
@@ -0,0 +1,97 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketException;
+
+import org.junit.Test;
+
+public class DeferredUpstreamTransportTest {
+
+	private static final EndPoint SERVER = new EndPoint("server.test", 443);
+
+	private static final class MemoryTransport implements UpstreamTransport {
+		private final ByteArrayOutputStream m_out = new ByteArrayOutputStream();
+		private final InputStream m_in;
+		private boolean m_closed;
+
+		MemoryTransport(String response) {
+			m_in = new ByteArrayInputStream(response.getBytes());
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return m_in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return m_out;
+		}
+
+		@Override
+		public void close() {
+			m_closed = true;
+		}
+	}
+
+	@Test
+	public void testEarlyRequestsAreSentOnceConnected() throws Exception {
+		final DeferredUpstreamTransport transport = new DeferredUpstreamTransport(SERVER);
+		transport.getOutputStream().write("GET / HTTP/1.1\r\n".getBytes());
+		transport.getOutputStream().flush();
+		final MemoryTransport connection = new MemoryTransport("HTTP/1.1 200 OK\r\n");
+
+		final byte[] response = new byte[17];
+		final Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					transport.getInputStream().read(response, 0, response.length);
+				} catch (IOException e) {
+					throw new AssertionError(e);
+				}
+			}
+		};
+		reader.start();
+		Thread.sleep(50);
+		assertThat(reader.isAlive(), is(true));
+
+		transport.connected(connection);
+		reader.join(5000);
+		assertThat(new String(response), is("HTTP/1.1 200 OK\r\n"));
+		transport.getOutputStream().write("\r\n".getBytes());
+		assertThat(connection.m_out.toString(), is("GET / HTTP/1.1\r\n\r\n"));
+
+		transport.close();
+		assertThat(connection.m_closed, is(true));
+	}
+
+	@Test
+	public void testFailedConnectionLooksClosed() throws Exception {
+		final DeferredUpstreamTransport transport = new DeferredUpstreamTransport(SERVER);
+		transport.getOutputStream().write(new byte[10]);
+		transport.failed(new ConnectException("Connection refused"));
+		try {
+			transport.getInputStream().read();
+			fail();
+		} catch (SocketException e) {
+			assertThat(e.getMessage().contains("server.test"), is(true));
+		}
+
+		// A connection made after the transport is closed is not kept.
+		final DeferredUpstreamTransport closed = new DeferredUpstreamTransport(SERVER);
+		closed.close();
+		final MemoryTransport connection = new MemoryTransport("");
+		closed.connected(connection);
+		assertThat(connection.m_closed, is(true));
+	}
+}
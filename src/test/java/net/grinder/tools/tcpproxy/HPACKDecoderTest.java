@@ -0,0 +1,79 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import net.grinder.util.Pair;
+
+import org.junit.Test;
+
+public class HPACKDecoderTest {
+
+	private static byte[] hex(String text) {
+		final String digits = text.replace(" ", "");
+		final byte[] result = new byte[digits.length() / 2];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte) Integer.parseInt(digits.substring(i * 2, i * 2 + 2), 16);
+		}
+		return result;
+	}
+
+	private static String toString(List<Pair<String, String>> fields) {
+		final StringBuilder result = new StringBuilder();
+		for (Pair<String, String> field : fields) {
+			result.append(field.getFirst()).append(": ").append(field.getSecond()).append('\n');
+		}
+		return result.toString();
+	}
+
+	private static List<Pair<String, String>> decode(HPACKDecoder decoder, String block) throws IOException {
+		final byte[] bytes = hex(block);
+		return decoder.decode(bytes, 0, bytes.length);
+	}
+
+	@Test
+	public void testHuffmanRequestsWithDynamicTable() throws Exception {
+		// RFC 7541 C.4.
+		HPACKDecoder decoder = new HPACKDecoder();
+		assertThat(toString(decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff")),
+						is(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\n"));
+		assertThat(toString(decode(decoder, "8286 84be 5886 a8eb 1064 9cbf")),
+						is(":method: GET\n:scheme: http\n:path: /\n:authority: www.example.com\n"
+										+ "cache-control: no-cache\n"));
+		assertThat(toString(decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf")),
+						is(":method: GET\n:scheme: https\n:path: /index.html\n:authority: www.example.com\n"
+										+ "custom-key: custom-value\n"));
+	}
+
+	@Test
+	public void testLiteralsWithoutHuffman() throws Exception {
+		// RFC 7541 C.2.2 and C.2.3.
+		HPACKDecoder decoder = new HPACKDecoder();
+		assertThat(toString(decode(decoder, "040c 2f73 616d 706c 652f 7061 7468")), is(":path: /sample/path\n"));
+		assertThat(toString(decode(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74")), is("password: secret\n"));
+	}
+
+	@Test
+	public void testEncodeRoundTrip() throws Exception {
+		@SuppressWarnings("unchecked")
+		List<Pair<String, String>> fields = Arrays.asList(Pair.of(":status", "200"),
+						Pair.of("set-cookie", new String(new char[200]).replace('\0', 'x')));
+		byte[] block = HPACKDecoder.encode(fields);
+		assertThat(new HPACKDecoder().decode(block, 0, block.length), is(fields));
+	}
+
+	@Test
+	public void testInvalidIndex() throws Exception {
+		try {
+			decode(new HPACKDecoder(), "be");
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.grinder.util.Pair;
+
+import org.junit.Test;
+
+public class HTTP2MessagesTest {
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testRequest() {
+		List<Pair<String, String>> headers = Arrays.asList(Pair.of(":method", "POST"), Pair.of(":scheme", "https"),
+						Pair.of(":authority", "example.com"), Pair.of(":path", "/a?b=c"), Pair.of("cookie", "x=1"),
+						Pair.of("accept-language", "ko"), Pair.of("te", "trailers"), Pair.of("cookie", "y=2"),
+						Pair.of("content-length", "99"));
+		assertThat(HTTP2Messages.toHTTP11Request(headers, "default:443", 3), is("POST /a?b=c HTTP/1.1\r\n"
+						+ "Host: example.com\r\nAccept-Language: ko\r\nCookie: x=1; y=2\r\nContent-Length: 3\r\n\r\n"));
+
+		headers = Arrays.asList(Pair.of(":method", "GET"), Pair.of(":path", "/"));
+		assertThat(HTTP2Messages.toHTTP11Request(headers, "default:443", 0),
+						is("GET / HTTP/1.1\r\nHost: default:443\r\n\r\n"));
+
+		headers = Arrays.asList(Pair.of(":method", "GET"));
+		assertThat(HTTP2Messages.toHTTP11Request(headers, "default:443", 0), nullValue());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testResponseHeaders() {
+		assertThat(HTTP2Messages.toHTTP2Headers(Arrays.asList("Content-Type: text/html", "Connection: keep-alive",
+						"Keep-Alive: timeout=5", "Set-Cookie:  a=b ")), is(Arrays.asList(Pair.of("content-type",
+						"text/html"), Pair.of("set-cookie", "a=b"))));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testUpstreamRequest() {
+		assertThat(HTTP2Messages.toHTTP2Request("GET", "https://example.com/a?b", Arrays.asList("Host: other",
+						"Connection: keep-alive, X-Hop", "X-Hop: 1", "TE: gzip", "Accept: */*"), "default:443"),
+						is(Arrays.asList(Pair.of(":method", "GET"), Pair.of(":scheme", "https"),
+										Pair.of(":authority", "example.com"), Pair.of(":path", "/a?b"),
+										Pair.of("accept", "*/*"))));
+		assertThat(HTTP2Messages.toHTTP2Request("GET", "relative", Arrays.<String> asList(), "default:443"),
+						nullValue());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testUpstreamResponse() {
+		List<Pair<String, String>> fields = Arrays.asList(Pair.of(":status", "404"), Pair.of("content-type",
+						"text/plain"));
+		assertThat(HTTP2Messages.toHTTP11Response(fields, "Transfer-Encoding: chunked"),
+						is("HTTP/1.1 404 Not Found\r\nContent-Type: text/plain\r\nTransfer-Encoding: chunked\r\n\r\n"));
+		fields = Arrays.asList(Pair.of(":status", "2000"));
+		assertThat(HTTP2Messages.toHTTP11Response(fields, null), nullValue());
+	}
+}
@@ -0,0 +1,398 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class HTTPProxyNIOTCPProxyEngineTest {
+
+	private final List<Closeable> m_closeables = new ArrayList<Closeable>();
+
+	private interface Closeable {
+		void close() throws Exception;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Closeable each : m_closeables) {
+			each.close();
+		}
+	}
+
+	/**
+	 * Answers each request with its path, on as many connections as it is given. The responses
+	 * may be cached.
+	 */
+	private final class Origin {
+		private final ServerSocket m_server;
+		private final AtomicInteger m_accepted = new AtomicInteger();
+
+		Origin() throws IOException {
+			m_server = listen();
+			new Thread("Origin") {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							final Socket socket = m_server.accept();
+							m_accepted.incrementAndGet();
+							new Thread("Origin connection") {
+								@Override
+								public void run() {
+									answer(socket);
+								}
+							}.start();
+						}
+					} catch (IOException e) {
+						// Closed by the test.
+					}
+				}
+			}.start();
+		}
+
+		private void answer(Socket socket) {
+			try {
+				final InputStream in = socket.getInputStream();
+				final OutputStream out = socket.getOutputStream();
+				String head;
+				while ((head = readHead(in)).length() > 0) {
+					final String path = head.split(" ")[1];
+					out.write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=3600\r\nContent-Length: " + path.length()
+									+ "\r\n\r\n" + path).getBytes());
+					out.flush();
+				}
+			} catch (IOException e) {
+				// The proxy closed the connection.
+			} finally {
+				closeQuietly(socket);
+			}
+		}
+
+		String getAuthority() {
+			return "127.0.0.1:" + m_server.getLocalPort();
+		}
+	}
+
+	/**
+	 * Keeps the request lines the filter sees.
+	 */
+	private static final class RequestLineFilter implements TCPProxyFilter {
+		private final List<String> m_requestLines = new ArrayList<String>();
+		private volatile boolean m_failing;
+
+		@Override
+		public byte[] handle(ConnectionDetails connectionDetails, byte[] buffer, int bytesRead) {
+			if (m_failing) {
+				throw new IllegalStateException("Filter failed");
+			}
+			final String text = new String(buffer, 0, bytesRead);
+			synchronized (m_requestLines) {
+				for (String line : text.split("\r\n")) {
+					if (line.startsWith("GET ")) {
+						m_requestLines.add(line);
+					}
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void connectionOpened(ConnectionDetails connectionDetails) {
+		}
+
+		@Override
+		public void connectionClosed(ConnectionDetails connectionDetails) {
+		}
+
+		List<String> getRequestLines() {
+			synchronized (m_requestLines) {
+				return new ArrayList<String>(m_requestLines);
+			}
+		}
+	}
+
+	private ServerSocket listen() throws IOException {
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() throws IOException {
+				server.close();
+			}
+		});
+		return server;
+	}
+
+	private HTTPProxyNIOTCPProxyEngine startEngine(TCPProxyFilter requestFilter, HTTPProxyEngineOptions options)
+					throws Exception {
+		options.setEventLoopCount(1);
+		final HTTPProxyNIOTCPProxyEngine engine = new HTTPProxyNIOTCPProxyEngine(
+						new TCPProxySSLSocketFactoryImplementationEx(), requestFilter, new NullFilter(),
+						LoggerFactory.getLogger(HTTPProxyNIOTCPProxyEngineTest.class), new EndPoint("127.0.0.1", 0),
+						null, null, options);
+		new Thread(engine, "Engine under test").start();
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() {
+				engine.stop();
+			}
+		});
+		return engine;
+	}
+
+	private Socket connect(HTTPProxyNIOTCPProxyEngine engine) throws IOException {
+		final Socket socket = new Socket("127.0.0.1", engine.getListenEndPoint().getPort());
+		socket.setSoTimeout(10000);
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() throws IOException {
+				socket.close();
+			}
+		});
+		return socket;
+	}
+
+	private static String get(Origin origin, String path) {
+		return "GET http://" + origin.getAuthority() + path + " HTTP/1.1\r\nHost: " + origin.getAuthority()
+						+ "\r\n\r\n";
+	}
+
+	private static String readHead(InputStream in) throws IOException {
+		final StringBuilder head = new StringBuilder();
+		while (!head.toString().endsWith("\r\n\r\n")) {
+			final int b = in.read();
+			if (b == -1) {
+				break;
+			}
+			head.append((char) b);
+		}
+		return head.toString();
+	}
+
+	private static String readResponseBody(InputStream in) throws IOException {
+		final String head = readHead(in);
+		assertThat(head.startsWith("HTTP/1.1 200"), is(true));
+		final String lengthHeader = "Content-Length: ";
+		final int start = head.indexOf(lengthHeader) + lengthHeader.length();
+		final byte[] body = new byte[Integer.parseInt(head.substring(start, head.indexOf("\r\n", start)))];
+		readFully(in, body);
+		return new String(body);
+	}
+
+	private static void readFully(InputStream in, byte[] bytes) throws IOException {
+		for (int read = 0; read < bytes.length;) {
+			final int n = in.read(bytes, read, bytes.length - read);
+			assertThat(n != -1, is(true));
+			read += n;
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already closed.
+		}
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		final Origin origin = new Origin();
+		final RequestLineFilter requestFilter = new RequestLineFilter();
+		final HTTPProxyNIOTCPProxyEngine engine = startEngine(requestFilter, new HTTPProxyEngineOptions());
+
+		final Socket socket = connect(engine);
+		socket.getOutputStream().write(get(origin, "/index.html").getBytes());
+		assertThat(readResponseBody(socket.getInputStream()), is("/index.html"));
+		assertThat(requestFilter.getRequestLines().get(0), is("GET /index.html HTTP/1.1"));
+	}
+
+	@Test
+	public void testPipelinedRequestsShareAnUpstreamConnection() throws Exception {
+		final Origin origin = new Origin();
+		final RequestLineFilter requestFilter = new RequestLineFilter();
+		final HTTPProxyNIOTCPProxyEngine engine = startEngine(requestFilter, new HTTPProxyEngineOptions());
+
+		final Socket socket = connect(engine);
+		socket.setTcpNoDelay(true);
+		// The request filter rewrites the first request line of each read, so each request is a read of its own.
+		socket.getOutputStream().write(get(origin, "/first").getBytes());
+		Thread.sleep(100);
+		socket.getOutputStream().write(get(origin, "/second").getBytes());
+		assertThat(readResponseBody(socket.getInputStream()), is("/first"));
+		assertThat(readResponseBody(socket.getInputStream()), is("/second"));
+		socket.getOutputStream().write(get(origin, "/third").getBytes());
+		assertThat(readResponseBody(socket.getInputStream()), is("/third"));
+
+		assertThat(origin.m_accepted.get(), is(1));
+		assertThat(requestFilter.getRequestLines().size(), is(3));
+	}
+
+	@Test
+	public void testRequestPipelinedAfterACacheHitIsSent() throws Exception {
+		final Origin origin = new Origin();
+		final RequestLineFilter requestFilter = new RequestLineFilter();
+		final HTTPProxyEngineOptions options = new HTTPProxyEngineOptions();
+		options.getResponseCache().setPolicy(new TCPProxyResponseCache.Policy() {
+			@Override
+			public boolean isCacheable(String path, String contentType) {
+				return path.endsWith(".js");
+			}
+		});
+		final HTTPProxyNIOTCPProxyEngine engine = startEngine(requestFilter, options);
+
+		final Socket socket = connect(engine);
+		socket.getOutputStream().write(get(origin, "/app.js").getBytes());
+		assertThat(readResponseBody(socket.getInputStream()), is("/app.js"));
+		while (options.getResponseCache().getStoredCount() == 0) {
+			Thread.sleep(10);
+		}
+
+		// The first request is answered from the cache, the second is sent on.
+		socket.getOutputStream().write((get(origin, "/app.js") + get(origin, "/page")).getBytes());
+		assertThat(readResponseBody(socket.getInputStream()), is("/app.js"));
+		assertThat(readResponseBody(socket.getInputStream()), is("/page"));
+		assertThat(options.getResponseCache().getHitCount(), is(1L));
+		assertThat(requestFilter.getRequestLines(), is(Arrays.asList("GET /app.js HTTP/1.1", "GET /page HTTP/1.1")));
+	}
+
+	@Test
+	public void testConnectTunnel() throws Exception {
+		final ServerSocket echo = listen();
+		new Thread("Echo") {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = echo.accept();
+					final byte[] buffer = new byte[1024];
+					int n;
+					while ((n = socket.getInputStream().read(buffer)) != -1) {
+						socket.getOutputStream().write(buffer, 0, n);
+					}
+					socket.close();
+				} catch (IOException e) {
+					// Closed by the test.
+				}
+			}
+		}.start();
+		final HTTPProxyEngineOptions options = new HTTPProxyEngineOptions();
+		options.getPassthrough().setPolicy(new TCPProxyPassthrough.Policy() {
+			@Override
+			public boolean isPassthrough(ConnectionDetails connectionDetails) {
+				return true;
+			}
+		});
+		final HTTPProxyNIOTCPProxyEngine engine = startEngine(new NullFilter(), options);
+
+		final Socket socket = connect(engine);
+		final String target = "127.0.0.1:" + echo.getLocalPort();
+		// The first bytes of the tunnel arrive with the CONNECT request.
+		socket.getOutputStream().write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\nping").getBytes());
+		assertThat(readHead(socket.getInputStream()).startsWith("HTTP/1.0 200"), is(true));
+		final byte[] echoed = new byte[4];
+		readFully(socket.getInputStream(), echoed);
+		assertThat(new String(echoed), is("ping"));
+
+		socket.getOutputStream().write("pong".getBytes());
+		readFully(socket.getInputStream(), echoed);
+		assertThat(new String(echoed), is("pong"));
+	}
+
+	@Test
+	public void testSlowReaderSuspendsTheServer() throws Exception {
+		final int total = 64 * 1024 * 1024;
+		final AtomicLong written = new AtomicLong();
+		final ServerSocket server = listen();
+		new Thread("Fast server") {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = server.accept();
+					final byte[] buffer = new byte[8192];
+					for (int i = 0; i < total; i += buffer.length) {
+						for (int j = 0; j < buffer.length; j++) {
+							buffer[j] = (byte) ((i + j) % 251);
+						}
+						socket.getOutputStream().write(buffer);
+						written.addAndGet(buffer.length);
+					}
+					socket.close();
+				} catch (IOException e) {
+					// Closed by the test.
+				}
+			}
+		}.start();
+		final HTTPProxyEngineOptions options = new HTTPProxyEngineOptions();
+		options.getPassthrough().setPolicy(new TCPProxyPassthrough.Policy() {
+			@Override
+			public boolean isPassthrough(ConnectionDetails connectionDetails) {
+				return true;
+			}
+		});
+		final HTTPProxyNIOTCPProxyEngine engine = startEngine(new NullFilter(), options);
+
+		final Socket socket = connect(engine);
+		final String target = "127.0.0.1:" + server.getLocalPort();
+		socket.getOutputStream().write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes());
+		final InputStream in = socket.getInputStream();
+		assertThat(readHead(in).startsWith("HTTP/1.0 200"), is(true));
+
+		// The browser reads nothing, so the proxy stops reading from the server, which stops.
+		long stalled;
+		long previous = -1;
+		while ((stalled = written.get()) != previous) {
+			previous = stalled;
+			Thread.sleep(500);
+		}
+		assertThat(stalled < total, is(true));
+
+		// Reading again resumes the server.
+		final byte[] buffer = new byte[65536];
+		long position = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			for (int i = 0; i < n; i++) {
+				if (buffer[i] != (byte) ((position + i) % 251)) {
+					throw new AssertionError("Byte " + (position + i) + " differs");
+				}
+			}
+			position += n;
+		}
+		assertThat(position, is((long) total));
+		assertThat(written.get(), is((long) total));
+	}
+
+	@Test
+	public void testFailingFilterClosesTheConnection() throws Exception {
+		final Origin origin = new Origin();
+		final RequestLineFilter requestFilter = new RequestLineFilter();
+		final HTTPProxyNIOTCPProxyEngine engine = startEngine(requestFilter, new HTTPProxyEngineOptions());
+
+		final Socket socket = connect(engine);
+		socket.getOutputStream().write(get(origin, "/first").getBytes());
+		assertThat(readResponseBody(socket.getInputStream()), is("/first"));
+
+		requestFilter.m_failing = true;
+		socket.getOutputStream().write(get(origin, "/second").getBytes());
+		try {
+			assertThat(socket.getInputStream().read(), is(-1));
+		} catch (SocketException e) {
+			// Reset, which is closed as well.
+		}
+	}
+}
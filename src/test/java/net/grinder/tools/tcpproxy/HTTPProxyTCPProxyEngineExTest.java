@@ -0,0 +1,321 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import net.grinder.util.InsecureSSLContextFactory;
+import net.grinder.util.Pair;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class HTTPProxyTCPProxyEngineExTest {
+
+	private final List<Closeable> m_closeables = new ArrayList<Closeable>();
+
+	private interface Closeable {
+		void close() throws Exception;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (Closeable each : m_closeables) {
+			each.close();
+		}
+	}
+
+	/**
+	 * Keeps the bytes each connection sends, by connection.
+	 */
+	private static final class RecordingFilter implements TCPProxyFilter {
+		private final Map<ConnectionDetails, StringBuffer> m_connections = //
+		new ConcurrentHashMap<ConnectionDetails, StringBuffer>();
+
+		@Override
+		public byte[] handle(ConnectionDetails connectionDetails, byte[] buffer, int bytesRead) {
+			m_connections.get(connectionDetails).append(new String(buffer, 0, bytesRead));
+			return null;
+		}
+
+		@Override
+		public void connectionOpened(ConnectionDetails connectionDetails) {
+			if (m_connections.put(connectionDetails, new StringBuffer()) != null) {
+				throw new IllegalArgumentException("Already open " + connectionDetails);
+			}
+		}
+
+		@Override
+		public void connectionClosed(ConnectionDetails connectionDetails) {
+			// The bytes are kept for the test.
+		}
+	}
+
+	private HTTPProxyTCPProxyEngineEx startEngine(TCPProxyFilter requestFilter, HTTPProxyEngineOptions options)
+					throws Exception {
+		final HTTPProxyTCPProxyEngineEx engine = new HTTPProxyTCPProxyEngineEx(
+						new TCPProxySSLSocketFactoryImplementationEx(), requestFilter, new NullFilter(),
+						LoggerFactory.getLogger(HTTPProxyTCPProxyEngineExTest.class), new EndPoint("127.0.0.1", 0),
+						null, null, options);
+		new Thread(engine, "Engine under test").start();
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() {
+				engine.stop();
+			}
+		});
+		return engine;
+	}
+
+	private Socket connect(HTTPProxyTCPProxyEngineEx engine, String target) throws IOException {
+		final Socket socket = new Socket("127.0.0.1", engine.getListenEndPoint().getPort());
+		socket.setSoTimeout(10000);
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() throws IOException {
+				socket.close();
+			}
+		});
+		socket.getOutputStream().write(("CONNECT " + target + " HTTP/1.1\r\nHost: " + target + "\r\n\r\n").getBytes());
+		return socket;
+	}
+
+	private static String readHead(InputStream in) throws IOException {
+		final StringBuilder head = new StringBuilder();
+		while (!head.toString().endsWith("\r\n\r\n")) {
+			final int b = in.read();
+			if (b == -1) {
+				break;
+			}
+			head.append((char) b);
+		}
+		return head.toString();
+	}
+
+	@Test
+	public void testConcurrentHTTP2StreamsAreSeparateConnections() throws Exception {
+		assumeTrue(ApplicationProtocols.isAvailable());
+
+		// Answers only once two requests are waiting, so the streams are in flight together.
+		final CountDownLatch bothReceived = new CountDownLatch(2);
+		// The certificates of the default key store are signed with MD5, which is no longer accepted.
+		final TCPProxyMintingSSLEngineFactory sslEngineFactory = new TCPProxyMintingSSLEngineFactory(
+						TCPProxyCertificateAuthority.create(), null, 10, 1);
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() {
+				sslEngineFactory.shutdown();
+			}
+		});
+		final ServerSocket server = sslEngineFactory.getSSLContext("127.0.0.1").getServerSocketFactory()
+						.createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() throws IOException {
+				server.close();
+			}
+		});
+		new Thread("Server") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = server.accept();
+						new Thread("Server connection") {
+							@Override
+							public void run() {
+								try {
+									readHead(socket.getInputStream());
+									bothReceived.countDown();
+									bothReceived.await(10, TimeUnit.SECONDS);
+									socket.getOutputStream().write(
+													"HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+									socket.getOutputStream().flush();
+								} catch (Exception e) {
+									// The test fails on the client side.
+								}
+							}
+						}.start();
+					}
+				} catch (IOException e) {
+					// Closed by the test.
+				}
+			}
+		}.start();
+
+		final HTTPProxyEngineOptions options = new HTTPProxyEngineOptions();
+		options.setSSLEngineFactory(sslEngineFactory);
+		options.setHTTP2(true);
+		final RecordingFilter requestFilter = new RecordingFilter();
+		final HTTPProxyTCPProxyEngineEx engine = startEngine(requestFilter, options);
+
+		final String target = "127.0.0.1:" + server.getLocalPort();
+		final Socket socket = connect(engine, target);
+		assertThat(readHead(socket.getInputStream()).startsWith("HTTP/1.0 200"), is(true));
+
+		final SSLContext sslContext = new InsecureSSLContextFactory().getSSLContext();
+		final SSLEngine sslEngine = sslContext.createSSLEngine("127.0.0.1", server.getLocalPort());
+		sslEngine.setUseClientMode(true);
+		ApplicationProtocols.offer(sslEngine, ApplicationProtocols.HTTP_2);
+		final SSLEngineStreams streams = new SSLEngineStreams(sslEngine, socket.getInputStream(),
+						socket.getOutputStream());
+		streams.handshake();
+		assertThat(ApplicationProtocols.getNegotiated(sslEngine), is(ApplicationProtocols.HTTP_2));
+
+		final HTTP2ClientConnection connection = new HTTP2ClientConnection(streams.getInputStream(),
+						streams.getOutputStream());
+		connection.connect();
+		new Thread("HTTP/2 client") {
+			@Override
+			public void run() {
+				try {
+					connection.run();
+				} catch (IOException e) {
+					// Closed by the test.
+				}
+			}
+		}.start();
+
+		final List<HTTP2ClientConnection.Stream> requests = new ArrayList<HTTP2ClientConnection.Stream>();
+		for (String path : new String[] { "/first", "/second" }) {
+			requests.add(connection.newStream(Arrays.asList(Pair.of(":method", "GET"), Pair.of(":scheme", "https"),
+							Pair.of(":authority", target), Pair.of(":path", path)), true));
+		}
+		for (HTTP2ClientConnection.Stream each : requests) {
+			while (each.take() != null) {
+				continue;
+			}
+		}
+
+		assertThat(bothReceived.getCount(), is(0L));
+		assertThat(requestFilter.m_connections.size(), is(2));
+		final List<String> requestLines = new ArrayList<String>();
+		for (StringBuffer each : requestFilter.m_connections.values()) {
+			requestLines.add(each.substring(0, each.indexOf("\r\n")));
+		}
+		assertThat(requestLines.contains("GET /first HTTP/1.1"), is(true));
+		assertThat(requestLines.contains("GET /second HTTP/1.1"), is(true));
+	}
+
+	@Test
+	public void testConnectIsAnsweredWithBadGatewayWhileTheCircuitIsOpen() throws Exception {
+		final ServerSocket closed = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		final String target = "127.0.0.1:" + closed.getLocalPort();
+		closed.close();
+
+		// Through the delegate engine, and decrypted on the accepted socket.
+		final HTTPProxyEngineOptions delegateOptions = new HTTPProxyEngineOptions();
+		final HTTPProxyEngineOptions inProcessOptions = new HTTPProxyEngineOptions();
+		inProcessOptions.setSSLEngineFactory(new TCPProxySSLEngineFactoryImplementation());
+
+		for (HTTPProxyEngineOptions options : new HTTPProxyEngineOptions[] { delegateOptions, inProcessOptions }) {
+			final CircuitBreaker circuitBreaker = options.getCircuitBreaker();
+			circuitBreaker.setFailureThreshold(1);
+			circuitBreaker.setProbeInterval(60000);
+			final HTTPProxyTCPProxyEngineEx engine = startEngine(new NullFilter(), options);
+
+			// The first connection is refused, and opens the circuit. The second fails at once.
+			for (int i = 0; i < 2; i++) {
+				final Socket socket = connect(engine, target);
+				assertThat(readHead(socket.getInputStream()).startsWith("HTTP/1.0 502"), is(true));
+			}
+			assertThat(circuitBreaker.getState(new EndPoint("127.0.0.1", closed.getLocalPort())) != //
+							CircuitBreaker.State.CLOSED, is(true));
+			assertThat(circuitBreaker.getRejectedCount() > 0, is(true));
+		}
+	}
+
+	@Test
+	public void testRequestPipelinedAfterACacheHitIsSent() throws Exception {
+		final AtomicInteger received = new AtomicInteger();
+		final ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() throws IOException {
+				server.close();
+			}
+		});
+		new Thread("Server") {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = server.accept();
+					String head;
+					while ((head = readHead(socket.getInputStream())).length() > 0) {
+						received.incrementAndGet();
+						final String path = head.split(" ")[1];
+						socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nCache-Control: max-age=3600\r\n"
+										+ "Content-Length: " + path.length() + "\r\n\r\n" + path).getBytes());
+						socket.getOutputStream().flush();
+					}
+					socket.close();
+				} catch (IOException e) {
+					// Closed by the test.
+				}
+			}
+		}.start();
+
+		final HTTPProxyEngineOptions options = new HTTPProxyEngineOptions();
+		options.getResponseCache().setPolicy(new TCPProxyResponseCache.Policy() {
+			@Override
+			public boolean isCacheable(String path, String contentType) {
+				return path.endsWith(".js");
+			}
+		});
+		final HTTPProxyTCPProxyEngineEx engine = startEngine(new NullFilter(), options);
+
+		final Socket socket = new Socket("127.0.0.1", engine.getListenEndPoint().getPort());
+		socket.setSoTimeout(10000);
+		m_closeables.add(new Closeable() {
+			@Override
+			public void close() throws IOException {
+				socket.close();
+			}
+		});
+		final String target = "127.0.0.1:" + server.getLocalPort();
+		final String script = "GET http://" + target + "/app.js HTTP/1.1\r\nHost: " + target + "\r\n\r\n";
+		socket.getOutputStream().write(script.getBytes());
+		assertThat(readBody(socket.getInputStream()), is("/app.js"));
+		while (options.getResponseCache().getStoredCount() == 0) {
+			Thread.sleep(10);
+		}
+
+		// The first request is answered from the cache, the second is sent on.
+		socket.getOutputStream().write(
+						(script + "GET http://" + target + "/page HTTP/1.1\r\nHost: " + target + "\r\n\r\n")
+										.getBytes());
+		assertThat(readBody(socket.getInputStream()), is("/app.js"));
+		assertThat(readBody(socket.getInputStream()), is("/page"));
+		assertThat(options.getResponseCache().getHitCount(), is(1L));
+		assertThat(received.get(), is(2));
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		final String head = readHead(in);
+		final String lengthHeader = "Content-Length: ";
+		final int start = head.indexOf(lengthHeader) + lengthHeader.length();
+		final byte[] body = new byte[Integer.parseInt(head.substring(start, head.indexOf("\r\n", start)))];
+		for (int read = 0; read < body.length;) {
+			read += in.read(body, read, body.length - read);
+		}
+		return new String(body);
+	}
+}
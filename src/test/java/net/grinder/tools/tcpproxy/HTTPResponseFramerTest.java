@@ -0,0 +1,108 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class HTTPResponseFramerTest {
+
+	private static void feed(HTTPResponseFramer framer, String text) {
+		byte[] bytes = text.getBytes();
+		// One byte at a time, to cross every boundary.
+		for (int i = 0; i < bytes.length; i++) {
+			framer.feed(bytes, i, 1);
+		}
+	}
+
+	@Test
+	public void testContentLength() {
+		HTTPResponseFramer framer = new HTTPResponseFramer();
+		framer.requestSent(false);
+		feed(framer, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhel");
+		assertThat(framer.isIdle(), is(false));
+		feed(framer, "lo");
+		assertThat(framer.isIdle(), is(true));
+		assertThat(framer.isReusable(), is(true));
+	}
+
+	@Test
+	public void testChunkedAfterInterimResponse() {
+		HTTPResponseFramer framer = new HTTPResponseFramer();
+		framer.requestSent(false);
+		feed(framer, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+						+ "5;x=y\r\nhello\r\n0\r\nTrailer: 1\r\n");
+		assertThat(framer.isIdle(), is(false));
+		feed(framer, "\r\n");
+		assertThat(framer.isIdle(), is(true));
+		assertThat(framer.isReusable(), is(true));
+	}
+
+	@Test
+	public void testHeadAndNotModified() {
+		HTTPResponseFramer framer = new HTTPResponseFramer();
+		framer.requestSent(true);
+		framer.requestSent(false);
+		feed(framer, "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n");
+		assertThat(framer.isIdle(), is(false));
+		feed(framer, "HTTP/1.1 304 Not Modified\r\n\r\n");
+		assertThat(framer.isIdle(), is(true));
+	}
+
+	@Test
+	public void testNotReusable() {
+		HTTPResponseFramer framer = new HTTPResponseFramer();
+		framer.requestSent(false);
+		feed(framer, "HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n");
+		assertThat(framer.isIdle(), is(true));
+		assertThat(framer.isReusable(), is(false));
+
+		framer = new HTTPResponseFramer();
+		framer.requestSent(false);
+		feed(framer, "HTTP/1.1 200 OK\r\n\r\nuntil close");
+		assertThat(framer.isIdle(), is(false));
+		assertThat(framer.isReusable(), is(false));
+
+		framer = new HTTPResponseFramer();
+		framer.requestSent(false);
+		feed(framer, "HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n");
+		assertThat(framer.isReusable(), is(false));
+	}
+
+	@Test
+	public void testListener() {
+		final StringBuilder events = new StringBuilder();
+		HTTPResponseFramer framer = new HTTPResponseFramer(new HTTPResponseFramer.Listener() {
+			@Override
+			public void responseHeaders(int status, List<String> headerLines) {
+				events.append(status).append(headerLines).append('|');
+			}
+
+			@Override
+			public void body(byte[] buffer, int offset, int length) {
+				events.append(new String(buffer, offset, length));
+			}
+
+			@Override
+			public void endOfMessage() {
+				events.append("|end;");
+			}
+		});
+		framer.requestSent(false);
+		framer.requestSent(false);
+		feed(framer, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+						+ "3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n");
+		feed(framer, "HTTP/1.0 404 Not Found\r\nA: b\r\n\r\nuntil close");
+		assertThat(events.toString(), is("200[Transfer-Encoding: chunked]|abcde|end;404[A: b]|until close"));
+		framer.connectionClosed();
+		assertThat(events.toString(), is("200[Transfer-Encoding: chunked]|abcde|end;404[A: b]|until close|end;"));
+	}
+
+	@Test
+	public void testHeadRequest() {
+		assertThat(HTTPResponseFramer.isHeadRequest("HEAD http://a/ HTTP/1.1".getBytes(), 23), is(true));
+		assertThat(HTTPResponseFramer.isHeadRequest("HEADER".getBytes(), 6), is(false));
+	}
+}
@@ -0,0 +1,128 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import net.grinder.tools.tcpproxy.HTTPProxyEngineOptions.ThreadMode;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HappyEyeballsConnectorTest {
+
+	private static InetAddress address(String text) throws UnknownHostException {
+		return InetAddress.getByName(text);
+	}
+
+	// 127.0.0.2 is a loopback address with nothing listening on it.
+	private final DNSCache.Resolver m_resolver = new DNSCache.Resolver() {
+		@Override
+		public InetAddress[] resolve(String host) throws UnknownHostException {
+			if (host.equals("refused.test")) {
+				return new InetAddress[] { address("127.0.0.2"), address("127.0.0.3") };
+			}
+			return new InetAddress[] { address("127.0.0.2"), address("127.0.0.1") };
+		}
+	};
+
+	private ServerSocket m_server;
+
+	@Before
+	public void setUp() throws Exception {
+		m_server = new ServerSocket(0, 50, address("127.0.0.1"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		m_server.close();
+	}
+
+	@Test
+	public void testFallsBackToNextAddress() throws Exception {
+		ConnectStatistics statistics = new ConnectStatistics();
+		HappyEyeballsConnector connector = new HappyEyeballsConnector(new DNSCache(m_resolver, 10, 60000, 60000),
+						10000, 0, statistics, new CircuitBreaker(), ThreadMode.PLATFORM);
+
+		// The failed attempt starts the next one without waiting for the attempt delay.
+		long start = System.currentTimeMillis();
+		Socket socket = connector.connect(new EndPoint("dual.test", m_server.getLocalPort()));
+		socket.close();
+		assertThat(socket.getInetAddress(), is(address("127.0.0.1")));
+		assertThat(System.currentTimeMillis() - start < 5000, is(true));
+		assertThat(statistics.getConnects(), is(1L));
+		assertThat(statistics.getFallbacks(), is(1L));
+		assertThat(statistics.getFailures(), is(1L));
+
+		assertThat(Arrays.asList(statistics.order(m_resolver.resolve("dual.test"))),
+						is(Arrays.asList(address("127.0.0.1"), address("127.0.0.2"))));
+		socket = connector.connectChannel(new EndPoint("dual.test", m_server.getLocalPort())).socket();
+		socket.close();
+		assertThat(statistics.getFallbacks(), is(1L));
+	}
+
+	@Test
+	public void testAllAddressesRefused() throws Exception {
+		HappyEyeballsConnector connector = new HappyEyeballsConnector(new DNSCache(m_resolver, 10, 60000, 60000),
+						250, 0, new ConnectStatistics(), new CircuitBreaker(), ThreadMode.PLATFORM);
+		try {
+			connector.connect(new EndPoint("refused.test", m_server.getLocalPort()));
+			fail("Expected ConnectException");
+		} catch (ConnectException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testCircuitOpensAfterConsecutiveFailuresAndClosesOnProbe() throws Exception {
+		// Probed by the options, whichever connectors are created with them.
+		HTTPProxyEngineOptions options = new HTTPProxyEngineOptions();
+		options.setDNSCache(new DNSCache(m_resolver, 10, 60000, 60000));
+		options.setConnectTimeout(0);
+		CircuitBreaker circuitBreaker = options.getCircuitBreaker();
+		circuitBreaker.setFailureThreshold(2);
+		circuitBreaker.setProbeInterval(100);
+		HappyEyeballsConnector connector = new HappyEyeballsConnector(options);
+		new HappyEyeballsConnector(new DNSCache(10), 250, 0, new ConnectStatistics(), circuitBreaker,
+						ThreadMode.PLATFORM);
+		int port = m_server.getLocalPort();
+		m_server.close();
+		EndPoint endPoint = new EndPoint("dual.test", port);
+		for (int i = 0; i < 3; i++) {
+			try {
+				connector.connect(endPoint);
+				fail("Expected ConnectException");
+			} catch (ConnectException e) {
+				assertThat(e.getMessage().startsWith("Circuit"), is(i == 2));
+			}
+		}
+		assertThat(circuitBreaker.getState(endPoint) == CircuitBreaker.State.CLOSED, is(false));
+		assertThat(circuitBreaker.getRejectedCount(), is(1L));
+
+		m_server = new ServerSocket(port, 50, address("127.0.0.1"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (circuitBreaker.getState(endPoint) != CircuitBreaker.State.CLOSED
+						&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertThat(circuitBreaker.getState(endPoint), is(CircuitBreaker.State.CLOSED));
+		connector.connect(endPoint).close();
+		assertThat(circuitBreaker.getTripCount(), is(1L));
+	}
+
+	@Test
+	public void testInterleavesAddressFamilies() throws Exception {
+		InetAddress[] addresses = { address("::1"), address("fe80::1"), address("127.0.0.1"),
+			address("127.0.0.2"), address("127.0.0.3") };
+		assertThat(Arrays.asList(new ConnectStatistics().order(addresses)), is(Arrays.asList(address("::1"),
+						address("127.0.0.1"), address("fe80::1"), address("127.0.0.2"), address("127.0.0.3"))));
+	}
+}
@@ -0,0 +1,73 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import net.grinder.tools.tcpproxy.ProxyRequestSniffer.Result;
+
+import org.junit.Test;
+
+public class ProxyRequestSnifferTest {
+
+	@Test
+	public void testAbsoluteURIRequestIsDetectedAtEndOfRequestLine() {
+		ProxyRequestSniffer sniffer = new ProxyRequestSniffer();
+		assertThat(feed(sniffer, "GET http://www.example.com:8080/index.html HTTP/1.1\r"), is(Result.NEED_MORE));
+		assertThat(feed(sniffer, "\nHost: www.example.com"), is(Result.HTTP));
+		assertThat(sniffer.getEndPoint(), is(new EndPoint("www.example.com", 8080)));
+		assertThat(sniffer.getConsumed(), is(53));
+	}
+
+	@Test
+	public void testDefaultPort() {
+		ProxyRequestSniffer sniffer = new ProxyRequestSniffer();
+		assertThat(feed(sniffer, "POST http://localhost?a=1 HTTP/1.0\r\n"), is(Result.HTTP));
+		assertThat(sniffer.getEndPoint(), is(new EndPoint("localhost", 80)));
+	}
+
+	@Test
+	public void testConnectIsDetectedAtEndOfHeaders() {
+		ProxyRequestSniffer sniffer = new ProxyRequestSniffer();
+		String request = "CONNECT secure.example.com:443 HTTP/1.1\r\nHost: secure.example.com:443\r\n\r\n";
+		for (int i = 0; i < request.length() - 1; i++) {
+			assertThat(feed(sniffer, request.substring(i, i + 1)), is(Result.NEED_MORE));
+		}
+		assertThat(feed(sniffer, "\n\u0016\u0003"), is(Result.CONNECT));
+		assertThat(sniffer.getEndPoint(), is(new EndPoint("secure.example.com", 443)));
+		assertThat(sniffer.getConsumed(), is(request.length()));
+	}
+
+	@Test
+	public void testRequestWhichIsNotForProxy() {
+		assertThat(feed(new ProxyRequestSniffer(), "GET /index.html HTTP/1.1\r\n"), is(Result.NO_MATCH));
+		assertThat(feed(new ProxyRequestSniffer(), "CONNECT secure.example.com HTTP/1.1\r\n"), is(Result.NO_MATCH));
+		assertThat(feed(new ProxyRequestSniffer(), "\u0016\u0003\u0001"), is(Result.NO_MATCH));
+	}
+
+	@Test
+	public void testAutoConfigRequest() {
+		ProxyRequestSniffer sniffer = new ProxyRequestSniffer();
+		assertThat(feed(sniffer, "GET /proxy.pac?v=3 HTTP/1.1\r"), is(Result.NEED_MORE));
+		assertThat(feed(sniffer, "\nHost: 127.0.0.1"), is(Result.AUTO_CONFIG));
+		assertThat(feed(new ProxyRequestSniffer(), "GET /proxy.pac.old HTTP/1.1\r\n"), is(Result.NO_MATCH));
+		assertThat(feed(new ProxyRequestSniffer(), "POST /proxy.pac HTTP/1.1\r\n"), is(Result.NO_MATCH));
+	}
+
+	@Test
+	public void testReset() {
+		ProxyRequestSniffer sniffer = new ProxyRequestSniffer();
+		assertThat(feed(sniffer, "GET http://a.com/ HTTP/1.1\r\n"), is(Result.HTTP));
+		assertThat(feed(sniffer, "GET http://b.com/ HTTP/1.1\r\n"), is(Result.HTTP));
+		assertThat(sniffer.getEndPoint(), is(new EndPoint("a.com", 80)));
+		sniffer.reset();
+		assertThat(feed(sniffer, "GET http://b.co"), is(Result.NEED_MORE));
+		assertThat(sniffer.isAbsoluteURIStarted(), is(true));
+		assertThat(feed(sniffer, "m/ HTTP/1.1\r\n"), is(Result.HTTP));
+		assertThat(sniffer.getEndPoint(), is(new EndPoint("b.com", 80)));
+	}
+
+	private Result feed(ProxyRequestSniffer sniffer, String text) {
+		byte[] bytes = text.getBytes();
+		return sniffer.feed(bytes, 0, bytes.length);
+	}
+}
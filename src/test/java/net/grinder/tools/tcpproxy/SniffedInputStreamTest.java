@@ -0,0 +1,52 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class SniffedInputStreamTest {
+
+	@Test
+	public void testBufferStaysBoundedAfterTheSniffedBytes() throws Exception {
+		final byte[] head = "CONNECT server:443 HTTP/1.1\r\n\r\n".getBytes();
+		final byte[] data = new byte[head.length + 2 * 1024 * 1024];
+		System.arraycopy(head, 0, data, 0, head.length);
+		for (int i = head.length; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		// Hands out a few bytes at a time, as a socket does.
+		final InputStream socket = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] buffer, int offset, int length) {
+				return super.read(buffer, offset, Math.min(length, 1000));
+			}
+		};
+
+		final BufferPool bufferPool = new BufferPool(4096, 1);
+		final SniffedInputStream in = new SniffedInputStream(socket, bufferPool);
+		final byte[] buffer = new byte[4096];
+		int sniffed = 0;
+		while (sniffed < head.length) {
+			sniffed += in.read(buffer, 0, head.length - sniffed);
+		}
+		in.replay(sniffed);
+
+		int position = 0;
+		int bytesRead;
+		while ((bytesRead = in.read(buffer, 0, buffer.length)) != -1) {
+			for (int i = 0; i < bytesRead; i++) {
+				assertThat(buffer[i], is(data[position + i]));
+			}
+			position += bytesRead;
+			assertThat(in.getBufferSize(), is(4096));
+		}
+		assertThat(position, is(data.length));
+
+		in.close();
+		assertThat(bufferPool.getOutstanding(), is(0));
+	}
+}
@@ -0,0 +1,70 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TCPProxyMintingSSLEngineFactoryTest {
+
+	private static TCPProxyCertificateAuthority authority;
+
+	@BeforeClass
+	public static void createAuthority() throws Exception {
+		authority = TCPProxyCertificateAuthority.create();
+	}
+
+	@Test
+	public void testIssuedCertificate() throws Exception {
+		X509Certificate ca = authority.getCertificate();
+		assertThat(ca.getBasicConstraints() >= 0, is(true));
+
+		X509Certificate leaf = authority.issue("www.example.com", ca.getPublicKey());
+		leaf.verify(ca.getPublicKey());
+		leaf.checkValidity();
+		assertThat(leaf.getBasicConstraints(), is(-1));
+		assertThat(leaf.getIssuerX500Principal(), is(ca.getSubjectX500Principal()));
+		assertThat(leaf.getSubjectAlternativeNames().iterator().next().toString(), is("[2, www.example.com]"));
+
+		X509Certificate address = authority.issue("127.0.0.1", ca.getPublicKey());
+		assertThat(address.getSubjectAlternativeNames().iterator().next().toString(), is("[7, 127.0.0.1]"));
+	}
+
+	@Test
+	public void testSSLContextIsCached() throws Exception {
+		TCPProxyMintingSSLEngineFactory factory = new TCPProxyMintingSSLEngineFactory(authority, null, 1, 1);
+		try {
+			SSLContext first = factory.getSSLContext("www.example.com");
+			assertThat(factory.getSSLContext("WWW.example.com"), sameInstance(first));
+			factory.getSSLContext("other.example.com");
+			assertThat(factory.getSSLContext("www.example.com") == first, is(false));
+		} finally {
+			factory.shutdown();
+		}
+	}
+
+	@Test
+	public void testServerNameOfClientHello() throws Exception {
+		SSLEngine client = SSLContext.getDefault().createSSLEngine("www.example.com", 443);
+		client.setUseClientMode(true);
+		ByteBuffer record = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+		client.wrap(ByteBuffer.allocate(0), record);
+		BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(record.array(), 0,
+						record.position()));
+
+		assertThat(TLSClientHello.peekServerName(in), is("www.example.com"));
+		assertThat(in.read(), is(0x16));
+		assertThat(TLSClientHello.peekServerName(new BufferedInputStream(new ByteArrayInputStream(
+						"GET / HTTP/1.1\r\n".getBytes()))), is((String) null));
+	}
+}
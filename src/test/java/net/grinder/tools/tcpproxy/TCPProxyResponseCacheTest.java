@@ -0,0 +1,119 @@
+package net.grinder.tools.tcpproxy;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TCPProxyResponseCacheTest {
+
+	private static final EndPoint SERVER = new EndPoint("static.test", 80);
+
+	private TCPProxyResponseCache m_cache;
+
+	@Before
+	public void setUp() {
+		m_cache = new TCPProxyResponseCache();
+		m_cache.setPolicy(new TCPProxyResponseCache.Policy() {
+			@Override
+			public boolean isCacheable(String path, String contentType) {
+				return path.contains(".js") || "image/png".equals(contentType);
+			}
+		});
+	}
+
+	private static TCPProxyResponseCache.Request request(String head) {
+		byte[] bytes = head.getBytes();
+		return TCPProxyResponseCache.parse(SERVER, false, bytes, 0, bytes.length);
+	}
+
+	private void fetch(String requestHead, String response) {
+		TCPProxyResponseCache.Capture capture = m_cache.createCapture();
+		HTTPResponseFramer framer = new HTTPResponseFramer(capture);
+		framer.requestSent(false);
+		capture.requestSent(request(requestHead));
+		byte[] bytes = response.getBytes();
+		framer.feed(bytes, 0, bytes.length);
+	}
+
+	private String serve(String requestHead) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		return m_cache.serve(request(requestHead), out, true) ? out.toString() : null;
+	}
+
+	@Test
+	public void testFreshResponseIsServed() throws IOException {
+		String get = "GET http://static.test/app.js?v=1 HTTP/1.1\r\nHost: static.test\r\n\r\n";
+		assertThat(serve(get), is((String) null));
+		fetch(get, "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nETag: \"a\"\r\nConnection: keep-alive\r\n"
+						+ "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n\r\n");
+
+		assertThat(serve("GET /app.js?v=1 HTTP/1.1\r\nHost: static.test\r\n\r\n"),
+						is("HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nETag: \"a\"\r\n"
+										+ "Content-Length: 5\r\nAge: 0\r\n\r\nhello"));
+		assertThat(serve("GET /app.js?v=1 HTTP/1.1\r\nIf-None-Match: W/\"a\"\r\n\r\n"),
+						is("HTTP/1.1 304 Not Modified\r\nCache-Control: max-age=60\r\nETag: \"a\"\r\nAge: 0\r\n\r\n"));
+		assertThat(serve("GET /app.js?v=1 HTTP/1.1\r\nCache-Control: no-cache\r\n\r\n"), is((String) null));
+		assertThat(serve("GET /app.js?v=2 HTTP/1.1\r\n\r\n"), is((String) null));
+		assertThat(m_cache.getHitCount(), is(2L));
+		assertThat(m_cache.getMissCount(), is(2L));
+	}
+
+	@Test
+	public void testUncacheableResponsesAreNotKept() throws IOException {
+		fetch("GET /a.js HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nCache-Control: no-store, max-age=60\r\n"
+						+ "Content-Length: 1\r\n\r\na");
+		fetch("GET /b.js HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\nVary: Cookie\r\n"
+						+ "Content-Length: 1\r\n\r\nb");
+		fetch("GET /c.js HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nExpires: 0\r\nContent-Length: 1\r\n\r\nc");
+		fetch("GET /page.html HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"
+						+ "Content-Type: text/html\r\nContent-Length: 1\r\n\r\nd");
+		fetch("GET /logo HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"
+						+ "Content-Type: image/png\r\nContent-Length: 1\r\n\r\ne");
+		assertThat(m_cache.getEntryCount(), is(1));
+		assertThat(serve("GET /logo HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"), is(true));
+		assertThat(serve("GET /logo HTTP/1.1\r\nAuthorization: Basic eDp5\r\n\r\n"), is((String) null));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws IOException {
+		m_cache.setMaxSize(250);
+		String body = "0123456789012345678901234567890123456789";
+		for (String each : new String[] { "/1.js", "/2.js", "/3.js" }) {
+			fetch("GET " + each + " HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"
+							+ "Content-Length: 40\r\n\r\n" + body);
+			serve("GET /1.js HTTP/1.1\r\n\r\n");
+		}
+		assertThat(m_cache.getEntryCount(), is(2));
+		assertThat(serve("GET /1.js HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 200 OK"), is(true));
+		assertThat(serve("GET /2.js HTTP/1.1\r\n\r\n"), is((String) null));
+		assertThat(m_cache.getEvictedCount(), is(1L));
+	}
+
+	@Test
+	public void testEvictedResponseIsSpilledAndReadBack() throws IOException {
+		File directory = File.createTempFile("response", "cache");
+		directory.delete();
+		try {
+			m_cache.setMaxSize(80);
+			m_cache.setSpillDirectory(directory, 1024);
+			fetch("GET /1.js HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"
+							+ "Content-Length: 5\r\n\r\nfirst");
+			fetch("GET /2.js HTTP/1.1\r\n\r\n", "HTTP/1.1 200 OK\r\nCache-Control: max-age=60\r\n"
+							+ "Content-Length: 6\r\n\r\nsecond");
+			assertThat(m_cache.getEntryCount(), is(1));
+			assertThat(directory.list().length, is(1));
+			assertThat(serve("GET /1.js HTTP/1.1\r\n\r\n").endsWith("\r\n\r\nfirst"), is(true));
+			assertThat(m_cache.getSpillHitCount(), is(1L));
+			assertThat(serve("GET /2.js HTTP/1.1\r\n\r\n").endsWith("\r\n\r\nsecond"), is(true));
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+}